@@ -1,5 +1,6 @@
 package org.sharedhealth.healthId.web.Model;
 
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.cassandra.mapping.Column;
 import org.springframework.data.cassandra.mapping.PrimaryKeyColumn;
 import org.springframework.data.cassandra.mapping.Table;
@@ -34,6 +35,12 @@ public class GeneratedHIDBlock {
     @Column(REQUESTED_BY)
     private String requestedBy;
 
+    @Transient
+    private Long failedHIDs;
+
+    @Transient
+    private HidGenerationStats stats;
+
     public GeneratedHIDBlock(Long seriesNo, String generatedFor, Long beginsAt, Long endsAt,
                              Long totalHIDs, String requestedBy, UUID generatedAt) {
         this.seriesNo = seriesNo;
@@ -73,6 +80,22 @@ public class GeneratedHIDBlock {
         return requestedBy;
     }
 
+    public Long getFailedHIDs() {
+        return failedHIDs;
+    }
+
+    public void setFailedHIDs(Long failedHIDs) {
+        this.failedHIDs = failedHIDs;
+    }
+
+    public HidGenerationStats getStats() {
+        return stats;
+    }
+
+    public void setStats(HidGenerationStats stats) {
+        this.stats = stats;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,43 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A block handed out to an MCI, recorded in the allocation ledger under the id of the request it answered.
+ * The HIDs are null while the block of the request is still being allocated.
+ */
+public class HidAllocation {
+
+    private final String mciCode;
+    private final String requestId;
+    private final UUID allocatedAt;
+    private final List<String> hids;
+
+    public HidAllocation(String mciCode, String requestId, UUID allocatedAt, List<String> hids) {
+        this.mciCode = mciCode;
+        this.requestId = requestId;
+        this.allocatedAt = allocatedAt;
+        this.hids = hids;
+    }
+
+    public String getMciCode() {
+        return mciCode;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public UUID getAllocatedAt() {
+        return allocatedAt;
+    }
+
+    public List<String> getHids() {
+        return hids;
+    }
+
+    public boolean isPending() {
+        return hids == null;
+    }
+}
@@ -0,0 +1,81 @@
+package org.sharedhealth.healthId.web.Model;
+
+import org.springframework.data.cassandra.mapping.Column;
+import org.springframework.data.cassandra.mapping.PrimaryKeyColumn;
+import org.springframework.data.cassandra.mapping.Table;
+
+import java.util.Date;
+
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
+import static org.springframework.cassandra.core.PrimaryKeyType.PARTITIONED;
+
+/**
+ * The part of a series handed out by counter, from {@code beginsAt} to {@code endsAt}. The valid HIDs of that
+ * range are numbered from zero and {@code nextIndex} is the number of the first one not allocated yet.
+ */
+@Table(value = CF_HID_ALLOCATION_COUNTERS)
+public class HidAllocationCounter {
+
+    @PrimaryKeyColumn(name = SERIES_NO, ordinal = 0, type = PARTITIONED)
+    private Long seriesNo;
+
+    @Column(BEGINS_AT)
+    private Long beginsAt;
+
+    @Column(ENDS_AT)
+    private Long endsAt;
+
+    @Column(TOTAL_HIDS)
+    private Long totalHIDs;
+
+    @Column(NEXT_INDEX)
+    private Long nextIndex;
+
+    @Column(UPDATED_AT)
+    private Date updatedAt;
+
+    public HidAllocationCounter() {
+    }
+
+    public HidAllocationCounter(long seriesNo, long beginsAt, long endsAt, long totalHIDs) {
+        this.seriesNo = seriesNo;
+        this.beginsAt = beginsAt;
+        this.endsAt = endsAt;
+        this.totalHIDs = totalHIDs;
+        this.nextIndex = 0L;
+        this.updatedAt = new Date();
+    }
+
+    public Long getSeriesNo() {
+        return seriesNo;
+    }
+
+    public Long getBeginsAt() {
+        return beginsAt;
+    }
+
+    public Long getEndsAt() {
+        return endsAt;
+    }
+
+    public Long getTotalHIDs() {
+        return totalHIDs;
+    }
+
+    public Long getNextIndex() {
+        return nextIndex;
+    }
+
+    public void setNextIndex(Long nextIndex) {
+        this.nextIndex = nextIndex;
+        this.updatedAt = new Date();
+    }
+
+    public Date getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public long getRemainingHIDs() {
+        return totalHIDs - nextIndex;
+    }
+}
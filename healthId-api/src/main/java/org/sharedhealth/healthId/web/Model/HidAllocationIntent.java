@@ -0,0 +1,73 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.datastax.driver.core.utils.UUIDs.unixTimestamp;
+
+/**
+ * HIDs about to be allocated to an organization, recorded before any of the allocation is written so an allocation
+ * that fails half way can be rolled back later. The intent id doubles as the generated at of the allocated HIDs,
+ * so writing them again gives the very same rows. Intents are kept in one partition per hour.
+ * <p>
+ * HIDs prefetched for an MCI keep their intent until handed out, as the lease that rolls them back when they are not.
+ */
+public class HidAllocationIntent {
+    private static final long MILLIS_PER_HOUR = 3600 * 1000L;
+
+    private final UUID intentId;
+    private final String allocatedFor;
+    private final List<String> hids;
+    private final List<String> poolHids;
+
+    public HidAllocationIntent(UUID intentId, String allocatedFor, List<String> hids, List<String> poolHids) {
+        this.intentId = intentId;
+        this.allocatedFor = allocatedFor;
+        this.hids = hids;
+        this.poolHids = poolHids;
+    }
+
+    public static long hourOf(long millis) {
+        return millis / MILLIS_PER_HOUR;
+    }
+
+    public long getHour() {
+        return hourOf(unixTimestamp(intentId));
+    }
+
+    public UUID getIntentId() {
+        return intentId;
+    }
+
+    public String getAllocatedFor() {
+        return allocatedFor;
+    }
+
+    /**
+     * Every HID of the allocation.
+     */
+    public List<String> getHids() {
+        return hids;
+    }
+
+    /**
+     * The HIDs taken out of the row pool, which are deleted from it.
+     */
+    public List<String> getPoolHids() {
+        return poolHids;
+    }
+
+    /**
+     * The same intent for only {@code hids}, a part of its HIDs.
+     */
+    public HidAllocationIntent withHids(List<String> hids) {
+        List<String> keptPoolHids = new ArrayList<>(poolHids);
+        keptPoolHids.retainAll(hids);
+        return new HidAllocationIntent(intentId, allocatedFor, hids, keptPoolHids);
+    }
+
+    public long getCreatedAt() {
+        return unixTimestamp(intentId);
+    }
+}
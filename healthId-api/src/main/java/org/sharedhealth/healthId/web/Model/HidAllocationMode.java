@@ -0,0 +1,13 @@
+package org.sharedhealth.healthId.web.Model;
+
+public enum HidAllocationMode {
+    /**
+     * Blocks are read from and deleted out of the pre-generated mci_healthId pool.
+     */
+    POOL,
+    /**
+     * Blocks are derived from a per-series counter of allocated valid HIDs, nothing is pre-generated. HIDs of
+     * allocations rolled back are put in the mci_healthId pool, which is drained once the counter runs out.
+     */
+    COUNTER
+}
@@ -0,0 +1,51 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.UUID;
+
+/**
+ * A block handed out to an MCI as kept in its allocation history: how many HIDs it held and the first and last of
+ * them, without the HIDs themselves. The request id is null for blocks of requests that did not send one.
+ */
+public class HidAllocationSummary {
+
+    private final String mciCode;
+    private final String requestId;
+    private final UUID allocatedAt;
+    private final int totalHids;
+    private final String firstHid;
+    private final String lastHid;
+
+    public HidAllocationSummary(String mciCode, String requestId, UUID allocatedAt, int totalHids, String firstHid,
+                                String lastHid) {
+        this.mciCode = mciCode;
+        this.requestId = requestId;
+        this.allocatedAt = allocatedAt;
+        this.totalHids = totalHids;
+        this.firstHid = firstHid;
+        this.lastHid = lastHid;
+    }
+
+    public String getMciCode() {
+        return mciCode;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public UUID getAllocatedAt() {
+        return allocatedAt;
+    }
+
+    public int getTotalHids() {
+        return totalHids;
+    }
+
+    public String getFirstHid() {
+        return firstHid;
+    }
+
+    public String getLastHid() {
+        return lastHid;
+    }
+}
@@ -0,0 +1,204 @@
+package org.sharedhealth.healthId.web.Model;
+
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.cassandra.mapping.Column;
+import org.springframework.data.cassandra.mapping.PrimaryKeyColumn;
+import org.springframework.data.cassandra.mapping.Table;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
+import static org.springframework.cassandra.core.PrimaryKeyType.CLUSTERED;
+import static org.springframework.cassandra.core.PrimaryKeyType.PARTITIONED;
+
+/**
+ * Progress of a block generation, saved every few thousand HIDs so a generation that dies half way
+ * can be resumed from its last candidate instead of starting over.
+ */
+@Table(value = CF_HID_GENERATION_CHECKPOINTS)
+public class HidGenerationCheckpoint {
+    public static final String RUNNING = "RUNNING";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String INTERRUPTED = "INTERRUPTED";
+
+    @PrimaryKeyColumn(name = SERIES_NO, ordinal = 0, type = PARTITIONED)
+    private Long seriesNo;
+
+    @PrimaryKeyColumn(name = IDEMPOTENCY_KEY, ordinal = 1, type = CLUSTERED)
+    private String idempotencyKey;
+
+    @Column(GENERATED_FOR)
+    private String generatedFor;
+
+    @Column(GENERATED_AT)
+    private UUID generatedAt;
+
+    @Column(BEGINS_AT)
+    private Long beginsAt;
+
+    @Column(RESERVED_TO)
+    private Long reservedTo;
+
+    @Column(LAST_CANDIDATE)
+    private Long lastCandidate;
+
+    @Column(WRITTEN_HIDS)
+    private Long writtenHIDs;
+
+    @Column(FAILED_HIDS)
+    private Long failedHIDs;
+
+    @Column(REQUESTED_BY)
+    private String requestedBy;
+
+    @Column(STATUS)
+    private String status;
+
+    @Column(UPDATED_AT)
+    private Date updatedAt;
+
+    @Transient
+    private boolean recovering;
+
+    @Transient
+    private long startWrittenHIDs;
+
+    @Transient
+    private long startFailedHIDs;
+
+    public HidGenerationCheckpoint() {
+    }
+
+    public HidGenerationCheckpoint(Long seriesNo, String idempotencyKey, String generatedFor, Long beginsAt,
+                                   UUID generatedAt, String requestedBy) {
+        this.seriesNo = seriesNo;
+        this.idempotencyKey = idempotencyKey;
+        this.generatedFor = generatedFor;
+        this.beginsAt = beginsAt;
+        this.generatedAt = generatedAt;
+        this.requestedBy = requestedBy;
+        this.writtenHIDs = 0L;
+        this.failedHIDs = 0L;
+        this.status = RUNNING;
+        this.updatedAt = new Date();
+    }
+
+    /**
+     * Remembers the counts this run starts from, the writes of the run are added to them at every checkpoint.
+     */
+    public void start(boolean recovering) {
+        this.status = RUNNING;
+        this.updatedAt = new Date();
+        this.recovering = recovering;
+        this.startWrittenHIDs = getWrittenHIDs();
+        this.startFailedHIDs = getFailedHIDs();
+    }
+
+    public void advance(long lastCandidate, long writtenHIDs, long failedHIDs) {
+        this.lastCandidate = lastCandidate;
+        this.writtenHIDs = writtenHIDs;
+        this.failedHIDs = failedHIDs;
+        this.updatedAt = new Date();
+    }
+
+    public void complete(long lastCandidate, long writtenHIDs, long failedHIDs) {
+        advance(lastCandidate, writtenHIDs, failedHIDs);
+        this.status = COMPLETED;
+    }
+
+    /**
+     * Marks a generation that failed as one to resume, without waiting for its lease to run out.
+     */
+    public void interrupt() {
+        this.status = INTERRUPTED;
+        this.updatedAt = new Date();
+    }
+
+    public boolean isRecovering() {
+        return recovering;
+    }
+
+    public long getStartWrittenHIDs() {
+        return startWrittenHIDs;
+    }
+
+    public long getStartFailedHIDs() {
+        return startFailedHIDs;
+    }
+
+    /**
+     * A running generation saves its checkpoint well within every lease, one not saved for longer has died.
+     */
+    public boolean isStale(long leaseMillis) {
+        return INTERRUPTED.equals(status) || updatedAt == null || System.currentTimeMillis() - updatedAt.getTime() > leaseMillis;
+    }
+
+    public boolean isCompleted() {
+        return COMPLETED.equals(status);
+    }
+
+    public long getNextCandidate() {
+        return lastCandidate == null ? beginsAt : lastCandidate + 1;
+    }
+
+    public long getValidHIDs() {
+        return getWrittenHIDs() + getFailedHIDs();
+    }
+
+    public Long getSeriesNo() {
+        return seriesNo;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public String getGeneratedFor() {
+        return generatedFor;
+    }
+
+    public UUID getGeneratedAt() {
+        return generatedAt;
+    }
+
+    public Long getBeginsAt() {
+        return beginsAt;
+    }
+
+    public Long getReservedTo() {
+        return reservedTo;
+    }
+
+    public void setReservedTo(Long reservedTo) {
+        this.reservedTo = reservedTo;
+    }
+
+    public Long getLastCandidate() {
+        return lastCandidate;
+    }
+
+    public long getWrittenHIDs() {
+        return writtenHIDs == null ? 0L : writtenHIDs;
+    }
+
+    public long getFailedHIDs() {
+        return failedHIDs == null ? 0L : failedHIDs;
+    }
+
+    public String getRequestedBy() {
+        return requestedBy;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Date getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Date updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
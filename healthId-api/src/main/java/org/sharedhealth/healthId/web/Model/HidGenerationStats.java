@@ -0,0 +1,50 @@
+package org.sharedhealth.healthId.web.Model;
+
+public class HidGenerationStats {
+
+    private final String writeMode;
+    private final long elapsedMillis;
+    private final double hidsPerSecond;
+    private String comparedWriteMode;
+    private Double comparedHidsPerSecond;
+    private Long missingHIDs;
+
+    public HidGenerationStats(String writeMode, long elapsedMillis, long writtenHIDs) {
+        this.writeMode = writeMode;
+        this.elapsedMillis = elapsedMillis;
+        this.hidsPerSecond = elapsedMillis == 0 ? writtenHIDs * 1000.0 : writtenHIDs * 1000.0 / elapsedMillis;
+    }
+
+    public String getWriteMode() {
+        return writeMode;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getHidsPerSecond() {
+        return hidsPerSecond;
+    }
+
+    public String getComparedWriteMode() {
+        return comparedWriteMode;
+    }
+
+    public Double getComparedHidsPerSecond() {
+        return comparedHidsPerSecond;
+    }
+
+    public void compareWith(String writeMode, double hidsPerSecond) {
+        this.comparedWriteMode = writeMode;
+        this.comparedHidsPerSecond = hidsPerSecond;
+    }
+
+    public Long getMissingHIDs() {
+        return missingHIDs;
+    }
+
+    public void setMissingHIDs(Long missingHIDs) {
+        this.missingHIDs = missingHIDs;
+    }
+}
@@ -0,0 +1,13 @@
+package org.sharedhealth.healthId.web.Model;
+
+public enum HidPoolLayout {
+    /**
+     * One mci_healthId partition per HID, deleted when the HID is allocated.
+     */
+    ROWS,
+    /**
+     * HIDs grouped into fixed candidate ranges of a series, one mci_hid_buckets partition per range. Whole buckets
+     * are claimed off a per-series cursor and nothing is deleted.
+     */
+    BUCKETS
+}
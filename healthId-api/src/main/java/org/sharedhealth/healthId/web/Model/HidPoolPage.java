@@ -0,0 +1,25 @@
+package org.sharedhealth.healthId.web.Model;
+
+import java.util.List;
+
+/**
+ * HIDs read from the pool in token order, with the token of the last one so the next read can continue from it.
+ */
+public class HidPoolPage {
+
+    private final List<MciHealthId> hids;
+    private final Long lastToken;
+
+    public HidPoolPage(List<MciHealthId> hids, Long lastToken) {
+        this.hids = hids;
+        this.lastToken = lastToken;
+    }
+
+    public List<MciHealthId> getHids() {
+        return hids;
+    }
+
+    public Long getLastToken() {
+        return lastToken;
+    }
+}
@@ -0,0 +1,61 @@
+package org.sharedhealth.healthId.web.Model;
+
+public class HidSeriesCapacity {
+
+    private final long seriesNo;
+    private final long seriesEndsAt;
+    private final long totalValidHIDs;
+    private final long nextStart;
+    private final long remainingValidHIDs;
+    private final long requestedHIDs;
+    private final long availableHIDs;
+    private final Long blockEndsAt;
+
+    public HidSeriesCapacity(long seriesNo, long seriesEndsAt, long totalValidHIDs, long nextStart, long remainingValidHIDs,
+                             long requestedHIDs, Long blockEndsAt) {
+        this.seriesNo = seriesNo;
+        this.seriesEndsAt = seriesEndsAt;
+        this.totalValidHIDs = totalValidHIDs;
+        this.nextStart = nextStart;
+        this.remainingValidHIDs = remainingValidHIDs;
+        this.requestedHIDs = requestedHIDs;
+        this.availableHIDs = Math.min(requestedHIDs, remainingValidHIDs);
+        this.blockEndsAt = blockEndsAt;
+    }
+
+    public long getSeriesNo() {
+        return seriesNo;
+    }
+
+    public long getSeriesEndsAt() {
+        return seriesEndsAt;
+    }
+
+    public long getTotalValidHIDs() {
+        return totalValidHIDs;
+    }
+
+    public long getNextStart() {
+        return nextStart;
+    }
+
+    public long getRemainingValidHIDs() {
+        return remainingValidHIDs;
+    }
+
+    public long getRequestedHIDs() {
+        return requestedHIDs;
+    }
+
+    public long getAvailableHIDs() {
+        return availableHIDs;
+    }
+
+    public Long getBlockEndsAt() {
+        return blockEndsAt;
+    }
+
+    public boolean isExhausted() {
+        return remainingValidHIDs == 0;
+    }
+}
@@ -0,0 +1,16 @@
+package org.sharedhealth.healthId.web.Model;
+
+/**
+ * Outcome of marking one HID used in a bulk markUsed request.
+ */
+public enum HidUsageStatus {
+    ACCEPTED,
+    REJECTED,
+    NOT_FOUND,
+    ALREADY_USED,
+    /**
+     * The used_at of the HID was not a time UUID.
+     */
+    INVALID,
+    FAILED
+}
@@ -0,0 +1,12 @@
+package org.sharedhealth.healthId.web.Model;
+
+public enum HidWriteMode {
+    /**
+     * Each HID is inserted with IF NOT EXISTS.
+     */
+    LWT,
+    /**
+     * Plain inserts in unlogged batches of HIDs owned by the same replicas. Only safe for ranges no other run writes to.
+     */
+    BULK
+}
@@ -51,6 +51,10 @@ public class OrgHealthId {
         return allocatedFor;
     }
 
+    public UUID getGeneratedAt() {
+        return generatedAt;
+    }
+
     public UUID getUsedAt() {
         return usedAt;
     }
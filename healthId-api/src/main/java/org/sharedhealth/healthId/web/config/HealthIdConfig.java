@@ -1,5 +1,6 @@
 package org.sharedhealth.healthId.web.config;
 
+import org.sharedhealth.healthId.web.utils.ChecksumGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -24,4 +25,9 @@ public class HealthIdConfig {
         executor.setCorePoolSize(healthIdProperties.getRestPoolSize());
         return new AsyncRestTemplate(executor);
     }
+
+    @Bean
+    public ChecksumGenerator checksumGenerator() {
+        return healthIdProperties.getHidChecksumAlgorithm().newGenerator();
+    }
 }
@@ -1,16 +1,34 @@
 package org.sharedhealth.healthId.web.config;
 
+import org.sharedhealth.healthId.web.Model.HidAllocationMode;
+import org.sharedhealth.healthId.web.Model.HidPoolLayout;
+import org.sharedhealth.healthId.web.Model.HidWriteMode;
+import org.sharedhealth.healthId.web.utils.ChecksumAlgorithm;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.Integer.parseInt;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
 @Component
 public class HealthIdProperties {
 
     public static final String DIAGNOSTICS_HEALTH_SERVLET_PATH = "/diagnostics/health";
     public static final String REMAINING_HEALTH_ID_SERVLET_PATH = "/healthIds/checkRemaining";
 
+    private static final long DEFAULT_HID_GENERATION_PARTITION_SIZE = 1000000L;
+    private static final int DEFAULT_HID_GENERATION_MAX_IN_FLIGHT_WRITES = 256;
+    private static final int DEFAULT_HID_GENERATION_WRITE_RETRIES = 3;
+    private static final int DEFAULT_HID_GENERATION_JOB_THREADS = 2;
+    private static final int DEFAULT_HID_GENERATION_JOB_QUEUE_SIZE = 16;
+    private static final long DEFAULT_HID_GENERATION_CHECKPOINT_INTERVAL = 50000L;
+    private static final int DEFAULT_HID_GENERATION_LEASE_SECONDS = 300;
+
     @Bean
     public static PropertySourcesPlaceholderConfigurer propertyPlaceholderConfigurer() {
         return new PropertySourcesPlaceholderConfigurer();
@@ -67,6 +85,78 @@ public class HealthIdProperties {
     @Value("${HEALTH_ID_BLOCK_SIZE}")
     private String healthIdBlockSize;
 
+    @Value("${HID_GENERATION_PARALLELISM:}")
+    private String hidGenerationParallelism;
+    @Value("${HID_GENERATION_PARTITION_SIZE:}")
+    private String hidGenerationPartitionSize;
+
+    @Value("${HID_CHECKSUM_ALGORITHM}")
+    private String hidChecksumAlgorithm;
+
+    @Value("${HID_GENERATION_MAX_IN_FLIGHT_WRITES}")
+    private String hidGenerationMaxInFlightWrites;
+    @Value("${HID_GENERATION_WRITE_RETRIES}")
+    private String hidGenerationWriteRetries;
+    @Value("${HID_GENERATION_WRITE_MODE}")
+    private String hidGenerationWriteMode;
+
+    @Value("${HID_GENERATION_JOB_THREADS}")
+    private String hidGenerationJobThreads;
+    @Value("${HID_GENERATION_JOB_QUEUE_SIZE}")
+    private String hidGenerationJobQueueSize;
+    @Value("${HID_GENERATION_CHECKPOINT_INTERVAL}")
+    private String hidGenerationCheckpointInterval;
+    @Value("${HID_GENERATION_LEASE_SECONDS}")
+    private String hidGenerationLeaseSeconds;
+    @Value("${HID_FILE_GZIP}")
+    private String hidFileGzip;
+    @Value("${HID_VALIDITY_INDEX_PATH}")
+    private String hidValidityIndexPath;
+    @Value("${HID_ALLOCATION_MODE}")
+    private String hidAllocationMode;
+    @Value("${HID_ALLOCATION_SERIES}")
+    private String hidAllocationSeries;
+    @Value("${HID_ALLOCATION_KEY}")
+    private String hidAllocationKey;
+    @Value("${HID_PREFETCH_HIGH_WATER_MARK}")
+    private String hidPrefetchHighWaterMark;
+    @Value("${HID_PREFETCH_LOW_WATER_MARK}")
+    private String hidPrefetchLowWaterMark;
+    @Value("${HID_PREFETCH_LEASE_SECONDS}")
+    private String hidPrefetchLeaseSeconds;
+    @Value("${HID_POOL_LEASE_RANGES}")
+    private String hidPoolLeaseRanges;
+    @Value("${HID_POOL_LEASE_TTL_SECONDS}")
+    private String hidPoolLeaseTtlSeconds;
+    @Value("${HID_NODE_ID}")
+    private String hidNodeId;
+    @Value("${HID_POOL_LAYOUT}")
+    private String hidPoolLayout;
+    @Value("${HID_POOL_BUCKET_SIZE}")
+    private String hidPoolBucketSize;
+    @Value("${HID_ALLOCATION_MAX_IN_FLIGHT_WRITES}")
+    private String hidAllocationMaxInFlightWrites;
+    @Value("${HID_ALLOCATION_RECONCILE_SECONDS}")
+    private String hidAllocationReconcileSeconds;
+    @Value("${HID_ALLOCATION_LEDGER_TTL_DAYS}")
+    private String hidAllocationLedgerTtlDays;
+    @Value("${HID_ALLOCATION_QUOTA_HIDS_PER_SECOND}")
+    private String hidAllocationQuotaHidsPerSecond;
+    @Value("${HID_ALLOCATION_QUOTA_BURST}")
+    private String hidAllocationQuotaBurst;
+    @Value("${HID_ALLOCATION_WEIGHTS}")
+    private String hidAllocationWeights;
+    @Value("${HID_BLOCK_TARGET_REFILL_SECONDS}")
+    private String hidBlockTargetRefillSeconds;
+    @Value("${HID_BLOCK_MIN_SIZE}")
+    private String hidBlockMinSize;
+    @Value("${HID_BLOCK_MAX_SIZE}")
+    private String hidBlockMaxSize;
+    @Value("${HID_MARK_USED_MAX_BATCH_SIZE}")
+    private String hidMarkUsedMaxBatchSize;
+    @Value("${HID_MARK_USED_MAX_IN_FLIGHT}")
+    private String hidMarkUsedMaxInFlight;
+
     public String getCassandraKeySpace() {
         return cassandraKeySpace;
     }
@@ -190,4 +280,394 @@ public class HealthIdProperties {
     public int getHealthIdWarningThreshold() {
         return Integer.parseInt((healthIdWarningThreshold));
     }
+
+    public void setHealthIdWarningThreshold(String healthIdWarningThreshold) {
+        this.healthIdWarningThreshold = healthIdWarningThreshold;
+    }
+
+    public int getHidGenerationParallelism() {
+        if (isBlank(hidGenerationParallelism)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return parseInt(hidGenerationParallelism);
+    }
+
+    public void setHidGenerationParallelism(String hidGenerationParallelism) {
+        this.hidGenerationParallelism = hidGenerationParallelism;
+    }
+
+    public long getHidGenerationPartitionSize() {
+        if (isBlank(hidGenerationPartitionSize)) {
+            return DEFAULT_HID_GENERATION_PARTITION_SIZE;
+        }
+        return Long.parseLong(hidGenerationPartitionSize);
+    }
+
+    public void setHidGenerationPartitionSize(String hidGenerationPartitionSize) {
+        this.hidGenerationPartitionSize = hidGenerationPartitionSize;
+    }
+
+    public ChecksumAlgorithm getHidChecksumAlgorithm() {
+        if (isBlank(hidChecksumAlgorithm)) {
+            return ChecksumAlgorithm.LUHN;
+        }
+        return ChecksumAlgorithm.valueOf(hidChecksumAlgorithm.trim().toUpperCase());
+    }
+
+    public void setHidChecksumAlgorithm(String hidChecksumAlgorithm) {
+        this.hidChecksumAlgorithm = hidChecksumAlgorithm;
+    }
+
+    public int getHidGenerationMaxInFlightWrites() {
+        if (isBlank(hidGenerationMaxInFlightWrites)) {
+            return DEFAULT_HID_GENERATION_MAX_IN_FLIGHT_WRITES;
+        }
+        return parseInt(hidGenerationMaxInFlightWrites);
+    }
+
+    public void setHidGenerationMaxInFlightWrites(String hidGenerationMaxInFlightWrites) {
+        this.hidGenerationMaxInFlightWrites = hidGenerationMaxInFlightWrites;
+    }
+
+    public int getHidGenerationWriteRetries() {
+        if (isBlank(hidGenerationWriteRetries)) {
+            return DEFAULT_HID_GENERATION_WRITE_RETRIES;
+        }
+        return parseInt(hidGenerationWriteRetries);
+    }
+
+    public void setHidGenerationWriteRetries(String hidGenerationWriteRetries) {
+        this.hidGenerationWriteRetries = hidGenerationWriteRetries;
+    }
+
+    public HidWriteMode getHidGenerationWriteMode() {
+        if (isBlank(hidGenerationWriteMode)) {
+            return HidWriteMode.LWT;
+        }
+        return HidWriteMode.valueOf(hidGenerationWriteMode.trim().toUpperCase());
+    }
+
+    public void setHidGenerationWriteMode(String hidGenerationWriteMode) {
+        this.hidGenerationWriteMode = hidGenerationWriteMode;
+    }
+
+    public int getHidGenerationJobThreads() {
+        if (isBlank(hidGenerationJobThreads)) {
+            return DEFAULT_HID_GENERATION_JOB_THREADS;
+        }
+        return parseInt(hidGenerationJobThreads);
+    }
+
+    public void setHidGenerationJobThreads(String hidGenerationJobThreads) {
+        this.hidGenerationJobThreads = hidGenerationJobThreads;
+    }
+
+    public int getHidGenerationJobQueueSize() {
+        if (isBlank(hidGenerationJobQueueSize)) {
+            return DEFAULT_HID_GENERATION_JOB_QUEUE_SIZE;
+        }
+        return parseInt(hidGenerationJobQueueSize);
+    }
+
+    public void setHidGenerationJobQueueSize(String hidGenerationJobQueueSize) {
+        this.hidGenerationJobQueueSize = hidGenerationJobQueueSize;
+    }
+
+    public long getHidGenerationCheckpointInterval() {
+        if (isBlank(hidGenerationCheckpointInterval)) {
+            return DEFAULT_HID_GENERATION_CHECKPOINT_INTERVAL;
+        }
+        return Long.parseLong(hidGenerationCheckpointInterval);
+    }
+
+    public void setHidGenerationCheckpointInterval(String hidGenerationCheckpointInterval) {
+        this.hidGenerationCheckpointInterval = hidGenerationCheckpointInterval;
+    }
+
+    public int getHidGenerationLeaseSeconds() {
+        if (isBlank(hidGenerationLeaseSeconds)) {
+            return DEFAULT_HID_GENERATION_LEASE_SECONDS;
+        }
+        return parseInt(hidGenerationLeaseSeconds);
+    }
+
+    public void setHidGenerationLeaseSeconds(String hidGenerationLeaseSeconds) {
+        this.hidGenerationLeaseSeconds = hidGenerationLeaseSeconds;
+    }
+
+    public boolean isHidFileGzip() {
+        return Boolean.parseBoolean(hidFileGzip);
+    }
+
+    public void setHidFileGzip(String hidFileGzip) {
+        this.hidFileGzip = hidFileGzip;
+    }
+
+    public String getHidValidityIndexPath() {
+        return hidValidityIndexPath;
+    }
+
+    public void setHidValidityIndexPath(String hidValidityIndexPath) {
+        this.hidValidityIndexPath = hidValidityIndexPath;
+    }
+
+    public HidAllocationMode getHidAllocationMode() {
+        if (isBlank(hidAllocationMode)) {
+            return HidAllocationMode.POOL;
+        }
+        return HidAllocationMode.valueOf(hidAllocationMode.trim().toUpperCase());
+    }
+
+    public void setHidAllocationMode(String hidAllocationMode) {
+        this.hidAllocationMode = hidAllocationMode;
+    }
+
+    public long getHidAllocationSeries() {
+        if (isBlank(hidAllocationSeries)) {
+            return getMciStartHid();
+        }
+        return Long.parseLong(hidAllocationSeries.trim());
+    }
+
+    public void setHidAllocationSeries(String hidAllocationSeries) {
+        this.hidAllocationSeries = hidAllocationSeries;
+    }
+
+    public String getHidAllocationKey() {
+        return hidAllocationKey;
+    }
+
+    public void setHidAllocationKey(String hidAllocationKey) {
+        this.hidAllocationKey = hidAllocationKey;
+    }
+
+    public int getHidPrefetchHighWaterMark() {
+        if (isBlank(hidPrefetchHighWaterMark)) {
+            return 0;
+        }
+        return Integer.parseInt(hidPrefetchHighWaterMark.trim());
+    }
+
+    public void setHidPrefetchHighWaterMark(String hidPrefetchHighWaterMark) {
+        this.hidPrefetchHighWaterMark = hidPrefetchHighWaterMark;
+    }
+
+    public int getHidPrefetchLowWaterMark() {
+        if (isBlank(hidPrefetchLowWaterMark)) {
+            return getHidPrefetchHighWaterMark() / 2;
+        }
+        return Integer.parseInt(hidPrefetchLowWaterMark.trim());
+    }
+
+    public void setHidPrefetchLowWaterMark(String hidPrefetchLowWaterMark) {
+        this.hidPrefetchLowWaterMark = hidPrefetchLowWaterMark;
+    }
+
+    public int getHidPrefetchLeaseSeconds() {
+        if (isBlank(hidPrefetchLeaseSeconds)) {
+            return 600;
+        }
+        return Integer.parseInt(hidPrefetchLeaseSeconds.trim());
+    }
+
+    public void setHidPrefetchLeaseSeconds(String hidPrefetchLeaseSeconds) {
+        this.hidPrefetchLeaseSeconds = hidPrefetchLeaseSeconds;
+    }
+
+    public int getHidPoolLeaseRanges() {
+        if (isBlank(hidPoolLeaseRanges)) {
+            return 0;
+        }
+        return Integer.parseInt(hidPoolLeaseRanges.trim());
+    }
+
+    public void setHidPoolLeaseRanges(String hidPoolLeaseRanges) {
+        this.hidPoolLeaseRanges = hidPoolLeaseRanges;
+    }
+
+    public int getHidPoolLeaseTtlSeconds() {
+        if (isBlank(hidPoolLeaseTtlSeconds)) {
+            return 60;
+        }
+        return Integer.parseInt(hidPoolLeaseTtlSeconds.trim());
+    }
+
+    public void setHidPoolLeaseTtlSeconds(String hidPoolLeaseTtlSeconds) {
+        this.hidPoolLeaseTtlSeconds = hidPoolLeaseTtlSeconds;
+    }
+
+    public String getHidNodeId() {
+        return hidNodeId;
+    }
+
+    public void setHidNodeId(String hidNodeId) {
+        this.hidNodeId = hidNodeId;
+    }
+
+    public HidPoolLayout getHidPoolLayout() {
+        if (isBlank(hidPoolLayout)) {
+            return HidPoolLayout.ROWS;
+        }
+        return HidPoolLayout.valueOf(hidPoolLayout.trim().toUpperCase());
+    }
+
+    public void setHidPoolLayout(String hidPoolLayout) {
+        this.hidPoolLayout = hidPoolLayout;
+    }
+
+    public long getHidPoolBucketSize() {
+        if (isBlank(hidPoolBucketSize)) {
+            return 1000L;
+        }
+        return Long.parseLong(hidPoolBucketSize.trim());
+    }
+
+    public void setHidPoolBucketSize(String hidPoolBucketSize) {
+        this.hidPoolBucketSize = hidPoolBucketSize;
+    }
+
+    public int getHidAllocationMaxInFlightWrites() {
+        if (isBlank(hidAllocationMaxInFlightWrites)) {
+            return 64;
+        }
+        return Integer.parseInt(hidAllocationMaxInFlightWrites.trim());
+    }
+
+    public void setHidAllocationMaxInFlightWrites(String hidAllocationMaxInFlightWrites) {
+        this.hidAllocationMaxInFlightWrites = hidAllocationMaxInFlightWrites;
+    }
+
+    public int getHidAllocationReconcileSeconds() {
+        if (isBlank(hidAllocationReconcileSeconds)) {
+            return 0;
+        }
+        return Integer.parseInt(hidAllocationReconcileSeconds.trim());
+    }
+
+    public void setHidAllocationReconcileSeconds(String hidAllocationReconcileSeconds) {
+        this.hidAllocationReconcileSeconds = hidAllocationReconcileSeconds;
+    }
+
+    /**
+     * Days the allocation ledger keeps a block handed out to an MCI, 0 keeps it forever.
+     */
+    public int getHidAllocationLedgerTtlDays() {
+        if (isBlank(hidAllocationLedgerTtlDays)) {
+            return 30;
+        }
+        return Integer.parseInt(hidAllocationLedgerTtlDays.trim());
+    }
+
+    public void setHidAllocationLedgerTtlDays(String hidAllocationLedgerTtlDays) {
+        this.hidAllocationLedgerTtlDays = hidAllocationLedgerTtlDays;
+    }
+
+    /**
+     * HIDs per second each MCI is allowed to take through nextBlock, 0 leaves them unlimited.
+     */
+    public double getHidAllocationQuotaHidsPerSecond() {
+        if (isBlank(hidAllocationQuotaHidsPerSecond)) {
+            return 0;
+        }
+        return Double.parseDouble(hidAllocationQuotaHidsPerSecond.trim());
+    }
+
+    public void setHidAllocationQuotaHidsPerSecond(String hidAllocationQuotaHidsPerSecond) {
+        this.hidAllocationQuotaHidsPerSecond = hidAllocationQuotaHidsPerSecond;
+    }
+
+    /**
+     * HIDs an MCI can take at once after being idle, ten seconds worth of its quota when not set.
+     */
+    public long getHidAllocationQuotaBurst() {
+        if (isBlank(hidAllocationQuotaBurst)) {
+            return (long) Math.ceil(getHidAllocationQuotaHidsPerSecond() * 10);
+        }
+        return Long.parseLong(hidAllocationQuotaBurst.trim());
+    }
+
+    public void setHidAllocationQuotaBurst(String hidAllocationQuotaBurst) {
+        this.hidAllocationQuotaBurst = hidAllocationQuotaBurst;
+    }
+
+    /**
+     * Weights of MCIs in the allocation queue and their quotas, as "mciCode:weight" pairs separated by commas.
+     * MCIs not listed weigh 1.
+     */
+    public Map<String, Integer> getHidAllocationWeights() {
+        Map<String, Integer> weights = new HashMap<>();
+        if (isBlank(hidAllocationWeights)) {
+            return weights;
+        }
+        for (String pair : hidAllocationWeights.split(",")) {
+            String[] mciWeight = pair.split(":");
+            if (mciWeight.length != 2 || isBlank(mciWeight[0])) {
+                throw new IllegalArgumentException(String.format("Invalid allocation weight %s", pair));
+            }
+            weights.put(mciWeight[0].trim(), parseInt(mciWeight[1].trim()));
+        }
+        return weights;
+    }
+
+    public void setHidAllocationWeights(String hidAllocationWeights) {
+        this.hidAllocationWeights = hidAllocationWeights;
+    }
+
+    /**
+     * Seconds a block should last an MCI at its rate of consumption, 0 keeps every block at the configured size.
+     */
+    public int getHidBlockTargetRefillSeconds() {
+        if (isBlank(hidBlockTargetRefillSeconds)) {
+            return 0;
+        }
+        return parseInt(hidBlockTargetRefillSeconds.trim());
+    }
+
+    public void setHidBlockTargetRefillSeconds(String hidBlockTargetRefillSeconds) {
+        this.hidBlockTargetRefillSeconds = hidBlockTargetRefillSeconds;
+    }
+
+    public int getHidBlockMinSize() {
+        if (isBlank(hidBlockMinSize)) {
+            return 1;
+        }
+        return parseInt(hidBlockMinSize.trim());
+    }
+
+    public void setHidBlockMinSize(String hidBlockMinSize) {
+        this.hidBlockMinSize = hidBlockMinSize;
+    }
+
+    public int getHidBlockMaxSize() {
+        if (isBlank(hidBlockMaxSize)) {
+            return getHealthIdBlockSize();
+        }
+        return parseInt(hidBlockMaxSize.trim());
+    }
+
+    public void setHidBlockMaxSize(String hidBlockMaxSize) {
+        this.hidBlockMaxSize = hidBlockMaxSize;
+    }
+
+    public int getHidMarkUsedMaxBatchSize() {
+        if (isBlank(hidMarkUsedMaxBatchSize)) {
+            return 1000;
+        }
+        return parseInt(hidMarkUsedMaxBatchSize.trim());
+    }
+
+    public void setHidMarkUsedMaxBatchSize(String hidMarkUsedMaxBatchSize) {
+        this.hidMarkUsedMaxBatchSize = hidMarkUsedMaxBatchSize;
+    }
+
+    public int getHidMarkUsedMaxInFlight() {
+        if (isBlank(hidMarkUsedMaxInFlight)) {
+            return 64;
+        }
+        return parseInt(hidMarkUsedMaxInFlight.trim());
+    }
+
+    public void setHidMarkUsedMaxInFlight(String hidMarkUsedMaxInFlight) {
+        this.hidMarkUsedMaxInFlight = hidMarkUsedMaxInFlight;
+    }
 }
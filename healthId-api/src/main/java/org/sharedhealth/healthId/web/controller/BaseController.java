@@ -6,17 +6,24 @@ import com.fasterxml.jackson.annotation.JsonRootName;
 import org.sharedhealth.healthId.web.exception.Forbidden;
 import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
 import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
+import org.sharedhealth.healthId.web.exception.HidAllocationConflictException;
+import org.sharedhealth.healthId.web.exception.HidAllocationQuotaExceededException;
+import org.sharedhealth.healthId.web.exception.HidGenerationBusyException;
 import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.List;
 
 import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_EMPTY;
@@ -33,6 +40,16 @@ public class BaseController {
         logger.info("ACCESS: EMAIL={} ACTION={}", userInfo.getProperties().getEmail(), action);
     }
 
+    /**
+     * Writes the error as plain text, for endpoints producing media types the {@link ErrorInfo} of the exception
+     * handlers can not be written as.
+     */
+    protected void writeError(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.getWriter().write(message == null ? "" : message);
+    }
+
     @ResponseStatus(value = INTERNAL_SERVER_ERROR)
     @ExceptionHandler(HealthIdExhaustedException.class)
     @ResponseBody
@@ -73,6 +90,31 @@ public class BaseController {
         return new ErrorInfo(HttpStatus.BAD_REQUEST.value(), exception.getMessage());
     }
 
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+    @ResponseBody
+    @ExceptionHandler(HidGenerationBusyException.class)
+    public ErrorInfo generationBusy(HidGenerationBusyException exception) {
+        logger.error(exception.getMessage());
+        return new ErrorInfo(HttpStatus.SERVICE_UNAVAILABLE.value(), exception.getMessage());
+    }
+
+    @ResponseStatus(value = HttpStatus.CONFLICT)
+    @ResponseBody
+    @ExceptionHandler(HidAllocationConflictException.class)
+    public ErrorInfo allocationConflict(HidAllocationConflictException exception) {
+        logger.error(exception.getMessage());
+        return new ErrorInfo(HttpStatus.CONFLICT.value(), exception.getMessage());
+    }
+
+    @ResponseStatus(value = HttpStatus.TOO_MANY_REQUESTS)
+    @ResponseBody
+    @ExceptionHandler(HidAllocationQuotaExceededException.class)
+    public ErrorInfo quotaExceeded(HidAllocationQuotaExceededException exception, HttpServletResponse response) {
+        logger.warn(exception.getMessage());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(exception.getRetryAfterSeconds()));
+        return new ErrorInfo(HttpStatus.TOO_MANY_REQUESTS.value(), exception.getMessage());
+    }
+
     @ResponseStatus(value = INTERNAL_SERVER_ERROR)
     @ExceptionHandler(Exception.class)
     @ResponseBody
@@ -1,5 +1,6 @@
 package org.sharedhealth.healthId.web.controller;
 
+import org.sharedhealth.healthId.web.service.HidAllocationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.endpoint.*;
 import org.springframework.boot.actuate.health.ApplicationHealthIndicator;
@@ -25,6 +26,8 @@ public class DiagnosticsController {
     private Environment environment;
     @Autowired
     private TraceRepository traceRepository;
+    @Autowired
+    private HidAllocationService hidAllocationService;
 
     @RequestMapping(value = "/health", method = RequestMethod.GET)
     public Health health() {
@@ -36,6 +39,8 @@ public class DiagnosticsController {
         Collection<Metric<?>> metrics = new ArrayList<>();
         metrics.addAll(new TomcatPublicMetrics().metrics());
         metrics.addAll(new SystemPublicMetrics().metrics());
+        metrics.addAll(hidAllocationService.getPrefetchMetrics());
+        metrics.addAll(hidAllocationService.getSchedulerMetrics());
         return metrics;
     }
 
@@ -1,20 +1,35 @@
 package org.sharedhealth.healthId.web.controller;
 
+import com.datastax.driver.core.utils.UUIDs;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Transformer;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.Model.HidGenerationStats;
+import org.sharedhealth.healthId.web.Model.HidSeriesCapacity;
+import org.sharedhealth.healthId.web.Model.HidUsageStatus;
+import org.sharedhealth.healthId.web.Model.HidWriteMode;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
-import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
+import org.sharedhealth.healthId.web.exception.HidAllocationConflictException;
+import org.sharedhealth.healthId.web.exception.HidAllocationQuotaExceededException;
 import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.service.FacilityService;
 import org.sharedhealth.healthId.web.service.HealthIdService;
+import org.sharedhealth.healthId.web.service.HidAllocationService;
+import org.sharedhealth.healthId.web.service.HidGenerationJob;
+import org.sharedhealth.healthId.web.service.HidGenerationJobService;
+import org.sharedhealth.healthId.web.service.HidGenerationProgress;
+import org.sharedhealth.healthId.web.utils.HidBlockWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -24,7 +39,11 @@ import org.springframework.web.context.request.async.DeferredResult;
 import rx.Observable;
 import rx.functions.Action1;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import static org.springframework.web.bind.annotation.RequestMethod.*;
 
@@ -37,75 +56,124 @@ public class HealthIdController extends BaseController {
     public static final String GENERATE_BLOCK_URI = "/generateBlock";
     public static final String GENERATE_BLOCK_FOR_ORG_URI = "/generateBlockForOrg";
     public static final String GENERATE_BLOCK_URI_ID_TYPE = "/generateBlockWithId";
+    public static final String JOBS_URI = "/jobs";
+    public static final String CAPACITY_URI = "/capacity";
+    public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+    public static final String RECOMMENDED_BLOCK_SIZE_HEADER = "X-Recommended-Block-Size";
     private static final long HID_GENERATION_LIMIT = 2000000;
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
 
 
     private HealthIdService healthIdService;
+    private HidAllocationService hidAllocationService;
     private FacilityService facilityService;
     private HealthIdProperties healthIdProperties;
+    private HidGenerationJobService hidGenerationJobService;
 
     @Autowired
-    public HealthIdController(HealthIdService healthIdService, FacilityService facilityService, HealthIdProperties healthIdProperties) {
+    public HealthIdController(HealthIdService healthIdService, HidAllocationService hidAllocationService, FacilityService facilityService,
+                              HealthIdProperties healthIdProperties, HidGenerationJobService hidGenerationJobService) {
         this.healthIdService = healthIdService;
+        this.hidAllocationService = hidAllocationService;
         this.facilityService = facilityService;
         this.healthIdProperties = healthIdProperties;
+        this.hidGenerationJobService = hidGenerationJobService;
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
     @RequestMapping(method = POST, value = GENERATE_ALL_URI)
-    public DeferredResult<String> generate() {
-        UserInfo userInfo = getUserInfo();
+    public DeferredResult<ResponseEntity> generate(@RequestParam(value = "mode", required = false) String mode,
+                                                   @RequestParam(value = "verify", required = false, defaultValue = "false") final boolean verify) {
+        final HidWriteMode writeMode = getWriteMode(mode);
+        final UserInfo userInfo = getUserInfo();
         logAccessDetails(userInfo, "Generating new hids");
-        GeneratedHIDBlock generatedHIDBlock = healthIdService.generateAll(userInfo);
-        final DeferredResult<String> deferredResult = new DeferredResult<>();
-        String message = String.format("Generated %s HIDs.", generatedHIDBlock.getTotalHIDs());
-        deferredResult.setResult(message);
-        logger.info(message);
-        return deferredResult;
+        HidGenerationJob job = hidGenerationJobService.submit(GENERATE_ALL_URI.substring(1), null, new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                return healthIdService.generateAll(userInfo, writeMode, verify, progress);
+            }
+        });
+        return accepted(job);
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
     @RequestMapping(method = POST, value = GENERATE_BLOCK_URI)
-    public DeferredResult<ResponseEntity> generateBlock(@RequestParam(value = "start") long start,
-                                                        @RequestParam(value = "totalHIDs") long totalHIDs) {
+    public DeferredResult<ResponseEntity> generateBlock(@RequestParam(value = "start") final long start,
+                                                        @RequestParam(value = "totalHIDs") final long totalHIDs,
+                                                        @RequestParam(value = "mode", required = false) String mode,
+                                                        @RequestParam(value = "verify", required = false, defaultValue = "false") final boolean verify,
+                                                        @RequestParam(value = "idempotencyKey", required = false) final String idempotencyKey) {
         if (isStartInvalidForMCI(start)) {
             throw new InvalidRequestException(String.format("%s not for MCI", start));
         }
+        final HidWriteMode writeMode = getWriteMode(mode);
        // UserInfo userInfo = getUserInfo();
         //logAccessDetails(userInfo, "Generating new hids");
-        UserInfo userInfo = new UserInfo("1","test","teset@gmail.com",1,true,"adfasd",new ArrayList<>(), new ArrayList<>());
-        GeneratedHIDBlock generatedHIDBlock = healthIdService.generateBlock(start, totalHIDs, userInfo);
-        return getResult(generatedHIDBlock, totalHIDs);
+        final UserInfo userInfo = new UserInfo("1","test","teset@gmail.com",1,true,"adfasd",new ArrayList<>(), new ArrayList<>());
+        HidGenerationJob job = hidGenerationJobService.submit(GENERATE_BLOCK_URI.substring(1), totalHIDs, new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                return healthIdService.generateBlock(start, totalHIDs, userInfo, writeMode, verify, idempotencyKey, progress);
+            }
+        });
+        return accepted(job);
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
     @RequestMapping(method = POST, value = GENERATE_BLOCK_FOR_ORG_URI)
-    public DeferredResult<ResponseEntity> generateBlockForOrg(@RequestParam(value = "org") String orgCode,
-                                                              @RequestParam(value = "start") long start,
-                                                              @RequestParam(value = "totalHIDs") long totalHIDs) {
+    public DeferredResult<ResponseEntity> generateBlockForOrg(@RequestParam(value = "org") final String orgCode,
+                                                              @RequestParam(value = "start") final long start,
+                                                              @RequestParam(value = "totalHIDs") final long totalHIDs,
+                                                              @RequestParam(value = "idempotencyKey", required = false) final String idempotencyKey) {
         validateRequest(orgCode, start, totalHIDs);
-        UserInfo userInfo = getUserInfo();
+        final UserInfo userInfo = getUserInfo();
         logAccessDetails(userInfo, "Generating new hids");
-        try {
-            GeneratedHIDBlock generatedHIDBlock = healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, userInfo);
-            return getResult(generatedHIDBlock, totalHIDs);
-        } catch (HidGenerationException e) {
-            final DeferredResult<ResponseEntity> deferredResult = new DeferredResult<>();
-            ResponseEntity<String> responseEntity = new ResponseEntity<>(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
-            deferredResult.setResult(responseEntity);
-            return deferredResult;
+        HidGenerationJob job = hidGenerationJobService.submit(GENERATE_BLOCK_FOR_ORG_URI.substring(1), totalHIDs, new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                return healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, userInfo, idempotencyKey, progress);
+            }
+        });
+        return accepted(job);
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = CAPACITY_URI, produces = MediaType.APPLICATION_JSON_VALUE)
+    public HidSeriesCapacity capacity(@RequestParam(value = "start") long start,
+                                      @RequestParam(value = "totalHIDs", required = false, defaultValue = "0") long totalHIDs,
+                                      @RequestParam(value = "org", required = false) String orgCode) {
+        if (totalHIDs < 0) {
+            throw new InvalidRequestException(String.format("Invalid total HIDs:- %s", totalHIDs));
+        }
+        if (orgCode == null || orgCode.equals(healthIdProperties.getMciOrgCode())) {
+            if (isStartInvalidForMCI(start)) {
+                throw new InvalidRequestException(String.format("%s not for MCI", start));
+            }
+        } else if (isStartInvalidForOtherOrg(start)) {
+            throw new InvalidRequestException(String.format("%s series is not valid.", start));
         }
+        return healthIdService.getCapacity(start, totalHIDs, orgCode);
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = JOBS_URI + "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map job(@PathVariable(value = "id") String id) {
+        return jobDetails(findJob(hidGenerationJobService.find(id), id));
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = DELETE, value = JOBS_URI + "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map cancelJob(@PathVariable(value = "id") String id) {
+        logAccessDetails(getUserInfo(), "Cancelling hid generation job");
+        return jobDetails(findJob(hidGenerationJobService.cancel(id), id));
     }
 
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
     @RequestMapping(method = GET, value = "/nextBlock/mci/{mciCode}", produces = MediaType.APPLICATION_JSON_VALUE)
     public Map nextBlock(@PathVariable(value = "mciCode") String mciCode,
-                         @RequestParam(value = "blockSize", required = false) Integer blockSize) throws JsonProcessingException {
-        int defaultBlockSize = healthIdProperties.getHealthIdBlockSize();
-        if (blockSize == null || blockSize <= 0 || blockSize > defaultBlockSize)
-            blockSize = defaultBlockSize;
-      //  logAccessDetails(getUserInfo(), "Assigning next block to MCI");
-        List<MciHealthId> nextBlock = healthIdService.getNextBlock(mciCode, blockSize);
+                         @RequestParam(value = "blockSize", required = false) Integer blockSize,
+                         @RequestParam(value = "requestId", required = false) String requestId) throws JsonProcessingException {
+        List<MciHealthId> nextBlock = nextBlockOf(mciCode, blockSize, requestId);
         HashMap<String, Object> responseMap = new HashMap<>();
         int totalHids = nextBlock.size();
         responseMap.put("total", totalHids);
@@ -116,10 +184,114 @@ public class HealthIdController extends BaseController {
             }
         });
         responseMap.put("hids", hids);
-        logger.info("Assigned {} MCI healthIds for {}.", totalHids, mciCode);
+        responseMap.put("recommendedBlockSize", hidAllocationService.recommendBlockSize(mciCode));
         return responseMap;
     }
 
+    /**
+     * Streams the block as one JSON string per line, chunked, without building the block as a JSON document first.
+     */
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = "/nextBlock/mci/{mciCode}", produces = NDJSON_MEDIA_TYPE)
+    public void nextBlockAsNdjson(@PathVariable(value = "mciCode") String mciCode,
+                                  @RequestParam(value = "blockSize", required = false) Integer blockSize,
+                                  @RequestParam(value = "requestId", required = false) String requestId,
+                                  @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                  HttpServletResponse response) throws IOException {
+        List<MciHealthId> nextBlock = streamedBlockOf(mciCode, blockSize, requestId, response);
+        if (nextBlock == null) {
+            return;
+        }
+        response.setContentType(NDJSON_MEDIA_TYPE);
+        response.setIntHeader(RECOMMENDED_BLOCK_SIZE_HEADER, hidAllocationService.recommendBlockSize(mciCode));
+        OutputStream out = responseStream(response, acceptEncoding, -1);
+        HidBlockWriter.writeNdjson(nextBlock, out);
+        out.close();
+    }
+
+    /**
+     * Streams the block as packed 8 byte big endian HIDs, {@link HidBlockWriter#BINARY_HID_BYTES} bytes per HID.
+     */
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = "/nextBlock/mci/{mciCode}", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void nextBlockAsBinary(@PathVariable(value = "mciCode") String mciCode,
+                                  @RequestParam(value = "blockSize", required = false) Integer blockSize,
+                                  @RequestParam(value = "requestId", required = false) String requestId,
+                                  @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                  HttpServletResponse response) throws IOException {
+        List<MciHealthId> nextBlock = streamedBlockOf(mciCode, blockSize, requestId, response);
+        if (nextBlock == null) {
+            return;
+        }
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setIntHeader(RECOMMENDED_BLOCK_SIZE_HEADER, hidAllocationService.recommendBlockSize(mciCode));
+        OutputStream out = responseStream(response, acceptEncoding, nextBlock.size() * HidBlockWriter.BINARY_HID_BYTES);
+        HidBlockWriter.writeBinary(nextBlock, out);
+        out.close();
+    }
+
+    private List<MciHealthId> nextBlockOf(String mciCode, Integer blockSize, String requestId) {
+        blockSize = hidAllocationService.blockSizeFor(mciCode, blockSize);
+      //  logAccessDetails(getUserInfo(), "Assigning next block to MCI");
+        List<MciHealthId> nextBlock = hidAllocationService.getNextBlock(mciCode, blockSize, requestId);
+        logger.info("Assigned {} MCI healthIds for {}.", nextBlock.size(), mciCode);
+        return nextBlock;
+    }
+
+    /**
+     * Allocation failures of the streaming endpoints are written here, the exception handlers answer with JSON which
+     * can not be written under the media types they produce. Returns null once the error is written.
+     */
+    private List<MciHealthId> streamedBlockOf(String mciCode, Integer blockSize, String requestId,
+                                              HttpServletResponse response) throws IOException {
+        try {
+            return nextBlockOf(mciCode, blockSize, requestId);
+        } catch (HidAllocationQuotaExceededException e) {
+            logger.warn(e.getMessage());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            writeError(response, HttpStatus.TOO_MANY_REQUESTS, e.getMessage());
+        } catch (HidAllocationConflictException e) {
+            logger.error(e.getMessage());
+            writeError(response, HttpStatus.CONFLICT, e.getMessage());
+        } catch (HealthIdExhaustedException e) {
+            logger.error("No HIDs left to allocate. ", e);
+            writeError(response, HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Gzips the response when the client accepts it, otherwise sets the content length when it is known upfront.
+     */
+    private OutputStream responseStream(HttpServletResponse response, String acceptEncoding, int contentLength) throws IOException {
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            return new GZIPOutputStream(response.getOutputStream(), GZIP_BUFFER_SIZE);
+        }
+        if (contentLength >= 0) {
+            response.setContentLength(contentLength);
+        }
+        return response.getOutputStream();
+    }
+
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = GET, value = "/nextBlock/mci/{mciCode}/history", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<Map<String, Object>> nextBlockHistory(@PathVariable(value = "mciCode") String mciCode,
+                                                      @RequestParam(value = "limit", required = false, defaultValue = "100") int limit) {
+        List<Map<String, Object>> history = new ArrayList<>();
+        for (HidAllocationSummary allocation : hidAllocationService.getAllocationHistory(mciCode, Math.max(1, limit))) {
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("requestId", allocation.getRequestId());
+            details.put("allocatedAt", new Date(UUIDs.unixTimestamp(allocation.getAllocatedAt())));
+            details.put("total", allocation.getTotalHids());
+            details.put("first", allocation.getFirstHid());
+            details.put("last", allocation.getLastHid());
+            history.add(details);
+        }
+        return history;
+    }
+
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
     @RequestMapping(method = PUT, value = "/markUsed/{healthId}", consumes = {MediaType.APPLICATION_JSON_VALUE})
     public DeferredResult<String> markUsed(@PathVariable(value = "healthId") String healthId,
@@ -128,12 +300,16 @@ public class HealthIdController extends BaseController {
         logAccessDetails(getUserInfo(), "Marking Health Id as used");
         final DeferredResult<String> deferredResult = new DeferredResult<>();
         String usedAt = (String) responseBody.get("used_at");
-        rx.Observable<Boolean> observable = healthIdService.markOrgHealthIdUsed(healthId, UUID.fromString(usedAt));
-        observable.subscribe(new Action1<Boolean>() {
+        rx.Observable<HidUsageStatus> observable = healthIdService.markOrgHealthIdUsed(healthId, UUID.fromString(usedAt));
+        observable.subscribe(new Action1<HidUsageStatus>() {
             @Override
-            public void call(Boolean aBoolean) {
-                if (aBoolean)
+            public void call(HidUsageStatus status) {
+                if (status == HidUsageStatus.ACCEPTED)
                     deferredResult.setResult("Accepted");
+                else if (status == HidUsageStatus.NOT_FOUND)
+                    deferredResult.setErrorResult(new HealthIdNotFoundException("Health Id not allocated to any Organization."));
+                else if (status == HidUsageStatus.ALREADY_USED)
+                    deferredResult.setErrorResult(new InvalidRequestException("Health Id is already used."));
                 else
                     deferredResult.setErrorResult(new InvalidRequestException("Rejected"));
             }
@@ -141,6 +317,50 @@ public class HealthIdController extends BaseController {
         return deferredResult;
     }
 
+    /**
+     * Marks a batch of {healthId, used_at} pairs used in one call and answers with the status of each HID. A used_at
+     * that is not a time UUID only fails its own HID.
+     */
+    @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
+    @RequestMapping(method = PUT, value = "/markUsed", consumes = {MediaType.APPLICATION_JSON_VALUE})
+    public DeferredResult<Map<String, HidUsageStatus>> markUsedInBulk(@RequestBody List<Map> requestBody) {
+        int maxBatchSize = healthIdProperties.getHidMarkUsedMaxBatchSize();
+        if (requestBody.size() > maxBatchSize) {
+            throw new InvalidRequestException(String.format("Can not mark more than %s Health Ids used at once.", maxBatchSize));
+        }
+        logger.debug("Marking {} Health Ids as used.", requestBody.size());
+        logAccessDetails(getUserInfo(), "Marking Health Ids as used");
+        final Set<String> invalidUsedAts = new HashSet<>();
+        final Map<String, UUID> usedAts = new LinkedHashMap<>();
+        final Set<String> healthIds = new LinkedHashSet<>();
+        for (Map usage : requestBody) {
+            Object healthId = usage.get("healthId");
+            if (!(healthId instanceof String) || ((String) healthId).isEmpty()) {
+                throw new InvalidRequestException("Every entry needs a healthId.");
+            }
+            if (!healthIds.add((String) healthId)) {
+                throw new InvalidRequestException(String.format("Health Id %s is listed more than once.", healthId));
+            }
+            try {
+                usedAts.put((String) healthId, UUID.fromString((String) usage.get("used_at")));
+            } catch (RuntimeException e) {
+                invalidUsedAts.add((String) healthId);
+            }
+        }
+        final DeferredResult<Map<String, HidUsageStatus>> deferredResult = new DeferredResult<>();
+        healthIdService.markOrgHealthIdsUsed(usedAts).subscribe(new Action1<Map<String, HidUsageStatus>>() {
+            @Override
+            public void call(Map<String, HidUsageStatus> marked) {
+                Map<String, HidUsageStatus> statuses = new LinkedHashMap<>();
+                for (String healthId : healthIds) {
+                    statuses.put(healthId, invalidUsedAts.contains(healthId) ? HidUsageStatus.INVALID : marked.get(healthId));
+                }
+                deferredResult.setResult(statuses);
+            }
+        }, errorCallback(deferredResult));
+        return deferredResult;
+    }
+
     @PreAuthorize("hasAnyRole('ROLE_SHR System Admin')")
     @RequestMapping(method = GET, value = "/checkAvailability/{healthId}")
     public DeferredResult<Map> checkAvailability(@PathVariable(value = "healthId") String healthId,
@@ -173,7 +393,7 @@ public class HealthIdController extends BaseController {
     public DeferredResult<Integer> checkRemaining() {
         logger.debug("Checking remaining health ids for MCI.");
         final DeferredResult<Integer> deferredResult = new DeferredResult<>();
-        Observable<Integer> observable = healthIdService.findRemainingHIDs();
+        Observable<Integer> observable = hidAllocationService.findRemainingHIDs();
         observable.subscribe(new Action1<Integer>() {
             @Override
             public void call(Integer integer) {
@@ -218,18 +438,93 @@ public class HealthIdController extends BaseController {
         };
     }
 
-    private DeferredResult<ResponseEntity> getResult(GeneratedHIDBlock generatedHIDBlock, long totalHIDs) {
+    private DeferredResult<ResponseEntity> accepted(HidGenerationJob job) {
         final DeferredResult<ResponseEntity> deferredResult = new DeferredResult<>();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.LOCATION, "/healthIds" + JOBS_URI + "/" + job.getId());
+        deferredResult.setResult(new ResponseEntity<>(jobDetails(job), headers, HttpStatus.ACCEPTED));
+        return deferredResult;
+    }
+
+    private HidGenerationJob findJob(HidGenerationJob job, String id) {
+        if (job == null) {
+            throw new HealthIdNotFoundException(String.format("HID generation job %s not found.", id));
+        }
+        return job;
+    }
+
+    private Map<String, Object> jobDetails(HidGenerationJob job) {
+        HidGenerationProgress progress = job.getProgress();
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("id", job.getId());
+        details.put("type", job.getType());
+        details.put("status", job.getStatus().name());
+        details.put("submittedAt", job.getSubmittedAt());
+        details.put("startedAt", job.getStartedAt());
+        details.put("finishedAt", job.getFinishedAt());
+        details.put("requestedHIDs", job.getRequestedHIDs());
+        details.put("candidatesScanned", progress.getCandidatesScanned());
+        details.put("totalCandidates", progress.getTotalCandidates() > 0 ? progress.getTotalCandidates() : null);
+        details.put("hidsWritten", progress.getHidsWritten());
+        details.put("hidsPerSecond", Math.round(job.getHidsPerSecond()));
+        details.put("etaSeconds", job.getEtaSeconds());
+        if (job.getResult() != null) {
+            details.put("message", resultMessage(job));
+        }
+        if (job.getError() != null) {
+            details.put("error", job.getError());
+        }
+        return details;
+    }
+
+    private String resultMessage(HidGenerationJob job) {
+        GeneratedHIDBlock generatedHIDBlock = job.getResult();
         String message;
-        if (generatedHIDBlock.getTotalHIDs() < totalHIDs) {
+        if (job.getStatus() == HidGenerationJob.Status.CANCELLED) {
+            message = String.format("Cancelled after generating %s HIDs.", generatedHIDBlock.getTotalHIDs());
+        } else if (job.getRequestedHIDs() != null && generatedHIDBlock.getTotalHIDs() + failedHIDs(generatedHIDBlock) < job.getRequestedHIDs()) {
             message = String.format("Can generate only %s HIDs, because series exhausted. Use another series.", generatedHIDBlock.getTotalHIDs());
-
         } else {
             message = String.format("Generated %s HIDs.", generatedHIDBlock.getTotalHIDs());
         }
-        deferredResult.setResult(new ResponseEntity<>(message, HttpStatus.OK));
-        logger.info(message);
-        return deferredResult;
+        return message + failureMessage(generatedHIDBlock) + statsMessage(generatedHIDBlock);
+    }
+
+    private long failedHIDs(GeneratedHIDBlock generatedHIDBlock) {
+        return generatedHIDBlock.getFailedHIDs() == null ? 0L : generatedHIDBlock.getFailedHIDs();
+    }
+
+    private String failureMessage(GeneratedHIDBlock generatedHIDBlock) {
+        long failedHIDs = failedHIDs(generatedHIDBlock);
+        return failedHIDs == 0 ? "" : String.format(" Failed to write %s HIDs.", failedHIDs);
+    }
+
+    private String statsMessage(GeneratedHIDBlock generatedHIDBlock) {
+        HidGenerationStats stats = generatedHIDBlock.getStats();
+        if (stats == null) {
+            return "";
+        }
+        StringBuilder message = new StringBuilder(String.format(" Wrote in %d ms at %.0f HIDs/sec using %s writes.",
+                stats.getElapsedMillis(), stats.getHidsPerSecond(), stats.getWriteMode()));
+        if (stats.getComparedHidsPerSecond() != null && stats.getComparedHidsPerSecond() > 0) {
+            message.append(String.format(" Last %s run: %.0f HIDs/sec (%.1fx).", stats.getComparedWriteMode(),
+                    stats.getComparedHidsPerSecond(), stats.getHidsPerSecond() / stats.getComparedHidsPerSecond()));
+        }
+        if (stats.getMissingHIDs() != null) {
+            message.append(String.format(" Verification found %d missing HIDs.", stats.getMissingHIDs()));
+        }
+        return message.toString();
+    }
+
+    private HidWriteMode getWriteMode(String mode) {
+        if (mode == null) {
+            return healthIdProperties.getHidGenerationWriteMode();
+        }
+        try {
+            return HidWriteMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(String.format("Invalid write mode:- %s", mode));
+        }
     }
 
     private boolean isStartInvalidForMCI(long start) {
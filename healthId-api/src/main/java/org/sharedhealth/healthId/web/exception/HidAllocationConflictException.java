@@ -0,0 +1,8 @@
+package org.sharedhealth.healthId.web.exception;
+
+public class HidAllocationConflictException extends RuntimeException {
+
+    public HidAllocationConflictException(String message) {
+        super(message);
+    }
+}
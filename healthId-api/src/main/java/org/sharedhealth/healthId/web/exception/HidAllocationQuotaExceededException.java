@@ -0,0 +1,15 @@
+package org.sharedhealth.healthId.web.exception;
+
+public class HidAllocationQuotaExceededException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public HidAllocationQuotaExceededException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
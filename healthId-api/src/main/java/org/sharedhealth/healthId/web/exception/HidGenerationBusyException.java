@@ -0,0 +1,12 @@
+package org.sharedhealth.healthId.web.exception;
+
+public class HidGenerationBusyException extends RuntimeException {
+
+    public HidGenerationBusyException(String message) {
+        super(message);
+    }
+
+    public HidGenerationBusyException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
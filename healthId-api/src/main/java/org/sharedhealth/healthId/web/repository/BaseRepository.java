@@ -1,7 +1,12 @@
 package org.sharedhealth.healthId.web.repository;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.cassandra.core.CassandraOperations;
+import rx.Observable;
+import rx.Subscriber;
 
 import static java.lang.System.currentTimeMillis;
 
@@ -23,4 +28,27 @@ public class BaseRepository {
     public long getCurrentTimeInMicros() {
         return currentTimeMillis() * 1000;
     }
+
+    /**
+     * Unlike Observable.from(Future), subscribing does not block the subscriber until the future completes.
+     */
+    protected static <T> Observable<T> toObservable(final ListenableFuture<T> future) {
+        return Observable.create(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(final Subscriber<? super T> subscriber) {
+                Futures.addCallback(future, new FutureCallback<T>() {
+                    @Override
+                    public void onSuccess(T result) {
+                        subscriber.onNext(result);
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        subscriber.onError(error);
+                    }
+                });
+            }
+        });
+    }
 }
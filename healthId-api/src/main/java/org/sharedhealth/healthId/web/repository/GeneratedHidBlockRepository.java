@@ -1,19 +1,36 @@
 package org.sharedhealth.healthId.web.repository;
 
 
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.querybuilder.Select;
+import com.datastax.driver.core.querybuilder.Update;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidAllocationCounter;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.cassandra.core.CassandraOperations;
 import org.springframework.stereotype.Component;
 
+import java.util.Date;
 import java.util.List;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.set;
 import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_GENERATED_HID_BLOCKS;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_GENERATED_HID_SERIES;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_HID_ALLOCATION_COUNTERS;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_HID_GENERATION_CHECKPOINTS;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.COUNTER_BEGINS_AT;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.ENDS_AT;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.NEXT_INDEX;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.RESERVED_TO;
 import static org.sharedhealth.healthId.web.repository.RepositoryConstants.SERIES_NO;
+import static org.sharedhealth.healthId.web.repository.RepositoryConstants.UPDATED_AT;
+import static org.springframework.data.cassandra.core.CassandraTemplate.createInsertQuery;
 
 @Component
 public class GeneratedHidBlockRepository extends BaseRepository {
@@ -32,4 +49,110 @@ public class GeneratedHidBlockRepository extends BaseRepository {
     public GeneratedHIDBlock saveGeneratedHidBlock(GeneratedHIDBlock generatedHIDBlock) {
         return cassandraOps.insert(generatedHIDBlock);
     }
+
+    public List<HidGenerationCheckpoint> getCheckpoints(long seriesNo) {
+        Select selectCheckpoints = QueryBuilder.select().from(CF_HID_GENERATION_CHECKPOINTS);
+        selectCheckpoints.where(eq(SERIES_NO, seriesNo));
+        return cassandraOps.select(selectCheckpoints, HidGenerationCheckpoint.class);
+    }
+
+    public HidGenerationCheckpoint saveCheckpoint(HidGenerationCheckpoint checkpoint) {
+        return cassandraOps.insert(checkpoint);
+    }
+
+    public Long getSeriesEndsAt(long seriesNo) {
+        Select selectSeries = QueryBuilder.select(ENDS_AT).from(CF_GENERATED_HID_SERIES);
+        selectSeries.where(eq(SERIES_NO, seriesNo));
+        Row row = cassandraOps.query(selectSeries).one();
+        return row == null || row.isNull(ENDS_AT) ? null : row.getLong(ENDS_AT);
+    }
+
+    /**
+     * Moves the end of the series to {@code endsAt} with a lightweight transaction, only if it still ends at
+     * {@code expectedEndsAt} (or has no end yet when that is null). Returns whether the end was moved.
+     */
+    public boolean advanceSeriesEndsAt(long seriesNo, Long expectedEndsAt, long endsAt) {
+        if (expectedEndsAt == null) {
+            Statement firstEnd = QueryBuilder.insertInto(CF_GENERATED_HID_SERIES).value(SERIES_NO, seriesNo)
+                    .value(ENDS_AT, endsAt).value(UPDATED_AT, new Date()).ifNotExists();
+            if (cassandraOps.executeAsynchronously(firstEnd).getUninterruptibly().wasApplied()) {
+                return true;
+            }
+        }
+        Statement advance = QueryBuilder.update(CF_GENERATED_HID_SERIES).with(set(ENDS_AT, endsAt)).and(set(UPDATED_AT, new Date()))
+                .where(eq(SERIES_NO, seriesNo)).onlyIf(eq(ENDS_AT, expectedEndsAt));
+        return cassandraOps.executeAsynchronously(advance).getUninterruptibly().wasApplied();
+    }
+
+    public Long getSeriesReservedTo(long seriesNo) {
+        Select selectSeries = QueryBuilder.select(RESERVED_TO).from(CF_GENERATED_HID_SERIES);
+        selectSeries.where(eq(SERIES_NO, seriesNo));
+        Row row = cassandraOps.query(selectSeries).one();
+        return row == null || row.isNull(RESERVED_TO) ? null : row.getLong(RESERVED_TO);
+    }
+
+    /**
+     * Claims the candidates of the series up to {@code reservedTo} with a lightweight transaction, only if the
+     * series is still reserved up to {@code expectedReservedTo} (or not at all when that is null). A series without
+     * a row yet is inserted, as a condition on a missing row never applies.
+     */
+    public boolean reserveSeriesRange(long seriesNo, Long expectedReservedTo, long reservedTo) {
+        return reserveSeriesRange(seriesNo, expectedReservedTo, reservedTo, null);
+    }
+
+    /**
+     * Claims the rest of the series for its allocation counter like {@link #reserveSeriesRange(long, Long, long)},
+     * keeping where the counter begins with the reservation so the counter can be created again from it.
+     */
+    public boolean reserveSeriesForCounter(long seriesNo, Long expectedReservedTo, long beginsAt, long endsAt) {
+        return reserveSeriesRange(seriesNo, expectedReservedTo, endsAt, beginsAt);
+    }
+
+    public Long getSeriesCounterBeginsAt(long seriesNo) {
+        Select selectSeries = QueryBuilder.select(COUNTER_BEGINS_AT).from(CF_GENERATED_HID_SERIES);
+        selectSeries.where(eq(SERIES_NO, seriesNo));
+        Row row = cassandraOps.query(selectSeries).one();
+        return row == null || row.isNull(COUNTER_BEGINS_AT) ? null : row.getLong(COUNTER_BEGINS_AT);
+    }
+
+    private boolean reserveSeriesRange(long seriesNo, Long expectedReservedTo, long reservedTo, Long counterBeginsAt) {
+        if (expectedReservedTo == null) {
+            Insert firstReservation = QueryBuilder.insertInto(CF_GENERATED_HID_SERIES).value(SERIES_NO, seriesNo)
+                    .value(RESERVED_TO, reservedTo).value(UPDATED_AT, new Date());
+            if (counterBeginsAt != null) {
+                firstReservation.value(COUNTER_BEGINS_AT, counterBeginsAt);
+            }
+            if (cassandraOps.executeAsynchronously(firstReservation.ifNotExists()).getUninterruptibly().wasApplied()) {
+                return true;
+            }
+        }
+        Update reserve = QueryBuilder.update(CF_GENERATED_HID_SERIES);
+        reserve.with(set(RESERVED_TO, reservedTo)).and(set(UPDATED_AT, new Date()));
+        if (counterBeginsAt != null) {
+            reserve.with(set(COUNTER_BEGINS_AT, counterBeginsAt));
+        }
+        reserve.where(eq(SERIES_NO, seriesNo)).onlyIf(eq(RESERVED_TO, expectedReservedTo));
+        return cassandraOps.executeAsynchronously(reserve).getUninterruptibly().wasApplied();
+    }
+
+    public HidAllocationCounter getAllocationCounter(long seriesNo) {
+        Select selectCounter = QueryBuilder.select().from(CF_HID_ALLOCATION_COUNTERS);
+        selectCounter.where(eq(SERIES_NO, seriesNo));
+        return cassandraOps.selectOne(selectCounter, HidAllocationCounter.class);
+    }
+
+    public boolean createAllocationCounter(HidAllocationCounter counter) {
+        Insert insert = createInsertQuery(CF_HID_ALLOCATION_COUNTERS, counter, null, cassandraOps.getConverter()).ifNotExists();
+        return cassandraOps.executeAsynchronously(insert).getUninterruptibly().wasApplied();
+    }
+
+    /**
+     * Moves the counter of the series to {@code nextIndex} with a lightweight transaction, only if no other
+     * allocation moved it past {@code expectedNextIndex} first.
+     */
+    public boolean advanceAllocationCounter(long seriesNo, long expectedNextIndex, long nextIndex) {
+        Statement advance = QueryBuilder.update(CF_HID_ALLOCATION_COUNTERS).with(set(NEXT_INDEX, nextIndex))
+                .and(set(UPDATED_AT, new Date())).where(eq(SERIES_NO, seriesNo)).onlyIf(eq(NEXT_INDEX, expectedNextIndex));
+        return cassandraOps.executeAsynchronously(advance).getUninterruptibly().wasApplied();
+    }
 }
@@ -1,8 +1,17 @@
 package org.sharedhealth.healthId.web.repository;
 
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.*;
+import com.datastax.driver.core.utils.UUIDs;
+import org.sharedhealth.healthId.web.Model.HidAllocation;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.Model.HidPoolPage;
+import org.sharedhealth.healthId.web.Model.HidUsageStatus;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.slf4j.Logger;
@@ -14,8 +23,9 @@ import org.springframework.stereotype.Component;
 import rx.Observable;
 import rx.functions.Func1;
 
-import java.util.List;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 import static org.sharedhealth.healthId.web.repository.RepositoryConstants.*;
 import static org.springframework.data.cassandra.core.CassandraTemplate.createDeleteQuery;
@@ -33,12 +43,56 @@ public class HealthIdRepository extends BaseRepository {
     public Observable<ResultSet> saveMciHealthId(MciHealthId mciHealthId) {
         logger.debug(String.format("Inserting new hid for MCI :%s", mciHealthId.getHid()));
         Insert insertQuery = getInsertQuery(mciHealthId);
-        return Observable.from(cassandraOps.executeAsynchronously(insertQuery.ifNotExists()));
+        return toObservable(cassandraOps.executeAsynchronously(insertQuery.ifNotExists()));
+    }
+
+    /**
+     * Plain inserts without the lightweight transaction, sent as one unlogged batch. Only meant for HIDs
+     * that can not exist yet, and for rows that share replicas so the coordinator does not fan out.
+     */
+    public Observable<ResultSet> saveMciHealthIds(List<MciHealthId> mciHealthIds) {
+        logger.debug(String.format("Inserting %s new hids for MCI", mciHealthIds.size()));
+        if (mciHealthIds.size() == 1) {
+            return toObservable(cassandraOps.executeAsynchronously(getInsertQuery(mciHealthIds.get(0))));
+        }
+        Batch batch = QueryBuilder.unloggedBatch();
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            batch.add(getInsertQuery(mciHealthId));
+        }
+        return toObservable(cassandraOps.executeAsynchronously(batch));
+    }
+
+    public Set<Host> findReplicas(String hid) {
+        Session session = cassandraOps.getSession();
+        ByteBuffer partitionKey = ByteBuffer.wrap(hid.getBytes(StandardCharsets.UTF_8));
+        return session.getCluster().getMetadata().getReplicas(session.getLoggedKeyspace(), partitionKey);
+    }
+
+    public Observable<Set<String>> findExistingMciHids(Collection<String> hids) {
+        return findExisting(CF_MCI_HEALTH_ID, HID, hids);
+    }
+
+    public Observable<Set<String>> findExistingOrgHids(Collection<String> healthIds) {
+        return findExisting(CF_ORG_HEALTH_ID, HEALTH_ID, healthIds);
+    }
+
+    private Observable<Set<String>> findExisting(String table, final String column, Collection<String> keys) {
+        Select.Where select = QueryBuilder.select(column).from(table).where(QueryBuilder.in(column, keys.toArray()));
+        return toObservable(cassandraOps.executeAsynchronously(select)).map(new Func1<ResultSet, Set<String>>() {
+            @Override
+            public Set<String> call(ResultSet rows) {
+                Set<String> existing = new HashSet<>();
+                for (Row row : rows) {
+                    existing.add(row.getString(column));
+                }
+                return existing;
+            }
+        });
     }
 
     public Observable<Boolean> saveOrUpdateOrgHealthId(OrgHealthId orgHealthId) {
         Insert insertQuery = getInsertQuery(orgHealthId);
-        return Observable.from(cassandraOps.executeAsynchronously(insertQuery)).flatMap(
+        return toObservable(cassandraOps.executeAsynchronously(insertQuery)).flatMap(
                 RxMaps.respondOnNext(true),
                 RxMaps.<Boolean>forwardError(), RxMaps.<Boolean>completeResponds());
     }
@@ -51,6 +105,106 @@ public class HealthIdRepository extends BaseRepository {
         return cassandraOps.select(nextBlockQuery, MciHealthId.class);
     }
 
+    /**
+     * Reads the next block from the pool HIDs whose partition token lies in [fromToken, toToken], in token order.
+     */
+    public HidPoolPage getPoolPage(int blockSize, long fromToken, long toToken) {
+        logger.debug(String.format("Getting next block of size : %d between tokens %d and %d", blockSize, fromToken, toToken));
+        Select nextBlockQuery = QueryBuilder.select().column(HID).fcall("token", QueryBuilder.column(HID)).from(CF_MCI_HEALTH_ID)
+                .where(QueryBuilder.gte(QueryBuilder.token(HID), fromToken))
+                .and(QueryBuilder.lte(QueryBuilder.token(HID), toToken))
+                .limit(blockSize);
+        List<MciHealthId> hids = new ArrayList<>();
+        Long lastToken = null;
+        for (Row row : cassandraOps.query(nextBlockQuery)) {
+            hids.add(new MciHealthId(row.getString(HID)));
+            lastToken = row.getLong(1);
+        }
+        return new HidPoolPage(hids, lastToken);
+    }
+
+    public Long getPoolCursor(String cursorId) {
+        Select select = QueryBuilder.select(NEXT_TOKEN).from(CF_HID_POOL_CURSORS);
+        select.where(QueryBuilder.eq(CURSOR_ID, cursorId));
+        Row row = cassandraOps.query(select).one();
+        return row == null || row.isNull(NEXT_TOKEN) ? null : row.getLong(NEXT_TOKEN);
+    }
+
+    public void savePoolCursor(String cursorId, long nextToken) {
+        Insert insert = QueryBuilder.insertInto(CF_HID_POOL_CURSORS).value(CURSOR_ID, cursorId).value(NEXT_TOKEN, nextToken)
+                .value(UPDATED_AT, new Date());
+        cassandraOps.execute(insert);
+    }
+
+    /**
+     * Writes HIDs of one bucket as an unlogged batch, which stays on the replicas of that one partition.
+     */
+    public Observable<ResultSet> saveBucketedHids(long seriesNo, long bucketNo, List<MciHealthId> mciHealthIds) {
+        logger.debug(String.format("Inserting %s new hids into bucket %s of series %s", mciHealthIds.size(), bucketNo, seriesNo));
+        Batch batch = QueryBuilder.unloggedBatch();
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            batch.add(QueryBuilder.insertInto(CF_MCI_HID_BUCKETS).value(SERIES_NO, seriesNo).value(BUCKET_NO, bucketNo)
+                    .value(HID, mciHealthId.getHid()));
+        }
+        return toObservable(cassandraOps.executeAsynchronously(batch));
+    }
+
+    public List<MciHealthId> getBucket(long seriesNo, long bucketNo) {
+        Select select = QueryBuilder.select(HID).from(CF_MCI_HID_BUCKETS);
+        select.where(QueryBuilder.eq(SERIES_NO, seriesNo)).and(QueryBuilder.eq(BUCKET_NO, bucketNo));
+        List<MciHealthId> hids = new ArrayList<>();
+        for (Row row : cassandraOps.query(select)) {
+            hids.add(new MciHealthId(row.getString(HID)));
+        }
+        return hids;
+    }
+
+    public Long getNextBucket(long seriesNo) {
+        Select select = QueryBuilder.select(NEXT_BUCKET).from(CF_MCI_HID_BUCKET_CURSORS);
+        select.where(QueryBuilder.eq(SERIES_NO, seriesNo));
+        Row row = cassandraOps.query(select).one();
+        return row == null || row.isNull(NEXT_BUCKET) ? null : row.getLong(NEXT_BUCKET);
+    }
+
+    /**
+     * Moves the bucket cursor of the series to {@code nextBucket} with a lightweight transaction, only if it is still
+     * at {@code expectedNextBucket} (or has no cursor yet when that is null). Returns whether the cursor was moved.
+     */
+    public boolean advanceNextBucket(long seriesNo, Long expectedNextBucket, long nextBucket) {
+        if (expectedNextBucket == null) {
+            Statement firstClaim = QueryBuilder.insertInto(CF_MCI_HID_BUCKET_CURSORS).value(SERIES_NO, seriesNo)
+                    .value(NEXT_BUCKET, nextBucket).value(UPDATED_AT, new Date()).ifNotExists();
+            if (cassandraOps.executeAsynchronously(firstClaim).getUninterruptibly().wasApplied()) {
+                return true;
+            }
+        }
+        Statement advance = QueryBuilder.update(CF_MCI_HID_BUCKET_CURSORS).with(QueryBuilder.set(NEXT_BUCKET, nextBucket))
+                .and(QueryBuilder.set(UPDATED_AT, new Date())).where(QueryBuilder.eq(SERIES_NO, seriesNo))
+                .onlyIf(QueryBuilder.eq(NEXT_BUCKET, expectedNextBucket));
+        return cassandraOps.executeAsynchronously(advance).getUninterruptibly().wasApplied();
+    }
+
+    public boolean acquirePoolLease(int rangeNo, String nodeId, int ttlSeconds) {
+        Insert acquire = QueryBuilder.insertInto(CF_HID_POOL_LEASES).value(RANGE_NO, rangeNo).value(NODE_ID, nodeId)
+                .value(LEASED_AT, new Date()).ifNotExists();
+        acquire.using(QueryBuilder.ttl(ttlSeconds));
+        return cassandraOps.executeAsynchronously(acquire).getUninterruptibly().wasApplied();
+    }
+
+    public boolean renewPoolLease(int rangeNo, String nodeId, int ttlSeconds) {
+        Update renew = QueryBuilder.update(CF_HID_POOL_LEASES);
+        renew.using(QueryBuilder.ttl(ttlSeconds));
+        renew.with(QueryBuilder.set(NODE_ID, nodeId)).and(QueryBuilder.set(LEASED_AT, new Date()))
+                .where(QueryBuilder.eq(RANGE_NO, rangeNo)).onlyIf(QueryBuilder.eq(NODE_ID, nodeId));
+        return cassandraOps.executeAsynchronously(renew).getUninterruptibly().wasApplied();
+    }
+
+    public void releasePoolLease(int rangeNo, String nodeId) {
+        Delete release = QueryBuilder.delete().from(CF_HID_POOL_LEASES);
+        release.where(QueryBuilder.eq(RANGE_NO, rangeNo)).onlyIf(QueryBuilder.eq(NODE_ID, nodeId));
+        cassandraOps.execute(release);
+    }
+
     private Insert getInsertQuery(MciHealthId mciHealthId) {
         return createInsertQuery(CF_MCI_HEALTH_ID, mciHealthId, null, cassandraOps.getConverter());
     }
@@ -63,36 +217,207 @@ public class HealthIdRepository extends BaseRepository {
         return createDeleteQuery(CF_MCI_HEALTH_ID, mciHealthId, null, cassandraOps.getConverter());
     }
 
+    /**
+     * Marks the HID used with one conditional update, so of two concurrent registrations only one gets it. A failed
+     * condition returns is_used only when the row exists, which tells a HID never allocated from one already used.
+     */
+    public Observable<HidUsageStatus> markOrgHealthIdUsed(String healthId, UUID usedAt) {
+        Update markUsed = QueryBuilder.update(CF_ORG_HEALTH_ID);
+        markUsed.with(QueryBuilder.set(IS_USED, true)).and(QueryBuilder.set(USED_AT, usedAt))
+                .where(QueryBuilder.eq(HEALTH_ID, healthId)).onlyIf(QueryBuilder.eq(IS_USED, false));
+        return toObservable(cassandraOps.executeAsynchronously(markUsed)).map(new Func1<ResultSet, HidUsageStatus>() {
+            @Override
+            public HidUsageStatus call(ResultSet resultSet) {
+                Row row = resultSet.one();
+                if (row.getBool(APPLIED)) {
+                    return HidUsageStatus.ACCEPTED;
+                }
+                if (!row.getColumnDefinitions().contains(IS_USED)) {
+                    return HidUsageStatus.NOT_FOUND;
+                }
+                return !row.isNull(IS_USED) && row.getBool(IS_USED) ? HidUsageStatus.ALREADY_USED : HidUsageStatus.REJECTED;
+            }
+        });
+    }
+
     public Observable<OrgHealthId> findOrgHealthId(String healthId) {
         Select selectHealthId = QueryBuilder.select().from(CF_ORG_HEALTH_ID).where(QueryBuilder.eq(HEALTH_ID, healthId)).limit(1);
-        return Observable.from(cassandraOps.executeAsynchronously(selectHealthId)).flatMap(
+        return toObservable(cassandraOps.executeAsynchronously(selectHealthId)).flatMap(
                 new Func1<ResultSet, Observable<OrgHealthId>>() {
                     @Override
                     public Observable<OrgHealthId> call(ResultSet resultSet) {
                         if (resultSet.isExhausted()) {
                             return Observable.just(null);
                         }
-                        Row one = resultSet.one();
-                        String healthId = one.getString("health_id");
-                        String allocatedFor = one.getString("allocated_for");
-                        UUID generatedAt = one.getUUID("generated_at");
-                        Boolean isUsed = one.getBool("is_used");
-                        UUID usedAt = one.getUUID("used_at");
-
-                        return Observable.just(new OrgHealthId(healthId, allocatedFor, generatedAt, isUsed, usedAt));
+                        return Observable.just(toOrgHealthId(resultSet.one()));
                     }
                 });
     }
 
-    public void saveOrgHidAndDeleteMciHid(final List<MciHealthId> mciHealthId, final List<OrgHealthId> orgHealthId) {
-        Batch batch = QueryBuilder.batch();
-        for (OrgHealthId orgHid : orgHealthId) {
-            batch.add(getInsertQuery(orgHid));
+    /**
+     * Looks up many HIDs with one multi-key read, the map only has the ones that exist.
+     */
+    public Observable<Map<String, OrgHealthId>> findOrgHealthIds(Collection<String> healthIds) {
+        Select.Where select = QueryBuilder.select().from(CF_ORG_HEALTH_ID).where(QueryBuilder.in(HEALTH_ID, healthIds.toArray()));
+        return toObservable(cassandraOps.executeAsynchronously(select)).map(new Func1<ResultSet, Map<String, OrgHealthId>>() {
+            @Override
+            public Map<String, OrgHealthId> call(ResultSet rows) {
+                Map<String, OrgHealthId> orgHealthIds = new HashMap<>();
+                for (Row row : rows) {
+                    OrgHealthId orgHealthId = toOrgHealthId(row);
+                    orgHealthIds.put(orgHealthId.getHealthId(), orgHealthId);
+                }
+                return orgHealthIds;
+            }
+        });
+    }
+
+    private OrgHealthId toOrgHealthId(Row row) {
+        String healthId = row.getString(HEALTH_ID);
+        String allocatedFor = row.getString(ALLOCATED_FOR);
+        UUID generatedAt = row.getUUID(GENERATED_AT);
+        Boolean isUsed = row.getBool(IS_USED);
+        UUID usedAt = row.getUUID(USED_AT);
+        return new OrgHealthId(healthId, allocatedFor, generatedAt, isUsed, usedAt);
+    }
+
+    /**
+     * Inserts the row of an HID allocated to an organization unless it already has one.
+     */
+    public Observable<ResultSet> saveOrgHealthIdIfAbsent(OrgHealthId orgHealthId) {
+        return toObservable(cassandraOps.executeAsynchronously(getInsertQuery(orgHealthId).ifNotExists()));
+    }
+
+    /**
+     * Deletes the row of an HID allocated to an organization, only if it is still the row generated at {@code generatedAt}.
+     */
+    public Observable<ResultSet> deleteOrgHealthId(String healthId, UUID generatedAt) {
+        Statement delete = QueryBuilder.delete().from(CF_ORG_HEALTH_ID).where(QueryBuilder.eq(HEALTH_ID, healthId))
+                .onlyIf(QueryBuilder.eq(GENERATED_AT, generatedAt));
+        return toObservable(cassandraOps.executeAsynchronously(delete));
+    }
+
+    public Observable<ResultSet> deleteMciHealthId(MciHealthId mciHealthId) {
+        return toObservable(cassandraOps.executeAsynchronously(getDeleteQuery(mciHealthId)));
+    }
+
+    public void saveAllocationIntent(HidAllocationIntent intent) {
+        Insert insert = QueryBuilder.insertInto(CF_HID_ALLOCATION_INTENTS).value(HOUR, intent.getHour())
+                .value(INTENT_ID, intent.getIntentId()).value(ALLOCATED_FOR, intent.getAllocatedFor())
+                .value(HIDS, intent.getHids()).value(POOL_HIDS, intent.getPoolHids());
+        cassandraOps.execute(insert);
+    }
+
+    /**
+     * The intents of the hour, each without the HIDs it recorded as handed out.
+     */
+    public List<HidAllocationIntent> findAllocationIntents(long hour) {
+        Select select = QueryBuilder.select().from(CF_HID_ALLOCATION_INTENTS);
+        select.where(QueryBuilder.eq(HOUR, hour));
+        List<HidAllocationIntent> intents = new ArrayList<>();
+        for (Row row : cassandraOps.query(select)) {
+            List<String> hids = row.getList(HIDS, String.class);
+            int handedOut = row.isNull(HANDED_OUT) ? 0 : Math.min(row.getInt(HANDED_OUT), hids.size());
+            HidAllocationIntent intent = new HidAllocationIntent(row.getUUID(INTENT_ID), row.getString(ALLOCATED_FOR),
+                    hids, row.getList(POOL_HIDS, String.class));
+            intents.add(handedOut == 0 ? intent : intent.withHids(hids.subList(handedOut, hids.size())));
         }
-        for (MciHealthId healthId : mciHealthId) {
-            batch.add(getDeleteQuery(healthId));
+        return intents;
+    }
+
+    /**
+     * Records that the first {@code handedOut} HIDs of the intent are handed out, without rewriting its HIDs.
+     */
+    public Observable<ResultSet> saveAllocationIntentHandedOut(HidAllocationIntent intent, int handedOut) {
+        Update update = QueryBuilder.update(CF_HID_ALLOCATION_INTENTS);
+        update.with(QueryBuilder.set(HANDED_OUT, handedOut));
+        update.where(QueryBuilder.eq(HOUR, intent.getHour())).and(QueryBuilder.eq(INTENT_ID, intent.getIntentId()));
+        return toObservable(cassandraOps.executeAsynchronously(update));
+    }
+
+    public Observable<ResultSet> deleteAllocationIntentAsync(HidAllocationIntent intent) {
+        Delete delete = QueryBuilder.delete().from(CF_HID_ALLOCATION_INTENTS);
+        delete.where(QueryBuilder.eq(HOUR, intent.getHour())).and(QueryBuilder.eq(INTENT_ID, intent.getIntentId()));
+        return toObservable(cassandraOps.executeAsynchronously(delete));
+    }
+
+    public void deleteAllocationIntent(HidAllocationIntent intent) {
+        Delete delete = QueryBuilder.delete().from(CF_HID_ALLOCATION_INTENTS);
+        delete.where(QueryBuilder.eq(HOUR, intent.getHour())).and(QueryBuilder.eq(INTENT_ID, intent.getIntentId()));
+        cassandraOps.execute(delete);
+    }
+
+    /**
+     * Reserves the ledger entry of a request with a lightweight transaction, so only one of concurrent retries
+     * allocates its block. Returns whether the entry was reserved, false when it is already taken.
+     */
+    public boolean reserveAllocation(String mciCode, String requestId, int ttlSeconds) {
+        Insert reserve = QueryBuilder.insertInto(CF_MCI_HID_ALLOCATIONS).value(MCI_CODE, mciCode).value(REQUEST_ID, requestId)
+                .value(ALLOCATED_AT, UUIDs.timeBased()).ifNotExists();
+        reserve.using(QueryBuilder.ttl(ttlSeconds));
+        return cassandraOps.executeAsynchronously(reserve).getUninterruptibly().wasApplied();
+    }
+
+    /**
+     * Extends the reservation of a request still being allocated to {@code ttlSeconds} from now. Returns false when
+     * the block of the request is recorded already, which is never overwritten.
+     */
+    public boolean refreshAllocationReservation(String mciCode, String requestId, int ttlSeconds) {
+        Update refresh = QueryBuilder.update(CF_MCI_HID_ALLOCATIONS);
+        refresh.using(QueryBuilder.ttl(ttlSeconds));
+        refresh.with(QueryBuilder.set(ALLOCATED_AT, UUIDs.timeBased())).where(QueryBuilder.eq(MCI_CODE, mciCode))
+                .and(QueryBuilder.eq(REQUEST_ID, requestId)).onlyIf(QueryBuilder.eq(HIDS, null));
+        return cassandraOps.executeAsynchronously(refresh).getUninterruptibly().wasApplied();
+    }
+
+    public void saveAllocation(HidAllocation allocation, int ttlSeconds) {
+        Insert insert = QueryBuilder.insertInto(CF_MCI_HID_ALLOCATIONS).value(MCI_CODE, allocation.getMciCode())
+                .value(REQUEST_ID, allocation.getRequestId()).value(ALLOCATED_AT, allocation.getAllocatedAt())
+                .value(HIDS, allocation.getHids());
+        insert.using(QueryBuilder.ttl(ttlSeconds));
+        cassandraOps.execute(insert);
+    }
+
+    public HidAllocation findAllocation(String mciCode, String requestId) {
+        Select select = QueryBuilder.select().from(CF_MCI_HID_ALLOCATIONS);
+        select.where(QueryBuilder.eq(MCI_CODE, mciCode)).and(QueryBuilder.eq(REQUEST_ID, requestId));
+        Row row = cassandraOps.query(select).one();
+        return row == null ? null : toHidAllocation(row);
+    }
+
+    public void deleteAllocation(String mciCode, String requestId) {
+        Delete delete = QueryBuilder.delete().from(CF_MCI_HID_ALLOCATIONS);
+        delete.where(QueryBuilder.eq(MCI_CODE, mciCode)).and(QueryBuilder.eq(REQUEST_ID, requestId));
+        cassandraOps.execute(delete);
+    }
+
+    private HidAllocation toHidAllocation(Row row) {
+        List<String> hids = row.isNull(HIDS) ? null : row.getList(HIDS, String.class);
+        return new HidAllocation(row.getString(MCI_CODE), row.getString(REQUEST_ID), row.getUUID(ALLOCATED_AT), hids);
+    }
+
+    public void saveAllocationSummary(HidAllocationSummary summary, long day, int ttlSeconds) {
+        Insert insert = QueryBuilder.insertInto(CF_MCI_HID_ALLOCATION_HISTORY).value(MCI_CODE, summary.getMciCode())
+                .value(DAY, day).value(ALLOCATED_AT, summary.getAllocatedAt()).value(REQUEST_ID, summary.getRequestId())
+                .value(TOTAL_HIDS, summary.getTotalHids()).value(FIRST_HID, summary.getFirstHid())
+                .value(LAST_HID, summary.getLastHid());
+        insert.using(QueryBuilder.ttl(ttlSeconds));
+        cassandraOps.execute(insert);
+    }
+
+    /**
+     * The latest allocations of the MCI on the day, latest first, at most {@code limit} of them.
+     */
+    public List<HidAllocationSummary> findAllocationSummaries(String mciCode, long day, int limit) {
+        Select select = QueryBuilder.select().from(CF_MCI_HID_ALLOCATION_HISTORY);
+        select.where(QueryBuilder.eq(MCI_CODE, mciCode)).and(QueryBuilder.eq(DAY, day));
+        select.limit(limit);
+        List<HidAllocationSummary> summaries = new ArrayList<>();
+        for (Row row : cassandraOps.query(select)) {
+            summaries.add(new HidAllocationSummary(row.getString(MCI_CODE), row.getString(REQUEST_ID), row.getUUID(ALLOCATED_AT),
+                    row.getInt(TOTAL_HIDS), row.getString(FIRST_HID), row.getString(LAST_HID)));
         }
-        cassandraOps.execute(batch);
+        return summaries;
     }
 
     public Observable<Integer> findRemainingHIDs(int threshold) {
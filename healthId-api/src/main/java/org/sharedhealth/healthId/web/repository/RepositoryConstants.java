@@ -4,6 +4,16 @@ public class RepositoryConstants {
     public static final String CF_MCI_HEALTH_ID = "mci_healthId";
     public static final String CF_GENERATED_HID_BLOCKS = "generated_hid_blocks";
     public static final String CF_ORG_HEALTH_ID = "org_healthid";
+    public static final String CF_HID_GENERATION_CHECKPOINTS = "hid_generation_checkpoints";
+    public static final String CF_GENERATED_HID_SERIES = "generated_hid_series";
+    public static final String CF_HID_ALLOCATION_COUNTERS = "hid_allocation_counters";
+    public static final String CF_HID_POOL_LEASES = "hid_pool_leases";
+    public static final String CF_HID_POOL_CURSORS = "hid_pool_cursors";
+    public static final String CF_MCI_HID_BUCKETS = "mci_hid_buckets";
+    public static final String CF_MCI_HID_BUCKET_CURSORS = "mci_hid_bucket_cursors";
+    public static final String CF_HID_ALLOCATION_INTENTS = "hid_allocation_intents";
+    public static final String CF_MCI_HID_ALLOCATIONS = "mci_hid_allocations";
+    public static final String CF_MCI_HID_ALLOCATION_HISTORY = "mci_hid_allocation_history";
 
     public static final String HEALTH_ID = "health_id";
 
@@ -13,10 +23,38 @@ public class RepositoryConstants {
     public static final String GENERATED_AT = "generated_at";
     public static final String BEGINS_AT = "begins_at";
     public static final String ENDS_AT = "ends_at";
+    public static final String RESERVED_TO = "reserved_to";
+    public static final String COUNTER_BEGINS_AT = "counter_begins_at";
     public static final String TOTAL_HIDS = "total_hids";
     public static final String ALLOCATED_FOR = "allocated_for";
     public static final String IS_USED = "is_used";
     public static final String USED_AT = "used_at";
+    public static final String APPLIED = "[applied]";
+    public static final String IDEMPOTENCY_KEY = "idempotency_key";
+    public static final String LAST_CANDIDATE = "last_candidate";
+    public static final String WRITTEN_HIDS = "written_hids";
+    public static final String FAILED_HIDS = "failed_hids";
+    public static final String STATUS = "status";
+    public static final String UPDATED_AT = "updated_at";
+    public static final String NEXT_INDEX = "next_index";
+    public static final String RANGE_NO = "range_no";
+    public static final String NODE_ID = "node_id";
+    public static final String LEASED_AT = "leased_at";
+    public static final String CURSOR_ID = "cursor_id";
+    public static final String NEXT_TOKEN = "next_token";
+    public static final String BUCKET_NO = "bucket_no";
+    public static final String NEXT_BUCKET = "next_bucket";
+    public static final String HOUR = "hour";
+    public static final String INTENT_ID = "intent_id";
+    public static final String HIDS = "hids";
+    public static final String POOL_HIDS = "pool_hids";
+    public static final String HANDED_OUT = "handed_out";
+    public static final String MCI_CODE = "mci_code";
+    public static final String REQUEST_ID = "request_id";
+    public static final String ALLOCATED_AT = "allocated_at";
+    public static final String DAY = "day";
+    public static final String FIRST_HID = "first_hid";
+    public static final String LAST_HID = "last_hid";
 
     public static final String HID = "hid";
 }
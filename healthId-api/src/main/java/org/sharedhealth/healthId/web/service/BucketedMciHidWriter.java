@@ -0,0 +1,73 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.ResultSet;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes HIDs into the bucket partition of their candidate, one unlogged batch per bucket through the pipeline.
+ * The candidate is the HID without its check digit, and its bucket is its offset in the series divided by the
+ * bucket size. Not thread safe, every generation worker uses its own writer.
+ */
+class BucketedMciHidWriter implements MciHidWriter {
+
+    private final HealthIdRepository healthIdRepository;
+    private final HidWritePipeline writePipeline;
+    private final Func1<Long, Long> seriesOf;
+    private final long bucketSize;
+    private final int batchSize;
+    private final Map<List<Long>, List<MciHealthId>> batches = new HashMap<>();
+
+    BucketedMciHidWriter(HealthIdRepository healthIdRepository, HidWritePipeline writePipeline, Func1<Long, Long> seriesOf,
+                         long bucketSize, int batchSize) {
+        this.healthIdRepository = healthIdRepository;
+        this.writePipeline = writePipeline;
+        this.seriesOf = seriesOf;
+        this.bucketSize = bucketSize;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void write(MciHealthId mciHealthId) {
+        String hid = mciHealthId.getHid();
+        long candidate = Long.parseLong(hid.substring(0, hid.length() - 1));
+        long seriesNo = seriesOf.call(candidate);
+        List<Long> bucket = Arrays.asList(seriesNo, (candidate - seriesNo) / bucketSize);
+        List<MciHealthId> batch = batches.get(bucket);
+        if (batch == null) {
+            batch = new ArrayList<>(batchSize);
+            batches.put(bucket, batch);
+        }
+        batch.add(mciHealthId);
+        if (batch.size() >= batchSize) {
+            batches.remove(bucket);
+            submit(bucket, batch);
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (Map.Entry<List<Long>, List<MciHealthId>> batch : batches.entrySet()) {
+            submit(batch.getKey(), batch.getValue());
+        }
+        batches.clear();
+    }
+
+    private void submit(final List<Long> bucket, final List<MciHealthId> batch) {
+        writePipeline.submit(new Func0<Observable<ResultSet>>() {
+            @Override
+            public Observable<ResultSet> call() {
+                return healthIdRepository.saveBucketedHids(bucket.get(0), bucket.get(1), batch);
+            }
+        }, batch.size());
+    }
+}
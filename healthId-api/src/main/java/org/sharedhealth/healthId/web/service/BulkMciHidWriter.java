@@ -0,0 +1,64 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ResultSet;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import rx.Observable;
+import rx.functions.Func0;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups HIDs by the replicas that own them and writes each group as one unlogged batch through the pipeline.
+ * Not thread safe, every generation worker uses its own writer.
+ */
+class BulkMciHidWriter implements MciHidWriter {
+
+    private final HealthIdRepository healthIdRepository;
+    private final HidWritePipeline writePipeline;
+    private final int batchSize;
+    private final Map<Set<Host>, List<MciHealthId>> batches = new HashMap<>();
+
+    BulkMciHidWriter(HealthIdRepository healthIdRepository, HidWritePipeline writePipeline, int batchSize) {
+        this.healthIdRepository = healthIdRepository;
+        this.writePipeline = writePipeline;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void write(MciHealthId mciHealthId) {
+        Set<Host> replicas = healthIdRepository.findReplicas(mciHealthId.getHid());
+        List<MciHealthId> batch = batches.get(replicas);
+        if (batch == null) {
+            batch = new ArrayList<>(batchSize);
+            batches.put(replicas, batch);
+        }
+        batch.add(mciHealthId);
+        if (batch.size() >= batchSize) {
+            batches.remove(replicas);
+            submit(batch);
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (List<MciHealthId> batch : batches.values()) {
+            submit(batch);
+        }
+        batches.clear();
+    }
+
+    private void submit(final List<MciHealthId> batch) {
+        writePipeline.submit(new Func0<Observable<ResultSet>>() {
+            @Override
+            public Observable<ResultSet> call() {
+                return healthIdRepository.saveMciHealthIds(batch);
+            }
+        }, batch.size());
+    }
+}
@@ -1,16 +1,27 @@
 package org.sharedhealth.healthId.web.service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidAllocationCounter;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
 import org.sharedhealth.healthId.web.repository.GeneratedHidBlockRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 @Component
 public class GeneratedHidBlockService {
+    private static final int MAX_SERIES_ADVANCE_ATTEMPTS = 10;
+    private static final long SERIES_END_CACHE_SECONDS = 60;
 
     private GeneratedHidBlockRepository generatedHidBlockRepository;
+    private final Cache<Long, Long> seriesEnds = CacheBuilder.newBuilder()
+            .expireAfterWrite(SERIES_END_CACHE_SECONDS, SECONDS).build();
 
     @Autowired
     public GeneratedHidBlockService(GeneratedHidBlockRepository generatedHidBlockRepository) {
@@ -22,6 +33,105 @@ public class GeneratedHidBlockService {
     }
 
     public GeneratedHIDBlock saveGeneratedHidBlock(GeneratedHIDBlock generatedHIDBlock) {
-        return generatedHidBlockRepository.saveGeneratedHidBlock(generatedHIDBlock);
+        GeneratedHIDBlock savedBlock = generatedHidBlockRepository.saveGeneratedHidBlock(generatedHIDBlock);
+        advanceSeriesEndsAt(generatedHIDBlock.getSeriesNo(), generatedHIDBlock.getEndsAt());
+        return savedBlock;
+    }
+
+    /**
+     * End of the last block generated in the series, or null when there is none. Read from the series catalog,
+     * a series generated before the catalog existed is caught up from its blocks the first time it is asked for.
+     */
+    public Long getSeriesEndsAt(long seriesNo) {
+        Long endsAt = seriesEnds.getIfPresent(seriesNo);
+        if (endsAt != null) {
+            return endsAt;
+        }
+        endsAt = generatedHidBlockRepository.getSeriesEndsAt(seriesNo);
+        if (endsAt == null) {
+            endsAt = lastEndsAt(generatedHidBlockRepository.getPreGeneratedHidBlocks(seriesNo));
+            if (endsAt == null) {
+                return null;
+            }
+            return advanceSeriesEndsAt(seriesNo, endsAt);
+        }
+        seriesEnds.put(seriesNo, endsAt);
+        return endsAt;
+    }
+
+    /**
+     * Drops the cached ends of every series, for when the series catalog was changed under this node.
+     */
+    public void invalidateSeriesEnds() {
+        seriesEnds.invalidateAll();
+    }
+
+    public Long getSeriesReservedTo(long seriesNo) {
+        return generatedHidBlockRepository.getSeriesReservedTo(seriesNo);
+    }
+
+    public boolean reserveSeriesRange(long seriesNo, Long expectedReservedTo, long reservedTo) {
+        return generatedHidBlockRepository.reserveSeriesRange(seriesNo, expectedReservedTo, reservedTo);
+    }
+
+    public boolean reserveSeriesForCounter(long seriesNo, Long expectedReservedTo, long beginsAt, long endsAt) {
+        return generatedHidBlockRepository.reserveSeriesForCounter(seriesNo, expectedReservedTo, beginsAt, endsAt);
+    }
+
+    public Long getSeriesCounterBeginsAt(long seriesNo) {
+        return generatedHidBlockRepository.getSeriesCounterBeginsAt(seriesNo);
+    }
+
+    public HidAllocationCounter getAllocationCounter(long seriesNo) {
+        return generatedHidBlockRepository.getAllocationCounter(seriesNo);
+    }
+
+    public boolean createAllocationCounter(HidAllocationCounter counter) {
+        return generatedHidBlockRepository.createAllocationCounter(counter);
+    }
+
+    public boolean advanceAllocationCounter(long seriesNo, long expectedNextIndex, long nextIndex) {
+        return generatedHidBlockRepository.advanceAllocationCounter(seriesNo, expectedNextIndex, nextIndex);
+    }
+
+    /**
+     * Moves the end of the series forward to {@code endsAt} unless another block already took it further,
+     * and returns where the series ends now.
+     */
+    private long advanceSeriesEndsAt(long seriesNo, long endsAt) {
+        for (int attempt = 0; attempt < MAX_SERIES_ADVANCE_ATTEMPTS; attempt++) {
+            Long currentEndsAt = generatedHidBlockRepository.getSeriesEndsAt(seriesNo);
+            if (currentEndsAt != null && currentEndsAt >= endsAt) {
+                seriesEnds.put(seriesNo, currentEndsAt);
+                return currentEndsAt;
+            }
+            if (generatedHidBlockRepository.advanceSeriesEndsAt(seriesNo, currentEndsAt, endsAt)) {
+                seriesEnds.put(seriesNo, endsAt);
+                return endsAt;
+            }
+        }
+        seriesEnds.invalidate(seriesNo);
+        throw new HidGenerationException(String.format("Could not move the end of series %s to %s", seriesNo, endsAt));
+    }
+
+    private Long lastEndsAt(List<GeneratedHIDBlock> generatedHIDBlocks) {
+        if (generatedHIDBlocks == null) {
+            return null;
+        }
+        Long endsAt = null;
+        for (GeneratedHIDBlock generatedHIDBlock : generatedHIDBlocks) {
+            if (endsAt == null || endsAt < generatedHIDBlock.getEndsAt()) {
+                endsAt = generatedHIDBlock.getEndsAt();
+            }
+        }
+        return endsAt;
+    }
+
+    public List<HidGenerationCheckpoint> getCheckpoints(long seriesNo) {
+        return generatedHidBlockRepository.getCheckpoints(seriesNo);
+    }
+
+    public HidGenerationCheckpoint saveCheckpoint(HidGenerationCheckpoint checkpoint) {
+        return generatedHidBlockRepository.saveCheckpoint(checkpoint);
     }
 }
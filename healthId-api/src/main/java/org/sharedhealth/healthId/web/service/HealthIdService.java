@@ -2,29 +2,39 @@ package org.sharedhealth.healthId.web.service;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import com.datastax.driver.core.ResultSet;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
+import org.sharedhealth.healthId.web.Model.HidGenerationStats;
+import org.sharedhealth.healthId.web.Model.HidPoolLayout;
+import org.sharedhealth.healthId.web.Model.HidSeriesCapacity;
+import org.sharedhealth.healthId.web.Model.HidUsageStatus;
+import org.sharedhealth.healthId.web.Model.HidWriteMode;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.Model.RequesterDetails;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
-import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
-import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
 import org.sharedhealth.healthId.web.exception.HidGenerationException;
 import org.sharedhealth.healthId.web.repository.HealthIdRepository;
 import org.sharedhealth.healthId.web.security.UserInfo;
+import org.sharedhealth.healthId.web.utils.ChecksumGenerator;
 import org.sharedhealth.healthId.web.utils.FileUtil;
-import org.sharedhealth.healthId.web.utils.LuhnChecksumGenerator;
+import org.sharedhealth.healthId.web.utils.HidFileSink;
+import org.sharedhealth.healthId.web.utils.HidValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import rx.Observable;
+import rx.functions.Func0;
 import rx.functions.Func1;
 
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static org.sharedhealth.healthId.web.utils.DateUtil.SIMPLE_DATE_WITH_SECS_FORMAT;
@@ -35,35 +45,87 @@ import static org.sharedhealth.healthId.web.utils.JsonMapper.writeValueAsString;
 public class HealthIdService {
     private static Logger logger = LoggerFactory.getLogger(HealthIdService.class);
 
-    private static final int DIGITS_FOR_BLOCK_SEPARATION = 2;
     private static final String DEFAULT_HID_STORAGE_PATH = "/opt/mci/hid";
+    private static final int CHECKSUM_BATCH_SIZE = 1000;
+    private static final long WRITE_RETRY_BACKOFF_MILLIS = 50L;
+    private static final int BULK_WRITE_BATCH_SIZE = 50;
+    private static final int VERIFICATION_BATCH_SIZE = 100;
+    private static final int ORG_DEDUPE_WINDOW_SIZE = 1000;
+    private static final int MAX_RESERVATION_ATTEMPTS = 10;
+    private static final int BUCKET_WRITE_BATCH_SIZE = 100;
 
-    private final Pattern mciInvalidHidPattern;
-    private final Pattern orgInvalidHidPattern;
     private final HealthIdProperties healthIdProperties;
     private HealthIdRepository healthIdRepository;
-    private LuhnChecksumGenerator checksumGenerator;
+    private ChecksumGenerator checksumGenerator;
     private GeneratedHidBlockService generatedHidBlockService;
+    private final HidSeries hidSeries;
+    private final HidValidator mciHidValidator;
+    private final ParallelHidGenerator parallelHidGenerator;
+    private final Map<HidWriteMode, Double> lastHidsPerSecond = new ConcurrentHashMap<>();
+    private final Set<String> runningCheckpoints = ConcurrentHashMap.newKeySet();
 
     @Autowired
     public HealthIdService(HealthIdProperties healthIdProperties, HealthIdRepository healthIdRepository,
-                           LuhnChecksumGenerator checksumGenerator, GeneratedHidBlockService generatedHidBlockService) {
+                           ChecksumGenerator checksumGenerator, GeneratedHidBlockService generatedHidBlockService,
+                           HidSeries hidSeries) {
         this.healthIdProperties = healthIdProperties;
         this.healthIdRepository = healthIdRepository;
         this.checksumGenerator = checksumGenerator;
         this.generatedHidBlockService = generatedHidBlockService;
-        this.mciInvalidHidPattern = Pattern.compile(healthIdProperties.getMciInvalidHidPattern());
-        this.orgInvalidHidPattern = Pattern.compile(healthIdProperties.getOtherOrgInvalidHidPattern());
+        this.hidSeries = hidSeries;
+        this.mciHidValidator = hidSeries.getMciHidValidator();
+        this.parallelHidGenerator = new ParallelHidGenerator(healthIdProperties.getHidGenerationParallelism(),
+                healthIdProperties.getHidGenerationPartitionSize());
+    }
+
+    public HealthIdService(HealthIdProperties healthIdProperties, HealthIdRepository healthIdRepository,
+                           ChecksumGenerator checksumGenerator, GeneratedHidBlockService generatedHidBlockService) {
+        this(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService,
+                new HidSeries(healthIdProperties, checksumGenerator, generatedHidBlockService));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        parallelHidGenerator.shutdown();
     }
 
     public GeneratedHIDBlock generateAll(UserInfo userInfo) {
+        return generateAll(userInfo, healthIdProperties.getHidGenerationWriteMode(), false);
+    }
+
+    public GeneratedHIDBlock generateAll(UserInfo userInfo, HidWriteMode writeMode, boolean verify) {
+        return generateAll(userInfo, writeMode, verify, new HidGenerationProgress());
+    }
+
+    public GeneratedHIDBlock generateAll(UserInfo userInfo, final HidWriteMode writeMode, boolean verify,
+                                         final HidGenerationProgress progress) {
+        long startedAt = System.nanoTime();
         Long start = healthIdProperties.getMciStartHid();
         Long end = healthIdProperties.getMciEndHid();
-        long numberOfValidHIDs = 0L;
-        for (long i = start; i <= end; i++) {
-            numberOfValidHIDs = saveIfValidMciHID(numberOfValidHIDs, i);
+        logger.info(String.format("Generating MCI HIDs from %s to %s on %s workers using %s writes", start, end,
+                parallelHidGenerator.getParallelism(), writeMode));
+        progress.setTotalCandidates(end - start + 1);
+        final HidWritePipeline writePipeline = newWritePipeline(progress);
+        parallelHidGenerator.generate(start, end, new ParallelHidGenerator.RangeHandler() {
+            @Override
+            public long handle(long from, long to) {
+                MciHidWriter writer = newMciHidWriter(writeMode, writePipeline);
+                long numberOfValidHIDs = saveValidMciHIDs(from, to, writer, progress);
+                writer.flush();
+                return numberOfValidHIDs;
+            }
+        });
+        HidWritePipeline.Result writes = writePipeline.awaitCompletion();
+        if (progress.isCancelled()) {
+            logger.info(String.format("Generation of MCI HIDs from %s to %s cancelled after writing %s HIDs, the partitions " +
+                    "are incomplete so the block is not recorded", start, end, writes.getSucceeded()));
+            GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(hidSeries.seriesNoOf(start), healthIdProperties.getMciOrgCode(),
+                    start, end, writes.getSucceeded(), writeValueAsString(getRequesterDetails(userInfo)), timeBased());
+            generatedHIDBlock.setFailedHIDs(writes.getFailed());
+            return generatedHIDBlock;
         }
-        return saveGeneratedBlock(start, end, numberOfValidHIDs, healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+        GeneratedHIDBlock generatedHIDBlock = saveGeneratedBlock(start, end, writes, healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+        return withStats(generatedHIDBlock, writeMode, startedAt, writes, verify);
     }
 
     public GeneratedHIDBlock generateAllForSpecificIDType(UserInfo userInfo,long type, String id) {
@@ -79,42 +141,311 @@ public class HealthIdService {
     }
 
     public GeneratedHIDBlock generateBlock(long start, long totalHIDs, UserInfo userInfo) {
-        long numberOfValidHIDs = 0L;
-        long seriesNo = identifySeriesNo(start);
-        long startForBlock = identifyStartInSeries(seriesNo);
-        int i;
-        for (i = 0; numberOfValidHIDs < totalHIDs; i++) {
-            long possibleHID = startForBlock + i;
-            if (!isPartOfSeries(seriesNo, possibleHID)) {
-                break;
+        return generateBlock(start, totalHIDs, userInfo, healthIdProperties.getHidGenerationWriteMode(), false);
+    }
+
+    public GeneratedHIDBlock generateBlock(long start, long totalHIDs, UserInfo userInfo, HidWriteMode writeMode, boolean verify) {
+        return generateBlock(start, totalHIDs, userInfo, writeMode, verify, null, new HidGenerationProgress());
+    }
+
+    public GeneratedHIDBlock generateBlock(long start, long totalHIDs, UserInfo userInfo, HidWriteMode writeMode, boolean verify,
+                                           String idempotencyKey, HidGenerationProgress progress) {
+        long startedAt = System.nanoTime();
+        progress.setTargetHIDs(totalHIDs);
+        long seriesNo = hidSeries.seriesNoOf(start);
+        HidValidityIndex validityIndex = hidSeries.validityIndexOf(true, seriesNo);
+        HidGenerationCheckpoint checkpoint = startOrResume(seriesNo, healthIdProperties.getMciOrgCode(), idempotencyKey, userInfo,
+                validityIndex, totalHIDs);
+        if (checkpoint.isCompleted()) {
+            return generatedBlockOf(checkpoint);
+        }
+        try {
+            long checkpointInterval = healthIdProperties.getHidGenerationCheckpointInterval();
+            long heartbeatMillis = leaseMillis() / 3;
+            HidWritePipeline writePipeline = newWritePipeline(progress);
+            MciHidWriter writer = newMciHidWriter(writeMode, writePipeline);
+            RecoveringMciHidWriter recoveringWriter = null;
+            if (checkpoint.isRecovering()) {
+                writer = recoveringWriter = new RecoveringMciHidWriter(healthIdRepository, writer, checkpointInterval, VERIFICATION_BATCH_SIZE);
+            }
+            long numberOfValidHIDs = checkpoint.getValidHIDs();
+            long nextCheckpointAt = numberOfValidHIDs + checkpointInterval;
+            long possibleHID = checkpoint.getNextCandidate();
+            long lastReserved = lastReserved(checkpoint, validityIndex);
+            warnIfSeriesRunsShort(validityIndex, possibleHID, totalHIDs - numberOfValidHIDs);
+            while (numberOfValidHIDs < totalHIDs && !progress.isCancelled()) {
+                long validHID = validityIndex.nextValid(possibleHID);
+                if (validHID < 0 || validHID > lastReserved) {
+                    progress.scanned(lastReserved + 1 - possibleHID);
+                    possibleHID = lastReserved + 1;
+                    break;
+                }
+                progress.scanned(validHID + 1 - possibleHID);
+                possibleHID = validHID + 1;
+                numberOfValidHIDs += 1;
+                writer.write(new MciHealthId(hidSeries.hidOf(validHID)));
+                if ((numberOfValidHIDs >= nextCheckpointAt || checkpoint.isStale(heartbeatMillis)) && numberOfValidHIDs < totalHIDs) {
+                    writer.flush();
+                    HidWritePipeline.Result writes = totalWrites(checkpoint, writePipeline.awaitCompletion(), recoveringWriter);
+                    checkpoint.advance(validHID, writes.getSucceeded(), writes.getFailed());
+                    generatedHidBlockService.saveCheckpoint(checkpoint);
+                    nextCheckpointAt = numberOfValidHIDs + checkpointInterval;
+                }
             }
-            numberOfValidHIDs = saveIfValidMciHID(numberOfValidHIDs, possibleHID);
+            writer.flush();
+            HidWritePipeline.Result writes = writePipeline.awaitCompletion();
+            GeneratedHIDBlock generatedHIDBlock = completeCheckpoint(checkpoint, possibleHID - 1,
+                    totalWrites(checkpoint, writes, recoveringWriter), userInfo);
+            return withStats(generatedHIDBlock, writeMode, startedAt, writes, verify);
+        } finally {
+            finish(checkpoint);
         }
-        long end = startForBlock + i - 1;
-        return saveGeneratedBlock(startForBlock, end, numberOfValidHIDs, healthIdProperties.getMciOrgCode(), userInfo, timeBased());
+    }
+
+    /**
+     * Dry run of a block generation: where the next block of the series would start and end, and how many valid
+     * HIDs the series has left, counted from the digit rules of the invalid HID pattern without generating anything.
+     */
+    public HidSeriesCapacity getCapacity(long start, long totalHIDs, String orgCode) {
+        boolean forMci = orgCode == null || orgCode.equals(healthIdProperties.getMciOrgCode());
+        long seriesNo = hidSeries.seriesNoOf(start);
+        long seriesEndsAt = hidSeries.endOf(seriesNo);
+        long nextStart = hidSeries.startAfter(seriesNo, generatedHidBlockService.getSeriesReservedTo(seriesNo));
+        long totalValidHIDs = hidSeries.countValidFrom(forMci, seriesNo, seriesNo);
+        long remainingHIDs = hidSeries.countValidFrom(forMci, seriesNo, nextStart);
+        Long blockEndsAt = null;
+        if (totalHIDs > 0 && remainingHIDs > 0) {
+            blockEndsAt = hidSeries.nthValidFrom(forMci, seriesNo, nextStart, Math.min(totalHIDs, remainingHIDs) - 1);
+        }
+        return new HidSeriesCapacity(seriesNo, seriesEndsAt, totalValidHIDs, Math.min(nextStart, seriesEndsAt + 1),
+                remainingHIDs, totalHIDs, blockEndsAt);
     }
 
     public GeneratedHIDBlock generateBlockForOrg(long start, long totalHIDs, String orgCode, UserInfo userInfo) throws HidGenerationException {
-        UUID generatedAt = timeBased();
-        long numberOfValidHIDs = 0L;
-        long seriesNo = identifySeriesNo(start);
-        long startForBlock = identifyStartInSeries(seriesNo);
+        return generateBlockForOrg(start, totalHIDs, orgCode, userInfo, null, new HidGenerationProgress());
+    }
+
+    /**
+     * A resumed generation writes the rest of the block to a new file, the HIDs before the checkpoint stay in the earlier one.
+     */
+    public GeneratedHIDBlock generateBlockForOrg(long start, long totalHIDs, String orgCode, UserInfo userInfo, String idempotencyKey,
+                                                 HidGenerationProgress progress) throws HidGenerationException {
+        progress.setTargetHIDs(totalHIDs);
+        long seriesNo = hidSeries.seriesNoOf(start);
         File hidFile = createFileForOrg(orgCode);
-        if (hidStoragePathExists(hidFile)) {
-            logger.info(String.format("Saving HIDs to file %s ", hidFile.getAbsolutePath()));
-            long i;
-            for (i = 0; numberOfValidHIDs < totalHIDs; i++) {
-                long possibleHID = startForBlock + i;
-                if (!isPartOfSeries(seriesNo, possibleHID)) {
+        if (!hidStoragePathExists(hidFile)) {
+            logger.info(String.format("HID Storage path %s does not exists ", hidFile.getAbsolutePath()));
+            throw new HidGenerationException(String.format("HID Storage path %s does not exists ", hidFile.getAbsolutePath()));
+        }
+        HidValidityIndex validityIndex = hidSeries.validityIndexOf(false, seriesNo);
+        HidGenerationCheckpoint checkpoint = startOrResume(seriesNo, orgCode, idempotencyKey, userInfo, validityIndex, totalHIDs);
+        if (checkpoint.isCompleted()) {
+            return generatedBlockOf(checkpoint);
+        }
+        try (HidFileSink hidSink = HidFileSink.open(hidFile, healthIdProperties.isHidFileGzip())) {
+            logger.info(String.format("Saving HIDs to file %s ", hidSink.getFile().getAbsolutePath()));
+            long checkpointInterval = healthIdProperties.getHidGenerationCheckpointInterval();
+            long heartbeatMillis = leaseMillis() / 3;
+            HidWritePipeline writePipeline = newWritePipeline(progress);
+            long numberOfValidHIDs = checkpoint.getValidHIDs();
+            long nextCheckpointAt = numberOfValidHIDs + checkpointInterval;
+            long possibleHID = checkpoint.getNextCandidate();
+            long lastReserved = lastReserved(checkpoint, validityIndex);
+            warnIfSeriesRunsShort(validityIndex, possibleHID, totalHIDs - numberOfValidHIDs);
+            List<String> window = new ArrayList<>(ORG_DEDUPE_WINDOW_SIZE);
+            while (numberOfValidHIDs < totalHIDs && !progress.isCancelled()) {
+                long windowStart = possibleHID;
+                long windowSize = Math.min(ORG_DEDUPE_WINDOW_SIZE, totalHIDs - numberOfValidHIDs);
+                while (window.size() < windowSize) {
+                    long validHID = validityIndex.nextValid(possibleHID);
+                    if (validHID > lastReserved && extendReservation(checkpoint, validityIndex, totalHIDs - numberOfValidHIDs - window.size())) {
+                        lastReserved = lastReserved(checkpoint, validityIndex);
+                    }
+                    if (validHID < 0 || validHID > lastReserved) {
+                        possibleHID = lastReserved + 1;
+                        break;
+                    }
+                    window.add(hidSeries.hidOf(validHID));
+                    possibleHID = validHID + 1;
+                }
+                progress.scanned(possibleHID - windowStart);
+                if (window.isEmpty()) {
                     break;
                 }
-                numberOfValidHIDs = saveIfValidOrgHID(orgCode, numberOfValidHIDs, hidFile, possibleHID, generatedAt);
+                numberOfValidHIDs += saveNewOrgHIDs(window, orgCode, hidSink, checkpoint.getGeneratedAt(), writePipeline, progress);
+                window.clear();
+                if ((numberOfValidHIDs >= nextCheckpointAt || checkpoint.isStale(heartbeatMillis)) && numberOfValidHIDs < totalHIDs) {
+                    hidSink.sync();
+                    checkpoint.advance(possibleHID - 1, numberOfValidHIDs, 0L);
+                    generatedHidBlockService.saveCheckpoint(checkpoint);
+                    nextCheckpointAt = numberOfValidHIDs + checkpointInterval;
+                }
             }
-            return saveGeneratedBlock(startForBlock, startForBlock + i - 1, numberOfValidHIDs, orgCode, userInfo, generatedAt);
+            hidSink.commit();
+            return completeCheckpoint(checkpoint, possibleHID - 1, new HidWritePipeline.Result(numberOfValidHIDs, 0L, 0L), userInfo);
+        } catch (IOException e) {
+            logger.error(String.format("Could not write HID file %s", hidFile.getAbsolutePath()), e);
+            throw new HidGenerationException(e.getMessage());
+        } finally {
+            finish(checkpoint);
+        }
+    }
+
+    /**
+     * Finds the checkpoint a block generation carries on from. With an idempotency key that is the checkpoint saved
+     * under the key, a completed one is handed back as is. Without a key an unfinished generation for the same
+     * organization in the series is resumed. Generations still holding their lease are left alone, they may be
+     * running on another node. Any other unfinished generation in the series was interrupted, what it wrote up to
+     * its last checkpoint is recorded as a block. A new generation reserves its own range of the series first.
+     */
+    private synchronized HidGenerationCheckpoint startOrResume(long seriesNo, String generatedFor, String idempotencyKey, UserInfo userInfo,
+                                                               HidValidityIndex validityIndex, long totalHIDs) {
+        long leaseMillis = leaseMillis();
+        HidGenerationCheckpoint resumed = null;
+        List<HidGenerationCheckpoint> interrupted = new ArrayList<>();
+        for (HidGenerationCheckpoint checkpoint : generatedHidBlockService.getCheckpoints(seriesNo)) {
+            boolean running = runningCheckpoints.contains(checkpoint.getIdempotencyKey())
+                    || (!checkpoint.isCompleted() && !checkpoint.isStale(leaseMillis));
+            if (checkpoint.getIdempotencyKey().equals(idempotencyKey)) {
+                if (running) {
+                    throw new HidGenerationException(String.format("Generation %s is still running in series %s.",
+                            checkpoint.getIdempotencyKey(), seriesNo));
+                }
+                resumed = checkpoint;
+            } else if (!running && !checkpoint.isCompleted()) {
+                if (idempotencyKey == null && resumed == null && generatedFor.equals(checkpoint.getGeneratedFor())) {
+                    resumed = checkpoint;
+                } else {
+                    interrupted.add(checkpoint);
+                }
+            }
+        }
+        if (resumed != null && resumed.isCompleted()) {
+            logger.info(String.format("Generation %s already completed, returning its block", resumed.getIdempotencyKey()));
+            return resumed;
+        }
+        for (HidGenerationCheckpoint checkpoint : interrupted) {
+            closeInterrupted(checkpoint);
+        }
+        boolean recovering = !interrupted.isEmpty();
+        if (resumed == null) {
+            String key = idempotencyKey == null ? UUID.randomUUID().toString() : idempotencyKey;
+            resumed = reserveRange(seriesNo, key, generatedFor, userInfo, validityIndex, totalHIDs);
         } else {
-            logger.info(String.format("HID Storage path %s does not exists ", hidFile.getAbsolutePath()));
-            throw new HidGenerationException(String.format("HID Storage path %s does not exists ", hidFile.getAbsolutePath()));
+            logger.info(String.format("Resuming generation %s from %s with %s HIDs written", resumed.getIdempotencyKey(),
+                    resumed.getNextCandidate(), resumed.getWrittenHIDs()));
+            recovering = true;
+        }
+        resumed.start(recovering);
+        runningCheckpoints.add(resumed.getIdempotencyKey());
+        generatedHidBlockService.saveCheckpoint(resumed);
+        return resumed;
+    }
+
+    /**
+     * Claims the candidates holding the next {@code totalHIDs} valid HIDs of the series with a compare and set on the
+     * series reservation, so generations on several nodes never overlap and need no per HID transaction to find out.
+     */
+    private HidGenerationCheckpoint reserveRange(long seriesNo, String idempotencyKey, String generatedFor, UserInfo userInfo,
+                                                 HidValidityIndex validityIndex, long totalHIDs) {
+        for (int attempt = 0; attempt < MAX_RESERVATION_ATTEMPTS; attempt++) {
+            Long reservedTo = generatedHidBlockService.getSeriesReservedTo(seriesNo);
+            long start = hidSeries.startAfter(seriesNo, reservedTo);
+            long end = validityIndex.lastOfValid(start, totalHIDs);
+            if (end < start || generatedHidBlockService.reserveSeriesRange(seriesNo, reservedTo, end)) {
+                HidGenerationCheckpoint checkpoint = new HidGenerationCheckpoint(seriesNo, idempotencyKey, generatedFor, start,
+                        timeBased(), writeValueAsString(getRequesterDetails(userInfo)));
+                checkpoint.setReservedTo(end);
+                logger.info(String.format("Generation %s reserved %s to %s of series %s", idempotencyKey, start, end, seriesNo));
+                return checkpoint;
+            }
+            logger.info(String.format("Series %s was reserved past %s by another generation, retrying", seriesNo, reservedTo));
+        }
+        throw new HidGenerationException(String.format("Could not reserve a range of series %s, too many concurrent generations.", seriesNo));
+    }
+
+    /**
+     * Reserves more candidates right after the range of the generation, possible only while no other generation
+     * reserved after it. Organization HIDs that already exist are skipped, so their range can run short.
+     */
+    private boolean extendReservation(HidGenerationCheckpoint checkpoint, HidValidityIndex validityIndex, long missingHIDs) {
+        Long reservedTo = checkpoint.getReservedTo();
+        if (reservedTo == null || reservedTo >= validityIndex.getLast()) {
+            return false;
+        }
+        long end = validityIndex.lastOfValid(reservedTo + 1, missingHIDs);
+        if (!generatedHidBlockService.reserveSeriesRange(checkpoint.getSeriesNo(), reservedTo, end)) {
+            logger.info(String.format("Could not extend generation %s past %s, the series was reserved further",
+                    checkpoint.getIdempotencyKey(), reservedTo));
+            return false;
         }
+        checkpoint.setReservedTo(end);
+        generatedHidBlockService.saveCheckpoint(checkpoint);
+        return true;
+    }
+
+    /**
+     * Checkpoints written before ranges were reserved have no reservation and may run to the end of the series.
+     */
+    private long lastReserved(HidGenerationCheckpoint checkpoint, HidValidityIndex validityIndex) {
+        Long reservedTo = checkpoint.getReservedTo();
+        return reservedTo == null ? validityIndex.getLast() : Math.min(reservedTo, validityIndex.getLast());
+    }
+
+    /**
+     * A generation that failed is marked interrupted so it can be resumed right away instead of after its lease.
+     */
+    private void finish(HidGenerationCheckpoint checkpoint) {
+        runningCheckpoints.remove(checkpoint.getIdempotencyKey());
+        if (checkpoint.isCompleted()) {
+            return;
+        }
+        try {
+            checkpoint.interrupt();
+            generatedHidBlockService.saveCheckpoint(checkpoint);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Could not mark generation %s interrupted", checkpoint.getIdempotencyKey()), e);
+        }
+    }
+
+    private long leaseMillis() {
+        return TimeUnit.SECONDS.toMillis(healthIdProperties.getHidGenerationLeaseSeconds());
+    }
+
+    private void closeInterrupted(HidGenerationCheckpoint checkpoint) {
+        logger.info(String.format("Recording interrupted generation %s for %s up to %s", checkpoint.getIdempotencyKey(),
+                checkpoint.getGeneratedFor(), checkpoint.getLastCandidate()));
+        if (checkpoint.getLastCandidate() != null && checkpoint.getWrittenHIDs() > 0) {
+            generatedHidBlockService.saveGeneratedHidBlock(generatedBlockOf(checkpoint));
+        }
+        checkpoint.complete(checkpoint.getNextCandidate() - 1, checkpoint.getWrittenHIDs(), checkpoint.getFailedHIDs());
+        generatedHidBlockService.saveCheckpoint(checkpoint);
+    }
+
+    private GeneratedHIDBlock completeCheckpoint(HidGenerationCheckpoint checkpoint, long end, HidWritePipeline.Result writes, UserInfo userInfo) {
+        GeneratedHIDBlock generatedHIDBlock = saveGeneratedBlock(checkpoint.getBeginsAt(), end, writes,
+                checkpoint.getGeneratedFor(), userInfo, checkpoint.getGeneratedAt());
+        checkpoint.complete(end, writes.getSucceeded(), writes.getFailed());
+        generatedHidBlockService.saveCheckpoint(checkpoint);
+        return generatedHIDBlock;
+    }
+
+    private GeneratedHIDBlock generatedBlockOf(HidGenerationCheckpoint checkpoint) {
+        GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(checkpoint.getSeriesNo(), checkpoint.getGeneratedFor(),
+                checkpoint.getBeginsAt(), checkpoint.getNextCandidate() - 1, checkpoint.getWrittenHIDs(),
+                checkpoint.getRequestedBy(), checkpoint.getGeneratedAt());
+        generatedHIDBlock.setFailedHIDs(checkpoint.getFailedHIDs());
+        return generatedHIDBlock;
+    }
+
+    /**
+     * Adds what was written before the checkpoint the generation started from to the writes of this run.
+     */
+    private HidWritePipeline.Result totalWrites(HidGenerationCheckpoint checkpoint, HidWritePipeline.Result writes,
+                                                RecoveringMciHidWriter recoveringWriter) {
+        long alreadyAllocated = recoveringWriter == null ? 0L : recoveringWriter.getAlreadyAllocated();
+        return new HidWritePipeline.Result(checkpoint.getStartWrittenHIDs() + writes.getSucceeded() + alreadyAllocated,
+                checkpoint.getStartFailedHIDs() + writes.getFailed(), writes.getRetried());
     }
 
     private boolean hidStoragePathExists(File hidFile) {
@@ -122,47 +453,205 @@ public class HealthIdService {
         return parentFile.exists();
     }
 
-    public synchronized List<MciHealthId> getNextBlock(final String mciCode, Integer blockSize) {
-        List<MciHealthId> mciHealthIds = healthIdRepository.getNextBlock(blockSize);
-        if (CollectionUtils.isEmpty(mciHealthIds)) throw new HealthIdExhaustedException();
-        List<OrgHealthId> orgHealthIds = new ArrayList<>();
-        UUID generatedAt = timeBased();
-        for (MciHealthId mciHealthId : mciHealthIds) {
-            orgHealthIds.add(new OrgHealthId(mciHealthId.getHid(), mciCode, generatedAt));
+    /**
+     * Marks the HID used in one round trip. Only a HID found already used is read back, so a retry of the registration
+     * that used it is still accepted.
+     */
+    public Observable<HidUsageStatus> markOrgHealthIdUsed(final String healthId, final UUID usedAt) {
+        logger.debug(String.format("Marking %s used", healthId));
+        return healthIdRepository.markOrgHealthIdUsed(healthId, usedAt).concatMap(new Func1<HidUsageStatus, Observable<HidUsageStatus>>() {
+            @Override
+            public Observable<HidUsageStatus> call(HidUsageStatus status) {
+                if (status != HidUsageStatus.ALREADY_USED) {
+                    return Observable.just(status);
+                }
+                return healthIdRepository.findOrgHealthId(healthId).map(new Func1<OrgHealthId, HidUsageStatus>() {
+                    @Override
+                    public HidUsageStatus call(OrgHealthId orgHealthId) {
+                        boolean usedByThisRequest = orgHealthId != null && usedAt.equals(orgHealthId.getUsedAt());
+                        return usedByThisRequest ? HidUsageStatus.ACCEPTED : HidUsageStatus.ALREADY_USED;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Marks every HID of {@code usedAts} used, at most HID_MARK_USED_MAX_IN_FLIGHT of them at a time. Each HID gets
+     * its own status, in the order of {@code usedAts}, so one that fails does not fail the others.
+     */
+    public Observable<Map<String, HidUsageStatus>> markOrgHealthIdsUsed(final Map<String, UUID> usedAts) {
+        List<Observable<Map.Entry<String, HidUsageStatus>>> marks = new ArrayList<>();
+        for (Map.Entry<String, UUID> usedAt : usedAts.entrySet()) {
+            marks.add(markUsedStatus(usedAt.getKey(), usedAt.getValue()));
         }
-        healthIdRepository.saveOrgHidAndDeleteMciHid(mciHealthIds, orgHealthIds);
-        return mciHealthIds;
+        return Observable.merge(Observable.from(marks), healthIdProperties.getHidMarkUsedMaxInFlight()).toList()
+                .map(new Func1<List<Map.Entry<String, HidUsageStatus>>, Map<String, HidUsageStatus>>() {
+                    @Override
+                    public Map<String, HidUsageStatus> call(List<Map.Entry<String, HidUsageStatus>> marked) {
+                        Map<String, HidUsageStatus> statuses = new HashMap<>();
+                        for (Map.Entry<String, HidUsageStatus> status : marked) {
+                            statuses.put(status.getKey(), status.getValue());
+                        }
+                        Map<String, HidUsageStatus> orderedStatuses = new LinkedHashMap<>();
+                        for (String healthId : usedAts.keySet()) {
+                            orderedStatuses.put(healthId, statuses.get(healthId));
+                        }
+                        return orderedStatuses;
+                    }
+                });
+    }
+
+    /**
+     * Deferred, so the lookup of the HID only starts once the merge lets it in.
+     */
+    private Observable<Map.Entry<String, HidUsageStatus>> markUsedStatus(final String healthId, final UUID usedAt) {
+        return Observable.defer(new Func0<Observable<HidUsageStatus>>() {
+            @Override
+            public Observable<HidUsageStatus> call() {
+                return markOrgHealthIdUsed(healthId, usedAt);
+            }
+        }).map(new Func1<HidUsageStatus, Map.Entry<String, HidUsageStatus>>() {
+            @Override
+            public Map.Entry<String, HidUsageStatus> call(HidUsageStatus status) {
+                return usageStatus(healthId, status);
+            }
+        }).onErrorReturn(new Func1<Throwable, Map.Entry<String, HidUsageStatus>>() {
+            @Override
+            public Map.Entry<String, HidUsageStatus> call(Throwable error) {
+                logger.warn(String.format("Failed to mark %s used: %s", healthId, error.getMessage()));
+                return usageStatus(healthId, HidUsageStatus.FAILED);
+            }
+        });
+    }
+
+    private static Map.Entry<String, HidUsageStatus> usageStatus(String healthId, HidUsageStatus status) {
+        return new AbstractMap.SimpleImmutableEntry<>(healthId, status);
+    }
+
+    private HidWritePipeline newWritePipeline(HidGenerationProgress progress) {
+        return new HidWritePipeline(healthIdProperties.getHidGenerationMaxInFlightWrites(),
+                healthIdProperties.getHidGenerationWriteRetries(), WRITE_RETRY_BACKOFF_MILLIS, progress);
+    }
+
+    private MciHidWriter newMciHidWriter(HidWriteMode writeMode, final HidWritePipeline writePipeline) {
+        if (healthIdProperties.getHidPoolLayout() == HidPoolLayout.BUCKETS) {
+            return new BucketedMciHidWriter(healthIdRepository, writePipeline, new Func1<Long, Long>() {
+                @Override
+                public Long call(Long candidate) {
+                    return hidSeries.seriesNoOf(candidate);
+                }
+            }, healthIdProperties.getHidPoolBucketSize(), BUCKET_WRITE_BATCH_SIZE);
+        }
+        if (writeMode == HidWriteMode.BULK) {
+            return new BulkMciHidWriter(healthIdRepository, writePipeline, BULK_WRITE_BATCH_SIZE);
+        }
+        return new MciHidWriter() {
+            @Override
+            public void write(final MciHealthId mciHealthId) {
+                writePipeline.submit(new Func0<Observable<ResultSet>>() {
+                    @Override
+                    public Observable<ResultSet> call() {
+                        return healthIdRepository.saveMciHealthId(mciHealthId);
+                    }
+                });
+            }
+
+            @Override
+            public void flush() {
+            }
+        };
+    }
+
+    private GeneratedHIDBlock withStats(GeneratedHIDBlock generatedHIDBlock, HidWriteMode writeMode, long startedAt,
+                                        HidWritePipeline.Result writes, boolean verify) {
+        long elapsedMillis = (System.nanoTime() - startedAt) / 1000000L;
+        HidGenerationStats stats = new HidGenerationStats(writeMode.name(), elapsedMillis, writes.getSucceeded());
+        for (HidWriteMode otherMode : HidWriteMode.values()) {
+            Double otherHidsPerSecond = lastHidsPerSecond.get(otherMode);
+            if (otherMode != writeMode && otherHidsPerSecond != null) {
+                stats.compareWith(otherMode.name(), otherHidsPerSecond);
+            }
+        }
+        if (writes.getSucceeded() > 0) {
+            lastHidsPerSecond.put(writeMode, stats.getHidsPerSecond());
+        }
+        logger.info(String.format("Wrote %s HIDs in %s ms (%.0f HIDs/sec) using %s writes", writes.getSucceeded(),
+                elapsedMillis, stats.getHidsPerSecond(), writeMode));
+        if (verify && healthIdProperties.getHidPoolLayout() == HidPoolLayout.BUCKETS) {
+            logger.warn("Writes are only verified against the row pool, skipping verification of bucketed HIDs");
+        } else if (verify) {
+            stats.setMissingHIDs(countMissingMciHIDs(generatedHIDBlock.getBeginsAt(), generatedHIDBlock.getEndsAt()));
+        }
+        generatedHIDBlock.setStats(stats);
+        return generatedHIDBlock;
     }
 
-    public Observable<Boolean> markOrgHealthIdUsed(String healthId, final UUID usedAt) {
-        Observable<OrgHealthId> orgHealthId = healthIdRepository.findOrgHealthId(healthId);
-        return orgHealthId.concatMap(new Func1<OrgHealthId, Observable<Boolean>>() {
+    /**
+     * Regenerates the HIDs of a range and counts the ones that are neither in the MCI pool nor allocated to an organization.
+     */
+    private long countMissingMciHIDs(long start, long end) {
+        return parallelHidGenerator.generate(start, end, new ParallelHidGenerator.RangeHandler() {
             @Override
-            public Observable<Boolean> call(OrgHealthId orgHealthId) {
-                if (null == orgHealthId) {
-                    return Observable.error(new HealthIdNotFoundException("Health Id not allocated to any Organization."));
+            public long handle(long from, long to) {
+                long missingHIDs = 0L;
+                List<String> hids = new ArrayList<>(VERIFICATION_BATCH_SIZE);
+                for (long possibleHID = from; possibleHID <= to; possibleHID++) {
+                    if (mciHidValidator.isValid(possibleHID)) {
+                        hids.add(hidSeries.hidOf(possibleHID));
+                    }
+                    if (hids.size() == VERIFICATION_BATCH_SIZE || (possibleHID == to && !hids.isEmpty())) {
+                        missingHIDs += countMissingHIDs(hids);
+                        hids.clear();
+                    }
                 }
-                orgHealthId.markUsed(usedAt);
-                logger.debug(String.format("Marking %s used for Organization %s", orgHealthId.getHealthId(), orgHealthId.getAllocatedFor()));
-                return healthIdRepository.saveOrUpdateOrgHealthId(orgHealthId);
+                return missingHIDs;
             }
         });
     }
 
-    private long saveIfValidMciHID(long numberOfValidHids, long currentNumber) {
-        String possibleHid = String.valueOf(currentNumber);
-        if (!mciInvalidHidPattern.matcher(possibleHid).find()) {
-            numberOfValidHids += 1;
-            String newHealthId = possibleHid + checksumGenerator.generate(possibleHid.substring(1));
-            healthIdRepository.saveMciHealthId(new MciHealthId(newHealthId));
+    private long countMissingHIDs(List<String> hids) {
+        Set<String> inPool = healthIdRepository.findExistingMciHids(hids).toBlocking().first();
+        List<String> notInPool = new ArrayList<>();
+        for (String hid : hids) {
+            if (!inPool.contains(hid)) {
+                notInPool.add(hid);
+            }
         }
-        return numberOfValidHids;
+        if (notInPool.isEmpty()) {
+            return 0L;
+        }
+        Set<String> allocated = healthIdRepository.findExistingOrgHids(notInPool).toBlocking().first();
+        return notInPool.size() - allocated.size();
+    }
+
+    private long saveValidMciHIDs(long from, long to, MciHidWriter writer, HidGenerationProgress progress) {
+        int[] checkDigits = new int[CHECKSUM_BATCH_SIZE];
+        long numberOfValidHIDs = 0L;
+        long batchStart = from;
+        while (batchStart <= to && !progress.isCancelled()) {
+            long leadingDigitUnit = HidSeries.leadingDigitUnit(batchStart);
+            long batchEnd = Math.min(to, Math.min(batchStart + CHECKSUM_BATCH_SIZE - 1,
+                    batchStart - batchStart % leadingDigitUnit + leadingDigitUnit - 1));
+            int count = (int) (batchEnd - batchStart + 1);
+            checksumGenerator.generate(batchStart % leadingDigitUnit, HidSeries.codeLength(leadingDigitUnit), count, checkDigits);
+            for (int i = 0; i < count; i++) {
+                long possibleHID = batchStart + i;
+                if (mciHidValidator.isValid(possibleHID)) {
+                    numberOfValidHIDs += 1;
+                    writer.write(new MciHealthId(String.valueOf(possibleHID) + checkDigits[i]));
+                }
+            }
+            progress.scanned(count);
+            batchStart = batchEnd + 1;
+        }
+        return numberOfValidHIDs;
     }
 
     private long saveIfValidMciHIDSpecificIdType(String currentNumber) {
         long numberOfValidHids = 0;
         String possibleHid = currentNumber;
-        if (!mciInvalidHidPattern.matcher(possibleHid).find()) {
+        if (mciHidValidator.isValid(possibleHid)) {
             numberOfValidHids += 1;
           //  String newHealthId = possibleHid + checksumGenerator.generate(possibleHid.substring(1));
             healthIdRepository.saveMciHealthId(new MciHealthId(possibleHid));
@@ -171,27 +660,67 @@ public class HealthIdService {
     }
 
 
-    private long saveIfValidOrgHID(String orgCode, long numberOfValidHIDs, File hidFile, long possibleHID, UUID generatedAt) {
-        String possibleHid = String.valueOf(possibleHID);
-        if (!orgInvalidHidPattern.matcher(possibleHid).find()) {
-            String newHealthId = possibleHid + checksumGenerator.generate(possibleHid.substring(1));
-            if (shouldSaveHID(newHealthId)) {
-                try {
-                    numberOfValidHIDs += 1;
-                    FileUtil.addHidToFile(hidFile, newHealthId);
-                    logger.debug(String.format("Saving healthid %s used for Organization %s", newHealthId, orgCode));
-                    healthIdRepository.saveOrUpdateOrgHealthId(new OrgHealthId(newHealthId, orgCode, generatedAt)).toBlocking().first();
-                } catch (IOException e) {
-                    logger.info(e.getMessage(), e);
-                    throw new HidGenerationException(e.getMessage());
-                }
+    /**
+     * Checks a window of HIDs against the organization HIDs with parallel multi-key reads instead of one read per HID,
+     * then appends the new ones to the file and pipelines their writes. Returns once the whole window is written.
+     */
+    private long saveNewOrgHIDs(List<String> window, String orgCode, HidFileSink hidSink, UUID generatedAt,
+                                HidWritePipeline writePipeline, HidGenerationProgress progress) throws IOException {
+        Map<String, OrgHealthId> existingHealthIds = findOrgHealthIds(window);
+        List<String> newHealthIds = new ArrayList<>(window.size());
+        long writtenBeforeInterruption = 0L;
+        for (String healthId : window) {
+            OrgHealthId existingHealthId = existingHealthIds.get(healthId);
+            if (existingHealthId == null) {
+                newHealthIds.add(healthId);
+            } else if (isWrittenBeforeInterruption(existingHealthId, orgCode, generatedAt)) {
+                newHealthIds.add(healthId);
+                writtenBeforeInterruption++;
             }
         }
-        return numberOfValidHIDs;
+        for (String healthId : newHealthIds) {
+            hidSink.write(healthId);
+        }
+        for (String healthId : newHealthIds) {
+            if (existingHealthIds.containsKey(healthId)) {
+                continue;
+            }
+            final OrgHealthId orgHealthId = new OrgHealthId(healthId, orgCode, generatedAt);
+            logger.debug(String.format("Saving healthid %s used for Organization %s", healthId, orgCode));
+            writePipeline.submit(new Func0<Observable<Boolean>>() {
+                @Override
+                public Observable<Boolean> call() {
+                    return healthIdRepository.saveOrUpdateOrgHealthId(orgHealthId);
+                }
+            });
+        }
+        HidWritePipeline.Result writes = writePipeline.awaitCompletion();
+        if (writes.getFailed() > 0) {
+            throw new HidGenerationException(String.format("Failed to save %s HIDs for Organization %s", writes.getFailed(), orgCode));
+        }
+        progress.written(writtenBeforeInterruption);
+        return newHealthIds.size();
     }
 
-    private boolean shouldSaveHID(String newHealthId) {
-        return healthIdRepository.findOrgHealthId(newHealthId).toBlocking().first() == null;
+    private Map<String, OrgHealthId> findOrgHealthIds(List<String> healthIds) {
+        List<Observable<Map<String, OrgHealthId>>> reads = new ArrayList<>();
+        for (int from = 0; from < healthIds.size(); from += VERIFICATION_BATCH_SIZE) {
+            List<String> batch = healthIds.subList(from, Math.min(healthIds.size(), from + VERIFICATION_BATCH_SIZE));
+            reads.add(healthIdRepository.findOrgHealthIds(new ArrayList<>(batch)));
+        }
+        Map<String, OrgHealthId> existingHealthIds = new HashMap<>();
+        for (Map<String, OrgHealthId> batch : Observable.merge(reads).toList().toBlocking().single()) {
+            existingHealthIds.putAll(batch);
+        }
+        return existingHealthIds;
+    }
+
+    /**
+     * A resumed generation keeps the generated_at of the one that was interrupted, so HIDs it saved after its
+     * last checkpoint are recognised and counted again instead of being skipped.
+     */
+    private boolean isWrittenBeforeInterruption(OrgHealthId existingHealthId, String orgCode, UUID generatedAt) {
+        return orgCode.equals(existingHealthId.getAllocatedFor()) && generatedAt.equals(existingHealthId.getGeneratedAt());
     }
 
     private File createFileForOrg(String orgCode) {
@@ -203,8 +732,18 @@ public class HealthIdService {
         return FileUtil.createHIDFile(hidStorageDirPath, fileName);
     }
 
+    private GeneratedHIDBlock saveGeneratedBlock(Long start, Long end, HidWritePipeline.Result writes, String orgCode, UserInfo userInfo, UUID generatedAt) {
+        if (writes.getFailed() > 0) {
+            logger.error(String.format("%s of %s HID writes failed for block %s to %s", writes.getFailed(),
+                    writes.getSucceeded() + writes.getFailed(), start, end));
+        }
+        GeneratedHIDBlock generatedHIDBlock = saveGeneratedBlock(start, end, writes.getSucceeded(), orgCode, userInfo, generatedAt);
+        generatedHIDBlock.setFailedHIDs(writes.getFailed());
+        return generatedHIDBlock;
+    }
+
     private GeneratedHIDBlock saveGeneratedBlock(Long start, Long end, Long numberOfValidHids, String orgCode, UserInfo userInfo, UUID generatedAt) {
-        long seriesNo = identifySeriesNo(start);
+        long seriesNo = hidSeries.seriesNoOf(start);
         RequesterDetails requesterDetails = getRequesterDetails(userInfo);
         GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(seriesNo, orgCode, start, end, numberOfValidHids, writeValueAsString(requesterDetails), generatedAt);
         if (numberOfValidHids > 0) {
@@ -218,37 +757,15 @@ public class HealthIdService {
         return new RequesterDetails(properties.getId());
     }
 
-    private boolean isPartOfSeries(long seriesNo, long possibleHID) {
-        return identifySeriesNo(possibleHID) == seriesNo;
-    }
-
-    private long identifyStartInSeries(long seriesNo) {
-        long endsAt = 0L;
-        List<GeneratedHIDBlock> preGeneratedHIDBlocks = generatedHidBlockService.getPreGeneratedHidBlocks(seriesNo);
-        if (CollectionUtils.isEmpty(preGeneratedHIDBlocks)) {
-            return seriesNo;
-        }
-        for (GeneratedHIDBlock preGeneratedHIDBlock : preGeneratedHIDBlocks) {
-            if (endsAt < preGeneratedHIDBlock.getEndsAt()) {
-                endsAt = preGeneratedHIDBlock.getEndsAt();
-            }
+    private void warnIfSeriesRunsShort(HidValidityIndex validityIndex, long from, long hidsToGenerate) {
+        long remainingHIDs = validityIndex.countValidFrom(from);
+        if (remainingHIDs < hidsToGenerate) {
+            logger.warn(String.format("Only %s valid HIDs remain in series %s from %s, %s were asked for", remainingHIDs,
+                    validityIndex.getFirst(), from, hidsToGenerate));
         }
-        return endsAt + 1;
-    }
-
-    private long identifySeriesNo(Long start) {
-        String startAsText = String.valueOf(start);
-        String startPrefix = startAsText.substring(0, DIGITS_FOR_BLOCK_SEPARATION);
-        String startSuffix = startAsText.substring(DIGITS_FOR_BLOCK_SEPARATION, startAsText.length());
-        return Long.parseLong(String.valueOf(startPrefix + startSuffix.replaceAll(".", "0")));
     }
 
     public Observable<OrgHealthId> findOrgHealthId(String healthId) {
         return healthIdRepository.findOrgHealthId(healthId);
     }
-
-    public Observable<Integer> findRemainingHIDs() {
-        int threshold = healthIdProperties.getHealthIdWarningThreshold();
-        return healthIdRepository.findRemainingHIDs(threshold);
-    }
 }
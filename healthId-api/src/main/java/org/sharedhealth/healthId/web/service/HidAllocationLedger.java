@@ -0,0 +1,246 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.HidAllocation;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidAllocationConflictException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import rx.functions.Func0;
+
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static com.datastax.driver.core.utils.UUIDs.unixTimestamp;
+
+/**
+ * Records the block handed out for a request under the id of the request, so a retried request gets the block of
+ * the first attempt back instead of a new one. The entry of a request is reserved before its block is allocated, so
+ * of concurrent attempts only one allocates. The reservation is refreshed while its block is being allocated, however
+ * long that waits on the pool, so it only expires, {@link #PENDING_TTL_SECONDS} after its last refresh, when the node
+ * allocating it is gone. A block allocated but not recorded, because every attempt to save it failed, is still handed
+ * out, a retry of the request then gets a new block as it would without a request id.
+ * <p>
+ * Every block, with a request id or not, is also summarised in the allocation history of its MCI, a partition a day
+ * kept latest first, so the latest allocations are read without reading the HIDs of any block.
+ */
+@Component
+public class HidAllocationLedger {
+    private static final Logger logger = LoggerFactory.getLogger(HidAllocationLedger.class);
+
+    static final int PENDING_TTL_SECONDS = 60;
+    static final int SAVE_ATTEMPTS = 3;
+    static final int HISTORY_DAYS_READ_WHEN_KEPT_FOREVER = 30;
+
+    private static final long DAY_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    private static final long SAVE_BACKOFF_MILLIS = 100;
+
+    private final HealthIdRepository healthIdRepository;
+    private final int ttlSeconds;
+    private final long refreshMillis;
+    private final ScheduledExecutorService refresher = newRefresher();
+
+    @Autowired
+    public HidAllocationLedger(HealthIdRepository healthIdRepository, HealthIdProperties healthIdProperties) {
+        this(healthIdRepository, (int) TimeUnit.DAYS.toSeconds(healthIdProperties.getHidAllocationLedgerTtlDays()));
+    }
+
+    public HidAllocationLedger(HealthIdRepository healthIdRepository, int ttlSeconds) {
+        this(healthIdRepository, ttlSeconds, TimeUnit.SECONDS.toMillis(PENDING_TTL_SECONDS) / 3);
+    }
+
+    HidAllocationLedger(HealthIdRepository healthIdRepository, int ttlSeconds, long refreshMillis) {
+        this.healthIdRepository = healthIdRepository;
+        this.ttlSeconds = ttlSeconds;
+        this.refreshMillis = refreshMillis;
+    }
+
+    private static ScheduledExecutorService newRefresher() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hid-ledger-refresh-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Returns the block recorded for the request, or allocates one and records it.
+     *
+     * @throws HidAllocationConflictException when another attempt of the request is still allocating its block
+     */
+    public List<MciHealthId> replayOrAllocate(String mciCode, String requestId, Func0<List<MciHealthId>> allocation) {
+        if (!healthIdRepository.reserveAllocation(mciCode, requestId, PENDING_TTL_SECONDS)) {
+            HidAllocation recorded = healthIdRepository.findAllocation(mciCode, requestId);
+            if (recorded == null || recorded.isPending()) {
+                throw new HidAllocationConflictException(String.format("Request %s of %s is still being allocated, try again later.",
+                        requestId, mciCode));
+            }
+            logger.info(String.format("Replaying block of %s HIDs allocated to %s for request %s", recorded.getHids().size(),
+                    mciCode, requestId));
+            return mciHealthIdsOf(recorded.getHids());
+        }
+        List<MciHealthId> block;
+        Reservation reservation = new Reservation(mciCode, requestId).start();
+        try {
+            block = allocation.call();
+        } catch (RuntimeException e) {
+            reservation.stop();
+            healthIdRepository.deleteAllocation(mciCode, requestId);
+            throw e;
+        }
+        reservation.stop();
+        UUID allocatedAt = timeBased();
+        save(new HidAllocation(mciCode, requestId, allocatedAt, hidsOf(block)));
+        summarise(mciCode, requestId, allocatedAt, block);
+        return block;
+    }
+
+    /**
+     * Saves the block, retrying a failed save. A block that can not be saved is logged and handed out all the same,
+     * failing the request would lose it: the HIDs are allocated to the MCI already.
+     */
+    private void save(HidAllocation allocation) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                healthIdRepository.saveAllocation(allocation, ttlSeconds);
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= SAVE_ATTEMPTS) {
+                    logger.error(String.format("Could not record block of %s HIDs allocated to %s for request %s, it can not be replayed: %s",
+                            allocation.getHids().size(), allocation.getMciCode(), allocation.getRequestId(), allocation.getHids()), e);
+                    return;
+                }
+                logger.warn(String.format("Attempt %s to record block of request %s of %s failed, retrying", attempt,
+                        allocation.getRequestId(), allocation.getMciCode()), e);
+                try {
+                    Thread.sleep(SAVE_BACKOFF_MILLIS * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a block handed out for a request without a request id in the allocation history of the MCI only.
+     */
+    public void record(String mciCode, List<MciHealthId> block) {
+        summarise(mciCode, null, timeBased(), block);
+    }
+
+    public List<HidAllocationSummary> history(String mciCode, int limit) {
+        return history(mciCode, limit, System.currentTimeMillis());
+    }
+
+    /**
+     * The latest allocations of the MCI, latest first, at most {@code limit} of them, going back day by day as far
+     * as the ledger keeps them, or {@link #HISTORY_DAYS_READ_WHEN_KEPT_FOREVER} days when it keeps them forever.
+     */
+    List<HidAllocationSummary> history(String mciCode, int limit, long now) {
+        List<HidAllocationSummary> allocations = new ArrayList<>();
+        long today = dayOf(now);
+        for (long day = today; day > today - historyDays() && allocations.size() < limit; day--) {
+            allocations.addAll(healthIdRepository.findAllocationSummaries(mciCode, day, limit - allocations.size()));
+        }
+        return allocations;
+    }
+
+    private void summarise(String mciCode, String requestId, UUID allocatedAt, List<MciHealthId> block) {
+        if (block.isEmpty()) {
+            return;
+        }
+        HidAllocationSummary summary = new HidAllocationSummary(mciCode, requestId, allocatedAt, block.size(),
+                block.get(0).getHid(), block.get(block.size() - 1).getHid());
+        healthIdRepository.saveAllocationSummary(summary, dayOf(unixTimestamp(allocatedAt)), ttlSeconds);
+    }
+
+    private long historyDays() {
+        if (ttlSeconds == 0) {
+            return HISTORY_DAYS_READ_WHEN_KEPT_FOREVER;
+        }
+        return (ttlSeconds + DAY_SECONDS - 1) / DAY_SECONDS + 1;
+    }
+
+    private static long dayOf(long millis) {
+        return TimeUnit.MILLISECONDS.toDays(millis);
+    }
+
+    private List<String> hidsOf(List<MciHealthId> mciHealthIds) {
+        List<String> hids = new ArrayList<>(mciHealthIds.size());
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            hids.add(mciHealthId.getHid());
+        }
+        return hids;
+    }
+
+    private List<MciHealthId> mciHealthIdsOf(List<String> hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>(hids.size());
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return mciHealthIds;
+    }
+
+    /**
+     * Keeps the reservation of a request from expiring while its block is allocated.
+     */
+    private class Reservation implements Runnable {
+        private final String mciCode;
+        private final String requestId;
+        private ScheduledFuture<?> refresh;
+        private boolean stopped;
+
+        private Reservation(String mciCode, String requestId) {
+            this.mciCode = mciCode;
+            this.requestId = requestId;
+        }
+
+        private synchronized Reservation start() {
+            refresh = refresher.scheduleWithFixedDelay(this, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+            return this;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (stopped) {
+                return;
+            }
+            try {
+                healthIdRepository.refreshAllocationReservation(mciCode, requestId, PENDING_TTL_SECONDS);
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Could not refresh reservation of request %s of %s", requestId, mciCode), e);
+            }
+        }
+
+        /**
+         * Stops refreshing, a refresh under way is finished first so it never races the save of the block.
+         */
+        private synchronized void stop() {
+            stopped = true;
+            refresh.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidAllocationQuotaExceededException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import rx.functions.Func0;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps MCIs to their share of HIDs and of the claims on the pool.
+ * <p>
+ * With a quota, every MCI has a token bucket of HIDs refilled at its weighted rate. Every nextBlock allocation is
+ * {@link #admit admitted} against it without waiting on anything: it is charged its block size, the HIDs it did not
+ * get are refunded, and one that finds too few tokens is rejected with the time until the bucket would hold enough.
+ * <p>
+ * Only claims on the pool, made when the prefetched HIDs of an MCI run short, wait {@link #inTurn in turn}, one at a
+ * time in weighted fair order instead of the arbitrary order of a contended monitor. Each waiting claim gets a
+ * virtual finish tag of its size divided by the weight of its MCI, counted on from the later of the current virtual
+ * time and the last tag of that MCI, and the smallest tag goes first, so an MCI claiming a lot at once mostly queues
+ * behind its own.
+ */
+@Component
+public class HidAllocationScheduler {
+
+    private final double hidsPerSecond;
+    private final long burst;
+    private final Map<String, Integer> weights;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> throttled = new ConcurrentHashMap<>();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong scheduled = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>(11, new Comparator<Ticket>() {
+        @Override
+        public int compare(Ticket one, Ticket other) {
+            int byTag = Double.compare(one.finishTag, other.finishTag);
+            return byTag != 0 ? byTag : Long.compare(one.sequence, other.sequence);
+        }
+    });
+    private final Map<String, Double> lastFinishTags = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+    private boolean claiming;
+
+    @Autowired
+    public HidAllocationScheduler(HealthIdProperties healthIdProperties) {
+        this(healthIdProperties.getHidAllocationQuotaHidsPerSecond(), healthIdProperties.getHidAllocationQuotaBurst(),
+                healthIdProperties.getHidAllocationWeights());
+    }
+
+    /**
+     * @param hidsPerSecond quota of an MCI of weight 1, 0 for no quotas
+     * @param burst         HIDs an idle MCI of weight 1 can take at once
+     * @param weights       weights of MCIs, those not listed weigh 1
+     */
+    public HidAllocationScheduler(double hidsPerSecond, long burst, Map<String, Integer> weights) {
+        if (hidsPerSecond < 0 || (hidsPerSecond > 0 && burst < 1)) {
+            throw new IllegalArgumentException(String.format("Invalid allocation quota of %s HIDs per second with bursts of %s",
+                    hidsPerSecond, burst));
+        }
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            if (weight.getValue() < 1) {
+                throw new IllegalArgumentException(String.format("Weight of %s should be positive", weight.getKey()));
+            }
+        }
+        this.hidsPerSecond = hidsPerSecond;
+        this.burst = burst;
+        this.weights = weights;
+    }
+
+    /**
+     * Runs the allocation within the quota of the MCI.
+     *
+     * @throws HidAllocationQuotaExceededException when the MCI has too few HIDs left in its quota
+     */
+    public List<MciHealthId> admit(String mciCode, int blockSize, Func0<List<MciHealthId>> allocation) {
+        long charged = chargeQuota(mciCode, blockSize);
+        admitted.incrementAndGet();
+        List<MciHealthId> block = null;
+        try {
+            block = allocation.call();
+            return block;
+        } finally {
+            refundQuota(mciCode, charged - (block == null ? 0 : block.size()));
+        }
+    }
+
+    /**
+     * Runs the claim once it is its turn among the claims of all MCIs.
+     */
+    public <T> T inTurn(String mciCode, int count, Func0<T> claim) {
+        Ticket ticket = awaitTurn(mciCode, count);
+        try {
+            return claim.call();
+        } finally {
+            finish(ticket);
+        }
+    }
+
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        long totalThrottled = 0;
+        for (Map.Entry<String, AtomicLong> entry : throttled.entrySet()) {
+            metrics.add(new Metric<>("hid.scheduler.throttled." + entry.getKey(), entry.getValue().get()));
+            totalThrottled += entry.getValue().get();
+        }
+        metrics.add(new Metric<>("hid.scheduler.throttled", totalThrottled));
+        metrics.add(new Metric<>("hid.scheduler.admitted", admitted.get()));
+        metrics.add(new Metric<>("hid.scheduler.scheduled", scheduled.get()));
+        lock.lock();
+        try {
+            metrics.add(new Metric<>("hid.scheduler.waiting", waiting.size()));
+        } finally {
+            lock.unlock();
+        }
+        return metrics;
+    }
+
+    int weightOf(String mciCode) {
+        Integer weight = weights.get(mciCode);
+        return weight == null ? 1 : weight;
+    }
+
+    private long chargeQuota(String mciCode, int blockSize) {
+        if (hidsPerSecond <= 0) {
+            return 0;
+        }
+        TokenBucket bucket = bucketOf(mciCode);
+        long charge = Math.min(blockSize, bucket.capacity);
+        long retryAfterNanos = bucket.take(charge);
+        if (retryAfterNanos > 0) {
+            throttledOf(mciCode).incrementAndGet();
+            long retryAfterSeconds = Math.max(1, (long) Math.ceil(retryAfterNanos / (double) TimeUnit.SECONDS.toNanos(1)));
+            throw new HidAllocationQuotaExceededException(String.format("%s exceeded its share of HIDs, retry after %s seconds.",
+                    mciCode, retryAfterSeconds), retryAfterSeconds);
+        }
+        return charge;
+    }
+
+    private void refundQuota(String mciCode, long hids) {
+        if (hidsPerSecond > 0 && hids > 0) {
+            bucketOf(mciCode).refund(hids);
+        }
+    }
+
+    private Ticket awaitTurn(String mciCode, int count) {
+        lock.lock();
+        try {
+            Double lastFinishTag = lastFinishTags.get(mciCode);
+            double startTag = lastFinishTag == null ? virtualTime : Math.max(virtualTime, lastFinishTag);
+            Ticket ticket = new Ticket(startTag, startTag + count / (double) weightOf(mciCode), sequence++);
+            lastFinishTags.put(mciCode, ticket.finishTag);
+            waiting.add(ticket);
+            while (claiming || waiting.peek() != ticket) {
+                try {
+                    turn.await();
+                } catch (InterruptedException e) {
+                    waiting.remove(ticket);
+                    turn.signalAll();
+                    Thread.currentThread().interrupt();
+                    throw new HidGenerationException("Interrupted while waiting to claim HIDs.");
+                }
+            }
+            waiting.poll();
+            claiming = true;
+            virtualTime = Math.max(virtualTime, ticket.startTag);
+            scheduled.incrementAndGet();
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(Ticket ticket) {
+        lock.lock();
+        try {
+            claiming = false;
+            if (waiting.isEmpty()) {
+                virtualTime = Math.max(virtualTime, ticket.finishTag);
+            }
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TokenBucket bucketOf(String mciCode) {
+        TokenBucket bucket = buckets.get(mciCode);
+        if (bucket == null) {
+            int weight = weightOf(mciCode);
+            buckets.putIfAbsent(mciCode, new TokenBucket(burst * weight, hidsPerSecond * weight));
+            bucket = buckets.get(mciCode);
+        }
+        return bucket;
+    }
+
+    private AtomicLong throttledOf(String mciCode) {
+        AtomicLong count = throttled.get(mciCode);
+        if (count == null) {
+            throttled.putIfAbsent(mciCode, new AtomicLong());
+            count = throttled.get(mciCode);
+        }
+        return count;
+    }
+
+    private static class Ticket {
+        private final double startTag;
+        private final double finishTag;
+        private final long sequence;
+
+        private Ticket(double startTag, double finishTag, long sequence) {
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class TokenBucket {
+        private final long capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long refilledAt;
+
+        private TokenBucket(long capacity, double tokensPerSecond) {
+            this.capacity = capacity;
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Takes the tokens, or returns the nanos until there would be enough of them.
+         */
+        private synchronized long take(long count) {
+            refill();
+            if (tokens >= count) {
+                tokens -= count;
+                return 0;
+            }
+            return (long) Math.ceil((count - tokens) / tokensPerNano);
+        }
+
+        private synchronized void refund(long count) {
+            refill();
+            tokens = Math.min(capacity, tokens + count);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Func0;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Hands out nextBlock blocks to MCIs: sized by the block sizer, replayed or recorded by the allocation ledger, within
+ * the quota of the allocation scheduler, from the prefetched HIDs of the MCI or, in fair order with the claims of
+ * other MCIs, claimed by the allocator.
+ */
+@Component
+public class HidAllocationService {
+
+    private final HidAllocationScheduler allocationScheduler;
+    private final HidPrefetchBuffer prefetchBuffer;
+    private final HidAllocationLedger allocationLedger;
+    private final HidBlockSizer blockSizer;
+    private final MciHidAllocator allocator;
+
+    @Autowired
+    public HidAllocationService(HidAllocationScheduler allocationScheduler, HidPrefetchBuffer prefetchBuffer,
+                                HidAllocationLedger allocationLedger, HidBlockSizer blockSizer, MciHidAllocator allocator) {
+        this.allocationScheduler = allocationScheduler;
+        this.prefetchBuffer = prefetchBuffer;
+        this.allocationLedger = allocationLedger;
+        this.blockSizer = blockSizer;
+        this.allocator = allocator;
+    }
+
+    public List<MciHealthId> getNextBlock(final String mciCode, final Integer blockSize) {
+        List<MciHealthId> block = allocationScheduler.admit(mciCode, blockSize, new Func0<List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call() {
+                return prefetchBuffer.take(mciCode, blockSize);
+            }
+        });
+        blockSizer.allocated(mciCode, block.size());
+        return block;
+    }
+
+    /**
+     * Records the block in the allocation ledger under {@code requestId}, so a retry of the request gets the same
+     * block back. Without a request id the block is only recorded in the allocation history and can not be replayed.
+     */
+    public List<MciHealthId> getNextBlock(final String mciCode, final Integer blockSize, String requestId) {
+        if (StringUtils.isBlank(requestId)) {
+            List<MciHealthId> block = getNextBlock(mciCode, blockSize);
+            allocationLedger.record(mciCode, block);
+            return block;
+        }
+        return allocationLedger.replayOrAllocate(mciCode, requestId, new Func0<List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call() {
+                return getNextBlock(mciCode, blockSize);
+            }
+        });
+    }
+
+    /**
+     * The size to allocate for a nextBlock request, the recommended one when the MCI did not ask for a size,
+     * otherwise the asked size up to the largest allowed block.
+     */
+    public int blockSizeFor(String mciCode, Integer requestedBlockSize) {
+        if (requestedBlockSize == null || requestedBlockSize <= 0) {
+            return recommendBlockSize(mciCode);
+        }
+        return Math.min(requestedBlockSize, blockSizer.getMaxBlockSize());
+    }
+
+    public int recommendBlockSize(String mciCode) {
+        return blockSizer.recommend(mciCode);
+    }
+
+    public List<HidAllocationSummary> getAllocationHistory(String mciCode, int limit) {
+        return allocationLedger.history(mciCode, limit);
+    }
+
+    public Observable<Integer> findRemainingHIDs() {
+        return allocator.findRemainingHIDs();
+    }
+
+    public Collection<Metric<?>> getSchedulerMetrics() {
+        return allocationScheduler.metrics();
+    }
+
+    public Collection<Metric<?>> getPrefetchMetrics() {
+        return prefetchBuffer.metrics();
+    }
+}
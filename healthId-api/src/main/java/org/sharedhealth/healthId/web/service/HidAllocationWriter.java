@@ -0,0 +1,200 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.ResultSet;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.functions.Func0;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+
+/**
+ * Writes an allocation as one single partition write per HID, issued in parallel through a write pipeline,
+ * instead of one logged batch spread over every partition of the block.
+ * <p>
+ * An allocation intent is recorded before any of them, and deleted once all of them are written. An allocation
+ * that fails is never handed out, so it is rolled back before the error is raised: the organization rows it wrote
+ * are deleted and its HIDs put back in the pool. An intent left behind, because the rollback failed too or the
+ * node died, belongs to an allocation nobody received, and {@link #reconcile(long)} rolls it back later.
+ * <p>
+ * An allocation {@link #lease leased} for prefetching keeps its intent once written, as the lease of HIDs not handed
+ * out yet. The intent records how many of its HIDs are {@link #handOut handed out}, only the rest are rolled back,
+ * and it is {@link #release released} back to the pool like a failed allocation. HIDs taken off the pool without
+ * being allocated yet, like those of a claimed bucket, are {@link #hold held} under such a lease too.
+ */
+public class HidAllocationWriter {
+    private static final Logger logger = LoggerFactory.getLogger(HidAllocationWriter.class);
+
+    private static final int RECONCILED_HOURS = 3;
+
+    private final HealthIdRepository healthIdRepository;
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final long backoffMillis;
+
+    public HidAllocationWriter(HealthIdRepository healthIdRepository, int maxInFlight, int maxRetries, long backoffMillis) {
+        this.healthIdRepository = healthIdRepository;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Allocates {@code hids} to {@code allocatedFor}, deleting {@code poolHids}, a part of them, from the pool.
+     */
+    public void allocate(String allocatedFor, List<MciHealthId> hids, List<MciHealthId> poolHids) {
+        healthIdRepository.deleteAllocationIntent(lease(allocatedFor, hids, poolHids));
+    }
+
+    /**
+     * Allocates like {@link #allocate} but keeps the intent as the lease of the HIDs, to be handed out or released.
+     */
+    public HidAllocationIntent lease(String allocatedFor, List<MciHealthId> hids, List<MciHealthId> poolHids) {
+        HidAllocationIntent intent = new HidAllocationIntent(timeBased(), allocatedFor, hidsOf(hids), hidsOf(poolHids));
+        healthIdRepository.saveAllocationIntent(intent);
+        HidWritePipeline.Result writes = write(intent);
+        if (writes.getFailed() > 0) {
+            String outcome = rollBack(intent) ? "rolled back" : "left to roll back";
+            throw new HidGenerationException(String.format("%s of %s allocation writes failed, allocation %s is %s",
+                    writes.getFailed(), writes.getFailed() + writes.getSucceeded(), intent.getIntentId(), outcome));
+        }
+        return intent;
+    }
+
+    /**
+     * Records HIDs taken off the pool for {@code heldFor} under a lease, without allocating them. They are allocated
+     * as they are handed out, the lease only puts back those that never are.
+     */
+    public HidAllocationIntent hold(String heldFor, List<MciHealthId> hids) {
+        HidAllocationIntent intent = new HidAllocationIntent(timeBased(), heldFor, hidsOf(hids), Collections.<String>emptyList());
+        healthIdRepository.saveAllocationIntent(intent);
+        return intent;
+    }
+
+    /**
+     * Records that the first {@code handedOut} HIDs of the lease are handed out, and ends it once all of them are.
+     */
+    public Observable<ResultSet> handOut(HidAllocationIntent lease, int handedOut) {
+        if (handedOut >= lease.getHids().size()) {
+            return healthIdRepository.deleteAllocationIntentAsync(lease);
+        }
+        return healthIdRepository.saveAllocationIntentHandedOut(lease, handedOut);
+    }
+
+    /**
+     * Rolls the HIDs of the lease back to the pool, returns whether they all are.
+     */
+    public boolean release(HidAllocationIntent lease) {
+        return rollBack(lease);
+    }
+
+    /**
+     * Rolls back the allocations of the last hours whose intents are older than {@code minAgeMillis}, so those
+     * still being written are left to their writer. Returns the number of allocations rolled back.
+     */
+    public int reconcile(long minAgeMillis) {
+        long now = System.currentTimeMillis();
+        long currentHour = HidAllocationIntent.hourOf(now);
+        int reconciled = 0;
+        for (long hour = currentHour - RECONCILED_HOURS + 1; hour <= currentHour; hour++) {
+            for (HidAllocationIntent intent : healthIdRepository.findAllocationIntents(hour)) {
+                if (now - intent.getCreatedAt() < minAgeMillis) {
+                    continue;
+                }
+                if (rollBack(intent)) {
+                    logger.info(String.format("Rolled back allocation %s of %s HIDs to %s", intent.getIntentId(),
+                            intent.getHids().size(), intent.getAllocatedFor()));
+                    reconciled++;
+                }
+            }
+        }
+        return reconciled;
+    }
+
+    /**
+     * Deletes the organization rows of the allocation, only where they are still the ones it wrote, then puts every
+     * HID of it back in the pool, the ones taken from buckets or a counter too, and deletes the intent once both
+     * are done.
+     */
+    private boolean rollBack(HidAllocationIntent intent) {
+        HidWritePipeline orgDeletes = new HidWritePipeline(maxInFlight, maxRetries, backoffMillis);
+        for (final String hid : intent.getHids()) {
+            final UUID generatedAt = intent.getIntentId();
+            orgDeletes.submit(new Func0<Observable<ResultSet>>() {
+                @Override
+                public Observable<ResultSet> call() {
+                    return healthIdRepository.deleteOrgHealthId(hid, generatedAt);
+                }
+            });
+        }
+        if (!succeeded(intent, orgDeletes.awaitCompletion(), "delete the organization rows")) {
+            return false;
+        }
+        HidWritePipeline poolWrites = new HidWritePipeline(maxInFlight, maxRetries, backoffMillis);
+        for (String hid : intent.getHids()) {
+            final MciHealthId mciHealthId = new MciHealthId(hid);
+            poolWrites.submit(new Func0<Observable<ResultSet>>() {
+                @Override
+                public Observable<ResultSet> call() {
+                    return healthIdRepository.saveMciHealthId(mciHealthId);
+                }
+            });
+        }
+        if (!succeeded(intent, poolWrites.awaitCompletion(), "put the HIDs back in the pool")) {
+            return false;
+        }
+        healthIdRepository.deleteAllocationIntent(intent);
+        return true;
+    }
+
+    private boolean succeeded(HidAllocationIntent intent, HidWritePipeline.Result writes, String step) {
+        if (writes.getFailed() > 0) {
+            logger.warn(String.format("Could not roll back allocation %s, %s writes to %s failed", intent.getIntentId(),
+                    writes.getFailed(), step));
+            return false;
+        }
+        return true;
+    }
+
+    private HidWritePipeline.Result write(HidAllocationIntent intent) {
+        HidWritePipeline writePipeline = new HidWritePipeline(maxInFlight, maxRetries, backoffMillis);
+        UUID generatedAt = intent.getIntentId();
+        for (String hid : intent.getHids()) {
+            final OrgHealthId orgHealthId = new OrgHealthId(hid, intent.getAllocatedFor(), generatedAt);
+            writePipeline.submit(new Func0<Observable<Boolean>>() {
+                @Override
+                public Observable<Boolean> call() {
+                    return healthIdRepository.saveOrUpdateOrgHealthId(orgHealthId);
+                }
+            });
+        }
+        for (String hid : intent.getPoolHids()) {
+            final MciHealthId mciHealthId = new MciHealthId(hid);
+            writePipeline.submit(new Func0<Observable<ResultSet>>() {
+                @Override
+                public Observable<ResultSet> call() {
+                    return healthIdRepository.deleteMciHealthId(mciHealthId);
+                }
+            });
+        }
+        return writePipeline.awaitCompletion();
+    }
+
+    private List<String> hidsOf(List<MciHealthId> mciHealthIds) {
+        List<String> hids = new ArrayList<>(mciHealthIds.size());
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            hids.add(mciHealthId.getHid());
+        }
+        return hids;
+    }
+}
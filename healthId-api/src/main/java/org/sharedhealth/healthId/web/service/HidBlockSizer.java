@@ -0,0 +1,145 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.datastax.driver.core.utils.UUIDs.unixTimestamp;
+
+/**
+ * Sizes nextBlock blocks to last an MCI a target refill interval at its rate of consumption, so busy MCIs call less
+ * often and quiet ones are not left holding HIDs they will not use for hours. An MCI asks for its next block once it
+ * has used up the last one, so the last block divided by the time between the two gives its rate, smoothed over
+ * allocations. The rate of an MCI not seen since start up is replayed from its latest allocations in the ledger.
+ * Without a target refill interval every block is of the default size.
+ */
+@Component
+public class HidBlockSizer {
+    private static final Logger logger = LoggerFactory.getLogger(HidBlockSizer.class);
+
+    static final double SMOOTHING = 0.3;
+    static final int REPLAYED_ALLOCATIONS = 20;
+
+    private final HidAllocationLedger allocationLedger;
+    private final int targetRefillSeconds;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+    private final int defaultBlockSize;
+    private final ConcurrentHashMap<String, Consumption> consumptions = new ConcurrentHashMap<>();
+
+    @Autowired
+    public HidBlockSizer(HidAllocationLedger allocationLedger, HealthIdProperties healthIdProperties) {
+        this(allocationLedger, healthIdProperties.getHidBlockTargetRefillSeconds(), healthIdProperties.getHidBlockMinSize(),
+                healthIdProperties.getHidBlockMaxSize(), healthIdProperties.getHealthIdBlockSize());
+    }
+
+    /**
+     * @param targetRefillSeconds seconds a block should last its MCI, 0 to keep every block at the default size
+     */
+    public HidBlockSizer(HidAllocationLedger allocationLedger, int targetRefillSeconds, int minBlockSize, int maxBlockSize,
+                         int defaultBlockSize) {
+        if (targetRefillSeconds < 0 || minBlockSize < 1 || minBlockSize > maxBlockSize) {
+            throw new IllegalArgumentException(String.format("Invalid block sizing to refill every %s seconds within %s and %s",
+                    targetRefillSeconds, minBlockSize, maxBlockSize));
+        }
+        this.allocationLedger = allocationLedger;
+        this.targetRefillSeconds = targetRefillSeconds;
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.defaultBlockSize = defaultBlockSize;
+    }
+
+    /**
+     * The largest block an MCI may ask for.
+     */
+    public int getMaxBlockSize() {
+        if (targetRefillSeconds == 0) {
+            return defaultBlockSize;
+        }
+        return Math.max(defaultBlockSize, maxBlockSize);
+    }
+
+    public int recommend(String mciCode) {
+        return recommend(mciCode, System.currentTimeMillis());
+    }
+
+    int recommend(String mciCode, long now) {
+        if (targetRefillSeconds == 0) {
+            return defaultBlockSize;
+        }
+        Double hidsPerSecond = consumptionOf(mciCode).hidsPerSecond(now);
+        if (hidsPerSecond == null) {
+            return clamp(defaultBlockSize);
+        }
+        return clamp((long) Math.ceil(hidsPerSecond * targetRefillSeconds));
+    }
+
+    public void allocated(String mciCode, int hids) {
+        allocated(mciCode, hids, System.currentTimeMillis());
+    }
+
+    void allocated(String mciCode, int hids, long allocatedAt) {
+        if (targetRefillSeconds > 0 && hids > 0) {
+            consumptionOf(mciCode).allocated(hids, allocatedAt);
+        }
+    }
+
+    private int clamp(long blockSize) {
+        return (int) Math.max(minBlockSize, Math.min(maxBlockSize, blockSize));
+    }
+
+    private Consumption consumptionOf(String mciCode) {
+        Consumption consumption = consumptions.get(mciCode);
+        if (consumption == null) {
+            consumptions.putIfAbsent(mciCode, replayed(mciCode));
+            consumption = consumptions.get(mciCode);
+        }
+        return consumption;
+    }
+
+    private Consumption replayed(String mciCode) {
+        Consumption consumption = new Consumption();
+        try {
+            List<HidAllocationSummary> history = allocationLedger.history(mciCode, REPLAYED_ALLOCATIONS);
+            for (int i = history.size() - 1; i >= 0; i--) {
+                HidAllocationSummary allocation = history.get(i);
+                consumption.allocated(allocation.getTotalHids(), unixTimestamp(allocation.getAllocatedAt()));
+            }
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Could not replay allocations of %s, sizing its blocks afresh: %s", mciCode, e.getMessage()));
+        }
+        return consumption;
+    }
+
+    private static class Consumption {
+        private Double hidsPerSecond;
+        private long lastAllocatedAt;
+        private int lastHids;
+
+        private synchronized void allocated(int hids, long allocatedAt) {
+            if (lastHids > 0 && allocatedAt > lastAllocatedAt) {
+                double rate = lastHids * (double) TimeUnit.SECONDS.toMillis(1) / (allocatedAt - lastAllocatedAt);
+                hidsPerSecond = hidsPerSecond == null ? rate : SMOOTHING * rate + (1 - SMOOTHING) * hidsPerSecond;
+            }
+            lastAllocatedAt = allocatedAt;
+            lastHids = hids;
+        }
+
+        /**
+         * An MCI that has not come back for a while uses its last block slower than that, whatever its rate was.
+         */
+        private synchronized Double hidsPerSecond(long now) {
+            if (hidsPerSecond == null || now <= lastAllocatedAt) {
+                return hidsPerSecond;
+            }
+            return Math.min(hidsPerSecond, lastHids * (double) TimeUnit.SECONDS.toMillis(1) / (now - lastAllocatedAt));
+        }
+    }
+}
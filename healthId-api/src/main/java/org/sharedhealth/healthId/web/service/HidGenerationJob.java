@@ -0,0 +1,167 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HidGenerationJob implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(HidGenerationJob.class);
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    public interface Task {
+        GeneratedHIDBlock run(HidGenerationProgress progress);
+    }
+
+    private final String id;
+    private final String type;
+    private final Long requestedHIDs;
+    private final Task task;
+    private final HidGenerationProgress progress = new HidGenerationProgress();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final long submittedAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile Long startedAt;
+    private volatile Long finishedAt;
+    private volatile GeneratedHIDBlock result;
+    private volatile String error;
+
+    public HidGenerationJob(String id, String type, Long requestedHIDs, Task task) {
+        this.id = id;
+        this.type = type;
+        this.requestedHIDs = requestedHIDs;
+        this.task = task;
+        this.submittedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Runs the task once, a job always ends finished: an error that escapes the task fails the job and is rethrown.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (status != Status.QUEUED) {
+                return;
+            }
+            status = Status.RUNNING;
+            startedAt = System.currentTimeMillis();
+        }
+        logger.info(String.format("Started %s job %s", type, id));
+        Status finalStatus = Status.FAILED;
+        try {
+            result = task.run(progress);
+            finalStatus = Status.COMPLETED;
+        } catch (RuntimeException e) {
+            logger.error(String.format("%s job %s failed", type, id), e);
+            error = e.getMessage();
+        } catch (Error e) {
+            logger.error(String.format("%s job %s failed", type, id), e);
+            error = e.toString();
+            throw e;
+        } finally {
+            finish(progress.isCancelled() ? Status.CANCELLED : finalStatus);
+        }
+    }
+
+    /**
+     * A queued job is cancelled straight away, a running one stops at the next candidate and keeps what it wrote.
+     */
+    public synchronized boolean cancel() {
+        if (status.isFinished()) {
+            return false;
+        }
+        progress.cancel();
+        if (status == Status.QUEUED) {
+            finish(Status.CANCELLED);
+        }
+        return true;
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    private synchronized void finish(Status finalStatus) {
+        status = finalStatus;
+        finishedAt = System.currentTimeMillis();
+        finished.countDown();
+        logger.info(String.format("%s job %s %s after scanning %s candidates and writing %s HIDs", type, id,
+                finalStatus, progress.getCandidatesScanned(), progress.getHidsWritten()));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Long getRequestedHIDs() {
+        return requestedHIDs;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public HidGenerationProgress getProgress() {
+        return progress;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public Long getStartedAt() {
+        return startedAt;
+    }
+
+    public Long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public GeneratedHIDBlock getResult() {
+        return result;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getElapsedMillis() {
+        if (startedAt == null) {
+            return 0L;
+        }
+        return (finishedAt == null ? System.currentTimeMillis() : finishedAt) - startedAt;
+    }
+
+    public double getHidsPerSecond() {
+        long elapsedMillis = getElapsedMillis();
+        return elapsedMillis == 0 ? 0.0 : progress.getHidsWritten() * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Remaining seconds extrapolated from the completed fraction so far, null until there is something to go by.
+     */
+    public Long getEtaSeconds() {
+        if (status != Status.RUNNING) {
+            return status.isFinished() ? 0L : null;
+        }
+        Double completed = progress.getCompletedFraction();
+        long elapsedMillis = getElapsedMillis();
+        if (completed == null || completed <= 0 || elapsedMillis == 0) {
+            return null;
+        }
+        return Math.round(elapsedMillis * (1 - completed) / completed / 1000.0);
+    }
+}
@@ -0,0 +1,116 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HidGenerationBusyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs HID generation off the request threads on a fixed number of job threads with a bounded queue.
+ * Finished jobs are kept for an hour so their outcome can still be polled.
+ */
+@Component
+public class HidGenerationJobService {
+    private static final Logger logger = LoggerFactory.getLogger(HidGenerationJobService.class);
+
+    private static final long FINISHED_JOB_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, HidGenerationJob> jobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public HidGenerationJobService(HealthIdProperties healthIdProperties) {
+        this(healthIdProperties.getHidGenerationJobThreads(), healthIdProperties.getHidGenerationJobQueueSize());
+    }
+
+    public HidGenerationJobService(int threads, int queueSize) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hid-generation-job-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (HidGenerationJob job : jobs.values()) {
+            job.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    public HidGenerationJob submit(String type, Long requestedHIDs, HidGenerationJob.Task task) {
+        evictFinishedJobs();
+        HidGenerationJob job = new HidGenerationJob(UUID.randomUUID().toString(), type, requestedHIDs, task);
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            throw new HidGenerationBusyException(String.format("%s generation jobs are already queued, try again later.",
+                    executor.getQueue().size()));
+        }
+        logger.info(String.format("Queued %s job %s", type, job.getId()));
+        return job;
+    }
+
+    public HidGenerationJob find(String id) {
+        return jobs.get(id);
+    }
+
+    public HidGenerationJob cancel(String id) {
+        HidGenerationJob job = jobs.get(id);
+        if (job != null && job.cancel()) {
+            executor.remove(job);
+            logger.info(String.format("Cancelled %s job %s", job.getType(), id));
+        }
+        return job;
+    }
+
+    /**
+     * Cancels every job not finished yet and waits up to {@code timeout} for the running ones to stop.
+     * Returns whether they all did.
+     */
+    public boolean cancelAll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (HidGenerationJob job : jobs.values()) {
+            cancel(job.getId());
+        }
+        for (HidGenerationJob job : jobs.values()) {
+            if (!job.await(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void evictFinishedJobs() {
+        long evictBefore = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MILLIS;
+        Iterator<HidGenerationJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            HidGenerationJob job = iterator.next();
+            if (job.getStatus().isFinished() && job.getFinishedAt() < evictBefore) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.sharedhealth.healthId.web.service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of a running generation, updated by the generation workers and the write pipeline.
+ * Generation stops at the next candidate once {@link #cancel()} is called.
+ */
+public class HidGenerationProgress {
+
+    private final LongAdder candidatesScanned = new LongAdder();
+    private final LongAdder hidsWritten = new LongAdder();
+    private volatile long totalCandidates;
+    private volatile long targetHIDs;
+    private volatile boolean cancelled;
+
+    public void scanned(long candidates) {
+        candidatesScanned.add(candidates);
+    }
+
+    public void written(long hids) {
+        hidsWritten.add(hids);
+    }
+
+    public long getCandidatesScanned() {
+        return candidatesScanned.sum();
+    }
+
+    public long getHidsWritten() {
+        return hidsWritten.sum();
+    }
+
+    public long getTotalCandidates() {
+        return totalCandidates;
+    }
+
+    public void setTotalCandidates(long totalCandidates) {
+        this.totalCandidates = totalCandidates;
+    }
+
+    public long getTargetHIDs() {
+        return targetHIDs;
+    }
+
+    public void setTargetHIDs(long targetHIDs) {
+        this.targetHIDs = targetHIDs;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Fraction of the work done, from the scanned candidates when the range is known or the written HIDs when
+     * only the number of HIDs asked for is known. Null when neither is known.
+     */
+    public Double getCompletedFraction() {
+        if (totalCandidates > 0) {
+            return Math.min(1.0, (double) getCandidatesScanned() / totalCandidates);
+        }
+        if (targetHIDs > 0) {
+            return Math.min(1.0, (double) getHidsWritten() / targetHIDs);
+        }
+        return null;
+    }
+}
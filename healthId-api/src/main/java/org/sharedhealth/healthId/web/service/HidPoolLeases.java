@@ -0,0 +1,154 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the token ring of the pool table into disjoint ranges and only reads the pool from ranges this node holds
+ * a lease on, so several API nodes never read the same HIDs. A lease is taken with a lightweight transaction and
+ * expires after its TTL unless renewed, so the ranges of a node that goes away are picked up by the others.
+ * <p>
+ * A lease is renewed once a third of its TTL has passed and is only used while renewed, so a node has to stall for
+ * the rest of the TTL between a renewal and its write before another node can read the same range.
+ * Not thread safe, callers serialise their claims.
+ */
+public class HidPoolLeases {
+    private static final Logger logger = LoggerFactory.getLogger(HidPoolLeases.class);
+
+    private final HealthIdRepository healthIdRepository;
+    private final HidPoolScanner poolScanner;
+    private final String nodeId;
+    private final int ttlSeconds;
+    private final long[] fromTokens;
+    private final long[] toTokens;
+    private final Map<Integer, Long> heldSince = new LinkedHashMap<>();
+    private final Map<Integer, Long> skippedUntil = new HashMap<>();
+    private final Random random = new Random();
+
+    public HidPoolLeases(HealthIdRepository healthIdRepository, HidPoolScanner poolScanner, String nodeId, int ranges,
+                         int ttlSeconds) {
+        if (ranges < 1 || ttlSeconds < 1) {
+            throw new IllegalArgumentException(String.format("Can not lease %s ranges for %s seconds", ranges, ttlSeconds));
+        }
+        this.healthIdRepository = healthIdRepository;
+        this.poolScanner = poolScanner;
+        this.nodeId = nodeId;
+        this.ttlSeconds = ttlSeconds;
+        this.fromTokens = new long[ranges];
+        this.toTokens = new long[ranges];
+        BigInteger ringSize = BigInteger.ONE.shiftLeft(64);
+        BigInteger minToken = BigInteger.valueOf(Long.MIN_VALUE);
+        for (int rangeNo = 0; rangeNo < ranges; rangeNo++) {
+            fromTokens[rangeNo] = minToken.add(ringSize.multiply(BigInteger.valueOf(rangeNo)).divide(BigInteger.valueOf(ranges))).longValue();
+        }
+        for (int rangeNo = 0; rangeNo < ranges - 1; rangeNo++) {
+            toTokens[rangeNo] = fromTokens[rangeNo + 1] - 1;
+        }
+        toTokens[ranges - 1] = Long.MAX_VALUE;
+    }
+
+    /**
+     * Reads up to {@code blockSize} HIDs from the ranges leased by this node, leasing more ranges as the held ones
+     * run dry. Returns fewer when every other range is leased by other nodes or empty.
+     */
+    public List<MciHealthId> nextBlock(int blockSize) {
+        List<MciHealthId> hids = new ArrayList<>();
+        while (hids.size() < blockSize) {
+            Integer rangeNo = heldRange();
+            if (rangeNo == null && (rangeNo = leaseRange()) == null) {
+                break;
+            }
+            int missing = blockSize - hids.size();
+            List<MciHealthId> fromRange = poolScanner.nextBlock(cursorOf(rangeNo), fromTokens[rangeNo], toTokens[rangeNo], missing);
+            hids.addAll(fromRange);
+            if (fromRange.size() < missing) {
+                logger.debug(String.format("Pool range %s is empty, releasing its lease", rangeNo));
+                release(rangeNo);
+            }
+        }
+        return hids;
+    }
+
+    public void releaseAll() {
+        for (Integer rangeNo : new ArrayList<>(heldSince.keySet())) {
+            release(rangeNo);
+        }
+    }
+
+    public int getRanges() {
+        return fromTokens.length;
+    }
+
+    public long getFromToken(int rangeNo) {
+        return fromTokens[rangeNo];
+    }
+
+    public long getToToken(int rangeNo) {
+        return toTokens[rangeNo];
+    }
+
+    /**
+     * Each range keeps its own cursor, named after the number of ranges so a different split starts afresh.
+     */
+    String cursorOf(int rangeNo) {
+        return String.format("range-%s-of-%s", rangeNo, fromTokens.length);
+    }
+
+    private Integer heldRange() {
+        long now = System.currentTimeMillis();
+        for (Integer rangeNo : new ArrayList<>(heldSince.keySet())) {
+            if (now - heldSince.get(rangeNo) < TimeUnit.SECONDS.toMillis(ttlSeconds) / 3) {
+                return rangeNo;
+            }
+            if (healthIdRepository.renewPoolLease(rangeNo, nodeId, ttlSeconds)) {
+                heldSince.put(rangeNo, now);
+                return rangeNo;
+            }
+            logger.warn(String.format("Lease on pool range %s was lost to another node", rangeNo));
+            heldSince.remove(rangeNo);
+            skip(rangeNo, now);
+        }
+        return null;
+    }
+
+    private Integer leaseRange() {
+        long now = System.currentTimeMillis();
+        int ranges = fromTokens.length;
+        int first = random.nextInt(ranges);
+        for (int offset = 0; offset < ranges; offset++) {
+            int rangeNo = (first + offset) % ranges;
+            Long skipped = skippedUntil.get(rangeNo);
+            if (heldSince.containsKey(rangeNo) || (skipped != null && skipped > now)) {
+                continue;
+            }
+            if (healthIdRepository.acquirePoolLease(rangeNo, nodeId, ttlSeconds)) {
+                heldSince.put(rangeNo, now);
+                skippedUntil.remove(rangeNo);
+                return rangeNo;
+            }
+            skip(rangeNo, now);
+        }
+        return null;
+    }
+
+    private void release(int rangeNo) {
+        heldSince.remove(rangeNo);
+        skip(rangeNo, System.currentTimeMillis());
+        healthIdRepository.releasePoolLease(rangeNo, nodeId);
+    }
+
+    private void skip(int rangeNo, long now) {
+        skippedUntil.put(rangeNo, now + TimeUnit.SECONDS.toMillis(ttlSeconds) / 2);
+    }
+}
@@ -0,0 +1,43 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.HidPoolPage;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the pool on from a persisted token cursor rather than from the start of the token ring. Handed out HIDs are
+ * deleted, so the start of the ring fills up with tombstones every read from there would have to step over, while
+ * the cursor keeps them behind it. When the rest of the range comes up short the read wraps to the start of the range
+ * and picks up HIDs generated since, so a range is only stepped over in full once it is drained.
+ */
+public class HidPoolScanner {
+    public static final String POOL_CURSOR = "pool";
+
+    private final HealthIdRepository healthIdRepository;
+
+    public HidPoolScanner(HealthIdRepository healthIdRepository) {
+        this.healthIdRepository = healthIdRepository;
+    }
+
+    public List<MciHealthId> nextBlock(String cursorId, long fromToken, long toToken, int blockSize) {
+        Long savedCursor = healthIdRepository.getPoolCursor(cursorId);
+        long cursor = savedCursor == null || savedCursor < fromToken || savedCursor > toToken ? fromToken : savedCursor;
+        HidPoolPage page = healthIdRepository.getPoolPage(blockSize, cursor, toToken);
+        List<MciHealthId> hids = new ArrayList<>(page.getHids());
+        Long nextCursor = page.getLastToken();
+        if (hids.size() < blockSize && cursor > fromToken) {
+            HidPoolPage wrapped = healthIdRepository.getPoolPage(blockSize - hids.size(), fromToken, cursor - 1);
+            hids.addAll(wrapped.getHids());
+            if (wrapped.getLastToken() != null) {
+                nextCursor = wrapped.getLastToken();
+            }
+        }
+        if (nextCursor != null && !nextCursor.equals(savedCursor)) {
+            healthIdRepository.savePoolCursor(cursorId, nextCursor);
+        }
+        return hids;
+    }
+}
@@ -0,0 +1,489 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.Observer;
+import rx.functions.Func0;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps HIDs already claimed for an MCI in memory so blocks are handed out without waiting on the pool.
+ * Requests drain a lock-free queue per MCI, and once a queue drops to the low water mark a background thread
+ * claims blocks until it is back at the high water mark. A request the queue can not fully answer claims the rest
+ * itself. With a high water mark of 0 nothing is prefetched and every request claims its block itself.
+ * <p>
+ * Buffered HIDs are saved for the MCI when claimed, but under a lease: the allocation intent of their claim. The
+ * HIDs of a lease are queued in order, so those handed out are always its first ones, and their count is recorded
+ * on the intent in the background, one small write at a time per lease, without holding up the request. The HIDs
+ * of a lease not handed out are rolled back to the pool at shutdown and once the lease expires, and the leases of a
+ * node that died are rolled back by the allocation reconciler once older than a lease, so buffered HIDs are never
+ * stranded.
+ */
+@Component
+public class HidPrefetchBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(HidPrefetchBuffer.class);
+
+    // the allocation reconciler rolls leases back a minute after they expire, expired ones are released before
+    private static final long RELEASE_GRACE_MILLIS = 30000L;
+    // an expired lease is released once the requests that took from it before it expired are done
+    private static final long HAND_OUT_SETTLE_MILLIS = 1000L;
+    private static final int MAX_HAND_OUT_RETRIES = 3;
+    private static final long SHUTDOWN_WAIT_SECONDS = 10L;
+
+    public interface Claimer {
+        /**
+         * Claims up to {@code count} HIDs for the MCI, throws {@link HealthIdExhaustedException} when none are left.
+         */
+        List<MciHealthId> claim(String mciCode, int count);
+
+        /**
+         * Claims like {@link #claim} and keeps the allocation intent of the HIDs as their lease.
+         */
+        HidAllocationIntent lease(String mciCode, int count);
+
+        /**
+         * Records that the first {@code handedOut} HIDs of the lease are handed out, and ends it once all of them are.
+         */
+        Observable<?> handOut(HidAllocationIntent lease, int handedOut);
+
+        /**
+         * Rolls the HIDs of the lease back to the pool, returns whether they all are.
+         */
+        boolean release(HidAllocationIntent lease);
+    }
+
+    private final Claimer claimer;
+    private final int lowWaterMark;
+    private final int highWaterMark;
+    private final int refillBlockSize;
+    private final long leaseMillis;
+    private final ScheduledExecutorService refiller;
+    private final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refilledHIDs = new AtomicLong();
+    private final AtomicLong servedHIDs = new AtomicLong();
+    private final AtomicLong releasedHIDs = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Claims from the allocator in turn with the claims of the other MCIs, so taking HIDs already buffered never
+     * waits on them.
+     */
+    @Autowired
+    public HidPrefetchBuffer(HealthIdProperties healthIdProperties, MciHidAllocator allocator,
+                             HidAllocationScheduler allocationScheduler) {
+        this(inTurn(allocationScheduler, allocator), healthIdProperties.getHidPrefetchLowWaterMark(),
+                healthIdProperties.getHidPrefetchHighWaterMark(), healthIdProperties.getHealthIdBlockSize(),
+                TimeUnit.SECONDS.toMillis(healthIdProperties.getHidPrefetchLeaseSeconds()));
+    }
+
+    public HidPrefetchBuffer(Claimer claimer, int lowWaterMark, int highWaterMark, int refillBlockSize, long leaseMillis) {
+        if (lowWaterMark < 0 || lowWaterMark > highWaterMark || refillBlockSize < 1 || leaseMillis < 1) {
+            throw new IllegalArgumentException(String.format("Invalid prefetch water marks %s and %s with blocks of %s leased for %s ms",
+                    lowWaterMark, highWaterMark, refillBlockSize, leaseMillis));
+        }
+        this.claimer = claimer;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.refillBlockSize = refillBlockSize;
+        this.leaseMillis = leaseMillis;
+        this.refiller = highWaterMark == 0 ? null : newRefiller();
+        if (refiller != null) {
+            long sweepMillis = Math.max(1, Math.min(leaseMillis, RELEASE_GRACE_MILLIS) / 2);
+            refiller.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    releaseExpired();
+                }
+            }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Claimer inTurn(final HidAllocationScheduler allocationScheduler, final Claimer claimer) {
+        return new Claimer() {
+            @Override
+            public List<MciHealthId> claim(final String mciCode, final int count) {
+                return allocationScheduler.inTurn(mciCode, count, new Func0<List<MciHealthId>>() {
+                    @Override
+                    public List<MciHealthId> call() {
+                        return claimer.claim(mciCode, count);
+                    }
+                });
+            }
+
+            @Override
+            public HidAllocationIntent lease(final String mciCode, final int count) {
+                return allocationScheduler.inTurn(mciCode, count, new Func0<HidAllocationIntent>() {
+                    @Override
+                    public HidAllocationIntent call() {
+                        return claimer.lease(mciCode, count);
+                    }
+                });
+            }
+
+            @Override
+            public Observable<?> handOut(HidAllocationIntent lease, int handedOut) {
+                return claimer.handOut(lease, handedOut);
+            }
+
+            @Override
+            public boolean release(HidAllocationIntent lease) {
+                return claimer.release(lease);
+            }
+        };
+    }
+
+    private static ScheduledExecutorService newRefiller() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hid-prefetch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public List<MciHealthId> take(String mciCode, int count) {
+        if (refiller == null) {
+            return claimer.claim(mciCode, count);
+        }
+        Buffer buffer = bufferOf(mciCode);
+        List<MciHealthId> hids = takeLeased(mciCode, buffer, count);
+        if (hids.size() < count) {
+            misses.incrementAndGet();
+            try {
+                hids.addAll(claimer.claim(mciCode, count - hids.size()));
+            } catch (HealthIdExhaustedException e) {
+                if (hids.isEmpty()) {
+                    throw e;
+                }
+            }
+        }
+        servedHIDs.addAndGet(hids.size());
+        refillIfLow(mciCode, buffer);
+        return hids;
+    }
+
+    public int getBuffered(String mciCode) {
+        Buffer buffer = buffers.get(mciCode);
+        return buffer == null ? 0 : buffer.size.get();
+    }
+
+    public Collection<Metric<?>> metrics() {
+        if (refiller == null) {
+            return Collections.emptyList();
+        }
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        long buffered = 0;
+        for (Map.Entry<String, Buffer> entry : buffers.entrySet()) {
+            int size = entry.getValue().size.get();
+            buffered += size;
+            metrics.add(new Metric<>("hid.prefetch.buffered." + entry.getKey(), size));
+        }
+        metrics.add(new Metric<>("hid.prefetch.buffered", buffered));
+        metrics.add(new Metric<>("hid.prefetch.lowWaterMark", lowWaterMark));
+        metrics.add(new Metric<>("hid.prefetch.highWaterMark", highWaterMark));
+        metrics.add(new Metric<>("hid.prefetch.refills", refills.get()));
+        metrics.add(new Metric<>("hid.prefetch.refilledHIDs", refilledHIDs.get()));
+        metrics.add(new Metric<>("hid.prefetch.servedHIDs", servedHIDs.get()));
+        metrics.add(new Metric<>("hid.prefetch.releasedHIDs", releasedHIDs.get()));
+        metrics.add(new Metric<>("hid.prefetch.misses", misses.get()));
+        return metrics;
+    }
+
+    /**
+     * Stops refilling and rolls every buffered HID back to the pool, a refill still claiming is waited for first.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (refiller == null) {
+            return;
+        }
+        refiller.shutdownNow();
+        try {
+            refiller.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Buffer> entry : buffers.entrySet()) {
+            Buffer buffer = entry.getValue();
+            while (buffer.queue.poll() != null) {
+                buffer.size.decrementAndGet();
+            }
+            List<Lease> leases = new ArrayList<>();
+            Lease lease;
+            while ((lease = buffer.leases.poll()) != null) {
+                leases.add(lease);
+            }
+            release(entry.getKey(), leases, now);
+        }
+    }
+
+    private Buffer bufferOf(String mciCode) {
+        Buffer buffer = buffers.get(mciCode);
+        if (buffer == null) {
+            buffers.putIfAbsent(mciCode, new Buffer());
+            buffer = buffers.get(mciCode);
+        }
+        return buffer;
+    }
+
+    /**
+     * Polls HIDs of unexpired leases off the queue, without waiting on anything, and records in the background how
+     * many HIDs of each lease are handed out.
+     */
+    private List<MciHealthId> takeLeased(String mciCode, Buffer buffer, int count) {
+        List<MciHealthId> hids = new ArrayList<>(count);
+        long now = System.currentTimeMillis();
+        Lease lastLease = null;
+        LeasedHid leased;
+        while (hids.size() < count && (leased = buffer.queue.poll()) != null) {
+            buffer.size.decrementAndGet();
+            if (now >= leased.lease.expiresAt) {
+                continue;
+            }
+            hids.add(leased.hid);
+            leased.lease.handedOutTo(leased.index + 1);
+            if (leased.lease != lastLease) {
+                if (lastLease != null) {
+                    recordHandOut(mciCode, lastLease);
+                }
+                lastLease = leased.lease;
+            }
+        }
+        if (lastLease != null) {
+            recordHandOut(mciCode, lastLease);
+        }
+        return hids;
+    }
+
+    /**
+     * Writes the count of HIDs handed out of the lease, one write at a time per lease and each with the latest count,
+     * so the counts written never go back.
+     */
+    private void recordHandOut(final String mciCode, final Lease lease) {
+        if (!lease.recording.compareAndSet(false, true)) {
+            return;
+        }
+        final int handedOut = lease.handedOut.get();
+        Observer<Object> recorded = new Observer<Object>() {
+            @Override
+            public void onCompleted() {
+                lease.recorded = handedOut;
+                lease.failedRecords = 0;
+                next();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                lease.failedRecords++;
+                logger.error(String.format("Could not record %s prefetched HIDs of %s as handed out", handedOut, mciCode), e);
+                next();
+            }
+
+            @Override
+            public void onNext(Object result) {
+            }
+
+            private void next() {
+                lease.recording.set(false);
+                if (lease.handedOut.get() > lease.recorded && lease.failedRecords <= MAX_HAND_OUT_RETRIES) {
+                    recordHandOut(mciCode, lease);
+                }
+            }
+        };
+        try {
+            claimer.handOut(lease.intent, handedOut).subscribe(recorded);
+        } catch (RuntimeException e) {
+            recorded.onError(e);
+        }
+    }
+
+    /**
+     * Drops the expired HIDs at the head of each queue, they were queued in the order their leases expire, and
+     * releases the expired leases. Leases handed out in full are ended by the record of their last hand out.
+     */
+    private void releaseExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Buffer> entry : buffers.entrySet()) {
+            Buffer buffer = entry.getValue();
+            LeasedHid head;
+            while ((head = buffer.queue.peek()) != null && now >= head.lease.expiresAt) {
+                if (buffer.queue.remove(head)) {
+                    buffer.size.decrementAndGet();
+                }
+            }
+            List<Lease> expired = new ArrayList<>();
+            for (Lease lease : buffer.leases) {
+                if (lease.handedOut.get() == lease.hids.size()) {
+                    buffer.leases.remove(lease);
+                } else if (now >= lease.expiresAt + HAND_OUT_SETTLE_MILLIS && buffer.leases.remove(lease)) {
+                    expired.add(lease);
+                }
+            }
+            release(entry.getKey(), expired, now);
+        }
+    }
+
+    /**
+     * Rolls the HIDs left in the leases back to the pool, except for leases the allocation reconciler may be rolling
+     * back already.
+     */
+    private void release(String mciCode, List<Lease> leases, long now) {
+        int released = 0;
+        int left = 0;
+        for (Lease lease : leases) {
+            List<MciHealthId> rest = lease.hids.subList(lease.handedOut.get(), lease.hids.size());
+            if (rest.isEmpty()) {
+                continue;
+            }
+            if (now <= lease.expiresAt + RELEASE_GRACE_MILLIS && release(mciCode, lease.intent.withHids(hidsOf(rest)))) {
+                released += rest.size();
+            } else {
+                left += rest.size();
+            }
+        }
+        releasedHIDs.addAndGet(released);
+        if (released > 0) {
+            logger.info(String.format("Released %s prefetched HIDs of %s back to the pool", released, mciCode));
+        }
+        if (left > 0) {
+            logger.warn(String.format("%s prefetched HIDs of %s are left to the allocation reconciler", left, mciCode));
+        }
+    }
+
+    private boolean release(String mciCode, HidAllocationIntent lease) {
+        try {
+            return claimer.release(lease);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Could not release prefetched HIDs of %s", mciCode), e);
+            return false;
+        }
+    }
+
+    private void refillIfLow(final String mciCode, final Buffer buffer) {
+        if (buffer.size.get() > lowWaterMark || !buffer.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refiller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refill(mciCode, buffer);
+                    } finally {
+                        buffer.refilling.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            buffer.refilling.set(false);
+        }
+    }
+
+    private void refill(String mciCode, Buffer buffer) {
+        try {
+            int missing;
+            while ((missing = highWaterMark - buffer.size.get()) > 0 && !Thread.currentThread().isInterrupted()) {
+                HidAllocationIntent intent = claimer.lease(mciCode, Math.min(missing, refillBlockSize));
+                Lease lease = new Lease(intent, mciHealthIdsOf(intent.getHids()), intent.getCreatedAt() + leaseMillis);
+                buffer.leases.add(lease);
+                for (int index = 0; index < lease.hids.size(); index++) {
+                    buffer.queue.add(new LeasedHid(lease, index));
+                }
+                buffer.size.addAndGet(lease.hids.size());
+                refills.incrementAndGet();
+                refilledHIDs.addAndGet(lease.hids.size());
+            }
+        } catch (HealthIdExhaustedException e) {
+            logger.warn(String.format("No HIDs left to prefetch for %s", mciCode));
+        } catch (RuntimeException e) {
+            logger.error(String.format("Could not prefetch HIDs for %s", mciCode), e);
+        }
+    }
+
+    private static List<String> hidsOf(List<MciHealthId> mciHealthIds) {
+        List<String> hids = new ArrayList<>(mciHealthIds.size());
+        for (MciHealthId mciHealthId : mciHealthIds) {
+            hids.add(mciHealthId.getHid());
+        }
+        return hids;
+    }
+
+    private static List<MciHealthId> mciHealthIdsOf(List<String> hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>(hids.size());
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return mciHealthIds;
+    }
+
+    private static class Buffer {
+        private final ConcurrentLinkedQueue<LeasedHid> queue = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Lease> leases = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+    }
+
+    private static class Lease {
+        private final HidAllocationIntent intent;
+        private final List<MciHealthId> hids;
+        private final long expiresAt;
+        private final AtomicInteger handedOut = new AtomicInteger();
+        private final AtomicBoolean recording = new AtomicBoolean();
+        // written by one record at a time
+        private volatile int recorded;
+        private volatile int failedRecords;
+
+        private Lease(HidAllocationIntent intent, List<MciHealthId> hids, long expiresAt) {
+            this.intent = intent;
+            this.hids = hids;
+            this.expiresAt = expiresAt;
+        }
+
+        private void handedOutTo(int count) {
+            int current;
+            while ((current = handedOut.get()) < count && !handedOut.compareAndSet(current, count)) {
+            }
+        }
+    }
+
+    private static class LeasedHid {
+        private final Lease lease;
+        private final int index;
+        private final MciHealthId hid;
+
+        private LeasedHid(Lease lease, int index) {
+            this.lease = lease;
+            this.index = index;
+            this.hid = lease.hids.get(index);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.google.common.math.LongMath;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.utils.ChecksumGenerator;
+import org.sharedhealth.healthId.web.utils.CompiledHidValidator;
+import org.sharedhealth.healthId.web.utils.HidCounter;
+import org.sharedhealth.healthId.web.utils.HidValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * The arithmetic of HID series shared by generation and allocation: which series a candidate is in, how many valid
+ * HIDs a part of it holds, the nth of them and their check digits, for the MCI and the organization HID patterns.
+ */
+@Component
+public class HidSeries {
+    private static final int DIGITS_FOR_BLOCK_SEPARATION = 2;
+    private static final long INDEX_BUILD_PARTITION_WORDS = 4096;
+
+    private final ChecksumGenerator checksumGenerator;
+    private final GeneratedHidBlockService generatedHidBlockService;
+    private final HidValidator mciHidValidator;
+    private final HidValidator orgHidValidator;
+    private final HidCounter mciHidCounter;
+    private final HidCounter orgHidCounter;
+    private final ParallelHidGenerator indexBuilder;
+    private final HidValidityIndexes mciValidityIndexes;
+    private final HidValidityIndexes orgValidityIndexes;
+
+    @Autowired
+    public HidSeries(HealthIdProperties healthIdProperties, ChecksumGenerator checksumGenerator,
+                     GeneratedHidBlockService generatedHidBlockService) {
+        this.checksumGenerator = checksumGenerator;
+        this.generatedHidBlockService = generatedHidBlockService;
+        this.mciHidValidator = CompiledHidValidator.compile(healthIdProperties.getMciInvalidHidPattern());
+        this.orgHidValidator = CompiledHidValidator.compile(healthIdProperties.getOtherOrgInvalidHidPattern());
+        this.mciHidCounter = HidCounter.of(mciHidValidator);
+        this.orgHidCounter = HidCounter.of(orgHidValidator);
+        this.indexBuilder = new ParallelHidGenerator(healthIdProperties.getHidGenerationParallelism(), INDEX_BUILD_PARTITION_WORDS);
+        this.mciValidityIndexes = new HidValidityIndexes("mci", healthIdProperties.getMciInvalidHidPattern(), mciHidValidator,
+                healthIdProperties.getHidValidityIndexPath(), indexBuilder);
+        this.orgValidityIndexes = new HidValidityIndexes("org", healthIdProperties.getOtherOrgInvalidHidPattern(), orgHidValidator,
+                healthIdProperties.getHidValidityIndexPath(), indexBuilder);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        indexBuilder.shutdown();
+    }
+
+    public HidValidator getMciHidValidator() {
+        return mciHidValidator;
+    }
+
+    public long seriesNoOf(long candidate) {
+        String candidateAsText = String.valueOf(candidate);
+        String prefix = candidateAsText.substring(0, DIGITS_FOR_BLOCK_SEPARATION);
+        String suffix = candidateAsText.substring(DIGITS_FOR_BLOCK_SEPARATION, candidateAsText.length());
+        return Long.parseLong(prefix + suffix.replaceAll(".", "0"));
+    }
+
+    public long sizeOf(long seriesNo) {
+        return LongMath.pow(10, String.valueOf(seriesNo).length() - DIGITS_FOR_BLOCK_SEPARATION);
+    }
+
+    public long endOf(long seriesNo) {
+        return seriesNo + sizeOf(seriesNo) - 1;
+    }
+
+    /**
+     * Number of valid HIDs from {@code from} to the end of the series, counted from the digit rules of the pattern,
+     * or with the validity index of the series for patterns that can not be compiled to digit rules.
+     */
+    public long countValidFrom(boolean forMci, long seriesNo, long from) {
+        HidCounter counter = forMci ? mciHidCounter : orgHidCounter;
+        if (counter != null) {
+            return counter.count(from, endOf(seriesNo));
+        }
+        return validityIndexOf(forMci, seriesNo).countValidFrom(from);
+    }
+
+    /**
+     * Number of valid HIDs from {@code from} to {@code to} of the series.
+     */
+    public long countValid(boolean forMci, long seriesNo, long from, long to) {
+        long valid = countValidFrom(forMci, seriesNo, from);
+        return to < endOf(seriesNo) ? valid - countValidFrom(forMci, seriesNo, to + 1) : valid;
+    }
+
+    /**
+     * The {@code n}th valid HID of the series from {@code from} on, counting from zero. There have to be that many.
+     */
+    public long nthValidFrom(boolean forMci, long seriesNo, long from, long n) {
+        HidCounter counter = forMci ? mciHidCounter : orgHidCounter;
+        if (counter != null) {
+            return counter.nthValidFrom(from, n);
+        }
+        return validityIndexOf(forMci, seriesNo).lastOfValid(from, n + 1);
+    }
+
+    HidValidityIndex validityIndexOf(boolean forMci, long seriesNo) {
+        return (forMci ? mciValidityIndexes : orgValidityIndexes).forSeries(seriesNo, sizeOf(seriesNo));
+    }
+
+    /**
+     * The first candidate after every generated block and every reserved range of the series.
+     */
+    public long startAfter(long seriesNo, Long reservedTo) {
+        Long endsAt = generatedHidBlockService.getSeriesEndsAt(seriesNo);
+        long start = endsAt == null ? seriesNo : endsAt + 1;
+        return reservedTo == null ? start : Math.max(start, reservedTo + 1);
+    }
+
+    /**
+     * The HID of a candidate, the candidate followed by its check digit.
+     */
+    public String hidOf(long candidate) {
+        return String.valueOf(candidate) + checksumFor(candidate);
+    }
+
+    /**
+     * The check digit is computed over the candidate without its leading digit.
+     */
+    public int checksumFor(long candidate) {
+        long leadingDigitUnit = leadingDigitUnit(candidate);
+        return checksumGenerator.generate(candidate % leadingDigitUnit, codeLength(leadingDigitUnit));
+    }
+
+    static long leadingDigitUnit(long candidate) {
+        long unit = 1L;
+        while (candidate / unit >= 10) {
+            unit *= 10;
+        }
+        return unit;
+    }
+
+    static int codeLength(long leadingDigitUnit) {
+        int digits = 0;
+        for (long unit = leadingDigitUnit; unit > 1; unit /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,201 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.utils.HidValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * One bit per candidate of a series telling whether it is a valid HID, with the number of valid HIDs before every
+ * few words kept alongside so counting the valid HIDs after a candidate takes a constant number of word reads.
+ * When a file is given the bits are kept in it memory mapped, built once and only mapped on later loads.
+ */
+class HidValidityIndex {
+    private static final Logger logger = LoggerFactory.getLogger(HidValidityIndex.class);
+
+    private static final int WORDS_PER_RANK = 8;
+
+    private final long first;
+    private final long size;
+    private final LongBuffer words;
+    private final long[] ranks;
+    private final long totalValid;
+
+    private HidValidityIndex(long first, long size, LongBuffer words) {
+        this.first = first;
+        this.size = size;
+        this.words = words;
+        int wordCount = words.capacity();
+        this.ranks = new long[(wordCount + WORDS_PER_RANK - 1) / WORDS_PER_RANK + 1];
+        long valid = 0L;
+        for (int word = 0; word < wordCount; word++) {
+            if (word % WORDS_PER_RANK == 0) {
+                ranks[word / WORDS_PER_RANK] = valid;
+            }
+            valid += Long.bitCount(words.get(word));
+        }
+        ranks[ranks.length - 1] = valid;
+        this.totalValid = valid;
+    }
+
+    /**
+     * Loads the index of the {@code size} candidates starting at {@code first} from {@code file}, building and saving
+     * it first when the file does not exist. With no file the index is built in memory.
+     */
+    static HidValidityIndex load(long first, long size, HidValidator validator, File file,
+                                 ParallelHidGenerator builder) throws IOException {
+        long byteSize = wordCount(size) * 8;
+        if (file == null) {
+            ByteBuffer bytes = ByteBuffer.allocateDirect((int) byteSize);
+            build(first, size, validator, bytes.asLongBuffer(), builder);
+            return new HidValidityIndex(first, size, bytes.asLongBuffer());
+        }
+        if (!file.exists() || file.length() != byteSize) {
+            File partFile = new File(file.getPath() + ".part");
+            long startedAt = System.currentTimeMillis();
+            try (FileChannel channel = FileChannel.open(partFile.toPath(), CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_WRITE, 0, byteSize);
+                build(first, size, validator, bytes.asLongBuffer(), builder);
+                bytes.force();
+            }
+            Files.move(partFile.toPath(), file.toPath(), ATOMIC_MOVE);
+            logger.info(String.format("Built HID validity index %s for %s candidates in %s ms", file.getAbsolutePath(),
+                    size, System.currentTimeMillis() - startedAt));
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            return new HidValidityIndex(first, size, channel.map(FileChannel.MapMode.READ_ONLY, 0, byteSize).asLongBuffer());
+        }
+    }
+
+    /**
+     * Every word is filled by exactly one task, so the tasks never touch the same bytes.
+     */
+    private static void build(final long first, final long size, final HidValidator validator,
+                              final LongBuffer words, ParallelHidGenerator builder) {
+        builder.generate(0, wordCount(size) - 1, new ParallelHidGenerator.RangeHandler() {
+            @Override
+            public long handle(long fromWord, long toWord) {
+                for (long word = fromWord; word <= toWord; word++) {
+                    long bits = 0L;
+                    long offset = word * 64;
+                    for (int bit = 0; bit < 64 && offset + bit < size; bit++) {
+                        if (validator.isValid(first + offset + bit)) {
+                            bits |= 1L << bit;
+                        }
+                    }
+                    words.put((int) word, bits);
+                }
+                return toWord - fromWord + 1;
+            }
+        });
+    }
+
+    boolean isValid(long candidate) {
+        long offset = candidate - first;
+        return offset >= 0 && offset < size && (words.get((int) (offset >>> 6)) & (1L << offset)) != 0;
+    }
+
+    /**
+     * The first valid HID from {@code candidate} on, or -1 when none is left in the series.
+     */
+    long nextValid(long candidate) {
+        long offset = Math.max(0L, candidate - first);
+        if (offset >= size) {
+            return -1L;
+        }
+        int word = (int) (offset >>> 6);
+        long bits = words.get(word) & (-1L << offset);
+        while (bits == 0) {
+            if (++word == words.capacity()) {
+                return -1L;
+            }
+            bits = words.get(word);
+        }
+        return first + ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Number of valid HIDs from {@code candidate} to the end of the series.
+     */
+    long countValidFrom(long candidate) {
+        long offset = candidate - first;
+        if (offset <= 0) {
+            return totalValid;
+        }
+        if (offset >= size) {
+            return 0L;
+        }
+        int word = (int) (offset >>> 6);
+        long validBefore = ranks[word / WORDS_PER_RANK];
+        for (int before = word - word % WORDS_PER_RANK; before < word; before++) {
+            validBefore += Long.bitCount(words.get(before));
+        }
+        validBefore += Long.bitCount(words.get(word) & ~(-1L << offset));
+        return totalValid - validBefore;
+    }
+
+    /**
+     * The candidate holding the {@code count}th valid HID from {@code candidate} on, so that exactly {@code count}
+     * valid HIDs lie in between. The end of the series when fewer are left.
+     */
+    long lastOfValid(long candidate, long count) {
+        long remaining = countValidFrom(candidate);
+        if (count <= 0) {
+            return Math.max(candidate, first) - 1;
+        }
+        if (remaining <= count) {
+            return getLast();
+        }
+        long target = totalValid - remaining + count;
+        int low = 0;
+        int high = ranks.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ranks[mid] < target) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        long valid = ranks[low];
+        int word = low * WORDS_PER_RANK;
+        long bits = words.get(word);
+        while (valid + Long.bitCount(bits) < target) {
+            valid += Long.bitCount(bits);
+            bits = words.get(++word);
+        }
+        for (long skipped = valid + 1; skipped < target; skipped++) {
+            bits &= bits - 1;
+        }
+        return first + ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLast() {
+        return first + size - 1;
+    }
+
+    long getTotalValid() {
+        return totalValid;
+    }
+
+    private static long wordCount(long size) {
+        return (size + 63) / 64;
+    }
+}
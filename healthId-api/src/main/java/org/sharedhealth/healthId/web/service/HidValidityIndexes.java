@@ -0,0 +1,64 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.utils.HidValidator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * The validity indexes of one invalid HID pattern, loaded lazily the first time a series is generated from.
+ * Index files are named after the pattern so a changed pattern gets new indexes instead of stale ones.
+ */
+class HidValidityIndexes {
+
+    private final String name;
+    private final HidValidator validator;
+    private final String patternHash;
+    private final File directory;
+    private final ParallelHidGenerator builder;
+    private final Map<Long, HidValidityIndex> indexes = new ConcurrentHashMap<>();
+
+    HidValidityIndexes(String name, String invalidHidPattern, HidValidator validator, String directory,
+                       ParallelHidGenerator builder) {
+        this.name = name;
+        this.validator = validator;
+        this.patternHash = Hashing.sha256().hashString(String.valueOf(invalidHidPattern), Charsets.UTF_8).toString().substring(0, 16);
+        this.directory = isBlank(directory) ? null : new File(directory);
+        this.builder = builder;
+    }
+
+    HidValidityIndex forSeries(long seriesNo, long seriesSize) {
+        HidValidityIndex index = indexes.get(seriesNo);
+        if (index != null) {
+            return index;
+        }
+        synchronized (this) {
+            index = indexes.get(seriesNo);
+            if (index == null) {
+                index = load(seriesNo, seriesSize);
+                indexes.put(seriesNo, index);
+            }
+            return index;
+        }
+    }
+
+    private HidValidityIndex load(long seriesNo, long seriesSize) {
+        File file = null;
+        if (directory != null) {
+            directory.mkdirs();
+            file = new File(directory, String.format("%s-%s-%s.bitmap", name, seriesNo, patternHash));
+        }
+        try {
+            return HidValidityIndex.load(seriesNo, seriesSize, validator, file, builder);
+        } catch (IOException e) {
+            throw new HidGenerationException(String.format("Could not load HID validity index of series %s: %s", seriesNo, e.getMessage()), e);
+        }
+    }
+}
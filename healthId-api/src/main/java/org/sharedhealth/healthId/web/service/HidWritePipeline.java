@@ -0,0 +1,153 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryTimeoutException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func0;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Keeps at most a fixed number of writes in flight. {@link #submit(Func0)} blocks the caller once the cap
+ * is reached, timed out writes are retried after a randomised exponential backoff and
+ * {@link #awaitCompletion()} waits for every submitted write before returning the final counts.
+ */
+public class HidWritePipeline {
+    private static final Logger logger = LoggerFactory.getLogger(HidWritePipeline.class);
+
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final long backoffMillis;
+    private final Semaphore inFlight;
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final HidGenerationProgress progress;
+
+    public HidWritePipeline(int maxInFlight, int maxRetries, long backoffMillis) {
+        this(maxInFlight, maxRetries, backoffMillis, new HidGenerationProgress());
+    }
+
+    public HidWritePipeline(int maxInFlight, int maxRetries, long backoffMillis, HidGenerationProgress progress) {
+        if (maxInFlight < 1 || maxRetries < 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("In-flight writes should be positive and retries, backoff should not be negative.");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.progress = progress;
+    }
+
+    public void submit(Func0<? extends Observable<?>> write) {
+        submit(write, 1);
+    }
+
+    /**
+     * Submits a write that stores {@code hids} HIDs, such as a batch, so the counts stay per HID.
+     */
+    public void submit(Func0<? extends Observable<?>> write, int hids) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HidGenerationException("Interrupted while waiting for in-flight HID writes.");
+        }
+        attempt(write, hids, 0);
+    }
+
+    public Result awaitCompletion() {
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        return new Result(succeeded.get(), failed.get(), retried.get());
+    }
+
+    private void attempt(final Func0<? extends Observable<?>> write, final int hids, final int attempt) {
+        Observable<?> observable;
+        try {
+            observable = write.call();
+        } catch (RuntimeException e) {
+            onFailure(write, hids, attempt, e);
+            return;
+        }
+        observable.subscribe(new Subscriber<Object>() {
+            @Override
+            public void onCompleted() {
+                succeeded.addAndGet(hids);
+                progress.written(hids);
+                inFlight.release();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                onFailure(write, hids, attempt, e);
+            }
+
+            @Override
+            public void onNext(Object result) {
+            }
+        });
+    }
+
+    private void onFailure(final Func0<? extends Observable<?>> write, final int hids, final int attempt, Throwable error) {
+        if (attempt < maxRetries && isTimeout(error)) {
+            retried.incrementAndGet();
+            long backoff = backoffMillis << Math.min(attempt, MAX_BACKOFF_SHIFT);
+            long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+            Observable.timer(delay, MILLISECONDS).subscribe(new Action1<Long>() {
+                @Override
+                public void call(Long tick) {
+                    attempt(write, hids, attempt + 1);
+                }
+            });
+            return;
+        }
+        logger.error(String.format("HID write failed after %s attempts: %s", attempt + 1, error.getMessage()));
+        failed.addAndGet(hids);
+        inFlight.release();
+    }
+
+    private boolean isTimeout(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof QueryTimeoutException || cause instanceof NoHostAvailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Result {
+        private final long succeeded;
+        private final long failed;
+        private final long retried;
+
+        public Result(long succeeded, long failed, long retried) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.retried = retried;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getRetried() {
+            return retried;
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.lang3.StringUtils;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidAllocationCounter;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.HidAllocationMode;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
+import org.sharedhealth.healthId.web.Model.HidPoolLayout;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.utils.FeistelPermutation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Func1;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Claims blocks of HIDs for MCIs from wherever the allocation mode keeps them: the allocation counter of a series,
+ * the generated buckets of a series or the row pool, and saves them as allocated to the MCI.
+ */
+@Component
+public class MciHidAllocator implements HidPrefetchBuffer.Claimer {
+    private static final Logger logger = LoggerFactory.getLogger(MciHidAllocator.class);
+
+    private static final long WRITE_RETRY_BACKOFF_MILLIS = 50L;
+    private static final int MAX_RESERVATION_ATTEMPTS = 10;
+    private static final long COUNTER_CREATION_WAIT_MILLIS = 50L;
+    private static final long RECONCILE_MIN_AGE_MILLIS = 60000L;
+    private static final int MAX_PREFETCH_LEASE_SECONDS = 3600;
+    // the allocation reconciler rolls holds back a minute after they expire, expired ones are released before
+    private static final long HOLD_RELEASE_GRACE_MILLIS = 30000L;
+
+    private final HealthIdProperties healthIdProperties;
+    private final HealthIdRepository healthIdRepository;
+    private final GeneratedHidBlockService generatedHidBlockService;
+    private final HidSeries hidSeries;
+    private final HidPoolScanner poolScanner;
+    private final HidPoolLeases poolLeases;
+    private final HidAllocationWriter allocationWriter;
+    private final ScheduledExecutorService allocationReconciler;
+    private final long reconcileMinAgeMillis;
+    private final Deque<MciHealthId> claimedBucketHIDs = new ArrayDeque<>();
+    private final long holdMillis;
+    private HidAllocationIntent bucketHold;
+    private HidAllocationCounter allocationCounter;
+
+    @Autowired
+    public MciHidAllocator(HealthIdProperties healthIdProperties, HealthIdRepository healthIdRepository,
+                           GeneratedHidBlockService generatedHidBlockService, HidSeries hidSeries) {
+        this.healthIdProperties = healthIdProperties;
+        this.healthIdRepository = healthIdRepository;
+        this.generatedHidBlockService = generatedHidBlockService;
+        this.hidSeries = hidSeries;
+        this.poolScanner = new HidPoolScanner(healthIdRepository);
+        this.poolLeases = newPoolLeases(healthIdProperties, healthIdRepository);
+        this.allocationWriter = new HidAllocationWriter(healthIdRepository, healthIdProperties.getHidAllocationMaxInFlightWrites(),
+                healthIdProperties.getHidGenerationWriteRetries(), WRITE_RETRY_BACKOFF_MILLIS);
+        this.reconcileMinAgeMillis = reconcileMinAgeMillis(healthIdProperties.getHidPrefetchLeaseSeconds());
+        this.holdMillis = TimeUnit.SECONDS.toMillis(healthIdProperties.getHidPrefetchLeaseSeconds());
+        this.allocationReconciler = newAllocationReconciler(healthIdProperties.getHidAllocationReconcileSeconds());
+    }
+
+    /**
+     * Intents of prefetched HIDs stay until their lease ends, so only those older than a lease are rolled back.
+     */
+    private static long reconcileMinAgeMillis(int prefetchLeaseSeconds) {
+        if (prefetchLeaseSeconds < 1 || prefetchLeaseSeconds > MAX_PREFETCH_LEASE_SECONDS) {
+            throw new IllegalArgumentException(String.format("Prefetch lease of %s seconds should be 1 to %s seconds",
+                    prefetchLeaseSeconds, MAX_PREFETCH_LEASE_SECONDS));
+        }
+        return TimeUnit.SECONDS.toMillis(prefetchLeaseSeconds) + RECONCILE_MIN_AGE_MILLIS;
+    }
+
+    private HidPoolLeases newPoolLeases(HealthIdProperties healthIdProperties, HealthIdRepository healthIdRepository) {
+        int ranges = healthIdProperties.getHidPoolLeaseRanges();
+        if (ranges <= 0) {
+            return null;
+        }
+        String nodeId = StringUtils.isBlank(healthIdProperties.getHidNodeId()) ? UUID.randomUUID().toString()
+                : healthIdProperties.getHidNodeId().trim();
+        logger.info(String.format("Allocating from %s leased pool ranges as node %s", ranges, nodeId));
+        return new HidPoolLeases(healthIdRepository, poolScanner, nodeId, ranges, healthIdProperties.getHidPoolLeaseTtlSeconds());
+    }
+
+    private ScheduledExecutorService newAllocationReconciler(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return null;
+        }
+        ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hid-allocation-reconciler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reconciler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcileAllocationIntents();
+                } catch (Exception e) {
+                    logger.error("Failed to reconcile HID allocations", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return reconciler;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        releaseBucketHold();
+        if (poolLeases != null) {
+            releasePoolLeases();
+        }
+        if (allocationReconciler != null) {
+            allocationReconciler.shutdownNow();
+        }
+    }
+
+    /**
+     * Claims up to {@code blockSize} HIDs for the MCI and saves them as allocated to it.
+     *
+     * @throws HealthIdExhaustedException when no HIDs are left
+     */
+    @Override
+    public synchronized List<MciHealthId> claim(String mciCode, int blockSize) {
+        Claimed claimed = claimHIDs(blockSize);
+        allocationWriter.allocate(mciCode, claimed.hids, claimed.poolHids);
+        return claimed.hids;
+    }
+
+    /**
+     * Claims like {@link #claim} and keeps the allocation intent as the lease of the HIDs.
+     *
+     * @throws HealthIdExhaustedException when no HIDs are left
+     */
+    @Override
+    public synchronized HidAllocationIntent lease(String mciCode, int blockSize) {
+        Claimed claimed = claimHIDs(blockSize);
+        return allocationWriter.lease(mciCode, claimed.hids, claimed.poolHids);
+    }
+
+    @Override
+    public Observable<ResultSet> handOut(HidAllocationIntent lease, int handedOut) {
+        return allocationWriter.handOut(lease, handedOut);
+    }
+
+    @Override
+    public boolean release(HidAllocationIntent lease) {
+        return allocationWriter.release(lease);
+    }
+
+    /**
+     * Takes from the counter or the buckets first and from the row pool for the rest. In every mode the row pool
+     * holds the HIDs of rolled back allocations, counter and bucket HIDs too, so they are handed out again.
+     */
+    private Claimed claimHIDs(int blockSize) {
+        List<MciHealthId> undeleted = new ArrayList<>();
+        if (healthIdProperties.getHidAllocationMode() == HidAllocationMode.COUNTER) {
+            undeleted = allocateFromCounterIfAny(blockSize);
+        } else if (healthIdProperties.getHidPoolLayout() == HidPoolLayout.BUCKETS) {
+            undeleted = takeFromBuckets(blockSize);
+        }
+        List<MciHealthId> fromRows = Collections.emptyList();
+        if (undeleted.size() < blockSize) {
+            fromRows = nextBlockFromPool(blockSize - undeleted.size());
+        }
+        if (undeleted.isEmpty() && fromRows.isEmpty()) throw new HealthIdExhaustedException();
+        List<MciHealthId> mciHealthIds = new ArrayList<>(undeleted);
+        mciHealthIds.addAll(fromRows);
+        return new Claimed(mciHealthIds, fromRows);
+    }
+
+    /**
+     * Rolls back allocations left behind by failed writes, see {@link HidAllocationWriter#reconcile(long)}.
+     */
+    public int reconcileAllocationIntents() {
+        return allocationWriter.reconcile(reconcileMinAgeMillis);
+    }
+
+    public Observable<Integer> findRemainingHIDs() {
+        final int threshold = healthIdProperties.getHealthIdWarningThreshold();
+        if (healthIdProperties.getHidAllocationMode() == HidAllocationMode.COUNTER) {
+            long seriesNo = hidSeries.seriesNoOf(healthIdProperties.getHidAllocationSeries());
+            HidAllocationCounter counter = generatedHidBlockService.getAllocationCounter(seriesNo);
+            final long counterHIDs = counter == null ? hidSeries.countValidFrom(true, seriesNo, seriesNo) : counter.getRemainingHIDs();
+            return healthIdRepository.findRemainingHIDs(threshold).map(new Func1<Integer, Integer>() {
+                @Override
+                public Integer call(Integer rowHIDs) {
+                    return (int) Math.min(threshold, rowHIDs + counterHIDs);
+                }
+            });
+        }
+        if (healthIdProperties.getHidPoolLayout() == HidPoolLayout.BUCKETS) {
+            final long bucketedHIDs = findRemainingBucketedHIDs();
+            return healthIdRepository.findRemainingHIDs(threshold).map(new Func1<Integer, Integer>() {
+                @Override
+                public Integer call(Integer rowHIDs) {
+                    return (int) Math.min(threshold, rowHIDs + bucketedHIDs);
+                }
+            });
+        }
+        return healthIdRepository.findRemainingHIDs(threshold);
+    }
+
+    /**
+     * Hands out HIDs of the bucket this node claimed, claiming the next bucket of the allocation series once they
+     * run out. Bucket rows are never deleted, the cursor alone marks them taken, so a claimed bucket is held under
+     * a lease that records how many of its HIDs are handed out before they are. The rest are put back in the row
+     * pool when the node stops or the hold expires, and by the allocation reconciler when the node dies.
+     */
+    private List<MciHealthId> takeFromBuckets(int blockSize) {
+        if (bucketHold != null && System.currentTimeMillis() >= bucketHold.getCreatedAt() + holdMillis) {
+            releaseBucketHold();
+        }
+        List<MciHealthId> mciHealthIds = new ArrayList<>();
+        while (mciHealthIds.size() < blockSize) {
+            if (claimedBucketHIDs.isEmpty()) {
+                if (!claimNextBucket()) {
+                    break;
+                }
+                continue;
+            }
+            int taken = Math.min(blockSize - mciHealthIds.size(), claimedBucketHIDs.size());
+            int handedOut = bucketHold.getHids().size() - claimedBucketHIDs.size() + taken;
+            try {
+                allocationWriter.handOut(bucketHold, handedOut).toBlocking().single();
+            } catch (RuntimeException e) {
+                if (mciHealthIds.isEmpty()) {
+                    throw e;
+                }
+                logger.error(String.format("Could not record %s HIDs of bucket hold %s as handed out", handedOut,
+                        bucketHold.getIntentId()), e);
+                break;
+            }
+            for (int i = 0; i < taken; i++) {
+                mciHealthIds.add(claimedBucketHIDs.poll());
+            }
+        }
+        return mciHealthIds;
+    }
+
+    /**
+     * Puts the HIDs of the held bucket not handed out back in the row pool, unless the hold expired so long ago that
+     * the allocation reconciler may be rolling it back already.
+     */
+    private synchronized void releaseBucketHold() {
+        if (bucketHold != null && !claimedBucketHIDs.isEmpty()) {
+            List<String> rest = new ArrayList<>();
+            for (MciHealthId mciHealthId : claimedBucketHIDs) {
+                rest.add(mciHealthId.getHid());
+            }
+            boolean released = false;
+            if (System.currentTimeMillis() <= bucketHold.getCreatedAt() + holdMillis + HOLD_RELEASE_GRACE_MILLIS) {
+                try {
+                    released = allocationWriter.release(bucketHold.withHids(rest));
+                } catch (RuntimeException e) {
+                    logger.error(String.format("Could not release bucket hold %s", bucketHold.getIntentId()), e);
+                }
+            }
+            logger.info(String.format("%s %s HIDs of bucket hold %s", released ? "Released" : "Left to the allocation reconciler",
+                    rest.size(), bucketHold.getIntentId()));
+        }
+        bucketHold = null;
+        claimedBucketHIDs.clear();
+    }
+
+    /**
+     * Only buckets generated in full are claimed, so generation never adds HIDs to a bucket after it was handed out.
+     */
+    private boolean claimNextBucket() {
+        long seriesNo = hidSeries.seriesNoOf(healthIdProperties.getHidAllocationSeries());
+        Long generatedTo = completedTo(seriesNo);
+        long bucketSize = healthIdProperties.getHidPoolBucketSize();
+        long seriesEnd = hidSeries.endOf(seriesNo);
+        for (int attempt = 0; attempt < MAX_RESERVATION_ATTEMPTS; attempt++) {
+            Long nextBucket = healthIdRepository.getNextBucket(seriesNo);
+            long bucketNo = nextBucket == null ? 0L : nextBucket;
+            long bucketStart = seriesNo + bucketNo * bucketSize;
+            if (generatedTo == null || bucketStart > seriesEnd || Math.min(bucketStart + bucketSize - 1, seriesEnd) > generatedTo) {
+                return false;
+            }
+            if (healthIdRepository.advanceNextBucket(seriesNo, nextBucket, bucketNo + 1)) {
+                List<MciHealthId> bucket = healthIdRepository.getBucket(seriesNo, bucketNo);
+                if (!bucket.isEmpty()) {
+                    bucketHold = allocationWriter.hold(healthIdProperties.getMciOrgCode(), bucket);
+                    claimedBucketHIDs.addAll(bucket);
+                }
+                return true;
+            }
+        }
+        throw new HidGenerationException(String.format("Could not claim a bucket of series %s, too many concurrent allocations.", seriesNo));
+    }
+
+    /**
+     * Valid HIDs generated in the allocation series from its first unclaimed bucket on, leaving out the ranges
+     * generated for other organizations, plus the ones of claimed buckets this node still holds.
+     */
+    private synchronized long findRemainingBucketedHIDs() {
+        long seriesNo = hidSeries.seriesNoOf(healthIdProperties.getHidAllocationSeries());
+        Long generatedTo = completedTo(seriesNo);
+        Long nextBucket = healthIdRepository.getNextBucket(seriesNo);
+        long from = seriesNo + (nextBucket == null ? 0L : nextBucket) * healthIdProperties.getHidPoolBucketSize();
+        long to = generatedTo == null ? from - 1 : Math.min(generatedTo, hidSeries.endOf(seriesNo));
+        long unclaimed = 0L;
+        if (from <= to) {
+            unclaimed = hidSeries.countValid(true, seriesNo, from, to);
+            for (long[] orgRange : orgRangesOf(seriesNo)) {
+                long orgFrom = Math.max(from, orgRange[0]);
+                long orgTo = Math.min(to, orgRange[1]);
+                if (orgFrom <= orgTo) {
+                    unclaimed -= hidSeries.countValid(true, seriesNo, orgFrom, orgTo);
+                }
+            }
+        }
+        return unclaimed + claimedBucketHIDs.size();
+    }
+
+    /**
+     * Where the MCI HIDs of the series are generated without gaps up to: the end of the series, or right before the
+     * range of the lowest MCI generation that has not finished, even when generations after it already did.
+     * Generations for other organizations write no buckets, so they hold nothing up.
+     */
+    private Long completedTo(long seriesNo) {
+        Long generatedTo = generatedHidBlockService.getSeriesEndsAt(seriesNo);
+        if (generatedTo == null) {
+            return null;
+        }
+        long completedTo = generatedTo;
+        for (HidGenerationCheckpoint checkpoint : generatedHidBlockService.getCheckpoints(seriesNo)) {
+            if (!checkpoint.isCompleted() && healthIdProperties.getMciOrgCode().equals(checkpoint.getGeneratedFor())) {
+                completedTo = Math.min(completedTo, checkpoint.getBeginsAt() - 1);
+            }
+        }
+        return completedTo;
+    }
+
+    /**
+     * Ranges of the series generated or being generated for other organizations, merged where they overlap.
+     */
+    private List<long[]> orgRangesOf(long seriesNo) {
+        String mciOrgCode = healthIdProperties.getMciOrgCode();
+        List<long[]> ranges = new ArrayList<>();
+        for (GeneratedHIDBlock block : generatedHidBlockService.getPreGeneratedHidBlocks(seriesNo)) {
+            if (!mciOrgCode.equals(block.getGeneratedFor())) {
+                ranges.add(new long[]{block.getBeginsAt(), block.getEndsAt()});
+            }
+        }
+        for (HidGenerationCheckpoint checkpoint : generatedHidBlockService.getCheckpoints(seriesNo)) {
+            if (!checkpoint.isCompleted() && !mciOrgCode.equals(checkpoint.getGeneratedFor()) && checkpoint.getReservedTo() != null) {
+                ranges.add(new long[]{checkpoint.getBeginsAt(), checkpoint.getReservedTo()});
+            }
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] one, long[] other) {
+                return Long.compare(one[0], other[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    private List<MciHealthId> nextBlockFromPool(int blockSize) {
+        if (poolLeases == null) {
+            return poolScanner.nextBlock(HidPoolScanner.POOL_CURSOR, Long.MIN_VALUE, Long.MAX_VALUE, blockSize);
+        }
+        return poolLeases.nextBlock(blockSize);
+    }
+
+    private synchronized void releasePoolLeases() {
+        poolLeases.releaseAll();
+    }
+
+    private List<MciHealthId> allocateFromCounterIfAny(int blockSize) {
+        try {
+            return allocateFromCounter(blockSize);
+        } catch (HealthIdExhaustedException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Takes the next block of the series off its allocation counter and derives its HIDs, nothing is read from
+     * the pool. The counter moves before the HIDs are saved for the MCI and never moves back, so the HIDs of a block
+     * whose save fails are not taken off the counter again: the allocation writer rolls them back into the row pool,
+     * which is drained once the counter runs out.
+     */
+    private List<MciHealthId> allocateFromCounter(int blockSize) {
+        long seriesNo = hidSeries.seriesNoOf(healthIdProperties.getHidAllocationSeries());
+        HidAllocationCounter counter = allocationCounter;
+        if (counter == null || counter.getSeriesNo() != seriesNo) {
+            counter = findOrCreateAllocationCounter(seriesNo);
+        }
+        for (int attempt = 0; attempt < MAX_RESERVATION_ATTEMPTS; attempt++) {
+            long from = counter.getNextIndex();
+            long to = Math.min(counter.getTotalHIDs(), from + blockSize);
+            if (from >= to) {
+                allocationCounter = counter;
+                return Collections.emptyList();
+            }
+            if (generatedHidBlockService.advanceAllocationCounter(seriesNo, from, to)) {
+                counter.setNextIndex(to);
+                allocationCounter = counter;
+                return hidsOf(counter, from, to);
+            }
+            counter = generatedHidBlockService.getAllocationCounter(seriesNo);
+        }
+        allocationCounter = null;
+        throw new HidGenerationException(String.format("Could not allocate from series %s, too many concurrent allocations.", seriesNo));
+    }
+
+    /**
+     * The valid HIDs of the counter are numbered in order, shuffled by a keyed permutation when a key is configured
+     * so consecutive allocations do not hand out consecutive HIDs.
+     */
+    private List<MciHealthId> hidsOf(HidAllocationCounter counter, long from, long to) {
+        String key = healthIdProperties.getHidAllocationKey();
+        FeistelPermutation permutation = StringUtils.isBlank(key) ? null : new FeistelPermutation(counter.getTotalHIDs(), key);
+        List<MciHealthId> mciHealthIds = new ArrayList<>((int) (to - from));
+        for (long index = from; index < to; index++) {
+            long rank = permutation == null ? index : permutation.apply(index);
+            long hid = hidSeries.nthValidFrom(true, counter.getSeriesNo(), counter.getBeginsAt(), rank);
+            mciHealthIds.add(new MciHealthId(hidSeries.hidOf(hid)));
+        }
+        return mciHealthIds;
+    }
+
+    /**
+     * A counter takes over the rest of its series: the range is reserved first, so block generations can not
+     * write into it, together with where the counter begins, and only then is the counter created. A node that
+     * finds the series reserved for a counter that does not exist yet creates it from the reservation, the same
+     * counter whether the node reserving it is still about to or crashed before it could.
+     */
+    private HidAllocationCounter findOrCreateAllocationCounter(long seriesNo) {
+        long seriesEndsAt = hidSeries.endOf(seriesNo);
+        for (int attempt = 0; attempt < MAX_RESERVATION_ATTEMPTS; attempt++) {
+            HidAllocationCounter counter = generatedHidBlockService.getAllocationCounter(seriesNo);
+            if (counter != null) {
+                return counter;
+            }
+            Long reservedTo = generatedHidBlockService.getSeriesReservedTo(seriesNo);
+            long start = hidSeries.startAfter(seriesNo, reservedTo);
+            if (start <= seriesEndsAt) {
+                if (generatedHidBlockService.reserveSeriesForCounter(seriesNo, reservedTo, start, seriesEndsAt)) {
+                    createAllocationCounter(seriesNo, start, seriesEndsAt);
+                }
+                continue;
+            }
+            Long counterBeginsAt = reservedTo == null || reservedTo != seriesEndsAt ? null
+                    : generatedHidBlockService.getSeriesCounterBeginsAt(seriesNo);
+            if (counterBeginsAt != null) {
+                createAllocationCounter(seriesNo, counterBeginsAt, seriesEndsAt);
+            } else {
+                Uninterruptibles.sleepUninterruptibly(COUNTER_CREATION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        throw new HealthIdExhaustedException();
+    }
+
+    private void createAllocationCounter(long seriesNo, long beginsAt, long endsAt) {
+        HidAllocationCounter counter = new HidAllocationCounter(seriesNo, beginsAt, endsAt,
+                hidSeries.countValidFrom(true, seriesNo, beginsAt));
+        if (generatedHidBlockService.createAllocationCounter(counter)) {
+            logger.info(String.format("Allocating %s HIDs of series %s from %s to %s by counter", counter.getTotalHIDs(),
+                    seriesNo, beginsAt, endsAt));
+        }
+    }
+
+    private static class Claimed {
+        private final List<MciHealthId> hids;
+        private final List<MciHealthId> poolHids;
+
+        private Claimed(List<MciHealthId> hids, List<MciHealthId> poolHids) {
+            this.hids = hids;
+            this.poolHids = poolHids;
+        }
+    }
+}
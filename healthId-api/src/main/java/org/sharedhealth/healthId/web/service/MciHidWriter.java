@@ -0,0 +1,10 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+
+interface MciHidWriter {
+
+    void write(MciHealthId mciHealthId);
+
+    void flush();
+}
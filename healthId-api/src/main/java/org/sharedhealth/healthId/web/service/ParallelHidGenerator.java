@@ -0,0 +1,77 @@
+package org.sharedhealth.healthId.web.service;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits a candidate range into sub-ranges and processes them on a bounded fork-join pool.
+ * Each leaf task keeps its own count of valid HIDs, and the partial counts are summed on join.
+ */
+public class ParallelHidGenerator {
+
+    public interface RangeHandler {
+        /**
+         * Processes every candidate in [from, to] and returns the number of valid HIDs found.
+         */
+        long handle(long from, long to);
+    }
+
+    private final ForkJoinPool pool;
+    private final long partitionSize;
+
+    public ParallelHidGenerator(int parallelism, long partitionSize) {
+        if (parallelism < 1 || partitionSize < 1) {
+            throw new IllegalArgumentException("Parallelism and partition size should be positive.");
+        }
+        this.partitionSize = partitionSize;
+        this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("hid-generator-" + thread.getPoolIndex());
+                return thread;
+            }
+        }, null, false);
+    }
+
+    public long generate(long start, long end, RangeHandler handler) {
+        if (start > end) {
+            return 0L;
+        }
+        return pool.invoke(new RangeTask(start, end, handler));
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class RangeTask extends RecursiveTask<Long> {
+        private final long from;
+        private final long to;
+        private final RangeHandler handler;
+
+        RangeTask(long from, long to, RangeHandler handler) {
+            this.from = from;
+            this.to = to;
+            this.handler = handler;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from < partitionSize) {
+                return handler.handle(from, to);
+            }
+            long mid = from + (to - from) / 2;
+            RangeTask left = new RangeTask(from, mid, handler);
+            RangeTask right = new RangeTask(mid + 1, to, handler);
+            left.fork();
+            long rightCount = right.compute();
+            return rightCount + left.join();
+        }
+    }
+}
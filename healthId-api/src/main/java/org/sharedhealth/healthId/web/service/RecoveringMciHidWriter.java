@@ -0,0 +1,73 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Used right after an interrupted generation. That run may have written up to one checkpoint interval of HIDs
+ * past its last checkpoint, and some of them may have been handed out to organizations since. For that many HIDs
+ * only the ones not allocated yet go back into the pool, the rest are counted as already written.
+ */
+class RecoveringMciHidWriter implements MciHidWriter {
+
+    private final HealthIdRepository healthIdRepository;
+    private final MciHidWriter writer;
+    private final int batchSize;
+    private final List<MciHealthId> pending;
+    private long hidsToCheck;
+    private long alreadyAllocated;
+
+    RecoveringMciHidWriter(HealthIdRepository healthIdRepository, MciHidWriter writer, long hidsToCheck, int batchSize) {
+        this.healthIdRepository = healthIdRepository;
+        this.writer = writer;
+        this.hidsToCheck = hidsToCheck;
+        this.batchSize = batchSize;
+        this.pending = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void write(MciHealthId mciHealthId) {
+        if (hidsToCheck <= 0) {
+            writer.write(mciHealthId);
+            return;
+        }
+        hidsToCheck--;
+        pending.add(mciHealthId);
+        if (pending.size() == batchSize || hidsToCheck == 0) {
+            writeUnallocated();
+        }
+    }
+
+    @Override
+    public void flush() {
+        writeUnallocated();
+        writer.flush();
+    }
+
+    long getAlreadyAllocated() {
+        return alreadyAllocated;
+    }
+
+    private void writeUnallocated() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> hids = new ArrayList<>(pending.size());
+        for (MciHealthId mciHealthId : pending) {
+            hids.add(mciHealthId.getHid());
+        }
+        Set<String> allocated = healthIdRepository.findExistingOrgHids(hids).toBlocking().first();
+        for (MciHealthId mciHealthId : pending) {
+            if (allocated.contains(mciHealthId.getHid())) {
+                alreadyAllocated++;
+            } else {
+                writer.write(mciHealthId);
+            }
+        }
+        pending.clear();
+    }
+}
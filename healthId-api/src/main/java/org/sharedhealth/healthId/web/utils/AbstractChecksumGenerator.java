@@ -0,0 +1,78 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+public abstract class AbstractChecksumGenerator implements ChecksumGenerator {
+
+    private static final Logger logger = getLogger(AbstractChecksumGenerator.class);
+
+    static final int MAX_CODE_LENGTH = 18;
+    static final long[] POWERS_OF_TEN = new long[MAX_CODE_LENGTH + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i <= MAX_CODE_LENGTH; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final String algorithm;
+
+    protected AbstractChecksumGenerator(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public int generate(String code) {
+        if (code == null || code.isEmpty() || code.length() > MAX_CODE_LENGTH) {
+            throw failure(code);
+        }
+        long value = 0L;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                throw failure(code);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return checkDigit(value, code.length());
+    }
+
+    @Override
+    public int generate(long code, int length) {
+        if (!fits(code, 1, length)) {
+            throw failure(String.valueOf(code));
+        }
+        return checkDigit(code, length);
+    }
+
+    @Override
+    public void generate(long fromCode, int length, int count, int[] checkDigits) {
+        if (count < 0 || count > checkDigits.length || !fits(fromCode, count, length)) {
+            throw failure(String.format("%s (%s codes)", fromCode, count));
+        }
+        fill(fromCode, length, count, checkDigits);
+    }
+
+    protected abstract int checkDigit(long code, int length);
+
+    protected void fill(long fromCode, int length, int count, int[] checkDigits) {
+        for (int i = 0; i < count; i++) {
+            checkDigits[i] = checkDigit(fromCode + i, length);
+        }
+    }
+
+    private boolean fits(long fromCode, int count, int length) {
+        return fromCode >= 0 && length >= 0 && length <= MAX_CODE_LENGTH
+                && (count == 0 || fromCode + count - 1 < POWERS_OF_TEN[length]);
+    }
+
+    private HidGenerationException failure(String code) {
+        String message = String.format("Cannot create checksum using %s algorithm for code %s", algorithm, code);
+        logger.debug(message);
+        return new HidGenerationException(message);
+    }
+}
@@ -0,0 +1,24 @@
+package org.sharedhealth.healthId.web.utils;
+
+public enum ChecksumAlgorithm {
+    LUHN {
+        @Override
+        public ChecksumGenerator newGenerator() {
+            return new LuhnChecksumGenerator();
+        }
+    },
+    VERHOEFF {
+        @Override
+        public ChecksumGenerator newGenerator() {
+            return new VerhoeffChecksumGenerator();
+        }
+    },
+    DAMM {
+        @Override
+        public ChecksumGenerator newGenerator() {
+            return new DammChecksumGenerator();
+        }
+    };
+
+    public abstract ChecksumGenerator newGenerator();
+}
@@ -3,4 +3,15 @@ package org.sharedhealth.healthId.web.utils;
 public interface ChecksumGenerator {
 
     int generate(String code);
+
+    /**
+     * Check digit of {@code code} written with {@code length} digits, left padded with zeros.
+     */
+    int generate(long code, int length);
+
+    /**
+     * Fills the first {@code count} entries of {@code checkDigits} with the check digits of
+     * {@code fromCode} to {@code fromCode + count - 1}, each written with {@code length} digits.
+     */
+    void generate(long fromCode, int length, int count, int[] checkDigits);
 }
@@ -0,0 +1,308 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Digit-level evaluation of an invalid-HID pattern over a primitive long.
+ * <p>
+ * The pattern is split into its top level alternatives and every alternative has to be one of
+ * the rule shapes below, otherwise {@link #compile(String)} falls back to {@link RegexHidValidator}.
+ * <ul>
+ * <li>{@code ^[^9]}, {@code ^.[^89]} : digit at a fixed position from a character class</li>
+ * <li>{@code ^\d{0,9}$}, {@code ^\d{11,}$} : number of digits</li>
+ * <li>{@code (\d)\7{3}} : a run of repeated digits</li>
+ * <li>{@code ((\d)\4{2})\d*((\d)\6{2})} : two runs, the second one starting after the first one ends</li>
+ * </ul>
+ */
+public class CompiledHidValidator implements HidValidator {
+    private static final Logger logger = LoggerFactory.getLogger(CompiledHidValidator.class);
+
+    private static final int MAX_DIGITS = 19;
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS];
+
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i < MAX_DIGITS; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private static final String BACK_REFERENCE = "\\(\\\\d\\)\\\\(\\d+)(?:\\{(\\d+)(,?)\\})?";
+    private static final Pattern POSITION_RULE = Pattern.compile("\\^((?:\\.|\\\\d)*)(\\[(\\^?)([0-9-]+)\\]|\\d|\\\\d)");
+    private static final Pattern LENGTH_RULE = Pattern.compile("\\^\\\\d\\{(\\d+)(,(\\d*))?\\}\\$");
+    private static final Pattern RUN_RULE = Pattern.compile(BACK_REFERENCE);
+    private static final Pattern TWO_RUNS_RULE = Pattern.compile("\\(" + BACK_REFERENCE + "\\)\\\\d\\*\\(" + BACK_REFERENCE + "\\)");
+
+    private final RegexHidValidator fallback;
+    private final int[] positionMasks;
+    private final boolean[] invalidLengths;
+    private final int minimumRun;
+    private final int[] firstRuns;
+    private final int[] secondRuns;
+
+    private CompiledHidValidator(RegexHidValidator fallback, int[] positionMasks, boolean[] invalidLengths,
+                                 int minimumRun, int[] firstRuns, int[] secondRuns) {
+        this.fallback = fallback;
+        this.positionMasks = positionMasks;
+        this.invalidLengths = invalidLengths;
+        this.minimumRun = minimumRun;
+        this.firstRuns = firstRuns;
+        this.secondRuns = secondRuns;
+    }
+
+    public static HidValidator compile(String invalidHidPattern) {
+        RegexHidValidator fallback = new RegexHidValidator(invalidHidPattern);
+        CompiledHidValidator compiled = new Compiler(invalidHidPattern, fallback).compile();
+        if (compiled == null) {
+            logger.info(String.format("Pattern %s can not be compiled to digit rules, using regex", invalidHidPattern));
+            return fallback;
+        }
+        return compiled;
+    }
+
+    @Override
+    public boolean isValid(long candidate) {
+        if (candidate < 0) {
+            return fallback.isValid(candidate);
+        }
+        int length = numberOfDigits(candidate);
+        if (invalidLengths[length]) {
+            return false;
+        }
+        long remaining = candidate;
+        int previous = -1;
+        int run = 0;
+        for (int position = 0; position < length; position++) {
+            long power = POWERS_OF_TEN[length - position - 1];
+            int digit = (int) (remaining / power);
+            remaining -= digit * power;
+            if (position < positionMasks.length && (positionMasks[position] & (1 << digit)) != 0) {
+                return false;
+            }
+            run = digit == previous ? run + 1 : 1;
+            previous = digit;
+            if (run >= minimumRun) {
+                return false;
+            }
+        }
+        for (int i = 0; i < firstRuns.length; i++) {
+            if (hasRunsInOrder(candidate, length, firstRuns[i], secondRuns[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isValid(String candidate) {
+        return fallback.isValid(candidate);
+    }
+
+    public HidCounter counter() {
+        return new HidCounter(positionMasks, invalidLengths, minimumRun, firstRuns, secondRuns);
+    }
+
+    private static boolean hasRunsInOrder(long candidate, int length, int firstRun, int secondRun) {
+        long remaining = candidate;
+        int previous = -1;
+        int run = 0;
+        int secondRunStart = -1;
+        for (int position = 0; position < length; position++) {
+            long power = POWERS_OF_TEN[length - position - 1];
+            int digit = (int) (remaining / power);
+            remaining -= digit * power;
+            run = digit == previous ? run + 1 : 1;
+            previous = digit;
+            if (secondRunStart < 0) {
+                if (run >= firstRun) {
+                    secondRunStart = position + 1;
+                }
+            } else if (Math.min(run, position - secondRunStart + 1) >= secondRun) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int numberOfDigits(long candidate) {
+        int length = 1;
+        while (length < MAX_DIGITS && candidate >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static class Compiler {
+        private final String pattern;
+        private final RegexHidValidator fallback;
+        private final List<Integer> positionMasks = new ArrayList<>();
+        private final boolean[] invalidLengths = new boolean[MAX_DIGITS + 1];
+        private int minimumRun = Integer.MAX_VALUE;
+        private final List<int[]> twoRuns = new ArrayList<>();
+
+        Compiler(String pattern, RegexHidValidator fallback) {
+            this.pattern = pattern;
+            this.fallback = fallback;
+        }
+
+        CompiledHidValidator compile() {
+            int groupsBefore = 0;
+            int branchStart = 0;
+            int depth = 0;
+            for (int i = 0; i <= pattern.length(); i++) {
+                char c = i < pattern.length() ? pattern.charAt(i) : '|';
+                if (c == '\\') {
+                    i++;
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (c == '|' && depth == 0) {
+                    String branch = pattern.substring(branchStart, i);
+                    if (!addBranch(branch, groupsBefore)) {
+                        return null;
+                    }
+                    groupsBefore += countGroups(branch);
+                    branchStart = i + 1;
+                }
+            }
+            int[] masks = new int[positionMasks.size()];
+            for (int i = 0; i < masks.length; i++) {
+                masks[i] = positionMasks.get(i);
+            }
+            int[] firstRuns = new int[twoRuns.size()];
+            int[] secondRuns = new int[twoRuns.size()];
+            for (int i = 0; i < firstRuns.length; i++) {
+                firstRuns[i] = twoRuns.get(i)[0];
+                secondRuns[i] = twoRuns.get(i)[1];
+            }
+            return new CompiledHidValidator(fallback, masks, invalidLengths, minimumRun, firstRuns, secondRuns);
+        }
+
+        private boolean addBranch(String branch, int groupsBefore) {
+            int group = groupsBefore;
+            while (isWrapped(branch)) {
+                branch = branch.substring(1, branch.length() - 1);
+                group++;
+            }
+            if (branch.isEmpty() || branch.contains("(?")) {
+                return false;
+            }
+            Matcher matcher;
+            if ((matcher = POSITION_RULE.matcher(branch)).matches()) {
+                int position = matcher.group(1).replace("\\d", ".").length();
+                return addPositionRule(position, matcher);
+            }
+            if ((matcher = LENGTH_RULE.matcher(branch)).matches()) {
+                int min = Integer.parseInt(matcher.group(1));
+                int max = matcher.group(2) == null ? min
+                        : matcher.group(3).isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(matcher.group(3));
+                for (int length = Math.max(min, 1); length <= Math.min(max, MAX_DIGITS); length++) {
+                    invalidLengths[length] = true;
+                }
+                return true;
+            }
+            if ((matcher = RUN_RULE.matcher(branch)).matches()) {
+                if (Integer.parseInt(matcher.group(1)) != group + 1) {
+                    return false;
+                }
+                minimumRun = Math.min(minimumRun, runLength(matcher.group(2)));
+                return true;
+            }
+            if ((matcher = TWO_RUNS_RULE.matcher(branch)).matches()) {
+                if (Integer.parseInt(matcher.group(1)) != group + 2 || Integer.parseInt(matcher.group(4)) != group + 4) {
+                    return false;
+                }
+                twoRuns.add(new int[]{runLength(matcher.group(2)), runLength(matcher.group(5))});
+                return true;
+            }
+            return false;
+        }
+
+        private boolean addPositionRule(int position, Matcher matcher) {
+            int mask;
+            String digitClass = matcher.group(2);
+            if (digitClass.equals("\\d")) {
+                mask = 0x3FF;
+            } else if (matcher.group(4) == null) {
+                mask = 1 << (digitClass.charAt(0) - '0');
+            } else {
+                mask = parseClass(matcher.group(4));
+                if (mask < 0) {
+                    return false;
+                }
+                if (!matcher.group(3).isEmpty()) {
+                    mask = ~mask & 0x3FF;
+                }
+            }
+            while (positionMasks.size() <= position) {
+                positionMasks.add(0);
+            }
+            positionMasks.set(position, positionMasks.get(position) | mask);
+            return true;
+        }
+
+        private int parseClass(String members) {
+            int mask = 0;
+            for (int i = 0; i < members.length(); i++) {
+                char from = members.charAt(i);
+                if (from == '-') {
+                    return -1;
+                }
+                char to = from;
+                if (i + 2 < members.length() && members.charAt(i + 1) == '-') {
+                    to = members.charAt(i + 2);
+                    i += 2;
+                }
+                if (to < from) {
+                    return -1;
+                }
+                for (char c = from; c <= to; c++) {
+                    mask |= 1 << (c - '0');
+                }
+            }
+            return mask;
+        }
+
+        private int runLength(String repetitions) {
+            return 1 + (repetitions == null ? 1 : Integer.parseInt(repetitions));
+        }
+
+        private boolean isWrapped(String branch) {
+            if (!branch.startsWith("(") || !branch.endsWith(")") || branch.startsWith("(?")) {
+                return false;
+            }
+            int depth = 0;
+            for (int i = 0; i < branch.length(); i++) {
+                char c = branch.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return i == branch.length() - 1;
+                }
+            }
+            return false;
+        }
+
+        private int countGroups(String branch) {
+            int groups = 0;
+            for (int i = 0; i < branch.length(); i++) {
+                char c = branch.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '(' && (i + 1 >= branch.length() || branch.charAt(i + 1) != '?')) {
+                    groups++;
+                }
+            }
+            return groups;
+        }
+    }
+}
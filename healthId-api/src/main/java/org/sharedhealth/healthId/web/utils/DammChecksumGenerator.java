@@ -0,0 +1,63 @@
+package org.sharedhealth.healthId.web.utils;
+
+/**
+ * Damm check digits. The interim digit only depends on the digits to its left and leading zeros
+ * leave it unchanged, so the bulk call reuses the interim digit of the shared prefix of consecutive codes.
+ */
+public class DammChecksumGenerator extends AbstractChecksumGenerator {
+
+    private static final int[][] QUASIGROUP = {
+            {0, 3, 1, 7, 5, 9, 8, 6, 4, 2},
+            {7, 0, 9, 2, 1, 5, 4, 8, 6, 3},
+            {4, 2, 0, 6, 8, 7, 1, 3, 5, 9},
+            {1, 7, 5, 0, 9, 8, 3, 4, 2, 6},
+            {6, 1, 2, 3, 0, 4, 5, 9, 7, 8},
+            {3, 6, 7, 4, 2, 0, 9, 5, 8, 1},
+            {5, 8, 6, 9, 7, 2, 0, 1, 3, 4},
+            {8, 9, 4, 5, 3, 6, 2, 0, 1, 7},
+            {9, 4, 3, 8, 6, 1, 7, 2, 0, 5},
+            {2, 5, 8, 1, 4, 3, 6, 7, 9, 0}
+    };
+    private static final int[][] PAIRS = new int[10][100];
+
+    static {
+        for (int interim = 0; interim < 10; interim++) {
+            for (int pair = 0; pair < 100; pair++) {
+                PAIRS[interim][pair] = QUASIGROUP[QUASIGROUP[interim][pair / 10]][pair % 10];
+            }
+        }
+    }
+
+    public DammChecksumGenerator() {
+        super("Damm");
+    }
+
+    @Override
+    protected int checkDigit(long code, int length) {
+        return PAIRS[interim(code / 100)][(int) (code % 100)];
+    }
+
+    @Override
+    protected void fill(long fromCode, int length, int count, int[] checkDigits) {
+        long high = -1;
+        int highInterim = 0;
+        for (int i = 0; i < count; i++) {
+            long code = fromCode + i;
+            if (code / 100 != high) {
+                high = code / 100;
+                highInterim = interim(high);
+            }
+            checkDigits[i] = PAIRS[highInterim][(int) (code % 100)];
+        }
+    }
+
+    private static int interim(long code) {
+        int interim = 0;
+        for (int i = MAX_CODE_LENGTH - 1; i >= 0; i--) {
+            if (code >= POWERS_OF_TEN[i]) {
+                interim = QUASIGROUP[interim][(int) (code / POWERS_OF_TEN[i] % 10)];
+            }
+        }
+        return interim;
+    }
+}
@@ -0,0 +1,73 @@
+package org.sharedhealth.healthId.web.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A keyed shuffle of the numbers from 0 to {@code size - 1}, so consecutive numbers map to numbers far apart
+ * and the order can not be guessed without the key.
+ * <p>
+ * A balanced Feistel network is a bijection on numbers of an even number of bits whatever its round function,
+ * and the smallest such domain holding {@code size} numbers is less than four times larger. Numbers that land
+ * outside the size are encrypted again until they land inside it, which keeps the mapping a bijection on
+ * the size itself.
+ */
+public class FeistelPermutation {
+    private static final int ROUNDS = 4;
+
+    private final long size;
+    private final int halfBits;
+    private final long halfMask;
+    private final long[] roundKeys = new long[ROUNDS];
+
+    public FeistelPermutation(long size, String key) {
+        if (size <= 0) {
+            throw new IllegalArgumentException(String.format("Can not permute %s numbers", size));
+        }
+        this.size = size;
+        int bits = 64 - Long.numberOfLeadingZeros(size - 1);
+        this.halfBits = Math.max(1, (bits + 1) / 2);
+        this.halfMask = (1L << halfBits) - 1;
+        ByteBuffer keyBytes = ByteBuffer.wrap(Hashing.sha256().hashString(key, Charsets.UTF_8).asBytes());
+        for (int round = 0; round < ROUNDS; round++) {
+            roundKeys[round] = keyBytes.getLong();
+        }
+    }
+
+    public long apply(long index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException(String.format("%s is not between 0 and %s", index, size - 1));
+        }
+        long value = index;
+        do {
+            value = encrypt(value);
+        } while (value >= size);
+        return value;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    private long encrypt(long value) {
+        long left = value >>> halfBits;
+        long right = value & halfMask;
+        for (int round = 0; round < ROUNDS; round++) {
+            long next = left ^ (mix(right ^ roundKeys[round]) & halfMask);
+            left = right;
+            right = next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
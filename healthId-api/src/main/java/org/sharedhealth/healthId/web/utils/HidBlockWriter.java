@@ -0,0 +1,80 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Streams a block of HIDs through a fixed write buffer, so a response never holds more than the buffer besides
+ * the block itself. NDJSON writes each HID as a JSON string on its own line, the binary form writes each HID as an
+ * 8 byte big endian number with nothing around them, so a block of n HIDs is exactly 8n bytes.
+ */
+public class HidBlockWriter {
+    public static final int BINARY_HID_BYTES = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_NDJSON_HID_BYTES = 32;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered;
+
+    private HidBlockWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public static void writeNdjson(List<MciHealthId> block, OutputStream out) throws IOException {
+        HidBlockWriter writer = new HidBlockWriter(out);
+        for (MciHealthId mciHealthId : block) {
+            writer.writeNdjsonLine(mciHealthId.getHid());
+        }
+        writer.flush();
+    }
+
+    public static void writeBinary(List<MciHealthId> block, OutputStream out) throws IOException {
+        HidBlockWriter writer = new HidBlockWriter(out);
+        for (MciHealthId mciHealthId : block) {
+            writer.writeLong(Long.parseLong(mciHealthId.getHid()));
+        }
+        writer.flush();
+    }
+
+    private void writeNdjsonLine(String hid) throws IOException {
+        if (hid.length() > MAX_NDJSON_HID_BYTES) {
+            throw new IllegalArgumentException(String.format("%s is not a HID", hid));
+        }
+        ensureRoom(hid.length() + 3);
+        buffer[buffered++] = '"';
+        for (int i = 0; i < hid.length(); i++) {
+            char digit = hid.charAt(i);
+            if (digit < '0' || digit > '9') {
+                throw new IllegalArgumentException(String.format("%s is not a HID", hid));
+            }
+            buffer[buffered++] = (byte) digit;
+        }
+        buffer[buffered++] = '"';
+        buffer[buffered++] = '\n';
+    }
+
+    private void writeLong(long hid) throws IOException {
+        ensureRoom(BINARY_HID_BYTES);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[buffered++] = (byte) (hid >>> shift);
+        }
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffered + bytes > buffer.length) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private void flush() throws IOException {
+        out.write(buffer, 0, buffered);
+        buffered = 0;
+        out.flush();
+    }
+}
@@ -0,0 +1,214 @@
+package org.sharedhealth.healthId.web.utils;
+
+/**
+ * Counts, ranks and unranks the valid HIDs of a {@link CompiledHidValidator} without enumerating candidates.
+ * <p>
+ * The digit rules only ever look at the previous digit, the length of the current run and, per two-run rule,
+ * whether the first run was seen and how long the second one is so far. That state is small, so the number of
+ * valid ways to complete a candidate from any position and state is tabulated once per length, and a count
+ * below any candidate is a walk over its digits adding up the completions of every smaller digit.
+ * Only candidates of up to {@link #MAX_DIGITS} digits are counted, longer ones are never valid here.
+ */
+public class HidCounter {
+    public static final int MAX_DIGITS = 18;
+    public static final long MAX_CANDIDATE = 999999999999999999L;
+
+    private static final int NO_DIGIT = 10;
+    private static final int DEAD = -1;
+
+    private final int[] positionMasks;
+    private final boolean[] invalidLengths;
+    private final int minimumRun;
+    private final int[] firstRuns;
+    private final int[] secondRuns;
+    private final int runCap;
+    private final int[] ruleRadix;
+    private final int stateCount;
+    private final int[][] steps;
+    private final long[][][] completions = new long[MAX_DIGITS + 1][][];
+
+    HidCounter(int[] positionMasks, boolean[] invalidLengths, int minimumRun, int[] firstRuns, int[] secondRuns) {
+        this.positionMasks = positionMasks;
+        this.invalidLengths = invalidLengths;
+        this.minimumRun = minimumRun;
+        this.firstRuns = firstRuns;
+        this.secondRuns = secondRuns;
+        int cap = minimumRun == Integer.MAX_VALUE ? 1 : minimumRun;
+        for (int firstRun : firstRuns) {
+            cap = Math.max(cap, firstRun);
+        }
+        this.runCap = cap;
+        this.ruleRadix = new int[firstRuns.length];
+        int states = (NO_DIGIT + 1) * (runCap + 1);
+        for (int i = 0; i < ruleRadix.length; i++) {
+            ruleRadix[i] = secondRuns[i] + 1;
+            states *= ruleRadix[i];
+        }
+        this.stateCount = states;
+        this.steps = new int[stateCount][10];
+        for (int state = 0; state < stateCount; state++) {
+            for (int digit = 0; digit < 10; digit++) {
+                steps[state][digit] = step(state, digit);
+            }
+        }
+        for (int length = 1; length <= MAX_DIGITS; length++) {
+            completions[length] = tabulate(length);
+        }
+    }
+
+    public static HidCounter of(HidValidator validator) {
+        return validator instanceof CompiledHidValidator ? ((CompiledHidValidator) validator).counter() : null;
+    }
+
+    /**
+     * Number of valid candidates from {@code from} to {@code to}, both included.
+     */
+    public long count(long from, long to) {
+        if (to < from) {
+            return 0L;
+        }
+        return countBelow(Math.min(to, MAX_CANDIDATE) + 1) - countBelow(from);
+    }
+
+    /**
+     * Number of valid candidates smaller than {@code candidate}.
+     */
+    public long rank(long candidate) {
+        return countBelow(candidate);
+    }
+
+    /**
+     * The valid candidate with {@code rank} valid candidates smaller than it, or -1 when there are not that many.
+     */
+    public long unrank(long rank) {
+        if (rank < 0) {
+            return -1L;
+        }
+        long remaining = rank;
+        for (int length = 1; length <= MAX_DIGITS; length++) {
+            long ofLength = completions[length][0][initialState()];
+            if (remaining >= ofLength) {
+                remaining -= ofLength;
+                continue;
+            }
+            long candidate = 0L;
+            int state = initialState();
+            for (int position = 0; position < length; position++) {
+                for (int digit = firstDigit(length, position); digit < 10; digit++) {
+                    int next = next(state, position, digit);
+                    long ways = next == DEAD ? 0L : completions[length][position + 1][next];
+                    if (remaining < ways) {
+                        candidate = candidate * 10 + digit;
+                        state = next;
+                        break;
+                    }
+                    remaining -= ways;
+                }
+            }
+            return candidate;
+        }
+        return -1L;
+    }
+
+    /**
+     * The {@code n}th valid candidate from {@code from} on, counting from zero, or -1 when there are not that many.
+     */
+    public long nthValidFrom(long from, long n) {
+        return n < 0 ? -1L : unrank(countBelow(from) + n);
+    }
+
+    private long countBelow(long candidate) {
+        if (candidate <= 0) {
+            return 0L;
+        }
+        String digits = String.valueOf(candidate);
+        int length = digits.length();
+        long count = 0L;
+        for (int shorter = 1; shorter < length && shorter <= MAX_DIGITS; shorter++) {
+            count += completions[shorter][0][initialState()];
+        }
+        if (length > MAX_DIGITS) {
+            return count;
+        }
+        int state = initialState();
+        for (int position = 0; position < length && state != DEAD; position++) {
+            int bound = digits.charAt(position) - '0';
+            for (int digit = firstDigit(length, position); digit < bound; digit++) {
+                int next = next(state, position, digit);
+                if (next != DEAD) {
+                    count += completions[length][position + 1][next];
+                }
+            }
+            state = next(state, position, bound);
+        }
+        return count;
+    }
+
+    private long[][] tabulate(int length) {
+        long[][] ways = new long[length + 1][stateCount];
+        if (invalidLengths[length]) {
+            return ways;
+        }
+        for (int state = 0; state < stateCount; state++) {
+            ways[length][state] = 1L;
+        }
+        for (int position = length - 1; position >= 0; position--) {
+            for (int state = 0; state < stateCount; state++) {
+                long total = 0L;
+                for (int digit = firstDigit(length, position); digit < 10; digit++) {
+                    int next = next(state, position, digit);
+                    if (next != DEAD) {
+                        total += ways[position + 1][next];
+                    }
+                }
+                ways[position][state] = total;
+            }
+        }
+        return ways;
+    }
+
+    private int next(int state, int position, int digit) {
+        if (position < positionMasks.length && (positionMasks[position] & (1 << digit)) != 0) {
+            return DEAD;
+        }
+        return steps[state][digit];
+    }
+
+    private int step(int state, int digit) {
+        int previous = state % (NO_DIGIT + 1);
+        int rest = state / (NO_DIGIT + 1);
+        int run = rest % (runCap + 1);
+        rest /= runCap + 1;
+        int newRun = digit == previous ? Math.min(run + 1, runCap) : 1;
+        if (newRun >= minimumRun) {
+            return DEAD;
+        }
+        int next = 0;
+        int[] rules = new int[ruleRadix.length];
+        for (int i = 0; i < ruleRadix.length; i++) {
+            int value = rest % ruleRadix[i];
+            rest /= ruleRadix[i];
+            if (value == 0) {
+                rules[i] = newRun >= firstRuns[i] ? 1 : 0;
+            } else {
+                int secondRun = digit == previous ? value : 1;
+                if (secondRun >= secondRuns[i]) {
+                    return DEAD;
+                }
+                rules[i] = secondRun + 1;
+            }
+        }
+        for (int i = ruleRadix.length - 1; i >= 0; i--) {
+            next = next * ruleRadix[i] + rules[i];
+        }
+        return (next * (runCap + 1) + newRun) * (NO_DIGIT + 1) + digit;
+    }
+
+    private int initialState() {
+        return NO_DIGIT;
+    }
+
+    private int firstDigit(int length, int position) {
+        return position == 0 && length > 1 ? 1 : 0;
+    }
+}
@@ -0,0 +1,163 @@
+package org.sharedhealth.healthId.web.utils;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Streams HIDs to a file through one open channel and a write buffer instead of reopening the file per HID.
+ * HIDs go to a ".part" file that is renamed to its final name on {@link #commit()}, and a ".manifest" with the
+ * HID count and the SHA-256 of the file is written last, so a file without a manifest is never a complete one.
+ */
+public class HidFileSink implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(HidFileSink.class);
+
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String PART_SUFFIX = ".part";
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(Charsets.UTF_8);
+
+    private final File file;
+    private final File partFile;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private final OutputStream out;
+    private final GZIPOutputStream gzipOut;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered;
+    private long count;
+    private boolean closed;
+
+    private HidFileSink(File file, boolean gzip) throws IOException {
+        this.file = file;
+        this.partFile = new File(file.getPath() + PART_SUFFIX);
+        this.channel = FileChannel.open(partFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+        this.digest = sha256();
+        OutputStream channelOut = new DigestOutputStream(Channels.newOutputStream(channel), digest);
+        this.gzipOut = gzip ? new GZIPOutputStream(channelOut, BUFFER_SIZE, true) : null;
+        this.out = gzip ? gzipOut : channelOut;
+    }
+
+    public static HidFileSink open(File file, boolean gzip) throws IOException {
+        return new HidFileSink(gzip ? new File(file.getPath() + GZIP_SUFFIX) : file, gzip);
+    }
+
+    public void write(String hid) throws IOException {
+        ensureOpen();
+        byte[] line = hid.getBytes(Charsets.UTF_8);
+        if (buffered + line.length + LINE_SEPARATOR.length > buffer.length) {
+            flushBuffer();
+        }
+        System.arraycopy(line, 0, buffer, buffered, line.length);
+        buffered += line.length;
+        System.arraycopy(LINE_SEPARATOR, 0, buffer, buffered, LINE_SEPARATOR.length);
+        buffered += LINE_SEPARATOR.length;
+        count++;
+    }
+
+    /**
+     * Forces everything written so far to disk, called at checkpoints so the checkpoint never runs ahead of the file.
+     */
+    public void sync() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        out.flush();
+        channel.force(false);
+    }
+
+    public void commit() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        if (gzipOut != null) {
+            gzipOut.finish();
+        }
+        out.flush();
+        channel.force(true);
+        closed = true;
+        channel.close();
+        Files.move(partFile.toPath(), file.toPath(), ATOMIC_MOVE);
+        writeManifest();
+        logger.info(String.format("Wrote %s HIDs to %s", count, file.getAbsolutePath()));
+    }
+
+    /**
+     * Without a {@link #commit()} the ".part" file is left as it is for inspection and is never renamed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        channel.close();
+        logger.warn(String.format("Left incomplete HID file %s with %s HIDs", partFile.getAbsolutePath(), count));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    private void writeManifest() throws IOException {
+        String manifest = String.format("file=%s%ncount=%s%nsha256=%s%n", file.getName(), count, toHex(digest.digest()));
+        Path manifestPath = new File(file.getPath() + MANIFEST_SUFFIX).toPath();
+        Path partManifestPath = new File(file.getPath() + MANIFEST_SUFFIX + PART_SUFFIX).toPath();
+        try (FileChannel manifestChannel = FileChannel.open(partManifestPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            manifestChannel.write(Charsets.UTF_8.encode(manifest));
+            manifestChannel.force(true);
+        }
+        Files.move(partManifestPath, manifestPath, ATOMIC_MOVE);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffered > 0) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException(String.format("HID file %s is already closed", file.getAbsolutePath()));
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,8 @@
+package org.sharedhealth.healthId.web.utils;
+
+public interface HidValidator {
+
+    boolean isValid(long candidate);
+
+    boolean isValid(String candidate);
+}
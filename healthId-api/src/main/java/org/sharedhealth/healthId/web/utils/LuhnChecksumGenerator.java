@@ -1,31 +1,53 @@
 package org.sharedhealth.healthId.web.utils;
 
-import org.apache.commons.validator.routines.checkdigit.CheckDigitException;
-import org.sharedhealth.healthId.web.exception.HidGenerationException;
-import org.slf4j.Logger;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.stereotype.Component;
+/**
+ * Luhn check digits computed two digits at a time from a lookup table. Consecutive codes share
+ * everything above their last two digits, so the bulk call only sums the higher digits once per hundred codes.
+ */
+public class LuhnChecksumGenerator extends AbstractChecksumGenerator {
 
-import static java.lang.Integer.parseInt;
-import static java.lang.String.valueOf;
-import static org.apache.commons.validator.routines.checkdigit.LuhnCheckDigit.LUHN_CHECK_DIGIT;
-import static org.slf4j.LoggerFactory.getLogger;
+    private static final int[] PAIR_SUMS = new int[100];
 
-@Component
-@Qualifier("ChecksumGenerator")
-public class LuhnChecksumGenerator implements ChecksumGenerator {
+    static {
+        for (int pair = 0; pair < 100; pair++) {
+            int doubled = (pair % 10) * 2;
+            PAIR_SUMS[pair] = pair / 10 + (doubled > 9 ? doubled - 9 : doubled);
+        }
+    }
+
+    public LuhnChecksumGenerator() {
+        super("Luhn");
+    }
 
-    private static final Logger logger = getLogger(LuhnChecksumGenerator.class);
+    @Override
+    protected int checkDigit(long code, int length) {
+        return toCheckDigit(PAIR_SUMS[(int) (code % 100)] + sumOfPairs(code / 100));
+    }
 
     @Override
-    public int generate(String code) {
-        try {
-            return parseInt(LUHN_CHECK_DIGIT.calculate(valueOf(code)));
-
-        } catch (CheckDigitException e) {
-            String message = "Cannot create checksum using Luhn algorithm for code " + code;
-            logger.debug(message);
-            throw new HidGenerationException(message, e);
+    protected void fill(long fromCode, int length, int count, int[] checkDigits) {
+        long high = -1;
+        int highSum = 0;
+        for (int i = 0; i < count; i++) {
+            long code = fromCode + i;
+            if (code / 100 != high) {
+                high = code / 100;
+                highSum = sumOfPairs(high);
+            }
+            checkDigits[i] = toCheckDigit(highSum + PAIR_SUMS[(int) (code % 100)]);
         }
     }
+
+    private static int sumOfPairs(long code) {
+        int sum = 0;
+        while (code > 0) {
+            sum += PAIR_SUMS[(int) (code % 100)];
+            code /= 100;
+        }
+        return sum;
+    }
+
+    private static int toCheckDigit(int sum) {
+        return (10 - sum % 10) % 10;
+    }
 }
@@ -0,0 +1,22 @@
+package org.sharedhealth.healthId.web.utils;
+
+import java.util.regex.Pattern;
+
+public class RegexHidValidator implements HidValidator {
+
+    private final Pattern invalidHidPattern;
+
+    public RegexHidValidator(String invalidHidPattern) {
+        this.invalidHidPattern = Pattern.compile(invalidHidPattern);
+    }
+
+    @Override
+    public boolean isValid(long candidate) {
+        return isValid(String.valueOf(candidate));
+    }
+
+    @Override
+    public boolean isValid(String candidate) {
+        return !invalidHidPattern.matcher(candidate).find();
+    }
+}
@@ -0,0 +1,85 @@
+package org.sharedhealth.healthId.web.utils;
+
+/**
+ * Verhoeff check digits. The digits are combined with an associative group operation, so the
+ * bulk call combines the product of the last two digits from a table with the product of the
+ * higher digits, which is worked out once per hundred codes.
+ */
+public class VerhoeffChecksumGenerator extends AbstractChecksumGenerator {
+
+    private static final int[][] MULTIPLICATION = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+            {1, 2, 3, 4, 0, 6, 7, 8, 9, 5},
+            {2, 3, 4, 0, 1, 7, 8, 9, 5, 6},
+            {3, 4, 0, 1, 2, 8, 9, 5, 6, 7},
+            {4, 0, 1, 2, 3, 9, 5, 6, 7, 8},
+            {5, 9, 8, 7, 6, 0, 4, 3, 2, 1},
+            {6, 5, 9, 8, 7, 1, 0, 4, 3, 2},
+            {7, 6, 5, 9, 8, 2, 1, 0, 4, 3},
+            {8, 7, 6, 5, 9, 3, 2, 1, 0, 4},
+            {9, 8, 7, 6, 5, 4, 3, 2, 1, 0}
+    };
+    private static final int[][] PERMUTATION = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+            {1, 5, 7, 6, 2, 8, 3, 0, 9, 4},
+            {5, 8, 0, 3, 7, 9, 6, 1, 4, 2},
+            {8, 9, 1, 6, 0, 4, 3, 5, 2, 7},
+            {9, 4, 5, 3, 1, 2, 6, 8, 7, 0},
+            {4, 2, 8, 6, 5, 7, 3, 9, 0, 1},
+            {2, 7, 9, 3, 8, 0, 6, 4, 1, 5},
+            {7, 0, 4, 6, 9, 1, 3, 2, 5, 8}
+    };
+    private static final int[] INVERSE = {0, 4, 3, 2, 1, 5, 6, 7, 8, 9};
+    private static final int[] LOW_PAIRS = new int[100];
+
+    static {
+        for (int pair = 0; pair < 100; pair++) {
+            LOW_PAIRS[pair] = MULTIPLICATION[PERMUTATION[1][pair % 10]][PERMUTATION[2][pair / 10]];
+        }
+    }
+
+    public VerhoeffChecksumGenerator() {
+        super("Verhoeff");
+    }
+
+    @Override
+    protected int checkDigit(long code, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (length == 1) {
+            return INVERSE[PERMUTATION[1][(int) code]];
+        }
+        return INVERSE[MULTIPLICATION[LOW_PAIRS[(int) (code % 100)]][highProduct(code / 100, length - 2)]];
+    }
+
+    @Override
+    protected void fill(long fromCode, int length, int count, int[] checkDigits) {
+        if (length < 2) {
+            super.fill(fromCode, length, count, checkDigits);
+            return;
+        }
+        long high = -1;
+        int highProduct = 0;
+        for (int i = 0; i < count; i++) {
+            long code = fromCode + i;
+            if (code / 100 != high) {
+                high = code / 100;
+                highProduct = highProduct(high, length - 2);
+            }
+            checkDigits[i] = INVERSE[MULTIPLICATION[LOW_PAIRS[(int) (code % 100)]][highProduct]];
+        }
+    }
+
+    /**
+     * Product of the digits above the last two, which sit at positions 3 to length + 2 from the right.
+     */
+    private static int highProduct(long high, int length) {
+        int product = 0;
+        for (int i = 0; i < length; i++) {
+            product = MULTIPLICATION[product][PERMUTATION[(i + 3) % 8][(int) (high % 10)]];
+            high /= 10;
+        }
+        return product;
+    }
+}
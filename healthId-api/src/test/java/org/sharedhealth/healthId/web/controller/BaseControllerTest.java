@@ -14,6 +14,8 @@ import org.sharedhealth.healthId.web.config.EnvironmentMock;
 import org.sharedhealth.healthId.web.exception.Forbidden;
 import org.sharedhealth.healthId.web.launch.WebMvcConfig;
 import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.service.GeneratedHidBlockService;
+import org.sharedhealth.healthId.web.service.HidGenerationJobService;
 import org.sharedhealth.healthId.web.utils.TestUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -28,6 +30,7 @@ import javax.servlet.Filter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
@@ -52,6 +55,12 @@ public class BaseControllerTest {
     @Autowired
     protected Filter springSecurityFilterChain;
 
+    @Autowired
+    private HidGenerationJobService hidGenerationJobService;
+
+    @Autowired
+    private GeneratedHidBlockService generatedHidBlockService;
+
     protected String validClientId;
     protected String validEmail;
     protected String validAccessToken;
@@ -97,8 +106,10 @@ public class BaseControllerTest {
     }
 
     @After
-    public void teardownBase() {
+    public void teardownBase() throws Exception {
+        hidGenerationJobService.cancelAll(30, TimeUnit.SECONDS);
         TestUtil.truncateAllColumnFamilies(cassandraOps);
+        generatedHidBlockService.invalidateSeriesEnds();
         CacheManager.getInstance().clearAll();
     }
 
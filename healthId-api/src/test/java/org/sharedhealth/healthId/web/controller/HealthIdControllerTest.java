@@ -1,38 +1,79 @@
 package org.sharedhealth.healthId.web.controller;
 
+import com.google.common.io.ByteStreams;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sharedhealth.healthId.web.Model.FacilityResponse;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidSeriesCapacity;
+import org.sharedhealth.healthId.web.Model.HidUsageStatus;
+import org.sharedhealth.healthId.web.Model.HidWriteMode;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HealthIdNotFoundException;
+import org.sharedhealth.healthId.web.exception.HidAllocationConflictException;
+import org.sharedhealth.healthId.web.exception.HidAllocationQuotaExceededException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
 import org.sharedhealth.healthId.web.exception.InvalidRequestException;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.security.UserProfile;
 import org.sharedhealth.healthId.web.service.FacilityService;
 import org.sharedhealth.healthId.web.service.HealthIdService;
+import org.sharedhealth.healthId.web.service.HidAllocationService;
+import org.sharedhealth.healthId.web.service.HidGenerationJobService;
+import org.sharedhealth.healthId.web.service.HidGenerationProgress;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.context.request.async.DeferredResult;
+import rx.Observable;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
 
 @RunWith(MockitoJUnitRunner.class)
 public class HealthIdControllerTest {
     @Mock
     private HealthIdService healthIdService;
     @Mock
+    private HidAllocationService hidAllocationService;
+    @Mock
     private FacilityService facilityService;
     @Mock
     private HealthIdProperties healthIdProperties;
@@ -40,12 +81,19 @@ public class HealthIdControllerTest {
     @Rule
     public ExpectedException expectedEx = ExpectedException.none();
 
+    private HidGenerationJobService hidGenerationJobService;
 
     @Before
     public void setUp() throws Exception {
         initMocks(this);
         SecurityContextHolder.getContext().setAuthentication(
                 new UsernamePasswordAuthenticationToken(getUserInfo(), null));
+        hidGenerationJobService = new HidGenerationJobService(1, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        hidGenerationJobService.shutdown();
     }
 
     private UserInfo getUserInfo() {
@@ -56,28 +104,30 @@ public class HealthIdControllerTest {
     }
 
     @Test
-    public void testGenerate() {
+    public void testGenerate() throws Exception {
         GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(1000L, "MCI", 1000L, 1099L, 100L, "", timeBased());
-        when(healthIdService.generateAll(any(UserInfo.class))).thenReturn(hidBlock);
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, healthIdProperties);
-        assertEquals("Generated 100 HIDs.", healthIdController.generate().getResult());
-        verify(healthIdService, times(1)).generateAll(any(UserInfo.class));
+        when(healthIdService.generateAll(any(UserInfo.class), any(HidWriteMode.class), anyBoolean(), any(HidGenerationProgress.class))).thenReturn(hidBlock);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        Map job = awaitJob(healthIdController, healthIdController.generate(null, false));
+        assertEquals("COMPLETED", job.get("status"));
+        assertEquals("Generated 100 HIDs.", job.get("message"));
+        verify(healthIdService, times(1)).generateAll(any(UserInfo.class), any(HidWriteMode.class), anyBoolean(), any(HidGenerationProgress.class));
     }
 
     @Test
-    public void testGenerateRange() {
+    public void testGenerateRange() throws Exception {
         long start = 1000L, total = 100L;
         GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(1000L, "MCI", 1000L, 1099L, 100L, "", timeBased());
         HealthIdProperties testProperties = new HealthIdProperties();
         testProperties.setMciStartHid("1000");
         testProperties.setMciEndHid("3000");
 
-        when(healthIdService.generateBlock(eq(start), eq(total), any(UserInfo.class))).thenReturn(hidBlock);
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        ResponseEntity result = (ResponseEntity) healthIdController.generateBlock(start, total).getResult();
-        assertEquals("Generated 100 HIDs.", result.getBody());
-        assertEquals(HttpStatus.OK, result.getStatusCode());
-        verify(healthIdService, times(1)).generateBlock(eq(start), eq(total), any(UserInfo.class));
+        when(healthIdService.generateBlock(eq(start), eq(total), any(UserInfo.class), any(HidWriteMode.class), anyBoolean(), any(String.class), any(HidGenerationProgress.class))).thenReturn(hidBlock);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        Map job = awaitJob(healthIdController, healthIdController.generateBlock(start, total, null, false, null));
+        assertEquals("Generated 100 HIDs.", job.get("message"));
+        assertEquals(total, job.get("requestedHIDs"));
+        verify(healthIdService, times(1)).generateBlock(eq(start), eq(total), any(UserInfo.class), any(HidWriteMode.class), anyBoolean(), any(String.class), any(HidGenerationProgress.class));
     }
 
     @Test
@@ -92,13 +142,13 @@ public class HealthIdControllerTest {
         testProperties.setOtherOrgStartHid("1000");
         testProperties.setOtherOrgEndHid("3000");
         when(facilityService.find(facilityID)).thenReturn(facility);
-        when(healthIdService.generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class))).thenReturn(hidBlock);
+        when(healthIdService.generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class), any(String.class), any(HidGenerationProgress.class))).thenReturn(hidBlock);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        ResponseEntity result = (ResponseEntity) healthIdController.generateBlockForOrg(facilityID, start, total).getResult();
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        Map job = awaitJob(healthIdController, healthIdController.generateBlockForOrg(facilityID, start, total, null));
 
-        assertEquals("Generated 100 HIDs.", result.getBody());
-        verify(healthIdService, times(1)).generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class));
+        assertEquals("Generated 100 HIDs.", job.get("message"));
+        verify(healthIdService, times(1)).generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class), any(String.class), any(HidGenerationProgress.class));
     }
 
     @Test
@@ -115,13 +165,13 @@ public class HealthIdControllerTest {
 
 
         when(facilityService.find(facilityID)).thenReturn(facility);
-        when(healthIdService.generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class))).thenReturn(hidBlock);
+        when(healthIdService.generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class), any(String.class), any(HidGenerationProgress.class))).thenReturn(hidBlock);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        ResponseEntity result = (ResponseEntity) healthIdController.generateBlockForOrg(facilityID, start, total).getResult();
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        Map job = awaitJob(healthIdController, healthIdController.generateBlockForOrg(facilityID, start, total, null));
 
-        assertEquals("Can generate only 100 HIDs, because series exhausted. Use another series.", result.getBody());
-        verify(healthIdService, times(1)).generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class));
+        assertEquals("Can generate only 100 HIDs, because series exhausted. Use another series.", job.get("message"));
+        verify(healthIdService, times(1)).generateBlockForOrg(eq(start), eq(total), eq(facilityID), any(UserInfo.class), any(String.class), any(HidGenerationProgress.class));
     }
 
     @Test
@@ -137,8 +187,8 @@ public class HealthIdControllerTest {
         testProperties.setOtherOrgEndHid("3000");
         when(facilityService.find(facilityId)).thenReturn(null);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        healthIdController.generateBlockForOrg(facilityId, start, total);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        healthIdController.generateBlockForOrg(facilityId, start, total, null);
         verify(healthIdService, never()).generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class));
     }
 
@@ -157,8 +207,8 @@ public class HealthIdControllerTest {
         testProperties.setOtherOrgEndHid("3000");
         when(facilityService.find(facilityID)).thenReturn(facility);
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        healthIdController.generateBlockForOrg(facilityID, start, total);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        healthIdController.generateBlockForOrg(facilityID, start, total, null);
 
         verify(healthIdService, never()).generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class));
     }
@@ -173,10 +223,38 @@ public class HealthIdControllerTest {
         expectedEx.expect(InvalidRequestException.class);
         expectedEx.expectMessage("1000 not for MCI");
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        healthIdController.generateBlock(start, total);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        healthIdController.generateBlock(start, total, null, false, null);
+
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class), any(HidWriteMode.class), anyBoolean());
+    }
+
+    @Test
+    public void shouldReportCapacityOfSeriesWithoutGenerating() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("3000");
+        HidSeriesCapacity capacity = new HidSeriesCapacity(1000L, 1099L, 99L, 1030L, 70L, 15L, 1044L);
+        when(healthIdService.getCapacity(1000L, 15L, null)).thenReturn(capacity);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+
+        assertEquals(capacity, healthIdController.capacity(1000L, 15L, null));
+        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class), any(HidWriteMode.class), anyBoolean(), anyString(), any(HidGenerationProgress.class));
+    }
+
+    @Test
+    public void shouldNotReportCapacityWhenInvalidStartForOrg() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciOrgCode("MCI");
+        testProperties.setOtherOrgStartHid("2000");
+        testProperties.setOtherOrgEndHid("3000");
+
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("4000 series is not valid.");
 
-        verify(healthIdService, never()).generateBlock(anyLong(), anyLong(), any(UserInfo.class));
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        healthIdController.capacity(4000L, 15L, "12345");
     }
 
     @Test
@@ -188,8 +266,8 @@ public class HealthIdControllerTest {
         expectedEx.expect(InvalidRequestException.class);
         expectedEx.expectMessage("This endpoint is not for MCI. To generate HIDs for MCI use /generateBlock endpoint");
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        healthIdController.generateBlockForOrg(mciFacilityId, start, total);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        healthIdController.generateBlockForOrg(mciFacilityId, start, total, null);
         verify(healthIdService, never()).generateBlockForOrg(eq(start), eq(total), eq(mciFacilityId), any(UserInfo.class));
     }
 
@@ -209,9 +287,243 @@ public class HealthIdControllerTest {
         expectedEx.expect(InvalidRequestException.class);
         expectedEx.expectMessage("4000 series is not valid.");
 
-        HealthIdController healthIdController = new HealthIdController(healthIdService, facilityService, testProperties);
-        healthIdController.generateBlockForOrg(facilityID, start, total);
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        healthIdController.generateBlockForOrg(facilityID, start, total, null);
 
         verify(healthIdService, never()).generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldCancelARunningGenerationJob() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        when(healthIdService.generateAll(any(UserInfo.class), any(HidWriteMode.class), anyBoolean(), any(HidGenerationProgress.class))).thenAnswer(new Answer<GeneratedHIDBlock>() {
+            @Override
+            public GeneratedHIDBlock answer(InvocationOnMock invocation) throws Throwable {
+                HidGenerationProgress progress = (HidGenerationProgress) invocation.getArguments()[3];
+                progress.setTotalCandidates(100);
+                progress.scanned(25);
+                started.countDown();
+                while (!progress.isCancelled()) {
+                    Thread.sleep(5);
+                }
+                return new GeneratedHIDBlock(1000L, "MCI", 1000L, 1099L, 20L, "", timeBased());
+            }
+        });
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        ResponseEntity response = (ResponseEntity) healthIdController.generate(null, false).getResult();
+        String id = (String) ((Map) response.getBody()).get("id");
+        assertTrue(started.await(10, SECONDS));
+
+        Map running = healthIdController.job(id);
+        assertEquals("RUNNING", running.get("status"));
+        assertEquals(25L, running.get("candidatesScanned"));
+        assertEquals(100L, running.get("totalCandidates"));
+
+        healthIdController.cancelJob(id);
+        assertTrue(hidGenerationJobService.find(id).await(10, SECONDS));
+        Map cancelled = healthIdController.job(id);
+        assertEquals("CANCELLED", cancelled.get("status"));
+        assertEquals("Cancelled after generating 20 HIDs.", cancelled.get("message"));
+    }
+
+    @Test
+    public void shouldReportFailedGenerationJob() throws Exception {
+        when(healthIdService.generateBlockForOrg(anyLong(), anyLong(), anyString(), any(UserInfo.class), any(String.class), any(HidGenerationProgress.class)))
+                .thenThrow(new HidGenerationException("HID Storage path /tmp/none does not exists "));
+        FacilityResponse facility = new FacilityResponse();
+        facility.setId("12345");
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setOtherOrgStartHid("1000");
+        testProperties.setOtherOrgEndHid("3000");
+        when(facilityService.find("12345")).thenReturn(facility);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, testProperties, hidGenerationJobService);
+        Map job = awaitJob(healthIdController, healthIdController.generateBlockForOrg("12345", 1000L, 10L, null));
+
+        assertEquals("FAILED", job.get("status"));
+        assertEquals("HID Storage path /tmp/none does not exists ", job.get("error"));
+    }
+
+    @Test
+    public void shouldNotFindUnknownGenerationJob() throws Exception {
+        expectedEx.expect(HealthIdNotFoundException.class);
+        expectedEx.expectMessage("HID generation job unknown not found.");
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        healthIdController.job("unknown");
+    }
+
+    @Test
+    public void shouldAnswerNextBlockAsJsonUnlessAnotherFormatIsAccepted() throws Exception {
+        MockMvc mockMvc = nextBlockMockMvc("98000000011", "98000000021");
+
+        mockMvc.perform(get("/healthIds/nextBlock/mci/MCI"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.total").value(2))
+                .andExpect(jsonPath("$.recommendedBlockSize").value(40));
+    }
+
+    @Test
+    public void shouldStreamNextBlockAsNdjson() throws Exception {
+        MockMvc mockMvc = nextBlockMockMvc("98000000011", "98000000021");
+
+        mockMvc.perform(get("/healthIds/nextBlock/mci/MCI").accept(HealthIdController.NDJSON_MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(HealthIdController.NDJSON_MEDIA_TYPE))
+                .andExpect(header().string(HealthIdController.RECOMMENDED_BLOCK_SIZE_HEADER, "40"))
+                .andExpect(content().string("\"98000000011\"\n\"98000000021\"\n"));
+    }
+
+    @Test
+    public void shouldStreamNextBlockAsPackedBinaryGzippedWhenAccepted() throws Exception {
+        MockMvc mockMvc = nextBlockMockMvc("98000000011", "98000000021");
+
+        MvcResult plain = mockMvc.perform(get("/healthIds/nextBlock/mci/MCI").accept(MediaType.APPLICATION_OCTET_STREAM))
+                .andExpect(status().isOk()).andReturn();
+        MvcResult gzipped = mockMvc.perform(get("/healthIds/nextBlock/mci/MCI").accept(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip")).andReturn();
+
+        byte[] bytes = plain.getResponse().getContentAsByteArray();
+        assertEquals(16, bytes.length);
+        assertEquals(16, plain.getResponse().getContentLength());
+        ByteBuffer hids = ByteBuffer.wrap(bytes);
+        assertEquals(98000000011L, hids.getLong());
+        assertEquals(98000000021L, hids.getLong());
+        GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(gzipped.getResponse().getContentAsByteArray()));
+        assertTrue(Arrays.equals(bytes, ByteStreams.toByteArray(unzipped)));
+    }
+
+    @Test
+    public void shouldRejectMarkingAHIDAnotherRegistrationAlreadyUsed() throws Exception {
+        UUID usedAt = timeBased();
+        when(healthIdService.markOrgHealthIdUsed("98000000011", usedAt)).thenReturn(Observable.just(HidUsageStatus.ALREADY_USED));
+        Map<String, String> requestBody = new HashMap<>();
+        requestBody.put("used_at", usedAt.toString());
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        DeferredResult<String> result = healthIdController.markUsed("98000000011", requestBody);
+
+        assertTrue(result.getResult() instanceof InvalidRequestException);
+        assertEquals("Health Id is already used.", ((InvalidRequestException) result.getResult()).getMessage());
+    }
+
+    @Test
+    public void shouldAnswerStatusOfEachHIDMarkedUsedInBulk() {
+        UUID usedAt = timeBased();
+        Map<String, UUID> usedAts = new LinkedHashMap<>();
+        usedAts.put("98000000011", usedAt);
+        Map<String, HidUsageStatus> marked = new HashMap<>();
+        marked.put("98000000011", HidUsageStatus.ACCEPTED);
+        when(healthIdProperties.getHidMarkUsedMaxBatchSize()).thenReturn(10);
+        when(healthIdService.markOrgHealthIdsUsed(usedAts)).thenReturn(Observable.just(marked));
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        DeferredResult<Map<String, HidUsageStatus>> result = healthIdController.markUsedInBulk(asList(
+                usage("98000000021", "not-a-uuid"), usage("98000000011", usedAt.toString())));
+
+        Map<String, HidUsageStatus> statuses = (Map<String, HidUsageStatus>) result.getResult();
+        assertEquals(asList("98000000021", "98000000011"), new ArrayList<>(statuses.keySet()));
+        assertEquals(HidUsageStatus.INVALID, statuses.get("98000000021"));
+        assertEquals(HidUsageStatus.ACCEPTED, statuses.get("98000000011"));
+    }
+
+    @Test
+    public void shouldRejectBulkMarkUsedBeyondMaxBatchSize() {
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("Can not mark more than 1 Health Ids used at once.");
+        when(healthIdProperties.getHidMarkUsedMaxBatchSize()).thenReturn(1);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        healthIdController.markUsedInBulk(asList(usage("98000000011", timeBased().toString()), usage("98000000021", timeBased().toString())));
+    }
+
+    @Test
+    public void shouldRejectBulkMarkUsedListingAHIDTwice() {
+        expectedEx.expect(InvalidRequestException.class);
+        expectedEx.expectMessage("Health Id 98000000011 is listed more than once.");
+        when(healthIdProperties.getHidMarkUsedMaxBatchSize()).thenReturn(10);
+
+        HealthIdController healthIdController = new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService);
+        healthIdController.markUsedInBulk(asList(usage("98000000011", timeBased().toString()), usage("98000000011", timeBased().toString())));
+    }
+
+    @Test
+    public void shouldAllocateTheBlockSizeResolvedForTheMci() throws Exception {
+        when(hidAllocationService.blockSizeFor("MCI", 5000)).thenReturn(1000);
+        when(hidAllocationService.getNextBlock("MCI", 1000, null)).thenReturn(asList(new MciHealthId("98000000011")));
+        when(hidAllocationService.recommendBlockSize("MCI")).thenReturn(400);
+        MockMvc mockMvc = standaloneSetup(new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService)).build();
+
+        mockMvc.perform(get("/healthIds/nextBlock/mci/MCI").param("blockSize", "5000"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total").value(1))
+                .andExpect(jsonPath("$.recommendedBlockSize").value(400));
+    }
+
+    @Test
+    public void shouldAnswerTooManyRequestsWithRetryAfterWhenMciExceedsItsShare() throws Exception {
+        when(hidAllocationService.blockSizeFor("MCI", null)).thenReturn(10);
+        when(hidAllocationService.getNextBlock("MCI", 10, null)).thenThrow(new HidAllocationQuotaExceededException("Slow down", 3));
+        MockMvc mockMvc = standaloneSetup(new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService)).build();
+
+        mockMvc.perform(get("/healthIds/nextBlock/mci/MCI"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"));
+    }
+
+    @Test
+    public void shouldAnswerTooManyRequestsWithRetryAfterWhenStreamingToAnMciOverItsShare() throws Exception {
+        when(hidAllocationService.blockSizeFor("MCI", null)).thenReturn(10);
+        when(hidAllocationService.getNextBlock("MCI", 10, null)).thenThrow(new HidAllocationQuotaExceededException("Slow down", 3));
+        MockMvc mockMvc = standaloneSetup(new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService)).build();
+
+        for (String mediaType : asList(HealthIdController.NDJSON_MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE)) {
+            mockMvc.perform(get("/healthIds/nextBlock/mci/MCI").accept(MediaType.parseMediaType(mediaType)))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"))
+                    .andExpect(content().string("Slow down"));
+        }
+    }
+
+    @Test
+    public void shouldAnswerConflictWhenStreamingARequestStillBeingAllocated() throws Exception {
+        when(hidAllocationService.blockSizeFor("MCI", null)).thenReturn(10);
+        when(hidAllocationService.getNextBlock("MCI", 10, "r-1")).thenThrow(new HidAllocationConflictException("Still allocating"));
+        MockMvc mockMvc = standaloneSetup(new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService)).build();
+
+        for (String mediaType : asList(HealthIdController.NDJSON_MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE)) {
+            mockMvc.perform(get("/healthIds/nextBlock/mci/MCI").param("requestId", "r-1").accept(MediaType.parseMediaType(mediaType)))
+                    .andExpect(status().isConflict())
+                    .andExpect(content().string("Still allocating"));
+        }
+    }
+
+    private Map usage(String healthId, String usedAt) {
+        Map<String, String> usage = new HashMap<>();
+        usage.put("healthId", healthId);
+        usage.put("used_at", usedAt);
+        return usage;
+    }
+
+    private MockMvc nextBlockMockMvc(String... hids) {
+        List<MciHealthId> block = new ArrayList<>();
+        for (String hid : hids) {
+            block.add(new MciHealthId(hid));
+        }
+        when(hidAllocationService.blockSizeFor("MCI", null)).thenReturn(10);
+        when(hidAllocationService.getNextBlock("MCI", 10, null)).thenReturn(block);
+        when(hidAllocationService.recommendBlockSize("MCI")).thenReturn(40);
+        return standaloneSetup(new HealthIdController(healthIdService, hidAllocationService, facilityService, healthIdProperties, hidGenerationJobService)).build();
+    }
+
+    private Map awaitJob(HealthIdController healthIdController, DeferredResult<ResponseEntity> deferredResult) throws InterruptedException {
+        ResponseEntity response = (ResponseEntity) deferredResult.getResult();
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        String id = (String) ((Map) response.getBody()).get("id");
+        assertEquals("/healthIds/jobs/" + id, response.getHeaders().getFirst(HttpHeaders.LOCATION));
+        assertTrue(hidGenerationJobService.find(id).await(10, SECONDS));
+        return healthIdController.job(id);
+    }
+}
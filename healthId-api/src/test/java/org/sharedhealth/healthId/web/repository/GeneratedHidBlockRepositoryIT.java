@@ -5,6 +5,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidAllocationCounter;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
 import org.sharedhealth.healthId.web.config.EnvironmentMock;
 import org.sharedhealth.healthId.web.launch.WebMvcConfig;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +22,9 @@ import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static java.util.Arrays.asList;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static org.sharedhealth.healthId.web.repository.RepositoryConstants.CF_GENERATED_HID_BLOCKS;
 import static org.sharedhealth.healthId.web.utils.TestUtil.truncateAllColumnFamilies;
 
@@ -69,4 +74,84 @@ public class GeneratedHidBlockRepositoryIT {
         assertEquals(hidBlock1, hidBlocks.get(0));
         assertEquals(hidBlock3, hidBlocks.get(1));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldAdvanceEndOfSeriesOnlyFromExpectedEnd() throws Exception {
+        assertNull(hidBlockRepository.getSeriesEndsAt(9100L));
+
+        assertTrue(hidBlockRepository.advanceSeriesEndsAt(9100L, null, 9150L));
+        assertFalse(hidBlockRepository.advanceSeriesEndsAt(9100L, null, 9160L));
+        assertFalse(hidBlockRepository.advanceSeriesEndsAt(9100L, 9140L, 9160L));
+        assertTrue(hidBlockRepository.advanceSeriesEndsAt(9100L, 9150L, 9199L));
+
+        assertEquals(9199L, hidBlockRepository.getSeriesEndsAt(9100L).longValue());
+        assertNull(hidBlockRepository.getSeriesEndsAt(9200L));
+    }
+
+    @Test
+    public void shouldReserveRangesOfSeriesOneAfterAnother() throws Exception {
+        assertNull(hidBlockRepository.getSeriesReservedTo(9100L));
+
+        assertTrue(hidBlockRepository.reserveSeriesRange(9100L, null, 9150L));
+        assertFalse(hidBlockRepository.reserveSeriesRange(9100L, null, 9160L));
+        assertTrue(hidBlockRepository.reserveSeriesRange(9100L, 9150L, 9199L));
+        assertFalse(hidBlockRepository.reserveSeriesRange(9100L, 9150L, 9210L));
+
+        assertEquals(9199L, hidBlockRepository.getSeriesReservedTo(9100L).longValue());
+        assertTrue(hidBlockRepository.advanceSeriesEndsAt(9200L, null, 9250L));
+        assertTrue(hidBlockRepository.reserveSeriesRange(9200L, null, 9299L));
+        assertEquals(9250L, hidBlockRepository.getSeriesEndsAt(9200L).longValue());
+        assertEquals(9299L, hidBlockRepository.getSeriesReservedTo(9200L).longValue());
+    }
+
+    @Test
+    public void shouldKeepWhereTheCounterBeginsWithTheReservationOfTheSeries() throws Exception {
+        assertTrue(hidBlockRepository.reserveSeriesRange(9300L, null, 9319L));
+        assertNull(hidBlockRepository.getSeriesCounterBeginsAt(9300L));
+
+        assertFalse(hidBlockRepository.reserveSeriesForCounter(9300L, null, 9320L, 9399L));
+        assertTrue(hidBlockRepository.reserveSeriesForCounter(9300L, 9319L, 9320L, 9399L));
+        assertTrue(hidBlockRepository.reserveSeriesForCounter(9400L, null, 9400L, 9499L));
+
+        assertEquals(9399L, hidBlockRepository.getSeriesReservedTo(9300L).longValue());
+        assertEquals(9320L, hidBlockRepository.getSeriesCounterBeginsAt(9300L).longValue());
+        assertEquals(9400L, hidBlockRepository.getSeriesCounterBeginsAt(9400L).longValue());
+    }
+
+    @Test
+    public void shouldCreateAllocationCounterOnceAndAdvanceItOneAllocationAtATime() throws Exception {
+        assertNull(hidBlockRepository.getAllocationCounter(9800L));
+
+        assertTrue(hidBlockRepository.createAllocationCounter(new HidAllocationCounter(9800L, 9820L, 9899L, 70L)));
+        assertFalse(hidBlockRepository.createAllocationCounter(new HidAllocationCounter(9800L, 9850L, 9899L, 40L)));
+        assertTrue(hidBlockRepository.advanceAllocationCounter(9800L, 0L, 10L));
+        assertFalse(hidBlockRepository.advanceAllocationCounter(9800L, 0L, 10L));
+        assertTrue(hidBlockRepository.advanceAllocationCounter(9800L, 10L, 20L));
+
+        HidAllocationCounter counter = hidBlockRepository.getAllocationCounter(9800L);
+        assertEquals(9820L, counter.getBeginsAt().longValue());
+        assertEquals(9899L, counter.getEndsAt().longValue());
+        assertEquals(20L, counter.getNextIndex().longValue());
+        assertEquals(50L, counter.getRemainingHIDs());
+    }
+
+    @Test
+    public void shouldSaveAndRetrieveCheckpointsBySeriesNo() throws Exception {
+        HidGenerationCheckpoint checkpoint = new HidGenerationCheckpoint(9100L, "key-1", "MCI", 9100L, timeBased(), null);
+        hidBlockRepository.saveCheckpoint(checkpoint);
+        checkpoint.advance(9120L, 15L, 2L);
+        hidBlockRepository.saveCheckpoint(checkpoint);
+        hidBlockRepository.saveCheckpoint(new HidGenerationCheckpoint(9200L, "key-2", "MCI", 9200L, timeBased(), null));
+
+        List<HidGenerationCheckpoint> checkpoints = hidBlockRepository.getCheckpoints(9100L);
+
+        assertEquals(1, checkpoints.size());
+        HidGenerationCheckpoint saved = checkpoints.get(0);
+        assertEquals("key-1", saved.getIdempotencyKey());
+        assertEquals(checkpoint.getGeneratedAt(), saved.getGeneratedAt());
+        assertEquals(9121L, saved.getNextCandidate());
+        assertEquals(15L, saved.getWrittenHIDs());
+        assertEquals(17L, saved.getValidHIDs());
+        assertEquals(HidGenerationCheckpoint.RUNNING, saved.getStatus());
+    }
+}
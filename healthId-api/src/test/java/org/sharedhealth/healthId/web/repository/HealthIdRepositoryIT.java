@@ -5,6 +5,11 @@ import com.datastax.driver.core.querybuilder.Select;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.sharedhealth.healthId.web.Model.HidAllocation;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.Model.HidPoolPage;
+import org.sharedhealth.healthId.web.Model.HidUsageStatus;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.config.EnvironmentMock;
@@ -17,10 +22,15 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.select;
+import static com.datastax.driver.core.utils.UUIDs.startOf;
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
@@ -60,6 +70,64 @@ public class HealthIdRepositoryIT {
         assertNotNull(nextBlock);
     }
 
+    @Test
+    public void shouldGetBlocksFromDisjointTokenRangesInTokenOrder() throws Exception {
+        createHealthIds(98190001231L);
+        Set<String> hids = new HashSet<>();
+        for (HidPoolPage page : asList(healthIdRepository.getPoolPage(10, Long.MIN_VALUE, -1L),
+                healthIdRepository.getPoolPage(10, 0L, Long.MAX_VALUE))) {
+            for (MciHealthId mciHealthId : page.getHids()) {
+                assertTrue(hids.add(mciHealthId.getHid()));
+            }
+        }
+        assertEquals(10, hids.size());
+        assertTrue(healthIdRepository.getPoolPage(10, 5L, 4L).getHids().isEmpty());
+
+        HidPoolPage firstPage = healthIdRepository.getPoolPage(4, Long.MIN_VALUE, Long.MAX_VALUE);
+        HidPoolPage nextPage = healthIdRepository.getPoolPage(10, firstPage.getLastToken() + 1, Long.MAX_VALUE);
+        assertEquals(4, firstPage.getHids().size());
+        assertEquals(6, nextPage.getHids().size());
+        assertTrue(nextPage.getLastToken() > firstPage.getLastToken());
+    }
+
+    @Test
+    public void shouldSaveAndFindPoolCursor() throws Exception {
+        assertNull(healthIdRepository.getPoolCursor("pool"));
+        healthIdRepository.savePoolCursor("pool", -42L);
+        assertEquals(Long.valueOf(-42L), healthIdRepository.getPoolCursor("pool"));
+    }
+
+    @Test
+    public void shouldReadBucketBackAsOnePartitionAndClaimItOnce() throws Exception {
+        healthIdRepository.saveBucketedHids(9800000000L, 3L, asList(new MciHealthId("98000000321"),
+                new MciHealthId("98000000301"), new MciHealthId("98000000311"))).toBlocking().first();
+        healthIdRepository.saveBucketedHids(9800000000L, 4L, asList(new MciHealthId("98000000401"))).toBlocking().first();
+
+        assertEquals(asList(new MciHealthId("98000000301"), new MciHealthId("98000000311"), new MciHealthId("98000000321")),
+                healthIdRepository.getBucket(9800000000L, 3L));
+        assertTrue(healthIdRepository.getBucket(9800000000L, 5L).isEmpty());
+
+        assertNull(healthIdRepository.getNextBucket(9800000000L));
+        assertTrue(healthIdRepository.advanceNextBucket(9800000000L, null, 1L));
+        assertFalse(healthIdRepository.advanceNextBucket(9800000000L, null, 1L));
+        assertFalse(healthIdRepository.advanceNextBucket(9800000000L, 0L, 1L));
+        assertTrue(healthIdRepository.advanceNextBucket(9800000000L, 1L, 2L));
+        assertEquals(Long.valueOf(2L), healthIdRepository.getNextBucket(9800000000L));
+    }
+
+    @Test
+    public void shouldLeasePoolRangeToOneNodeAtATime() throws Exception {
+        assertTrue(healthIdRepository.acquirePoolLease(3, "node-1", 60));
+        assertFalse(healthIdRepository.acquirePoolLease(3, "node-2", 60));
+        assertFalse(healthIdRepository.renewPoolLease(3, "node-2", 60));
+        assertTrue(healthIdRepository.renewPoolLease(3, "node-1", 60));
+
+        healthIdRepository.releasePoolLease(3, "node-2");
+        assertFalse(healthIdRepository.acquirePoolLease(3, "node-2", 60));
+        healthIdRepository.releasePoolLease(3, "node-1");
+        assertTrue(healthIdRepository.acquirePoolLease(3, "node-2", 60));
+    }
+
     @Test
     public void shouldDeleteAHIDBlockFromMciHIDAndAddItToOrgHID() throws Exception {
         long prefix = 98190001231L;
@@ -68,11 +136,117 @@ public class HealthIdRepositoryIT {
         MciHealthId mciHealthId = nextBlock.get(0);
         String hid = mciHealthId.getHid();
         OrgHealthId orgHealthId = new OrgHealthId(hid, "MCI", null);
-        healthIdRepository.saveOrgHidAndDeleteMciHid(asList(mciHealthId), asList(orgHealthId));
+        healthIdRepository.saveOrUpdateOrgHealthId(orgHealthId).toBlocking().first();
+        healthIdRepository.deleteMciHealthId(mciHealthId).toBlocking().first();
         assertNull(getHealthId(hid));
         assertNotNull(healthIdRepository.findOrgHealthId(hid));
     }
 
+    @Test
+    public void shouldNotOverwriteAllocatedHIDWhenSavingItOnlyIfAbsent() throws Exception {
+        OrgHealthId used = new OrgHealthId("98190001231", "MCI", timeBased());
+        used.markUsed(timeBased());
+        healthIdRepository.saveOrUpdateOrgHealthId(used).toBlocking().first();
+
+        healthIdRepository.saveOrgHealthIdIfAbsent(new OrgHealthId("98190001231", "MCI", timeBased())).toBlocking().first();
+        healthIdRepository.saveOrgHealthIdIfAbsent(new OrgHealthId("98190001232", "MCI", timeBased())).toBlocking().first();
+
+        assertTrue(healthIdRepository.findOrgHealthId("98190001231").toBlocking().first().isUsed());
+        assertNotNull(healthIdRepository.findOrgHealthId("98190001232").toBlocking().first());
+    }
+
+    @Test
+    public void shouldDeleteOrgHealthIdOnlyIfStillTheOneGeneratedThen() throws Exception {
+        UUID generatedAt = timeBased();
+        healthIdRepository.saveOrUpdateOrgHealthId(new OrgHealthId("98190001241", "MCI", generatedAt)).toBlocking().first();
+        healthIdRepository.saveOrUpdateOrgHealthId(new OrgHealthId("98190001242", "MCI", timeBased())).toBlocking().first();
+
+        healthIdRepository.deleteOrgHealthId("98190001241", generatedAt).toBlocking().first();
+        healthIdRepository.deleteOrgHealthId("98190001242", generatedAt).toBlocking().first();
+
+        assertNull(healthIdRepository.findOrgHealthId("98190001241").toBlocking().first());
+        assertNotNull(healthIdRepository.findOrgHealthId("98190001242").toBlocking().first());
+    }
+
+    @Test
+    public void shouldReadAllocationHistoryOfADayLatestFirstUpToTheLimit() throws Exception {
+        HidAllocationSummary first = new HidAllocationSummary("MCI1", "r-1", startOf(1000L), 2, "98190001231", "98190001232");
+        HidAllocationSummary second = new HidAllocationSummary("MCI1", null, startOf(2000L), 1, "98190001233", "98190001233");
+        healthIdRepository.saveAllocationSummary(first, 7L, 0);
+        healthIdRepository.saveAllocationSummary(second, 7L, 0);
+        healthIdRepository.saveAllocationSummary(new HidAllocationSummary("MCI1", "r-2", startOf(3000L), 1, "98190001234", "98190001234"), 8L, 0);
+
+        List<HidAllocationSummary> history = healthIdRepository.findAllocationSummaries("MCI1", 7L, 5);
+
+        assertEquals(2, history.size());
+        assertEquals(second.getAllocatedAt(), history.get(0).getAllocatedAt());
+        assertNull(history.get(0).getRequestId());
+        assertEquals("r-1", history.get(1).getRequestId());
+        assertEquals(2, history.get(1).getTotalHids());
+        assertEquals("98190001232", history.get(1).getLastHid());
+        assertEquals(1, healthIdRepository.findAllocationSummaries("MCI1", 7L, 1).size());
+    }
+
+    @Test
+    public void shouldReserveAllocationOfARequestOnceAndRecordItsBlock() throws Exception {
+        assertTrue(healthIdRepository.reserveAllocation("MCI1", "r-1", 60));
+        assertFalse(healthIdRepository.reserveAllocation("MCI1", "r-1", 60));
+        assertTrue(healthIdRepository.findAllocation("MCI1", "r-1").isPending());
+        assertTrue(healthIdRepository.refreshAllocationReservation("MCI1", "r-1", 60));
+        assertTrue(healthIdRepository.findAllocation("MCI1", "r-1").isPending());
+
+        healthIdRepository.saveAllocation(new HidAllocation("MCI1", "r-1", timeBased(), asList("98190001231", "98190001232")), 0);
+        healthIdRepository.saveAllocation(new HidAllocation("MCI2", "r-1", timeBased(), asList("98190001233")), 0);
+        assertFalse(healthIdRepository.refreshAllocationReservation("MCI1", "r-1", 60));
+
+        assertEquals(asList("98190001231", "98190001232"), healthIdRepository.findAllocation("MCI1", "r-1").getHids());
+        healthIdRepository.deleteAllocation("MCI1", "r-1");
+        assertNull(healthIdRepository.findAllocation("MCI1", "r-1"));
+    }
+
+    @Test
+    public void shouldSaveFindAndDeleteAllocationIntents() throws Exception {
+        HidAllocationIntent intent = new HidAllocationIntent(timeBased(), "MCI", asList("98190001231", "98190001232"),
+                asList("98190001232"));
+        healthIdRepository.saveAllocationIntent(intent);
+
+        List<HidAllocationIntent> intents = healthIdRepository.findAllocationIntents(intent.getHour());
+        assertEquals(1, intents.size());
+        assertEquals(intent.getIntentId(), intents.get(0).getIntentId());
+        assertEquals(intent.getHids(), intents.get(0).getHids());
+        assertEquals(intent.getPoolHids(), intents.get(0).getPoolHids());
+        assertTrue(healthIdRepository.findAllocationIntents(intent.getHour() - 1).isEmpty());
+
+        healthIdRepository.deleteAllocationIntent(intent);
+        assertTrue(healthIdRepository.findAllocationIntents(intent.getHour()).isEmpty());
+    }
+
+    @Test
+    public void shouldFindAllocationIntentsWithoutTheHIDsHandedOut() throws Exception {
+        HidAllocationIntent intent = new HidAllocationIntent(timeBased(), "MCI", asList("98190001231", "98190001232",
+                "98190001233"), asList("98190001231", "98190001233"));
+        healthIdRepository.saveAllocationIntent(intent);
+
+        healthIdRepository.saveAllocationIntentHandedOut(intent, 2).toBlocking().first();
+
+        List<HidAllocationIntent> intents = healthIdRepository.findAllocationIntents(intent.getHour());
+        assertEquals(asList("98190001233"), intents.get(0).getHids());
+        assertEquals(asList("98190001233"), intents.get(0).getPoolHids());
+
+        healthIdRepository.deleteAllocationIntentAsync(intent).toBlocking().first();
+        assertTrue(healthIdRepository.findAllocationIntents(intent.getHour()).isEmpty());
+    }
+
+    @Test
+    public void shouldSaveHIDsInAnUnloggedBatchAndFindExistingOnes() throws Exception {
+        List<MciHealthId> mciHealthIds = asList(new MciHealthId("98190001231"), new MciHealthId("98190001232"));
+        healthIdRepository.saveMciHealthIds(mciHealthIds).toBlocking().first();
+
+        Set<String> existing = healthIdRepository.findExistingMciHids(asList("98190001231", "98190001232", "98190001233")).toBlocking().first();
+        assertEquals(new HashSet<>(asList("98190001231", "98190001232")), existing);
+        assertFalse(healthIdRepository.findReplicas("98190001231").isEmpty());
+    }
+
     @Test
     public void shouldSaveAHIDForGivenOrganization() throws Exception {
         OrgHealthId orgHealthId = new OrgHealthId("9110", "OTHER-ORG", timeBased());
@@ -94,6 +268,31 @@ public class HealthIdRepositoryIT {
         assertEquals(hid, orgHealthId);
     }
 
+    @Test
+    public void shouldFindOnlyExistingOrgHIDsAmongGivenHIDs() throws Exception {
+        OrgHealthId hid = new OrgHealthId("1234", "XYZ", timeBased());
+        cqlTemplate.insert(asList(hid, new OrgHealthId("1134", "ABC", timeBased())));
+
+        Map<String, OrgHealthId> orgHealthIds = healthIdRepository.findOrgHealthIds(asList("1234", "1334")).toBlocking().first();
+        assertEquals(1, orgHealthIds.size());
+        assertEquals(hid, orgHealthIds.get("1234"));
+    }
+
+    @Test
+    public void shouldMarkOrgHIDUsedOnlyOnce() throws Exception {
+        cqlTemplate.insert(new OrgHealthId("1234", "XYZ", timeBased()));
+        UUID usedAt = timeBased();
+
+        assertEquals(HidUsageStatus.ACCEPTED, healthIdRepository.markOrgHealthIdUsed("1234", usedAt).toBlocking().single());
+        assertEquals(HidUsageStatus.ALREADY_USED, healthIdRepository.markOrgHealthIdUsed("1234", timeBased()).toBlocking().single());
+        assertEquals(HidUsageStatus.NOT_FOUND, healthIdRepository.markOrgHealthIdUsed("1334", timeBased()).toBlocking().single());
+
+        OrgHealthId orgHealthId = healthIdRepository.findOrgHealthId("1234").toBlocking().first();
+        assertTrue(orgHealthId.isUsed());
+        assertEquals(usedAt, orgHealthId.getUsedAt());
+        assertNull(healthIdRepository.findOrgHealthId("1334").toBlocking().first());
+    }
+
     public MciHealthId getHealthId(String hid) {
         Select selectHealthId = QueryBuilder.select().from(CF_MCI_HEALTH_ID).where(QueryBuilder.eq(HID, hid)).limit(1);
         List<MciHealthId> mciHealthIds = cqlTemplate.select(selectHealthId, MciHealthId.class);
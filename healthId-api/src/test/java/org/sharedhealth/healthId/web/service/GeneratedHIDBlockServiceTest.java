@@ -7,6 +7,9 @@ import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
 import org.sharedhealth.healthId.web.repository.GeneratedHidBlockRepository;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -20,18 +23,70 @@ public class GeneratedHIDBlockServiceTest {
     public void setUp() throws Exception {
         initMocks(this);
         hidBlockService = new GeneratedHidBlockService(generatedHidBlockRepository);
+        when(generatedHidBlockRepository.getSeriesEndsAt(anyLong())).thenReturn(null);
     }
 
     @Test
     public void shouldAskRepositoryToSaveGivenHIDBlock() throws Exception {
         GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(91L, "MCI", 9100L, 9165L, 20L, null, timeBased());
         when(generatedHidBlockRepository.saveGeneratedHidBlock(hidBlock)).thenReturn(null);
+        when(generatedHidBlockRepository.advanceSeriesEndsAt(91L, null, 9165L)).thenReturn(true);
 
         hidBlockService.saveGeneratedHidBlock(hidBlock);
 
         verify(generatedHidBlockRepository, times(1)).saveGeneratedHidBlock(hidBlock);
     }
 
+    @Test
+    public void shouldAdvanceEndOfSeriesWhenBlockIsSavedAndServeItFromCache() throws Exception {
+        GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(9100L, "MCI", 9166L, 9199L, 20L, null, timeBased());
+        when(generatedHidBlockRepository.getSeriesEndsAt(9100L)).thenReturn(9165L);
+        when(generatedHidBlockRepository.advanceSeriesEndsAt(9100L, 9165L, 9199L)).thenReturn(true);
+
+        hidBlockService.saveGeneratedHidBlock(hidBlock);
+
+        assertEquals(9199L, hidBlockService.getSeriesEndsAt(9100L).longValue());
+        assertEquals(9199L, hidBlockService.getSeriesEndsAt(9100L).longValue());
+        verify(generatedHidBlockRepository, times(1)).getSeriesEndsAt(9100L);
+        verify(generatedHidBlockRepository, never()).getPreGeneratedHidBlocks(9100L);
+    }
+
+    @Test
+    public void shouldRetryAdvancingEndOfSeriesWhenAnotherBlockMovedIt() throws Exception {
+        GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(9100L, "MCI", 9166L, 9199L, 20L, null, timeBased());
+        when(generatedHidBlockRepository.getSeriesEndsAt(9100L)).thenReturn(9165L, 9180L);
+        when(generatedHidBlockRepository.advanceSeriesEndsAt(9100L, 9165L, 9199L)).thenReturn(false);
+        when(generatedHidBlockRepository.advanceSeriesEndsAt(9100L, 9180L, 9199L)).thenReturn(true);
+
+        hidBlockService.saveGeneratedHidBlock(hidBlock);
+
+        verify(generatedHidBlockRepository, times(1)).advanceSeriesEndsAt(9100L, 9180L, 9199L);
+        assertEquals(9199L, hidBlockService.getSeriesEndsAt(9100L).longValue());
+    }
+
+    @Test
+    public void shouldNotMoveEndOfSeriesBackwards() throws Exception {
+        GeneratedHIDBlock hidBlock = new GeneratedHIDBlock(9100L, "MCI", 9100L, 9165L, 20L, null, timeBased());
+        when(generatedHidBlockRepository.getSeriesEndsAt(9100L)).thenReturn(9199L);
+
+        hidBlockService.saveGeneratedHidBlock(hidBlock);
+
+        verify(generatedHidBlockRepository, never()).advanceSeriesEndsAt(anyLong(), anyLong(), anyLong());
+        assertEquals(9199L, hidBlockService.getSeriesEndsAt(9100L).longValue());
+    }
+
+    @Test
+    public void shouldCatchUpEndOfSeriesFromGeneratedBlocksWhenNotInCatalog() throws Exception {
+        when(generatedHidBlockRepository.getSeriesEndsAt(9100L)).thenReturn(null);
+        when(generatedHidBlockRepository.getPreGeneratedHidBlocks(9100L)).thenReturn(asList(
+                new GeneratedHIDBlock(9100L, "MCI", 9100L, 9165L, 20L, null, timeBased()),
+                new GeneratedHIDBlock(9100L, "MCI", 9166L, 9180L, 10L, null, timeBased())));
+        when(generatedHidBlockRepository.advanceSeriesEndsAt(9100L, null, 9180L)).thenReturn(true);
+
+        assertEquals(9180L, hidBlockService.getSeriesEndsAt(9100L).longValue());
+        assertNull(hidBlockService.getSeriesEndsAt(9200L));
+    }
+
     @Test
     public void shouldAskRepositoryToRetrieveBlockForSeries() throws Exception {
         long seriesNo = 91L;
@@ -4,11 +4,14 @@ import org.apache.commons.collections.CollectionUtils;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidWriteMode;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.config.EnvironmentMock;
 import org.sharedhealth.healthId.web.launch.WebMvcConfig;
 import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.utils.TestUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -17,10 +20,12 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
 import static org.junit.Assert.assertEquals;
@@ -42,16 +47,27 @@ public class HealthIdServiceIT {
     @Autowired
     private HealthIdService healthIdService;
 
+    @Autowired
+    private HidAllocationService hidAllocationService;
+
+    @Autowired
+    private GeneratedHidBlockService generatedHidBlockService;
+
+    @Autowired
+    private HidGenerationJobService hidGenerationJobService;
+
     @After
     public void tearDown() throws Exception {
+        hidGenerationJobService.cancelAll(30, TimeUnit.SECONDS);
         TestUtil.truncateAllColumnFamilies(cqlTemplate);
+        generatedHidBlockService.invalidateSeriesEnds();
     }
 
     @Test
     public void shouldGenerateUniqueBlock() throws Exception {
         createHealthIds(9800000000L, 50);
-        List<MciHealthId> mciHealthIds = healthIdService.getNextBlock("MCI1", 10);
-        List<MciHealthId> mciHealthIds2 = healthIdService.getNextBlock("MCI2", 20);
+        List<MciHealthId> mciHealthIds = hidAllocationService.getNextBlock("MCI1", 10);
+        List<MciHealthId> mciHealthIds2 = hidAllocationService.getNextBlock("MCI2", 20);
         Collection intersection = CollectionUtils.intersection(mciHealthIds, mciHealthIds2);
         assertTrue(CollectionUtils.isEmpty(intersection));
     }
@@ -72,15 +88,28 @@ public class HealthIdServiceIT {
     @Test
     public void shouldGiveOutRemainingHIDsAndIfNeedToGenerateNewHIDsOrNot() throws Exception {
         createHealthIds(9800000000L, 50);
-        int remainingHIDs = healthIdService.findRemainingHIDs().toBlocking().first();
+        int remainingHIDs = hidAllocationService.findRemainingHIDs().toBlocking().first();
         assertEquals(10, remainingHIDs);
 
-        healthIdService.getNextBlock("MCI1",45);
+        hidAllocationService.getNextBlock("MCI1",45);
 
-        remainingHIDs = healthIdService.findRemainingHIDs().toBlocking().first();
+        remainingHIDs = hidAllocationService.findRemainingHIDs().toBlocking().first();
         assertEquals(5, remainingHIDs);
     }
 
+    @Test
+    public void shouldNotRegenerateBlockWhenIdempotencyKeyIsResubmitted() throws Exception {
+        UserInfo userInfo = new UserInfo("1", "test", "test@gmail.com", 1, true, "token", new ArrayList<String>(), new ArrayList<>());
+        GeneratedHIDBlock first = healthIdService.generateBlock(9800000000L, 20, userInfo, HidWriteMode.LWT, false, "block-1", new HidGenerationProgress());
+        GeneratedHIDBlock second = healthIdService.generateBlock(9800000000L, 20, userInfo, HidWriteMode.LWT, false, "block-1", new HidGenerationProgress());
+
+        assertEquals(20, first.getTotalHIDs().longValue());
+        assertEquals(first.getGeneratedAt(), second.getGeneratedAt());
+        assertEquals(first.getEndsAt(), second.getEndsAt());
+        assertEquals(1, generatedHidBlockService.getPreGeneratedHidBlocks(9800000000L).size());
+        assertTrue(generatedHidBlockService.getCheckpoints(9800000000L).get(0).isCompleted());
+    }
+
     private void createHealthIds(long prefix, int numberOfHids) {
         for (int i = 0; i < numberOfHids; i++) {
             MciHealthId mciHealthId = new MciHealthId(String.valueOf(prefix + i));
@@ -1,5 +1,8 @@
 package org.sharedhealth.healthId.web.service;
 
+import com.datastax.driver.core.ResultSet;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -11,21 +14,31 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
+import org.sharedhealth.healthId.web.Model.HidSeriesCapacity;
+import org.sharedhealth.healthId.web.Model.HidUsageStatus;
+import org.sharedhealth.healthId.web.Model.HidWriteMode;
 import org.sharedhealth.healthId.web.Model.MciHealthId;
 import org.sharedhealth.healthId.web.Model.OrgHealthId;
 import org.sharedhealth.healthId.web.config.HealthIdProperties;
-import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
 import org.sharedhealth.healthId.web.repository.HealthIdRepository;
 import org.sharedhealth.healthId.web.security.UserInfo;
 import org.sharedhealth.healthId.web.security.UserProfile;
-import org.sharedhealth.healthId.web.utils.LuhnChecksumGenerator;
+import org.sharedhealth.healthId.web.utils.ChecksumGenerator;
+import org.sharedhealth.healthId.web.utils.HidFileSink;
 import rx.Observable;
+import rx.functions.Action0;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static com.datastax.driver.core.utils.UUIDs.timeBased;
@@ -43,7 +56,7 @@ public class HealthIdServiceTest {
     @Mock
     private HealthIdRepository healthIdRepository;
     @Mock
-    private LuhnChecksumGenerator checksumGenerator;
+    private ChecksumGenerator checksumGenerator;
     @Mock
     private GeneratedHidBlockService generatedHidBlockService;
 
@@ -57,6 +70,11 @@ public class HealthIdServiceTest {
         healthIdProperties.setHealthIdBlockSize("10");
         healthIdProperties.setMciOrgCode("MCI");
         initMocks(this);
+        when(healthIdRepository.saveMciHealthId(any(MciHealthId.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(generatedHidBlockService.getSeriesEndsAt(anyLong())).thenReturn(null);
+        when(generatedHidBlockService.getSeriesReservedTo(anyLong())).thenReturn(null);
+        when(generatedHidBlockService.reserveSeriesRange(anyLong(), anyLong(), anyLong())).thenReturn(true);
+        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
     }
 
     @After
@@ -147,7 +165,7 @@ public class HealthIdServiceTest {
 
     @Test
     public void shouldSaveValidHids() {
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
 
         HealthIdProperties testProperties = new HealthIdProperties();
         testProperties.setMciStartHid("1000");
@@ -163,10 +181,135 @@ public class HealthIdServiceTest {
 
         ArgumentCaptor<MciHealthId> healthIdArgumentCaptor = ArgumentCaptor.forClass(MciHealthId.class);
         verify(healthIdRepository, times(80)).saveMciHealthId(healthIdArgumentCaptor.capture());
-        verify(checksumGenerator, times(80)).generate(any(String.class));
+        verify(checksumGenerator, times(1)).generate(eq(0L), eq(3), eq(100), any(int[].class));
         assertTrue(String.valueOf(healthIdArgumentCaptor.getValue().getHid()).endsWith("1"));
     }
 
+    @Test
+    public void shouldMergeCountsFromAllPartitionsWhenGeneratingInParallel() {
+        stubChecksumsWith(1);
+
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("1099");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidGenerationParallelism("4");
+        testProperties.setHidGenerationPartitionSize("7");
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo());
+        healthIdService.shutdown();
+
+        assertEquals(80, hidBlock.getTotalHIDs().longValue());
+        assertEquals(1000, hidBlock.getBeginsAt().longValue());
+        assertEquals(1099, hidBlock.getEndsAt().longValue());
+        verify(healthIdRepository, times(80)).saveMciHealthId(any(MciHealthId.class));
+        verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("10401"));
+    }
+
+    @Test
+    public void shouldReportFailedWritesInTheGeneratedBlock() {
+        stubChecksumsWith(1);
+        when(healthIdRepository.saveMciHealthId(new MciHealthId("10001"))).thenReturn(Observable.<ResultSet>error(new RuntimeException("write failed")));
+
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("1099");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo());
+
+        assertEquals(79, hidBlock.getTotalHIDs().longValue());
+        assertEquals(1, hidBlock.getFailedHIDs().longValue());
+        verify(healthIdRepository, times(80)).saveMciHealthId(any(MciHealthId.class));
+    }
+
+    @Test
+    public void shouldWritePlainBatchesInBulkModeAndReportThroughput() {
+        stubChecksumsWith(1);
+        when(healthIdRepository.saveMciHealthIds(any(List.class))).thenReturn(Observable.<ResultSet>just(null));
+
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("1099");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidGenerationParallelism("1");
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo(), HidWriteMode.BULK, false);
+
+        assertEquals(80, hidBlock.getTotalHIDs().longValue());
+        verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+        verify(healthIdRepository, times(2)).saveMciHealthIds(any(List.class));
+        assertEquals("BULK", hidBlock.getStats().getWriteMode());
+        assertNull(hidBlock.getStats().getMissingHIDs());
+        assertNull(hidBlock.getStats().getComparedWriteMode());
+
+        GeneratedHIDBlock lwtBlock = healthIdService.generateAll(getUserInfo(), HidWriteMode.LWT, false);
+        assertEquals("BULK", lwtBlock.getStats().getComparedWriteMode());
+    }
+
+    @Test
+    public void shouldWriteGeneratedHIDsIntoTheBucketsOfTheirCandidates() {
+        stubChecksumsWith(1);
+        when(healthIdRepository.saveBucketedHids(anyLong(), anyLong(), any(List.class))).thenReturn(Observable.<ResultSet>just(null));
+
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("1099");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidGenerationParallelism("1");
+        testProperties.setHidPoolLayout("BUCKETS");
+        testProperties.setHidPoolBucketSize("40");
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo(), HidWriteMode.BULK, false);
+
+        assertEquals(80, hidBlock.getTotalHIDs().longValue());
+        verify(healthIdRepository, never()).saveMciHealthIds(any(List.class));
+        ArgumentCaptor<List> firstBucket = ArgumentCaptor.forClass(List.class);
+        verify(healthIdRepository).saveBucketedHids(eq(1000L), eq(0L), firstBucket.capture());
+        assertEquals(40, firstBucket.getValue().size());
+        assertEquals(new MciHealthId("10001"), firstBucket.getValue().get(0));
+        ArgumentCaptor<List> secondBucket = ArgumentCaptor.forClass(List.class);
+        verify(healthIdRepository).saveBucketedHids(eq(1000L), eq(1L), secondBucket.capture());
+        assertEquals(20, secondBucket.getValue().size());
+        ArgumentCaptor<List> lastBucket = ArgumentCaptor.forClass(List.class);
+        verify(healthIdRepository).saveBucketedHids(eq(1000L), eq(2L), lastBucket.capture());
+        assertEquals(new MciHealthId("10991"), lastBucket.getValue().get(lastBucket.getValue().size() - 1));
+    }
+
+    @Test
+    public void shouldCountHIDsMissingFromPoolAndOrganizationsWhenVerifying() {
+        stubChecksumsWith(1);
+        when(healthIdRepository.findExistingMciHids(any(Collection.class))).thenAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Set<String> existing = new HashSet<>((Collection<String>) invocation.getArguments()[0]);
+                existing.remove("10001");
+                existing.remove("10021");
+                return Observable.just(existing);
+            }
+        });
+        when(healthIdRepository.findExistingOrgHids(any(Collection.class))).thenReturn(Observable.<Set<String>>just(new HashSet<>(asList("10021"))));
+
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciStartHid("1000");
+        testProperties.setMciEndHid("1099");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateAll(getUserInfo(), HidWriteMode.LWT, true);
+
+        assertEquals(1, hidBlock.getStats().getMissingHIDs().longValue());
+    }
+
     @Test
     public void shouldSaveTheGeneratedBlock() throws Exception {
         HealthIdProperties testProperties = new HealthIdProperties();
@@ -176,7 +319,7 @@ public class HealthIdServiceTest {
         testProperties.setMciEndHid("1099");
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
@@ -202,7 +345,7 @@ public class HealthIdServiceTest {
         testProperties.setMciEndHid("1050");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateAll(getUserInfo());
@@ -225,25 +368,237 @@ public class HealthIdServiceTest {
         assertEquals(0, hidBlock.getTotalHIDs().longValue());
     }
 
-    @Test(expected = HealthIdExhaustedException.class)
-    public void shouldGetExceptionIfIdsAreNotGeneratedBeforeFetch() throws ExecutionException, InterruptedException {
-        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
-        healthIdService.getNextBlock(healthIdProperties.getMciOrgCode(), 10);
+    @Test
+    public void shouldReportProgressAndStopGeneratingBlockOnceCancelled() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciOrgCode("MCI");
+        stubChecksumsWith(1);
+        final HidGenerationProgress progress = new HidGenerationProgress();
+        when(healthIdRepository.saveMciHealthId(any(MciHealthId.class))).thenAnswer(new Answer<Observable<ResultSet>>() {
+            @Override
+            public Observable<ResultSet> answer(InvocationOnMock invocation) throws Throwable {
+                if (progress.getCandidatesScanned() == 30) {
+                    progress.cancel();
+                }
+                return Observable.just(null);
+            }
+        });
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(1000, 50, getUserInfo(), HidWriteMode.LWT, false, null, progress);
+
+        assertEquals(30, progress.getCandidatesScanned());
+        assertEquals(30, progress.getHidsWritten());
+        assertEquals(50, progress.getTargetHIDs());
+        assertEquals(1029, hidBlock.getEndsAt().longValue());
+        assertEquals(30, hidBlock.getTotalHIDs().longValue());
     }
 
     @Test
-    public void shouldFetchBlockIdsForMCIService() {
-        ArrayList<MciHealthId> result = new ArrayList<>();
-        result.add(new MciHealthId("898998"));
-        result.add(new MciHealthId("898999"));
-        int blockSize = 3;
-        when(healthIdRepository.getNextBlock(blockSize)).thenReturn(result);
+    public void shouldCheckpointBlockGenerationPeriodically() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciOrgCode("MCI");
+        testProperties.setHidGenerationCheckpointInterval("10");
+        stubChecksumsWith(1);
 
-        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
-        List<MciHealthId> nextBlock = healthIdService.getNextBlock("MCI", blockSize);
-        verify(healthIdRepository).getNextBlock(blockSize);
-        verify(healthIdRepository, times(1)).saveOrgHidAndDeleteMciHid(any(List.class), any(List.class));
-        assertEquals(2, nextBlock.size());
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        healthIdService.generateBlock(1000, 50, getUserInfo(), HidWriteMode.LWT, false, "block-1", new HidGenerationProgress());
+
+        ArgumentCaptor<HidGenerationCheckpoint> checkpoints = ArgumentCaptor.forClass(HidGenerationCheckpoint.class);
+        verify(generatedHidBlockService, times(6)).saveCheckpoint(checkpoints.capture());
+        HidGenerationCheckpoint checkpoint = checkpoints.getValue();
+        assertEquals("block-1", checkpoint.getIdempotencyKey());
+        assertTrue(checkpoint.isCompleted());
+        assertEquals(1069, checkpoint.getLastCandidate().longValue());
+        assertEquals(50, checkpoint.getWrittenHIDs());
+        verify(healthIdRepository, never()).findExistingOrgHids(any(Collection.class));
+    }
+
+    @Test
+    public void shouldResumeInterruptedBlockGenerationFromItsLastCheckpoint() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciOrgCode("MCI");
+        testProperties.setHidGenerationCheckpointInterval("10");
+        stubChecksumsWith(1);
+        HidGenerationCheckpoint interrupted = new HidGenerationCheckpoint(1000L, "block-1", "MCI", 1000L, timeBased(), "{}");
+        interrupted.advance(1019L, 19L, 1L);
+        interrupted.interrupt();
+        when(generatedHidBlockService.getCheckpoints(1000L)).thenReturn(asList(interrupted));
+        when(healthIdRepository.findExistingOrgHids(any(Collection.class))).thenReturn(Observable.<Set<String>>just(new HashSet<>(asList("10201"))));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(1000, 50, getUserInfo(), HidWriteMode.LWT, false, null, new HidGenerationProgress());
+
+        verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("10191"));
+        verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("10201"));
+        verify(healthIdRepository, times(1)).saveMciHealthId(new MciHealthId("10211"));
+        verify(healthIdRepository, times(29)).saveMciHealthId(any(MciHealthId.class));
+        assertEquals(1000, hidBlock.getBeginsAt().longValue());
+        assertEquals(1069, hidBlock.getEndsAt().longValue());
+        assertEquals(49, hidBlock.getTotalHIDs().longValue());
+        assertEquals(1, hidBlock.getFailedHIDs().longValue());
+        assertEquals(interrupted.getGeneratedAt(), hidBlock.getGeneratedAt());
+    }
+
+    @Test
+    public void shouldReturnCompletedBlockWhenIdempotencyKeyIsResubmitted() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciOrgCode("MCI");
+        HidGenerationCheckpoint completed = new HidGenerationCheckpoint(1000L, "block-1", "MCI", 1000L, timeBased(), "{}");
+        completed.complete(1069L, 50L, 0L);
+        when(generatedHidBlockService.getCheckpoints(1000L)).thenReturn(asList(completed));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(1000, 50, getUserInfo(), HidWriteMode.LWT, false, "block-1", new HidGenerationProgress());
+
+        assertEquals(1069, hidBlock.getEndsAt().longValue());
+        assertEquals(50, hidBlock.getTotalHIDs().longValue());
+        verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+        verify(generatedHidBlockService, never()).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
+        verify(generatedHidBlockService, never()).saveCheckpoint(any(HidGenerationCheckpoint.class));
+    }
+
+    @Test
+    public void shouldRecordInterruptedGenerationOfAnotherOrganizationBeforeStarting() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        stubChecksumsWith(1);
+        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.findOrgHealthIds(any(Collection.class))).thenReturn(Observable.just(noOrgHealthIds()));
+        HidGenerationCheckpoint interrupted = new HidGenerationCheckpoint(10000L, "other", "ORG-1", 10000L, timeBased(), "{}");
+        interrupted.advance(10019L, 20L, 0L);
+        interrupted.setUpdatedAt(new DateTime().minusMinutes(10).toDate());
+        when(generatedHidBlockService.getCheckpoints(10000L)).thenReturn(asList(interrupted));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        healthIdService.generateBlockForOrg(10000, 10, "ORG-2", getUserInfo());
+
+        ArgumentCaptor<GeneratedHIDBlock> blocks = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
+        verify(generatedHidBlockService, times(2)).saveGeneratedHidBlock(blocks.capture());
+        GeneratedHIDBlock recorded = blocks.getAllValues().get(0);
+        assertEquals("ORG-1", recorded.getGeneratedFor());
+        assertEquals(10019, recorded.getEndsAt().longValue());
+        assertEquals(20, recorded.getTotalHIDs().longValue());
+        assertTrue(interrupted.isCompleted());
+        assertEquals("ORG-2", blocks.getAllValues().get(1).getGeneratedFor());
+    }
+
+    @Test
+    public void shouldCountCapacityOfSeriesAfterItsReservedRange() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("(\\d)\\1{2}");
+        testProperties.setOtherOrgInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setMciOrgCode("MCI");
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(1019L);
+        when(generatedHidBlockService.getSeriesReservedTo(1000L)).thenReturn(1029L);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HidSeriesCapacity mciCapacity = healthIdService.getCapacity(1000L, 15, null);
+        HidSeriesCapacity orgCapacity = healthIdService.getCapacity(1000L, 15, "ORG-1");
+
+        assertEquals(1099, mciCapacity.getSeriesEndsAt());
+        assertEquals(99, mciCapacity.getTotalValidHIDs());
+        assertEquals(1030, mciCapacity.getNextStart());
+        assertEquals(70, mciCapacity.getRemainingValidHIDs());
+        assertEquals(15, mciCapacity.getAvailableHIDs());
+        assertEquals(1044, mciCapacity.getBlockEndsAt().longValue());
+        assertEquals(80, orgCapacity.getTotalValidHIDs());
+        assertEquals(50, orgCapacity.getRemainingValidHIDs());
+        assertEquals(1064, orgCapacity.getBlockEndsAt().longValue());
+        verify(generatedHidBlockService, never()).reserveSeriesRange(anyLong(), anyLong(), anyLong());
+        verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+    }
+
+    @Test
+    public void shouldReportExhaustedSeriesCapacity() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("(\\d)\\1{2}");
+        testProperties.setOtherOrgInvalidHidPattern("(\\d)\\1{2}");
+        testProperties.setMciOrgCode("MCI");
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(1099L);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        HidSeriesCapacity capacity = healthIdService.getCapacity(1000L, 15, "MCI");
+
+        assertEquals(1100, capacity.getNextStart());
+        assertEquals(0, capacity.getRemainingValidHIDs());
+        assertEquals(0, capacity.getAvailableHIDs());
+        assertTrue(capacity.isExhausted());
+        assertNull(capacity.getBlockEndsAt());
+    }
+
+    @Test
+    public void shouldLeaveGenerationHoldingItsLeaseAloneAndReserveRangeAfterIt() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciOrgCode("MCI");
+        stubChecksumsWith(1);
+        HidGenerationCheckpoint elsewhere = new HidGenerationCheckpoint(1000L, "other-node", "MCI", 1000L, timeBased(), "{}");
+        elsewhere.setReservedTo(1069L);
+        elsewhere.advance(1019L, 20L, 0L);
+        when(generatedHidBlockService.getCheckpoints(1000L)).thenReturn(asList(elsewhere));
+        when(generatedHidBlockService.getSeriesReservedTo(1000L)).thenReturn(1069L);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(1000, 10, getUserInfo());
+
+        verify(generatedHidBlockService, times(1)).reserveSeriesRange(1000L, 1069L, 1079L);
+        verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(any(GeneratedHIDBlock.class));
+        verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("10691"));
+        assertFalse(elsewhere.isCompleted());
+        assertEquals(1070, hidBlock.getBeginsAt().longValue());
+        assertEquals(1079, hidBlock.getEndsAt().longValue());
+        assertEquals(10, hidBlock.getTotalHIDs().longValue());
+    }
+
+    @Test
+    public void shouldRetryReservationWhenAnotherGenerationReservedFirst() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setHidStoragePath("test-hid");
+        testProperties.setMciOrgCode("MCI");
+        stubChecksumsWith(1);
+        when(generatedHidBlockService.getSeriesReservedTo(1000L)).thenReturn(null, 1029L);
+        when(generatedHidBlockService.reserveSeriesRange(1000L, null, 1019L)).thenReturn(false);
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        GeneratedHIDBlock hidBlock = healthIdService.generateBlock(1000, 20, getUserInfo());
+
+        verify(generatedHidBlockService, times(1)).reserveSeriesRange(1000L, 1029L, 1069L);
+        assertEquals(1030, hidBlock.getBeginsAt().longValue());
+        assertEquals(1069, hidBlock.getEndsAt().longValue());
+        assertEquals(20, hidBlock.getTotalHIDs().longValue());
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldNotResumeGenerationWhoseKeyStillHoldsItsLease() throws Exception {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("^(105|104)\\d*$");
+        testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
+        testProperties.setMciOrgCode("MCI");
+        HidGenerationCheckpoint running = new HidGenerationCheckpoint(1000L, "block-1", "MCI", 1000L, timeBased(), "{}");
+        running.advance(1019L, 20L, 0L);
+        when(generatedHidBlockService.getCheckpoints(1000L)).thenReturn(asList(running));
+
+        HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        healthIdService.generateBlock(1000, 50, getUserInfo(), HidWriteMode.LWT, false, "block-1", new HidGenerationProgress());
     }
 
     @Test
@@ -255,13 +610,13 @@ public class HealthIdServiceTest {
         testProperties.setOtherOrgInvalidHidPattern("^(105|104)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
         verify(healthIdRepository, times(100)).saveMciHealthId(any(MciHealthId.class));
-        verify(checksumGenerator, times(100)).generate(any(String.class));
+        verify(checksumGenerator, times(100)).generate(anyLong(), anyInt());
 
         verify(healthIdRepository, times(1)).saveMciHealthId(new MciHealthId("100001"));
         verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("100401"));
@@ -279,8 +634,8 @@ public class HealthIdServiceTest {
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
 
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(new ArrayList<GeneratedHIDBlock>());
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(null);
+        stubChecksumsWith(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
@@ -308,17 +663,15 @@ public class HealthIdServiceTest {
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
 
-        GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(1000L, testProperties.getMciOrgCode(), 1000L, 1069L, 20L, null, timeBased());
-
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(asList(generatedHIDBlock));
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(1069L);
+        stubChecksumsWith(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
-        verify(generatedHidBlockService, times(1)).getPreGeneratedHidBlocks(1000L);
+        verify(generatedHidBlockService, times(1)).getSeriesEndsAt(1000L);
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
         GeneratedHIDBlock passedHidBlock = argument.getValue();
@@ -346,7 +699,7 @@ public class HealthIdServiceTest {
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
@@ -364,15 +717,15 @@ public class HealthIdServiceTest {
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("MCI");
 
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(new ArrayList<GeneratedHIDBlock>());
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(null);
+        stubChecksumsWith(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
-        verify(generatedHidBlockService, times(1)).getPreGeneratedHidBlocks(1000L);
+        verify(generatedHidBlockService, times(1)).getSeriesEndsAt(1000L);
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
         GeneratedHIDBlock passedHidBlock = argument.getValue();
@@ -395,17 +748,15 @@ public class HealthIdServiceTest {
         testProperties.setHidStoragePath("test-hid");
         testProperties.setMciOrgCode("mci");
 
-        GeneratedHIDBlock generatedHIDBlock = new GeneratedHIDBlock(1000L, testProperties.getMciOrgCode(), 1000L, 1089L, 80L, null, timeBased());
-
-        when(generatedHidBlockService.getPreGeneratedHidBlocks(1000L)).thenReturn(asList(generatedHIDBlock));
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(1089L);
+        stubChecksumsWith(1);
         when(generatedHidBlockService.saveGeneratedHidBlock(any(GeneratedHIDBlock.class))).thenReturn(null);
         when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(null);
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlock(start, totalHIDs, getUserInfo());
 
-        verify(generatedHidBlockService, times(1)).getPreGeneratedHidBlocks(1000L);
+        verify(generatedHidBlockService, times(1)).getSeriesEndsAt(1000L);
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
         GeneratedHIDBlock passedHidBlock = argument.getValue();
@@ -431,15 +782,15 @@ public class HealthIdServiceTest {
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
         when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
-        when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(Observable.<OrgHealthId>just(null));
+        when(healthIdRepository.findOrgHealthIds(any(Collection.class))).thenReturn(Observable.just(noOrgHealthIds()));
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
 
         verify(healthIdRepository, times(100)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
-        verify(checksumGenerator, times(100)).generate(anyString());
+        verify(checksumGenerator, times(100)).generate(anyLong(), anyInt());
 
         verify(healthIdRepository, times(1)).saveOrUpdateOrgHealthId(argThat(orgHID("100001", orgCode)));
         verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(argThat(orgHID("100401", orgCode)));
@@ -469,15 +820,15 @@ public class HealthIdServiceTest {
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
         when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
-        when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(Observable.<OrgHealthId>just(null));
+        when(healthIdRepository.findOrgHealthIds(any(Collection.class))).thenReturn(Observable.just(noOrgHealthIds()));
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
 
         verify(healthIdRepository, times(100)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
-        verify(checksumGenerator, times(100)).generate(anyString());
+        verify(checksumGenerator, times(100)).generate(anyLong(), anyInt());
         ArgumentCaptor<GeneratedHIDBlock> argument = ArgumentCaptor.forClass(GeneratedHIDBlock.class);
         verify(generatedHidBlockService, times(1)).saveGeneratedHidBlock(argument.capture());
 
@@ -487,6 +838,15 @@ public class HealthIdServiceTest {
         assertEquals(10119, passedHidBlock.getEndsAt().longValue());
         assertEquals(100, passedHidBlock.getTotalHIDs().longValue());
         assertRequestedBy(passedHidBlock);
+
+        File[] manifests = new File("test-hid").listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(HidFileSink.MANIFEST_SUFFIX);
+            }
+        });
+        assertEquals(1, manifests.length);
+        assertTrue(Files.readLines(manifests[0], Charsets.UTF_8).contains("count=100"));
     }
 
     @Test
@@ -499,19 +859,116 @@ public class HealthIdServiceTest {
         testProperties.setOtherOrgInvalidHidPattern("^(1005|1004)\\d*$");
         testProperties.setHidStoragePath("test-hid");
 
-        when(checksumGenerator.generate(any(String.class))).thenReturn(1);
+        stubChecksumsWith(1);
         when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
-        when(healthIdRepository.findOrgHealthId(anyString())).thenReturn(Observable.<OrgHealthId>just(null),
-                Observable.just(new OrgHealthId("100011", "XYZ", any(UUID.class))),
-                Observable.<OrgHealthId>just(null));
+        Map<String, OrgHealthId> existing = new HashMap<>();
+        existing.put("100011", new OrgHealthId("100011", "XYZ", timeBased()));
+        when(healthIdRepository.findOrgHealthIds(any(Collection.class))).thenReturn(Observable.just(existing),
+                Observable.just(noOrgHealthIds()));
 
         HealthIdService healthIdService = new HealthIdService(testProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
         healthIdService.generateBlockForOrg(start, totalHIDs, orgCode, getUserInfo());
 
-        verify(healthIdRepository, times(101)).findOrgHealthId(anyString());
-        verify(checksumGenerator, times(101)).generate(anyString());
+        verify(healthIdRepository, times(2)).findOrgHealthIds(any(Collection.class));
+        verify(checksumGenerator, times(101)).generate(anyLong(), anyInt());
         verify(healthIdRepository, times(100)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+        verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(argThat(orgHID("100011", orgCode)));
+
+    }
+
+    @Test
+    public void shouldMarkHIDUsedWithOneConditionalUpdate() {
+        UUID usedAt = timeBased();
+        when(healthIdRepository.markOrgHealthIdUsed("98000000011", usedAt)).thenReturn(Observable.just(HidUsageStatus.ACCEPTED));
 
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+
+        assertEquals(HidUsageStatus.ACCEPTED, healthIdService.markOrgHealthIdUsed("98000000011", usedAt).toBlocking().single());
+        verify(healthIdRepository, never()).findOrgHealthId(anyString());
+        verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+    }
+
+    @Test
+    public void shouldAcceptRetryOfTheRegistrationThatUsedTheHID() {
+        UUID usedAt = timeBased();
+        OrgHealthId used = new OrgHealthId("98000000011", "XYZ", timeBased());
+        used.markUsed(usedAt);
+        when(healthIdRepository.markOrgHealthIdUsed(eq("98000000011"), any(UUID.class))).thenReturn(Observable.just(HidUsageStatus.ALREADY_USED));
+        when(healthIdRepository.findOrgHealthId("98000000011")).thenReturn(Observable.just(used));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+
+        assertEquals(HidUsageStatus.ACCEPTED, healthIdService.markOrgHealthIdUsed("98000000011", usedAt).toBlocking().single());
+        assertEquals(HidUsageStatus.ALREADY_USED, healthIdService.markOrgHealthIdUsed("98000000011", timeBased()).toBlocking().single());
+    }
+
+    @Test
+    public void shouldGiveEachHIDItsOwnStatusWhenMarkingInBulk() {
+        Map<String, UUID> usedAts = new LinkedHashMap<>();
+        usedAts.put("98000000031", timeBased());
+        usedAts.put("98000000011", timeBased());
+        usedAts.put("98000000021", timeBased());
+        when(healthIdRepository.markOrgHealthIdUsed("98000000011", usedAts.get("98000000011"))).thenReturn(Observable.just(HidUsageStatus.ACCEPTED));
+        when(healthIdRepository.markOrgHealthIdUsed("98000000021", usedAts.get("98000000021"))).thenReturn(Observable.just(HidUsageStatus.NOT_FOUND));
+        when(healthIdRepository.markOrgHealthIdUsed("98000000031", usedAts.get("98000000031"))).thenReturn(Observable.<HidUsageStatus>error(new RuntimeException("Timed out")));
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        Map<String, HidUsageStatus> statuses = healthIdService.markOrgHealthIdsUsed(usedAts).toBlocking().single();
+
+        assertEquals(asList("98000000031", "98000000011", "98000000021"), new ArrayList<>(statuses.keySet()));
+        assertEquals(HidUsageStatus.FAILED, statuses.get("98000000031"));
+        assertEquals(HidUsageStatus.ACCEPTED, statuses.get("98000000011"));
+        assertEquals(HidUsageStatus.NOT_FOUND, statuses.get("98000000021"));
+    }
+
+    @Test
+    public void shouldBoundHIDsMarkedUsedAtOnce() {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        when(healthIdRepository.markOrgHealthIdUsed(anyString(), any(UUID.class))).thenAnswer(new Answer<Observable<HidUsageStatus>>() {
+            @Override
+            public Observable<HidUsageStatus> answer(InvocationOnMock invocation) throws Throwable {
+                int running = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), running));
+                }
+                return Observable.just(HidUsageStatus.ACCEPTED).delay(20, TimeUnit.MILLISECONDS)
+                        .doOnCompleted(new Action0() {
+                            @Override
+                            public void call() {
+                                inFlight.decrementAndGet();
+                            }
+                        });
+            }
+        });
+        healthIdProperties.setHidMarkUsedMaxInFlight("2");
+        Map<String, UUID> usedAts = new LinkedHashMap<>();
+        for (int i = 0; i < 6; i++) {
+            usedAts.put(String.valueOf(98000000011L + i * 10), timeBased());
+        }
+
+        HealthIdService healthIdService = new HealthIdService(healthIdProperties, healthIdRepository, checksumGenerator, generatedHidBlockService);
+        Map<String, HidUsageStatus> statuses = healthIdService.markOrgHealthIdsUsed(usedAts).toBlocking().single();
+
+        assertEquals(6, statuses.size());
+        assertEquals(Collections.singleton(HidUsageStatus.ACCEPTED), new HashSet<>(statuses.values()));
+        assertEquals(2, maxInFlight.get());
+    }
+
+    private Map<String, OrgHealthId> noOrgHealthIds() {
+        return new HashMap<>();
+    }
+
+    private void stubChecksumsWith(final int checkDigit) {
+        when(checksumGenerator.generate(anyLong(), anyInt())).thenReturn(checkDigit);
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] arguments = invocation.getArguments();
+                Arrays.fill((int[]) arguments[3], 0, (Integer) arguments[2], checkDigit);
+                return null;
+            }
+        }).when(checksumGenerator).generate(anyLong(), anyInt(), anyInt(), any(int[].class));
     }
 
     private UserInfo getUserInfo() {
@@ -0,0 +1,212 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.HidAllocation;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.sharedhealth.healthId.web.exception.HidAllocationConflictException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import rx.functions.Func0;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.datastax.driver.core.utils.UUIDs.startOf;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidAllocationLedgerTest {
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    private HidAllocationLedger ledger;
+    private int allocations;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        ledger = new HidAllocationLedger(healthIdRepository, 3600);
+        allocations = 0;
+    }
+
+    @After
+    public void tearDown() {
+        ledger.shutdown();
+    }
+
+    @Test
+    public void shouldAllocateAndRecordBlockOfANewRequest() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(true);
+
+        List<MciHealthId> block = ledger.replayOrAllocate("MCI", "r-1", allocation("11", "21"));
+
+        assertEquals(asList(new MciHealthId("11"), new MciHealthId("21")), block);
+        ArgumentCaptor<HidAllocation> recorded = ArgumentCaptor.forClass(HidAllocation.class);
+        verify(healthIdRepository).saveAllocation(recorded.capture(), eq(3600));
+        assertEquals("r-1", recorded.getValue().getRequestId());
+        assertEquals(asList("11", "21"), recorded.getValue().getHids());
+        ArgumentCaptor<HidAllocationSummary> summary = ArgumentCaptor.forClass(HidAllocationSummary.class);
+        verify(healthIdRepository).saveAllocationSummary(summary.capture(), anyLong(), eq(3600));
+        assertEquals("r-1", summary.getValue().getRequestId());
+        assertEquals(recorded.getValue().getAllocatedAt(), summary.getValue().getAllocatedAt());
+        assertEquals(2, summary.getValue().getTotalHids());
+        assertEquals("11", summary.getValue().getFirstHid());
+        assertEquals("21", summary.getValue().getLastHid());
+    }
+
+    @Test
+    public void shouldRecordBlockWithoutRequestIdInTheHistoryOnly() {
+        ledger.record("MCI", asList(new MciHealthId("11"), new MciHealthId("21"), new MciHealthId("31")));
+
+        ArgumentCaptor<HidAllocationSummary> summary = ArgumentCaptor.forClass(HidAllocationSummary.class);
+        verify(healthIdRepository).saveAllocationSummary(summary.capture(), anyLong(), eq(3600));
+        assertNull(summary.getValue().getRequestId());
+        assertEquals(3, summary.getValue().getTotalHids());
+        verify(healthIdRepository, never()).saveAllocation(any(HidAllocation.class), anyInt());
+    }
+
+    @Test
+    public void shouldReplayRecordedBlockOfARetriedRequest() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(false);
+        when(healthIdRepository.findAllocation("MCI", "r-1")).thenReturn(new HidAllocation("MCI", "r-1", startOf(1000L), asList("11", "21")));
+
+        List<MciHealthId> block = ledger.replayOrAllocate("MCI", "r-1", allocation("31"));
+
+        assertEquals(asList(new MciHealthId("11"), new MciHealthId("21")), block);
+        assertEquals(0, allocations);
+        verify(healthIdRepository, never()).saveAllocation(any(HidAllocation.class), anyInt());
+    }
+
+    @Test(expected = HidAllocationConflictException.class)
+    public void shouldRejectRetryWhileTheFirstAttemptIsStillAllocating() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(false);
+        when(healthIdRepository.findAllocation("MCI", "r-1")).thenReturn(new HidAllocation("MCI", "r-1", startOf(1000L), null));
+
+        ledger.replayOrAllocate("MCI", "r-1", allocation("31"));
+    }
+
+    @Test
+    public void shouldDropReservationWhenAllocationFails() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(true);
+
+        try {
+            ledger.replayOrAllocate("MCI", "r-1", new Func0<List<MciHealthId>>() {
+                @Override
+                public List<MciHealthId> call() {
+                    throw new HealthIdExhaustedException();
+                }
+            });
+            fail("Allocation should fail");
+        } catch (HealthIdExhaustedException e) {
+            verify(healthIdRepository).deleteAllocation("MCI", "r-1");
+            verify(healthIdRepository, never()).saveAllocation(any(HidAllocation.class), anyInt());
+        }
+    }
+
+    @Test
+    public void shouldRefreshReservationWhileAllocating() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(true);
+        HidAllocationLedger refreshingLedger = new HidAllocationLedger(healthIdRepository, 3600, 10);
+
+        List<MciHealthId> block = refreshingLedger.replayOrAllocate("MCI", "r-1", new Func0<List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return asList(new MciHealthId("11"));
+            }
+        });
+
+        assertEquals(asList(new MciHealthId("11")), block);
+        verify(healthIdRepository, atLeastOnce()).refreshAllocationReservation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS);
+        refreshingLedger.shutdown();
+    }
+
+    @Test
+    public void shouldRetryAFailedSaveOfTheBlock() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(true);
+        doThrow(new RuntimeException("write timeout")).doNothing().when(healthIdRepository).saveAllocation(any(HidAllocation.class), eq(3600));
+
+        List<MciHealthId> block = ledger.replayOrAllocate("MCI", "r-1", allocation("11", "21"));
+
+        assertEquals(asList(new MciHealthId("11"), new MciHealthId("21")), block);
+        verify(healthIdRepository, times(2)).saveAllocation(any(HidAllocation.class), eq(3600));
+        verify(healthIdRepository, never()).deleteAllocation("MCI", "r-1");
+    }
+
+    @Test
+    public void shouldHandOutAllocatedBlockEvenWhenItCanNotBeRecorded() {
+        when(healthIdRepository.reserveAllocation("MCI", "r-1", HidAllocationLedger.PENDING_TTL_SECONDS)).thenReturn(true);
+        doThrow(new RuntimeException("write timeout")).when(healthIdRepository).saveAllocation(any(HidAllocation.class), eq(3600));
+
+        List<MciHealthId> block = ledger.replayOrAllocate("MCI", "r-1", allocation("11", "21"));
+
+        assertEquals(asList(new MciHealthId("11"), new MciHealthId("21")), block);
+        assertEquals(1, allocations);
+        verify(healthIdRepository, times(HidAllocationLedger.SAVE_ATTEMPTS)).saveAllocation(any(HidAllocation.class), eq(3600));
+        verify(healthIdRepository).saveAllocationSummary(any(HidAllocationSummary.class), anyLong(), eq(3600));
+    }
+
+    @Test
+    public void shouldReadLatestAllocationsDayByDayUpToTheLimit() {
+        long now = TimeUnit.DAYS.toMillis(100) + 1000L;
+        HidAllocationSummary today = new HidAllocationSummary("MCI", "a", startOf(now), 1, "11", "11");
+        HidAllocationSummary dayBefore = new HidAllocationSummary("MCI", "b", startOf(now - TimeUnit.DAYS.toMillis(2)), 1, "21", "21");
+        when(healthIdRepository.findAllocationSummaries(eq("MCI"), anyLong(), anyInt())).thenReturn(Collections.<HidAllocationSummary>emptyList());
+        when(healthIdRepository.findAllocationSummaries("MCI", 100L, 2)).thenReturn(asList(today));
+        when(healthIdRepository.findAllocationSummaries("MCI", 98L, 1)).thenReturn(asList(dayBefore));
+
+        HidAllocationLedger monthLongLedger = new HidAllocationLedger(healthIdRepository, (int) TimeUnit.DAYS.toSeconds(30));
+        assertEquals(asList(today, dayBefore), monthLongLedger.history("MCI", 2, now));
+        verify(healthIdRepository, never()).findAllocationSummaries(eq("MCI"), eq(97L), anyInt());
+    }
+
+    @Test
+    public void shouldReadHistoryNoFurtherBackThanTheLedgerKeepsIt() {
+        long now = TimeUnit.DAYS.toMillis(100);
+        when(healthIdRepository.findAllocationSummaries(eq("MCI"), anyLong(), anyInt())).thenReturn(Collections.<HidAllocationSummary>emptyList());
+
+        assertTrue(new HidAllocationLedger(healthIdRepository, (int) TimeUnit.DAYS.toSeconds(2)).history("MCI", 5, now).isEmpty());
+
+        verify(healthIdRepository).findAllocationSummaries("MCI", 98L, 5);
+        verify(healthIdRepository, never()).findAllocationSummaries("MCI", 97L, 5);
+    }
+
+    private Func0<List<MciHealthId>> allocation(final String... hids) {
+        return new Func0<List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call() {
+                allocations++;
+                List<MciHealthId> block = new ArrayList<>();
+                for (String hid : hids) {
+                    block.add(new MciHealthId(hid));
+                }
+                return block;
+            }
+        };
+    }
+}
@@ -0,0 +1,163 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Test;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.exception.HidAllocationQuotaExceededException;
+import org.springframework.boot.actuate.metrics.Metric;
+import rx.functions.Func0;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HidAllocationSchedulerTest {
+
+    @Test
+    public void shouldRejectAllocationBeyondQuotaWithTimeUntilItFits() {
+        HidAllocationScheduler scheduler = new HidAllocationScheduler(1, 10, new HashMap<String, Integer>());
+        assertEquals(10, scheduler.admit("MCI1", 10, block(10)).size());
+
+        try {
+            scheduler.admit("MCI1", 5, block(5));
+            fail("Allocation should exceed the quota");
+        } catch (HidAllocationQuotaExceededException e) {
+            assertTrue(e.getRetryAfterSeconds() >= 4 && e.getRetryAfterSeconds() <= 5);
+        }
+        assertEquals(5, scheduler.admit("MCI2", 5, block(5)).size());
+    }
+
+    @Test
+    public void shouldRefundHIDsAnAllocationDidNotGetAndScaleQuotaByWeight() {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("MCI2", 2);
+        HidAllocationScheduler scheduler = new HidAllocationScheduler(0.001, 10, weights);
+
+        assertEquals(4, scheduler.admit("MCI1", 10, block(4)).size());
+        assertEquals(6, scheduler.admit("MCI1", 6, block(6)).size());
+        assertEquals(20, scheduler.admit("MCI2", 20, block(20)).size());
+    }
+
+    @Test
+    public void shouldServeAnotherMciBeforeTheRestOfABurst() throws Exception {
+        final HidAllocationScheduler scheduler = new HidAllocationScheduler(0, 0, new HashMap<String, Integer>());
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<>();
+        threads.add(start(claimUntilReleased(scheduler, running, release)));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        for (String request : asList("MCI1-a", "MCI1-b", "MCI1-c", "MCI2-a")) {
+            threads.add(start(scheduled(scheduler, request, served)));
+            awaitWaiting(scheduler, threads.size() - 1);
+        }
+
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(asList("MCI1-a", "MCI2-a", "MCI1-b", "MCI1-c"), served);
+    }
+
+    @Test
+    public void shouldAdmitAllocationsWhileAClaimIsRunning() throws Exception {
+        HidAllocationScheduler scheduler = new HidAllocationScheduler(1, 10, new HashMap<String, Integer>());
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread claim = start(claimUntilReleased(scheduler, running, release));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        try {
+            assertEquals(5, scheduler.admit("MCI1", 5, block(5)).size());
+        } finally {
+            release.countDown();
+            claim.join(5000);
+        }
+    }
+
+    private Runnable claimUntilReleased(final HidAllocationScheduler scheduler, final CountDownLatch running,
+                                        final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                scheduler.inTurn("MCI0", 10, new Func0<List<MciHealthId>>() {
+                    @Override
+                    public List<MciHealthId> call() {
+                        running.countDown();
+                        awaitQuietly(release);
+                        return Collections.emptyList();
+                    }
+                });
+            }
+        };
+    }
+
+    private Runnable scheduled(final HidAllocationScheduler scheduler, final String request, final List<String> served) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                scheduler.inTurn(request.substring(0, 4), 10, new Func0<List<MciHealthId>>() {
+                    @Override
+                    public List<MciHealthId> call() {
+                        served.add(request);
+                        return Collections.emptyList();
+                    }
+                });
+            }
+        };
+    }
+
+    private Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void awaitWaiting(HidAllocationScheduler scheduler, int waiting) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (waitingOf(scheduler) < waiting && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(waiting, waitingOf(scheduler));
+    }
+
+    private long waitingOf(HidAllocationScheduler scheduler) {
+        for (Metric<?> metric : scheduler.metrics()) {
+            if (metric.getName().equals("hid.scheduler.waiting")) {
+                return metric.getValue().longValue();
+            }
+        }
+        return -1;
+    }
+
+    private void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Func0<List<MciHealthId>> block(final int size) {
+        return new Func0<List<MciHealthId>>() {
+            @Override
+            public List<MciHealthId> call() {
+                List<MciHealthId> block = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    block.add(new MciHealthId(String.valueOf(98000000011L + i * 10)));
+                }
+                return block;
+            }
+        };
+    }
+}
@@ -0,0 +1,463 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.ResultSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.Model.HidAllocationCounter;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.HidGenerationCheckpoint;
+import org.sharedhealth.healthId.web.Model.HidPoolPage;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.config.HealthIdProperties;
+import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import org.sharedhealth.healthId.web.utils.ChecksumGenerator;
+import org.springframework.boot.actuate.metrics.Metric;
+import rx.Observable;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HidAllocationServiceTest {
+    private HealthIdProperties healthIdProperties;
+    @Mock
+    private HealthIdRepository healthIdRepository;
+    @Mock
+    private ChecksumGenerator checksumGenerator;
+    @Mock
+    private GeneratedHidBlockService generatedHidBlockService;
+    private MciHidAllocator allocator;
+    private HidPrefetchBuffer prefetchBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        healthIdProperties = new HealthIdProperties();
+        healthIdProperties.setMciInvalidHidPattern("^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}");
+        healthIdProperties.setOtherOrgInvalidHidPattern("^[^9]|^.[^1-7]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}");
+        healthIdProperties.setMciStartHid("9800000000");
+        healthIdProperties.setMciEndHid("9999999999");
+        healthIdProperties.setHealthIdBlockSize("10");
+        healthIdProperties.setMciOrgCode("MCI");
+        initMocks(this);
+        when(generatedHidBlockService.getSeriesEndsAt(anyLong())).thenReturn(null);
+        when(generatedHidBlockService.getSeriesReservedTo(anyLong())).thenReturn(null);
+        when(generatedHidBlockService.reserveSeriesRange(anyLong(), anyLong(), anyLong())).thenReturn(true);
+        when(generatedHidBlockService.reserveSeriesForCounter(anyLong(), anyLong(), anyLong(), anyLong())).thenReturn(true);
+        when(healthIdRepository.getPoolCursor(anyString())).thenReturn(null);
+        when(healthIdRepository.getPoolPage(anyInt(), anyLong(), anyLong())).thenReturn(poolPage(null));
+        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.deleteMciHealthId(any(MciHealthId.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.deleteOrgHealthId(anyString(), any(UUID.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.saveMciHealthId(any(MciHealthId.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.saveAllocationIntentHandedOut(any(HidAllocationIntent.class), anyInt())).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.deleteAllocationIntentAsync(any(HidAllocationIntent.class))).thenReturn(Observable.<ResultSet>just(null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (prefetchBuffer != null) {
+            prefetchBuffer.shutdown();
+        }
+        if (allocator != null) {
+            allocator.shutdown();
+        }
+    }
+
+    @Test(expected = HealthIdExhaustedException.class)
+    public void shouldGetExceptionIfIdsAreNotGeneratedBeforeFetch() throws ExecutionException, InterruptedException {
+        HidAllocationService allocationService = allocationServiceOf(healthIdProperties);
+        allocationService.getNextBlock(healthIdProperties.getMciOrgCode(), 10);
+    }
+
+    @Test
+    public void shouldFetchBlockIdsForMCIService() {
+        int blockSize = 3;
+        when(healthIdRepository.getPoolPage(blockSize, Long.MIN_VALUE, Long.MAX_VALUE)).thenReturn(poolPage(42L, "898998", "898999"));
+
+        HidAllocationService allocationService = allocationServiceOf(healthIdProperties);
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", blockSize);
+        verify(healthIdRepository).getPoolPage(blockSize, Long.MIN_VALUE, Long.MAX_VALUE);
+        verify(healthIdRepository).savePoolCursor(HidPoolScanner.POOL_CURSOR, 42L);
+        verify(healthIdRepository, times(2)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+        verify(healthIdRepository, times(2)).deleteMciHealthId(any(MciHealthId.class));
+        verify(healthIdRepository, times(1)).saveAllocationIntent(any(HidAllocationIntent.class));
+        verify(healthIdRepository, times(1)).deleteAllocationIntent(any(HidAllocationIntent.class));
+        assertEquals(2, nextBlock.size());
+    }
+
+    @Test
+    public void shouldAnswerNextBlockFromPrefetchedHIDsOnceRefilled() throws Exception {
+        healthIdProperties.setHidPrefetchHighWaterMark("4");
+        healthIdProperties.setHidPrefetchLowWaterMark("0");
+        when(healthIdRepository.getPoolPage(2, Long.MIN_VALUE, Long.MAX_VALUE)).thenReturn(poolPage(1L, "898997", "898998"));
+        when(healthIdRepository.getPoolPage(4, Long.MIN_VALUE, Long.MAX_VALUE)).thenReturn(poolPage(2L, "898999", "899000",
+                "899001", "899002"));
+        HidAllocationService allocationService = allocationServiceOf(healthIdProperties);
+        assertEquals(2, allocationService.getNextBlock("MCI", 2).size());
+        awaitPrefetched(allocationService, 4);
+        verify(healthIdRepository, times(6)).deleteMciHealthId(any(MciHealthId.class));
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 3);
+
+        assertEquals(asList(new MciHealthId("898999"), new MciHealthId("899000"), new MciHealthId("899001")), nextBlock);
+        verify(healthIdRepository, never()).getPoolPage(eq(3), anyLong(), anyLong());
+    }
+
+    @Test
+    public void shouldClaimWholeBucketAndHandOutTheRestOfItWithoutDeletes() {
+        HidAllocationService allocationService = allocationServiceOf(bucketProperties());
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000099L);
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(null);
+        when(healthIdRepository.advanceNextBucket(9800000000L, null, 1L)).thenReturn(true);
+        when(healthIdRepository.getBucket(9800000000L, 0L)).thenReturn(asList(new MciHealthId("98000000011"),
+                new MciHealthId("98000000021"), new MciHealthId("98000000031"), new MciHealthId("98000000041")));
+
+        List<MciHealthId> firstBlock = allocationService.getNextBlock("MCI", 3);
+        List<MciHealthId> secondBlock = allocationService.getNextBlock("MCI", 1);
+
+        assertEquals(asList(new MciHealthId("98000000011"), new MciHealthId("98000000021"), new MciHealthId("98000000031")), firstBlock);
+        assertEquals(asList(new MciHealthId("98000000041")), secondBlock);
+        verify(healthIdRepository, times(1)).advanceNextBucket(anyLong(), anyLong(), anyLong());
+        verify(healthIdRepository, times(4)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+        verify(healthIdRepository, never()).deleteMciHealthId(any(MciHealthId.class));
+        verify(healthIdRepository, never()).getPoolPage(anyInt(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void shouldHoldClaimedBucketAndPutWhatIsNotHandedOutBackInThePoolAtShutdown() {
+        HidAllocationService allocationService = allocationServiceOf(bucketProperties());
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000099L);
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(null);
+        when(healthIdRepository.advanceNextBucket(9800000000L, null, 1L)).thenReturn(true);
+        when(healthIdRepository.getBucket(9800000000L, 0L)).thenReturn(asList(new MciHealthId("98000000011"),
+                new MciHealthId("98000000021"), new MciHealthId("98000000031")));
+
+        allocationService.getNextBlock("MCI", 2);
+
+        ArgumentCaptor<HidAllocationIntent> intents = ArgumentCaptor.forClass(HidAllocationIntent.class);
+        verify(healthIdRepository, times(2)).saveAllocationIntent(intents.capture());
+        HidAllocationIntent hold = intents.getAllValues().get(0);
+        assertEquals(asList("98000000011", "98000000021", "98000000031"), hold.getHids());
+        verify(healthIdRepository).saveAllocationIntentHandedOut(hold, 2);
+
+        allocator.shutdown();
+
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("98000000031"));
+        verify(healthIdRepository, times(1)).saveMciHealthId(any(MciHealthId.class));
+        ArgumentCaptor<HidAllocationIntent> deleted = ArgumentCaptor.forClass(HidAllocationIntent.class);
+        verify(healthIdRepository, times(2)).deleteAllocationIntent(deleted.capture());
+        assertEquals(hold.getIntentId(), deleted.getAllValues().get(1).getIntentId());
+    }
+
+    @Test
+    public void shouldRetryBucketClaimedByAnotherNodeAndSkipEmptyBuckets() {
+        HidAllocationService allocationService = allocationServiceOf(bucketProperties());
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000099L);
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(2L, 3L, 4L);
+        when(healthIdRepository.advanceNextBucket(9800000000L, 2L, 3L)).thenReturn(false);
+        when(healthIdRepository.advanceNextBucket(9800000000L, 3L, 4L)).thenReturn(true);
+        when(healthIdRepository.advanceNextBucket(9800000000L, 4L, 5L)).thenReturn(true);
+        when(healthIdRepository.getBucket(9800000000L, 3L)).thenReturn(Collections.<MciHealthId>emptyList());
+        when(healthIdRepository.getBucket(9800000000L, 4L)).thenReturn(asList(new MciHealthId("98000000411")));
+
+        assertEquals(asList(new MciHealthId("98000000411")), allocationService.getNextBlock("MCI", 1));
+    }
+
+    @Test
+    public void shouldFallBackToRowPoolOnceGeneratedBucketsRunOut() {
+        HidAllocationService allocationService = allocationServiceOf(bucketProperties());
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000015L);
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(0L, 1L);
+        when(healthIdRepository.advanceNextBucket(9800000000L, 0L, 1L)).thenReturn(true);
+        when(healthIdRepository.getBucket(9800000000L, 0L)).thenReturn(asList(new MciHealthId("98000000011")));
+        when(healthIdRepository.getPoolPage(2, Long.MIN_VALUE, Long.MAX_VALUE)).thenReturn(poolPage(5L, "898998", "898999"));
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 3);
+
+        assertEquals(asList(new MciHealthId("98000000011"), new MciHealthId("898998"), new MciHealthId("898999")), nextBlock);
+        verify(healthIdRepository, never()).advanceNextBucket(9800000000L, 1L, 2L);
+        ArgumentCaptor<MciHealthId> deleted = ArgumentCaptor.forClass(MciHealthId.class);
+        verify(healthIdRepository, times(2)).deleteMciHealthId(deleted.capture());
+        assertEquals(asList(new MciHealthId("898998"), new MciHealthId("898999")), deleted.getAllValues());
+        verify(healthIdRepository, times(3)).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+    }
+
+    @Test
+    public void shouldNotClaimBucketsPastTheLowestUnfinishedGeneration() {
+        HidAllocationService allocationService = allocationServiceOf(bucketProperties());
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000099L);
+        when(generatedHidBlockService.getCheckpoints(9800000000L)).thenReturn(asList(
+                new HidGenerationCheckpoint(9800000000L, "running", "MCI", 9800000020L, timeBased(), "{}"),
+                new HidGenerationCheckpoint(9800000000L, "org", "OTHER", 9800000010L, timeBased(), "{}")));
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(1L, 2L);
+        when(healthIdRepository.advanceNextBucket(9800000000L, 1L, 2L)).thenReturn(true);
+        when(healthIdRepository.getBucket(9800000000L, 1L)).thenReturn(asList(new MciHealthId("98000000111")));
+        when(healthIdRepository.getPoolPage(2, Long.MIN_VALUE, Long.MAX_VALUE)).thenReturn(poolPage(5L, "898998", "898999"));
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 3);
+
+        assertEquals(asList(new MciHealthId("98000000111"), new MciHealthId("898998"), new MciHealthId("898999")), nextBlock);
+        verify(healthIdRepository, never()).advanceNextBucket(9800000000L, 2L, 3L);
+    }
+
+    @Test
+    public void shouldLeaveRangesOfOtherOrganizationsOutOfRemainingBucketedHIDs() {
+        HealthIdProperties testProperties = bucketProperties();
+        testProperties.setMciInvalidHidPattern("^$");
+        testProperties.setHealthIdWarningThreshold("1000");
+        HidAllocationService allocationService = allocationServiceOf(testProperties);
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000099L);
+        when(generatedHidBlockService.getPreGeneratedHidBlocks(9800000000L)).thenReturn(asList(
+                new GeneratedHIDBlock(9800000000L, "MCI", 9800000000L, 9800000049L, 50L, "{}", timeBased()),
+                new GeneratedHIDBlock(9800000000L, "OTHER", 9800000050L, 9800000069L, 20L, "{}", timeBased())));
+        HidGenerationCheckpoint orgGeneration = new HidGenerationCheckpoint(9800000000L, "org", "OTHER", 9800000060L, timeBased(), "{}");
+        orgGeneration.setReservedTo(9800000079L);
+        when(generatedHidBlockService.getCheckpoints(9800000000L)).thenReturn(asList(orgGeneration));
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(4L);
+        when(healthIdRepository.findRemainingHIDs(1000)).thenReturn(Observable.just(7));
+
+        assertEquals(37, allocationService.findRemainingHIDs().toBlocking().first().intValue());
+    }
+
+    @Test
+    public void shouldCountRemainingHIDsOfUnclaimedGeneratedBucketsAndRowPool() {
+        HealthIdProperties testProperties = bucketProperties();
+        testProperties.setMciInvalidHidPattern("^$");
+        testProperties.setHealthIdWarningThreshold("1000");
+        HidAllocationService allocationService = allocationServiceOf(testProperties);
+        when(generatedHidBlockService.getSeriesEndsAt(9800000000L)).thenReturn(9800000099L);
+        when(healthIdRepository.getNextBucket(9800000000L)).thenReturn(4L);
+        when(healthIdRepository.findRemainingHIDs(1000)).thenReturn(Observable.just(7));
+
+        assertEquals(67, allocationService.findRemainingHIDs().toBlocking().first().intValue());
+    }
+
+    @Test
+    public void shouldAllocateBlockFromCounterWithoutTouchingPool() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties(null));
+        stubChecksumsWith(1);
+        HidAllocationCounter counter = new HidAllocationCounter(1000L, 1030L, 1099L, 70L);
+        counter.setNextIndex(5L);
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenReturn(counter);
+        when(generatedHidBlockService.advanceAllocationCounter(1000L, 5L, 8L)).thenReturn(true);
+        when(healthIdRepository.findRemainingHIDs(anyInt())).thenReturn(Observable.just(0));
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 3);
+
+        assertEquals(asList(new MciHealthId("10351"), new MciHealthId("10361"), new MciHealthId("10371")), nextBlock);
+        ArgumentCaptor<OrgHealthId> orgHealthIds = ArgumentCaptor.forClass(OrgHealthId.class);
+        verify(healthIdRepository, times(3)).saveOrUpdateOrgHealthId(orgHealthIds.capture());
+        assertEquals("MCI", orgHealthIds.getAllValues().get(0).getAllocatedFor());
+        verify(healthIdRepository, never()).getPoolPage(anyInt(), anyLong(), anyLong());
+        verify(healthIdRepository, never()).deleteMciHealthId(any(MciHealthId.class));
+        assertEquals(62, allocationService.findRemainingHIDs().toBlocking().first().intValue());
+    }
+
+    @Test
+    public void shouldPutCounterHIDsOfAFailedAllocationInThePoolAndHandThemOutOnceTheCounterRunsOut() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties(null));
+        stubChecksumsWith(1);
+        HidAllocationCounter counter = new HidAllocationCounter(1000L, 1030L, 1099L, 70L);
+        counter.setNextIndex(67L);
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenReturn(counter);
+        when(generatedHidBlockService.advanceAllocationCounter(1000L, 67L, 70L)).thenReturn(true);
+        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.<Boolean>error(new RuntimeException("down")));
+        try {
+            allocationService.getNextBlock("MCI", 3);
+            fail("Allocation should fail");
+        } catch (HidGenerationException expected) {
+        }
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("10971"));
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("10981"));
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("10991"));
+
+        when(healthIdRepository.getPoolPage(3, Long.MIN_VALUE, Long.MAX_VALUE)).thenReturn(poolPage(7L, "10971", "10981", "10991"));
+        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.findRemainingHIDs(anyInt())).thenReturn(Observable.just(3));
+
+        assertEquals(3, allocationService.findRemainingHIDs().toBlocking().first().intValue());
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 3);
+
+        assertEquals(asList(new MciHealthId("10971"), new MciHealthId("10981"), new MciHealthId("10991")), nextBlock);
+        verify(healthIdRepository, times(3)).deleteMciHealthId(any(MciHealthId.class));
+    }
+
+    @Test
+    public void shouldReserveRestOfSeriesForCounterOnFirstAllocation() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties(null));
+        stubChecksumsWith(1);
+        final HidAllocationCounter[] created = new HidAllocationCounter[1];
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(1019L);
+        when(generatedHidBlockService.createAllocationCounter(any(HidAllocationCounter.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                created[0] = (HidAllocationCounter) invocation.getArguments()[0];
+                return true;
+            }
+        });
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenAnswer(new Answer<HidAllocationCounter>() {
+            @Override
+            public HidAllocationCounter answer(InvocationOnMock invocation) throws Throwable {
+                return created[0];
+            }
+        });
+        when(generatedHidBlockService.advanceAllocationCounter(1000L, 0L, 2L)).thenReturn(true);
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 2);
+
+        verify(generatedHidBlockService, times(1)).reserveSeriesForCounter(1000L, null, 1020L, 1099L);
+        assertEquals(1020, created[0].getBeginsAt().longValue());
+        assertEquals(1099, created[0].getEndsAt().longValue());
+        assertEquals(80, created[0].getTotalHIDs().longValue());
+        assertEquals(asList(new MciHealthId("10201"), new MciHealthId("10211")), nextBlock);
+    }
+
+    @Test
+    public void shouldCreateCounterFromReservationOfANodeThatCrashedBeforeCreatingIt() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties(null));
+        stubChecksumsWith(1);
+        final HidAllocationCounter[] created = new HidAllocationCounter[1];
+        when(generatedHidBlockService.getSeriesEndsAt(1000L)).thenReturn(1019L);
+        when(generatedHidBlockService.getSeriesReservedTo(1000L)).thenReturn(1099L);
+        when(generatedHidBlockService.getSeriesCounterBeginsAt(1000L)).thenReturn(1030L);
+        when(generatedHidBlockService.createAllocationCounter(any(HidAllocationCounter.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                created[0] = (HidAllocationCounter) invocation.getArguments()[0];
+                return true;
+            }
+        });
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenAnswer(new Answer<HidAllocationCounter>() {
+            @Override
+            public HidAllocationCounter answer(InvocationOnMock invocation) throws Throwable {
+                return created[0];
+            }
+        });
+        when(generatedHidBlockService.advanceAllocationCounter(1000L, 0L, 2L)).thenReturn(true);
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 2);
+
+        verify(generatedHidBlockService, never()).reserveSeriesForCounter(anyLong(), anyLong(), anyLong(), anyLong());
+        assertEquals(1030, created[0].getBeginsAt().longValue());
+        assertEquals(70, created[0].getTotalHIDs().longValue());
+        assertEquals(asList(new MciHealthId("10301"), new MciHealthId("10311")), nextBlock);
+    }
+
+    @Test
+    public void shouldRetryCounterAdvanceWhenAnotherAllocationMovedItFirst() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties(null));
+        stubChecksumsWith(1);
+        HidAllocationCounter counter = new HidAllocationCounter(1000L, 1030L, 1099L, 70L);
+        counter.setNextIndex(5L);
+        HidAllocationCounter movedCounter = new HidAllocationCounter(1000L, 1030L, 1099L, 70L);
+        movedCounter.setNextIndex(8L);
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenReturn(counter, movedCounter);
+        when(generatedHidBlockService.advanceAllocationCounter(1000L, 8L, 11L)).thenReturn(true);
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 3);
+
+        verify(generatedHidBlockService, times(1)).advanceAllocationCounter(1000L, 5L, 8L);
+        assertEquals(asList(new MciHealthId("10381"), new MciHealthId("10391"), new MciHealthId("10401")), nextBlock);
+    }
+
+    @Test
+    public void shouldShuffleCounterAllocationsWithConfiguredKey() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties("secret"));
+        stubChecksumsWith(1);
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenReturn(new HidAllocationCounter(1000L, 1030L, 1099L, 70L));
+        when(generatedHidBlockService.advanceAllocationCounter(1000L, 0L, 70L)).thenReturn(true);
+
+        List<MciHealthId> nextBlock = allocationService.getNextBlock("MCI", 100);
+
+        List<MciHealthId> sequential = new ArrayList<>();
+        for (long hid = 1030; hid <= 1099; hid++) {
+            sequential.add(new MciHealthId(hid + "1"));
+        }
+        assertEquals(70, nextBlock.size());
+        assertEquals(new HashSet<>(sequential), new HashSet<>(nextBlock));
+        assertFalse(sequential.equals(nextBlock));
+    }
+
+    @Test(expected = HealthIdExhaustedException.class)
+    public void shouldGetExceptionWhenCounterOfSeriesRunsOut() {
+        HidAllocationService allocationService = allocationServiceOf(counterProperties(null));
+        HidAllocationCounter counter = new HidAllocationCounter(1000L, 1030L, 1099L, 70L);
+        counter.setNextIndex(70L);
+        when(generatedHidBlockService.getAllocationCounter(1000L)).thenReturn(counter);
+
+        allocationService.getNextBlock("MCI", 3);
+    }
+
+    private HidAllocationService allocationServiceOf(HealthIdProperties properties) {
+        HidSeries hidSeries = new HidSeries(properties, checksumGenerator, generatedHidBlockService);
+        allocator = new MciHidAllocator(properties, healthIdRepository, generatedHidBlockService, hidSeries);
+        HidAllocationScheduler allocationScheduler = new HidAllocationScheduler(properties);
+        prefetchBuffer = new HidPrefetchBuffer(properties, allocator, allocationScheduler);
+        HidAllocationLedger allocationLedger = new HidAllocationLedger(healthIdRepository, properties);
+        return new HidAllocationService(allocationScheduler, prefetchBuffer, allocationLedger,
+                new HidBlockSizer(allocationLedger, properties), allocator);
+    }
+
+    private HealthIdProperties bucketProperties() {
+        healthIdProperties.setHidPoolLayout("BUCKETS");
+        healthIdProperties.setHidPoolBucketSize("10");
+        return healthIdProperties;
+    }
+
+    private HidPoolPage poolPage(Long lastToken, String... hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>();
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return new HidPoolPage(mciHealthIds, lastToken);
+    }
+
+    private void awaitPrefetched(HidAllocationService allocationService, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            for (Metric<?> metric : allocationService.getPrefetchMetrics()) {
+                if (metric.getName().equals("hid.prefetch.buffered") && metric.getValue().longValue() == expected) {
+                    return;
+                }
+            }
+            Thread.sleep(5);
+        }
+        fail("HIDs were not prefetched");
+    }
+
+    private HealthIdProperties counterProperties(String key) {
+        HealthIdProperties testProperties = new HealthIdProperties();
+        testProperties.setMciInvalidHidPattern("(\\d)\\1{2}");
+        testProperties.setOtherOrgInvalidHidPattern("(\\d)\\1{2}");
+        testProperties.setMciOrgCode("MCI");
+        testProperties.setMciStartHid("1000");
+        testProperties.setHealthIdBlockSize("10");
+        testProperties.setHealthIdWarningThreshold("1000");
+        testProperties.setHidAllocationMode("COUNTER");
+        testProperties.setHidAllocationKey(key);
+        return testProperties;
+    }
+
+
+    private void stubChecksumsWith(final int checkDigit) {
+        when(checksumGenerator.generate(anyLong(), anyInt())).thenReturn(checkDigit);
+    }
+}
@@ -0,0 +1,149 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.utils.UUIDs;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.Model.OrgHealthId;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+import rx.Observable;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidAllocationWriterTest {
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    private HidAllocationWriter allocationWriter;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(healthIdRepository.saveOrUpdateOrgHealthId(any(OrgHealthId.class))).thenReturn(Observable.just(true));
+        when(healthIdRepository.deleteOrgHealthId(anyString(), any(UUID.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.saveMciHealthId(any(MciHealthId.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.deleteMciHealthId(any(MciHealthId.class))).thenReturn(Observable.<ResultSet>just(null));
+        when(healthIdRepository.findAllocationIntents(anyLong())).thenReturn(Collections.<HidAllocationIntent>emptyList());
+        allocationWriter = new HidAllocationWriter(healthIdRepository, 2, 0, 0L);
+    }
+
+    @Test
+    public void shouldRecordIntentThenWriteEveryHIDAndDeleteThePoolOnes() {
+        allocationWriter.allocate("MCI", asList(new MciHealthId("11"), new MciHealthId("21"), new MciHealthId("31")),
+                asList(new MciHealthId("31")));
+
+        ArgumentCaptor<HidAllocationIntent> intent = ArgumentCaptor.forClass(HidAllocationIntent.class);
+        verify(healthIdRepository).saveAllocationIntent(intent.capture());
+        assertEquals(asList("11", "21", "31"), intent.getValue().getHids());
+        ArgumentCaptor<OrgHealthId> orgHealthIds = ArgumentCaptor.forClass(OrgHealthId.class);
+        verify(healthIdRepository, times(3)).saveOrUpdateOrgHealthId(orgHealthIds.capture());
+        assertEquals(intent.getValue().getIntentId(), orgHealthIds.getValue().getGeneratedAt());
+        verify(healthIdRepository).deleteMciHealthId(new MciHealthId("31"));
+        verify(healthIdRepository).deleteAllocationIntent(intent.getValue());
+    }
+
+    @Test
+    public void shouldPutHIDsBackInThePoolWhenAWriteFails() {
+        when(healthIdRepository.deleteMciHealthId(new MciHealthId("21"))).thenReturn(Observable.<ResultSet>error(new RuntimeException("down")));
+
+        try {
+            allocationWriter.allocate("MCI", asList(new MciHealthId("11"), new MciHealthId("21")), asList(new MciHealthId("21")));
+            fail("Allocation should fail");
+        } catch (HidGenerationException e) {
+            ArgumentCaptor<HidAllocationIntent> intent = ArgumentCaptor.forClass(HidAllocationIntent.class);
+            verify(healthIdRepository).saveAllocationIntent(intent.capture());
+            verify(healthIdRepository).deleteOrgHealthId("11", intent.getValue().getIntentId());
+            verify(healthIdRepository).deleteOrgHealthId("21", intent.getValue().getIntentId());
+            verify(healthIdRepository).saveMciHealthId(new MciHealthId("11"));
+            verify(healthIdRepository).saveMciHealthId(new MciHealthId("21"));
+            verify(healthIdRepository).deleteAllocationIntent(intent.getValue());
+        }
+    }
+
+    @Test
+    public void shouldKeepIntentWhenTheRollBackFailsToo() {
+        when(healthIdRepository.deleteMciHealthId(any(MciHealthId.class))).thenReturn(Observable.<ResultSet>error(new RuntimeException("down")));
+        when(healthIdRepository.deleteOrgHealthId(anyString(), any(UUID.class))).thenReturn(Observable.<ResultSet>error(new RuntimeException("down")));
+
+        try {
+            allocationWriter.allocate("MCI", asList(new MciHealthId("11")), asList(new MciHealthId("11")));
+            fail("Allocation should fail");
+        } catch (HidGenerationException e) {
+            verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+            verify(healthIdRepository, never()).deleteAllocationIntent(any(HidAllocationIntent.class));
+        }
+    }
+
+    @Test
+    public void shouldRecordHandOutsOfLeaseAndPutTheRestBackInThePoolOnRelease() {
+        HidAllocationIntent lease = allocationWriter.lease("MCI", asList(new MciHealthId("11"), new MciHealthId("21"),
+                new MciHealthId("31")), asList(new MciHealthId("21"), new MciHealthId("31")));
+        verify(healthIdRepository, never()).deleteAllocationIntent(any(HidAllocationIntent.class));
+
+        allocationWriter.handOut(lease, 2);
+        verify(healthIdRepository).saveAllocationIntentHandedOut(lease, 2);
+
+        HidAllocationIntent rest = lease.withHids(asList("31"));
+        assertEquals(asList("31"), rest.getPoolHids());
+        assertEquals(true, allocationWriter.release(rest));
+        verify(healthIdRepository).deleteOrgHealthId("31", lease.getIntentId());
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("31"));
+        verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("11"));
+        verify(healthIdRepository, never()).saveMciHealthId(new MciHealthId("21"));
+        verify(healthIdRepository).deleteAllocationIntent(rest);
+    }
+
+    @Test
+    public void shouldEndLeaseOnceEveryHIDIsHandedOut() {
+        HidAllocationIntent lease = allocationWriter.lease("MCI", asList(new MciHealthId("11")), asList(new MciHealthId("11")));
+
+        allocationWriter.handOut(lease, 1);
+
+        verify(healthIdRepository).deleteAllocationIntentAsync(lease);
+        verify(healthIdRepository, never()).saveAllocationIntentHandedOut(any(HidAllocationIntent.class), anyInt());
+        verify(healthIdRepository, never()).saveMciHealthId(any(MciHealthId.class));
+    }
+
+    @Test
+    public void shouldRollBackOldIntentsAndLeaveRecentOnes() {
+        UUID oldId = UUIDs.startOf(System.currentTimeMillis() - 120000L);
+        HidAllocationIntent old = new HidAllocationIntent(oldId, "MCI", asList("11", "21"), asList("21"));
+        HidAllocationIntent recent = new HidAllocationIntent(UUIDs.timeBased(), "MCI", asList("31"), asList("31"));
+        if (old.getHour() == recent.getHour()) {
+            when(healthIdRepository.findAllocationIntents(old.getHour())).thenReturn(asList(old, recent));
+        } else {
+            when(healthIdRepository.findAllocationIntents(old.getHour())).thenReturn(asList(old));
+            when(healthIdRepository.findAllocationIntents(recent.getHour())).thenReturn(asList(recent));
+        }
+
+        assertEquals(1, allocationWriter.reconcile(60000L));
+
+        verify(healthIdRepository).deleteOrgHealthId("11", oldId);
+        verify(healthIdRepository).deleteOrgHealthId("21", oldId);
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("11"));
+        verify(healthIdRepository).saveMciHealthId(new MciHealthId("21"));
+        verify(healthIdRepository, never()).saveOrUpdateOrgHealthId(any(OrgHealthId.class));
+        verify(healthIdRepository, never()).deleteMciHealthId(any(MciHealthId.class));
+        verify(healthIdRepository).deleteAllocationIntent(old);
+        verify(healthIdRepository, never()).deleteAllocationIntent(recent);
+    }
+}
@@ -0,0 +1,82 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.HidAllocationSummary;
+
+import java.util.Collections;
+
+import static com.datastax.driver.core.utils.UUIDs.startOf;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidBlockSizerTest {
+    @Mock
+    private HidAllocationLedger allocationLedger;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(allocationLedger.history("MCI", HidBlockSizer.REPLAYED_ALLOCATIONS)).thenReturn(Collections.<HidAllocationSummary>emptyList());
+    }
+
+    @Test
+    public void shouldRecommendDefaultBlockSizeUntilTheRateIsKnown() {
+        HidBlockSizer sizer = new HidBlockSizer(allocationLedger, 300, 100, 10000, 1000);
+
+        assertEquals(1000, sizer.recommend("MCI", 0));
+        sizer.allocated("MCI", 1000, 0);
+        assertEquals(1000, sizer.recommend("MCI", 0));
+    }
+
+    @Test
+    public void shouldRecommendBlockLastingTheTargetRefillIntervalWithinBounds() {
+        HidBlockSizer sizer = new HidBlockSizer(allocationLedger, 300, 100, 10000, 1000);
+
+        sizer.allocated("MCI", 1000, 0);
+        sizer.allocated("MCI", 1000, 100000);
+        assertEquals(3000, sizer.recommend("MCI", 100000));
+
+        sizer.allocated("BUSY", 1000, 0);
+        sizer.allocated("BUSY", 1000, 1000);
+        assertEquals(10000, sizer.recommend("BUSY", 1000));
+
+        sizer.allocated("QUIET", 1000, 0);
+        sizer.allocated("QUIET", 1000, 3600000);
+        assertEquals(100, sizer.recommend("QUIET", 3600000));
+    }
+
+    @Test
+    public void shouldSlowTheRateOfAnMciThatHasNotComeBack() {
+        HidBlockSizer sizer = new HidBlockSizer(allocationLedger, 300, 100, 10000, 1000);
+
+        sizer.allocated("MCI", 1000, 0);
+        sizer.allocated("MCI", 1000, 100000);
+        assertEquals(1500, sizer.recommend("MCI", 300000));
+    }
+
+    @Test
+    public void shouldReplayTheRateOfAnMciFromItsLatestAllocations() {
+        when(allocationLedger.history("MCI", HidBlockSizer.REPLAYED_ALLOCATIONS)).thenReturn(asList(
+                new HidAllocationSummary("MCI", "c", startOf(200000L), 1, "31", "31"),
+                new HidAllocationSummary("MCI", "b", startOf(100000L), 1000, "21", "21"),
+                new HidAllocationSummary("MCI", "a", startOf(0L), 1000, "11", "11")));
+        HidBlockSizer sizer = new HidBlockSizer(allocationLedger, 300, 100, 10000, 1000);
+
+        assertEquals(3000, sizer.recommend("MCI", 200000));
+    }
+
+    @Test
+    public void shouldAllowAskingForTheLargerOfDefaultAndMaximumBlockSize() {
+        assertEquals(10000, new HidBlockSizer(allocationLedger, 300, 100, 10000, 1000).getMaxBlockSize());
+        assertEquals(1000, new HidBlockSizer(allocationLedger, 300, 100, 500, 1000).getMaxBlockSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMinimumBlockSizeAboveMaximum() {
+        new HidBlockSizer(allocationLedger, 300, 1000, 100, 1000);
+    }
+}
@@ -0,0 +1,112 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sharedhealth.healthId.web.Model.GeneratedHIDBlock;
+import org.sharedhealth.healthId.web.exception.HidGenerationBusyException;
+
+import java.util.concurrent.CountDownLatch;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class HidGenerationJobServiceTest {
+
+    private HidGenerationJobService jobService = new HidGenerationJobService(1, 1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        jobService.shutdown();
+    }
+
+    @Test
+    public void shouldRunJobAndReportRateAndEta() throws Exception {
+        HidGenerationJob job = jobService.submit("generate", 10L, new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                progress.scanned(12);
+                progress.written(10);
+                return new GeneratedHIDBlock(1000L, "MCI", 1000L, 1011L, 10L, "", timeBased());
+            }
+        });
+
+        assertTrue(job.await(10, SECONDS));
+        assertEquals(HidGenerationJob.Status.COMPLETED, job.getStatus());
+        assertEquals(10L, job.getResult().getTotalHIDs().longValue());
+        assertEquals(0L, job.getEtaSeconds().longValue());
+        assertSame(job, jobService.find(job.getId()));
+    }
+
+    @Test
+    public void shouldFailJobWhoseTaskThrowsAnError() throws Exception {
+        HidGenerationJob job = jobService.submit("generate", 10L, new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                throw new OutOfMemoryError("Java heap space");
+            }
+        });
+
+        assertTrue(job.await(10, SECONDS));
+        assertEquals(HidGenerationJob.Status.FAILED, job.getStatus());
+        assertEquals("java.lang.OutOfMemoryError: Java heap space", job.getError());
+        assertNotNull(job.getFinishedAt());
+    }
+
+    @Test
+    public void shouldRejectJobsOnceTheQueueIsFull() throws Exception {
+        HidGenerationJob running = jobService.submit("generate", null, blockingTask());
+        jobService.submit("generate", null, blockingTask());
+        try {
+            jobService.submit("generate", null, blockingTask());
+            fail("Expected the job queue to be full");
+        } catch (HidGenerationBusyException e) {
+            assertEquals(HidGenerationJob.Status.RUNNING, waitUntilRunning(running).getStatus());
+        }
+    }
+
+    @Test
+    public void shouldCancelQueuedJobWithoutRunningIt() throws Exception {
+        HidGenerationJob running = jobService.submit("generate", null, blockingTask());
+        HidGenerationJob queued = jobService.submit("generateBlock", 100L, new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                throw new AssertionError("should not run");
+            }
+        });
+
+        jobService.cancel(queued.getId());
+        assertTrue(queued.await(1, SECONDS));
+        assertEquals(HidGenerationJob.Status.CANCELLED, queued.getStatus());
+        assertEquals(0L, queued.getEtaSeconds().longValue());
+
+        jobService.cancel(running.getId());
+        release.countDown();
+        assertTrue(running.await(10, SECONDS));
+        assertEquals(HidGenerationJob.Status.CANCELLED, running.getStatus());
+        assertTrue(running.getProgress().isCancelled());
+    }
+
+    private HidGenerationJob.Task blockingTask() {
+        return new HidGenerationJob.Task() {
+            @Override
+            public GeneratedHIDBlock run(HidGenerationProgress progress) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new GeneratedHIDBlock(1000L, "MCI", 1000L, 1000L, 0L, "", timeBased());
+            }
+        };
+    }
+
+    private HidGenerationJob waitUntilRunning(HidGenerationJob job) throws InterruptedException {
+        for (int i = 0; i < 1000 && job.getStatus() == HidGenerationJob.Status.QUEUED; i++) {
+            Thread.sleep(5);
+        }
+        return job;
+    }
+}
@@ -0,0 +1,106 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidPoolLeasesTest {
+    @Mock
+    private HealthIdRepository healthIdRepository;
+    @Mock
+    private HidPoolScanner poolScanner;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(poolScanner.nextBlock(anyString(), anyLong(), anyLong(), anyInt())).thenReturn(Collections.<MciHealthId>emptyList());
+    }
+
+    @Test
+    public void shouldSplitTheTokenRingIntoContiguousDisjointRanges() {
+        HidPoolLeases leases = new HidPoolLeases(healthIdRepository, poolScanner, "node-1", 7, 60);
+
+        assertEquals(Long.MIN_VALUE, leases.getFromToken(0));
+        for (int rangeNo = 1; rangeNo < 7; rangeNo++) {
+            assertEquals(leases.getToToken(rangeNo - 1) + 1, leases.getFromToken(rangeNo));
+            assertTrue(leases.getFromToken(rangeNo) > leases.getFromToken(rangeNo - 1));
+        }
+        assertEquals(Long.MAX_VALUE, leases.getToToken(6));
+    }
+
+    @Test
+    public void shouldOnlyReadFromLeasedRangeAndKeepItWhileItHasHIDs() {
+        HidPoolLeases leases = new HidPoolLeases(healthIdRepository, poolScanner, "node-1", 1, 60);
+        when(healthIdRepository.acquirePoolLease(0, "node-1", 60)).thenReturn(true);
+        when(poolScanner.nextBlock(leases.cursorOf(0), Long.MIN_VALUE, Long.MAX_VALUE, 2)).thenReturn(asList(new MciHealthId("1"), new MciHealthId("2")));
+
+        assertEquals(2, leases.nextBlock(2).size());
+        assertEquals(2, leases.nextBlock(2).size());
+
+        verify(healthIdRepository, times(1)).acquirePoolLease(0, "node-1", 60);
+        verify(healthIdRepository, never()).releasePoolLease(anyInt(), anyString());
+    }
+
+    @Test
+    public void shouldReleaseEmptyRangeAndLeaseAnotherForTheRestOfTheBlock() {
+        HidPoolLeases leases = new HidPoolLeases(healthIdRepository, poolScanner, "node-1", 2, 60);
+        when(healthIdRepository.acquirePoolLease(anyInt(), eq("node-1"), eq(60))).thenReturn(true);
+        when(poolScanner.nextBlock(leases.cursorOf(0), leases.getFromToken(0), leases.getToToken(0), 3)).thenReturn(asList(new MciHealthId("1")));
+        when(poolScanner.nextBlock(leases.cursorOf(0), leases.getFromToken(0), leases.getToToken(0), 2)).thenReturn(asList(new MciHealthId("1")));
+        when(poolScanner.nextBlock(leases.cursorOf(1), leases.getFromToken(1), leases.getToToken(1), 3)).thenReturn(asList(new MciHealthId("2")));
+        when(poolScanner.nextBlock(leases.cursorOf(1), leases.getFromToken(1), leases.getToToken(1), 2)).thenReturn(asList(new MciHealthId("2")));
+
+        List<MciHealthId> block = leases.nextBlock(3);
+
+        assertEquals(2, block.size());
+        verify(healthIdRepository).releasePoolLease(0, "node-1");
+        verify(healthIdRepository).releasePoolLease(1, "node-1");
+    }
+
+    @Test
+    public void shouldNotReadRangesLeasedByOtherNodes() {
+        HidPoolLeases leases = new HidPoolLeases(healthIdRepository, poolScanner, "node-1", 4, 60);
+        when(healthIdRepository.acquirePoolLease(anyInt(), eq("node-1"), eq(60))).thenReturn(false);
+
+        assertTrue(leases.nextBlock(5).isEmpty());
+        assertTrue(leases.nextBlock(5).isEmpty());
+
+        verify(healthIdRepository, times(4)).acquirePoolLease(anyInt(), eq("node-1"), eq(60));
+        verify(poolScanner, never()).nextBlock(anyString(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    public void shouldRenewLeaseAfterAThirdOfItsTtlAndDropItWhenLost() throws Exception {
+        HidPoolLeases leases = new HidPoolLeases(healthIdRepository, poolScanner, "node-1", 1, 1);
+        when(healthIdRepository.acquirePoolLease(0, "node-1", 1)).thenReturn(true);
+        when(poolScanner.nextBlock(leases.cursorOf(0), Long.MIN_VALUE, Long.MAX_VALUE, 1)).thenReturn(asList(new MciHealthId("1")));
+        when(healthIdRepository.renewPoolLease(0, "node-1", 1)).thenReturn(true, false);
+
+        assertEquals(1, leases.nextBlock(1).size());
+        Thread.sleep(400);
+        assertEquals(1, leases.nextBlock(1).size());
+        Thread.sleep(400);
+        assertTrue(leases.nextBlock(1).isEmpty());
+
+        verify(healthIdRepository, times(2)).renewPoolLease(0, "node-1", 1);
+        verify(poolScanner, times(2)).nextBlock(leases.cursorOf(0), Long.MIN_VALUE, Long.MAX_VALUE, 1);
+    }
+}
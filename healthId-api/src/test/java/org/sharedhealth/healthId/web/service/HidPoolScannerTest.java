@@ -0,0 +1,100 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.healthId.web.Model.HidPoolPage;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.repository.HealthIdRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HidPoolScannerTest {
+    @Mock
+    private HealthIdRepository healthIdRepository;
+
+    private HidPoolScanner scanner;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(healthIdRepository.getPoolCursor(anyString())).thenReturn(null);
+        when(healthIdRepository.getPoolPage(anyInt(), anyLong(), anyLong())).thenReturn(page(null));
+        scanner = new HidPoolScanner(healthIdRepository);
+    }
+
+    @Test
+    public void shouldStartFromRangeStartAndSaveTokenOfLastHid() {
+        when(healthIdRepository.getPoolPage(2, -100L, 100L)).thenReturn(page(-40L, "1", "2"));
+
+        List<MciHealthId> hids = scanner.nextBlock("pool", -100L, 100L, 2);
+
+        assertEquals(asList(new MciHealthId("1"), new MciHealthId("2")), hids);
+        verify(healthIdRepository).savePoolCursor("pool", -40L);
+    }
+
+    @Test
+    public void shouldContinueFromSavedCursorWithoutReadingTheDrainedStart() {
+        when(healthIdRepository.getPoolCursor("pool")).thenReturn(-40L);
+        when(healthIdRepository.getPoolPage(2, -40L, 100L)).thenReturn(page(10L, "3", "4"));
+
+        assertEquals(2, scanner.nextBlock("pool", -100L, 100L, 2).size());
+
+        verify(healthIdRepository, never()).getPoolPage(anyInt(), eq(-100L), anyLong());
+        verify(healthIdRepository).savePoolCursor("pool", 10L);
+    }
+
+    @Test
+    public void shouldWrapToRangeStartWhenTheRestOfTheRangeComesUpShort() {
+        when(healthIdRepository.getPoolCursor("pool")).thenReturn(60L);
+        when(healthIdRepository.getPoolPage(3, 60L, 100L)).thenReturn(page(80L, "5"));
+        when(healthIdRepository.getPoolPage(2, -100L, 59L)).thenReturn(page(-90L, "6", "7"));
+
+        List<MciHealthId> hids = scanner.nextBlock("pool", -100L, 100L, 3);
+
+        assertEquals(asList(new MciHealthId("5"), new MciHealthId("6"), new MciHealthId("7")), hids);
+        verify(healthIdRepository).savePoolCursor("pool", -90L);
+    }
+
+    @Test
+    public void shouldKeepCursorWhenTheRangeIsDrained() {
+        when(healthIdRepository.getPoolCursor("pool")).thenReturn(60L);
+
+        assertTrue(scanner.nextBlock("pool", -100L, 100L, 3).isEmpty());
+
+        verify(healthIdRepository).getPoolPage(3, 60L, 100L);
+        verify(healthIdRepository).getPoolPage(3, -100L, 59L);
+        verify(healthIdRepository, never()).savePoolCursor(anyString(), anyLong());
+    }
+
+    @Test
+    public void shouldIgnoreCursorOutsideTheRange() {
+        when(healthIdRepository.getPoolCursor("range-1-of-2")).thenReturn(500L);
+        when(healthIdRepository.getPoolPage(1, 0L, 100L)).thenReturn(page(7L, "8"));
+
+        assertEquals(1, scanner.nextBlock("range-1-of-2", 0L, 100L, 1).size());
+
+        verify(healthIdRepository).savePoolCursor("range-1-of-2", 7L);
+    }
+
+    private HidPoolPage page(Long lastToken, String... hids) {
+        List<MciHealthId> mciHealthIds = new ArrayList<>();
+        for (String hid : hids) {
+            mciHealthIds.add(new MciHealthId(hid));
+        }
+        return new HidPoolPage(mciHealthIds, lastToken);
+    }
+}
@@ -0,0 +1,269 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sharedhealth.healthId.web.Model.HidAllocationIntent;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+import org.sharedhealth.healthId.web.exception.HealthIdExhaustedException;
+import org.springframework.boot.actuate.metrics.Metric;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.datastax.driver.core.utils.UUIDs.timeBased;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HidPrefetchBufferTest {
+
+    private static final long LEASE_MILLIS = 60000L;
+
+    private HidPrefetchBuffer buffer;
+
+    @After
+    public void tearDown() {
+        if (buffer != null) {
+            buffer.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldClaimFirstBlockDirectlyAndPrefetchUpToHighWaterMark() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 4, 10, 3, LEASE_MILLIS);
+
+        List<MciHealthId> hids = buffer.take("MCI", 2);
+
+        assertEquals(2, hids.size());
+        awaitBuffered("MCI", 10);
+        assertEquals(12, claimer.claimed.get());
+        assertEquals(5, claimer.claims.get());
+    }
+
+    @Test
+    public void shouldAnswerFromBufferAndRefillOnlyBelowLowWaterMark() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 4, 10, 10, LEASE_MILLIS);
+        buffer.take("MCI", 1);
+        awaitBuffered("MCI", 10);
+        int claims = claimer.claims.get();
+
+        List<MciHealthId> hids = buffer.take("MCI", 5);
+
+        assertEquals(asHids(2, 6), hids);
+        assertEquals(5, buffer.getBuffered("MCI"));
+        assertEquals(claims, claimer.claims.get());
+
+        buffer.take("MCI", 1);
+        awaitBuffered("MCI", 10);
+        assertEquals(claims + 1, claimer.claims.get());
+    }
+
+    @Test
+    public void shouldHandOutEveryClaimedHidOnceAcrossConcurrentRequests() throws Exception {
+        final SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 50, 200, 25, LEASE_MILLIS);
+        final Set<String> handedOut = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger total = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int request = 0; request < 100; request++) {
+                        for (MciHealthId hid : buffer.take("MCI", 7)) {
+                            handedOut.add(hid.getHid());
+                            total.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(5600, total.get());
+        assertEquals(5600, handedOut.size());
+    }
+
+    @Test
+    public void shouldHandOutWhatIsLeftWhenHidsRunOut() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(6);
+        buffer = new HidPrefetchBuffer(claimer, 2, 4, 4, LEASE_MILLIS);
+
+        assertEquals(2, buffer.take("MCI", 2).size());
+        awaitBuffered("MCI", 4);
+        assertEquals(4, buffer.take("MCI", 5).size());
+        try {
+            buffer.take("MCI", 1);
+        } catch (HealthIdExhaustedException expected) {
+            return;
+        }
+        throw new AssertionError("Expected the HIDs to be exhausted");
+    }
+
+    @Test
+    public void shouldReportOccupancyAndThresholdsAsMetrics() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 4, 10, 5, LEASE_MILLIS);
+        buffer.take("MCI", 3);
+        awaitBuffered("MCI", 10);
+
+        Map<String, Number> metrics = new HashMap<>();
+        for (Metric<?> metric : buffer.metrics()) {
+            metrics.put(metric.getName(), metric.getValue());
+        }
+
+        assertEquals(10, metrics.get("hid.prefetch.buffered.MCI").intValue());
+        assertEquals(10L, metrics.get("hid.prefetch.buffered").longValue());
+        assertEquals(4, metrics.get("hid.prefetch.lowWaterMark").intValue());
+        assertEquals(10, metrics.get("hid.prefetch.highWaterMark").intValue());
+        assertEquals(2L, metrics.get("hid.prefetch.refills").longValue());
+        assertEquals(3L, metrics.get("hid.prefetch.servedHIDs").longValue());
+        assertEquals(1L, metrics.get("hid.prefetch.misses").longValue());
+    }
+
+    @Test
+    public void shouldRecordHowManyHIDsOfTheLeaseAreHandedOut() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 4, 10, 10, LEASE_MILLIS);
+        buffer.take("MCI", 1);
+        awaitBuffered("MCI", 10);
+
+        buffer.take("MCI", 3);
+        buffer.take("MCI", 2);
+
+        assertEquals(asList(3, 5), claimer.handedOut);
+        assertTrue(claimer.released.isEmpty());
+    }
+
+    @Test
+    public void shouldNotWaitOnTheRecordOfAHandOut() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 4, 10, 10, LEASE_MILLIS);
+        buffer.take("MCI", 1);
+        awaitBuffered("MCI", 10);
+        claimer.pendingHandOuts = PublishSubject.create();
+
+        assertEquals(asHids(2, 4), buffer.take("MCI", 3));
+        assertEquals(asHids(5, 6), buffer.take("MCI", 2));
+        assertEquals(asList(3), claimer.handedOut);
+
+        claimer.pendingHandOuts.onCompleted();
+
+        assertEquals(asList(3, 5), claimer.handedOut);
+    }
+
+    @Test
+    public void shouldReleaseHIDsNotHandedOutAtShutdown() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 4, 10, 10, LEASE_MILLIS);
+        buffer.take("MCI", 1);
+        awaitBuffered("MCI", 10);
+        buffer.take("MCI", 4);
+
+        buffer.shutdown();
+
+        assertEquals(asList("6", "7", "8", "9", "10", "11"), claimer.released);
+        assertEquals(0, buffer.getBuffered("MCI"));
+    }
+
+    @Test
+    public void shouldReleaseExpiredLeasesInsteadOfHandingThemOut() throws Exception {
+        SequenceClaimer claimer = new SequenceClaimer(Long.MAX_VALUE);
+        buffer = new HidPrefetchBuffer(claimer, 0, 4, 4, 200);
+        buffer.take("MCI", 1);
+        awaitBuffered("MCI", 4);
+
+        awaitBuffered("MCI", 0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (claimer.released.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(asList("2", "3", "4", "5"), claimer.released);
+        assertEquals(asList(new MciHealthId("6")), buffer.take("MCI", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptLowWaterMarkAboveHighWaterMark() {
+        new HidPrefetchBuffer(new SequenceClaimer(10), 11, 10, 5, LEASE_MILLIS);
+    }
+
+    private void awaitBuffered(String mciCode, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (buffer.getBuffered(mciCode) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, buffer.getBuffered(mciCode));
+    }
+
+    private List<MciHealthId> asHids(long from, long to) {
+        List<MciHealthId> hids = new ArrayList<>();
+        for (long hid = from; hid <= to; hid++) {
+            hids.add(new MciHealthId(String.valueOf(hid)));
+        }
+        return hids;
+    }
+
+    private static class SequenceClaimer implements HidPrefetchBuffer.Claimer {
+        private final long available;
+        private final AtomicLong next = new AtomicLong(0);
+        private final AtomicInteger claimed = new AtomicInteger();
+        private final AtomicInteger claims = new AtomicInteger();
+        private final List<Integer> handedOut = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile PublishSubject<Object> pendingHandOuts;
+        private final List<String> released = Collections.synchronizedList(new ArrayList<String>());
+
+        SequenceClaimer(long available) {
+            this.available = available;
+        }
+
+        @Override
+        public synchronized List<MciHealthId> claim(String mciCode, int count) {
+            List<MciHealthId> hids = new ArrayList<>();
+            while (hids.size() < count && next.get() < available) {
+                hids.add(new MciHealthId(String.valueOf(next.incrementAndGet())));
+            }
+            if (hids.isEmpty()) {
+                throw new HealthIdExhaustedException();
+            }
+            claimed.addAndGet(hids.size());
+            claims.incrementAndGet();
+            return hids;
+        }
+
+        @Override
+        public HidAllocationIntent lease(String mciCode, int count) {
+            List<String> hids = new ArrayList<>();
+            for (MciHealthId hid : claim(mciCode, count)) {
+                hids.add(hid.getHid());
+            }
+            return new HidAllocationIntent(timeBased(), mciCode, hids, hids);
+        }
+
+        @Override
+        public Observable<?> handOut(HidAllocationIntent lease, int count) {
+            handedOut.add(count);
+            return pendingHandOuts == null ? Observable.empty() : pendingHandOuts;
+        }
+
+        @Override
+        public boolean release(HidAllocationIntent lease) {
+            released.addAll(lease.getHids());
+            return true;
+        }
+    }
+}
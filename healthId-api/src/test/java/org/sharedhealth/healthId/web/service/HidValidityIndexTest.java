@@ -0,0 +1,125 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sharedhealth.healthId.web.utils.HidValidator;
+import org.sharedhealth.healthId.web.utils.RegexHidValidator;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HidValidityIndexTest {
+    private static final String INVALID_HID_PATTERN = "^(105|104)\\d*$|(\\d)\\2{2}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final HidValidator validator = new RegexHidValidator(INVALID_HID_PATTERN);
+    private final ParallelHidGenerator builder = new ParallelHidGenerator(4, 3);
+
+    @After
+    public void tearDown() {
+        builder.shutdown();
+    }
+
+    @Test
+    public void shouldMatchValidatorForEveryCandidateOfSeries() throws Exception {
+        HidValidityIndex index = HidValidityIndex.load(100000, 100000, validator, null, builder);
+
+        long valid = 0;
+        for (long candidate = 100000; candidate < 200000; candidate++) {
+            assertEquals(validator.isValid(candidate), index.isValid(candidate));
+            valid += validator.isValid(candidate) ? 1 : 0;
+        }
+        assertEquals(valid, index.getTotalValid());
+        assertFalse(index.isValid(99999));
+        assertFalse(index.isValid(200000));
+    }
+
+    @Test
+    public void shouldJumpToNextValidCandidate() throws Exception {
+        HidValidityIndex index = HidValidityIndex.load(100000, 100000, validator, null, builder);
+
+        assertEquals(100100, index.nextValid(100000));
+        assertEquals(100100, index.nextValid(99000));
+        assertEquals(106001, index.nextValid(104000));
+        for (long candidate = 100000; candidate < 200000; candidate += 613) {
+            assertEquals(nextValid(candidate), index.nextValid(candidate));
+        }
+        assertEquals(-1, index.nextValid(199998));
+        assertEquals(-1, index.nextValid(200000));
+    }
+
+    @Test
+    public void shouldCountValidCandidatesLeftInSeries() throws Exception {
+        HidValidityIndex index = HidValidityIndex.load(100000, 100000, validator, null, builder);
+
+        for (long candidate = 100000; candidate <= 200000; candidate += 997) {
+            long valid = 0;
+            for (long remaining = candidate; remaining < 200000; remaining++) {
+                valid += validator.isValid(remaining) ? 1 : 0;
+            }
+            assertEquals(valid, index.countValidFrom(candidate));
+        }
+        assertEquals(index.getTotalValid(), index.countValidFrom(0));
+        assertEquals(0, index.countValidFrom(200000));
+    }
+
+    @Test
+    public void shouldFindCandidateHoldingGivenNumberOfValidHIDs() throws Exception {
+        HidValidityIndex index = HidValidityIndex.load(100000, 100000, validator, null, builder);
+
+        for (long candidate = 100000; candidate < 200000; candidate += 7919) {
+            for (long count = 1; count < 5000; count += 701) {
+                long last = index.lastOfValid(candidate, count);
+                if (index.countValidFrom(candidate) <= count) {
+                    assertEquals(199999, last);
+                    continue;
+                }
+                assertTrue(index.isValid(last));
+                assertEquals(count, index.countValidFrom(candidate) - index.countValidFrom(last + 1));
+            }
+        }
+        assertEquals(100099, index.lastOfValid(100100, 0));
+        assertEquals(199999, index.lastOfValid(199000, 5000));
+    }
+
+    @Test
+    public void shouldBuildIndexFileOnceAndMapItOnLaterLoads() throws Exception {
+        File file = new File(folder.getRoot(), "mci-100000.bitmap");
+        HidValidityIndex built = HidValidityIndex.load(100000, 100000, validator, file, builder);
+        assertTrue(file.exists());
+        long lastModified = file.lastModified();
+
+        HidValidityIndex loaded = HidValidityIndex.load(100000, 100000, new HidValidator() {
+            @Override
+            public boolean isValid(long candidate) {
+                throw new AssertionError("Index should not be rebuilt");
+            }
+
+            @Override
+            public boolean isValid(String candidate) {
+                throw new AssertionError("Index should not be rebuilt");
+            }
+        }, file, builder);
+
+        assertEquals(lastModified, file.lastModified());
+        assertEquals(built.getTotalValid(), loaded.getTotalValid());
+        assertEquals(built.nextValid(104000), loaded.nextValid(104000));
+        assertEquals(built.countValidFrom(150000), loaded.countValidFrom(150000));
+    }
+
+    private long nextValid(long candidate) {
+        for (; candidate < 200000; candidate++) {
+            if (validator.isValid(candidate)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,123 @@
+package org.sharedhealth.healthId.web.service;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import org.junit.Test;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.subjects.PublishSubject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HidWritePipelineTest {
+
+    @Test
+    public void shouldBlockSubmissionsOnceInFlightCapIsReached() throws Exception {
+        final HidWritePipeline pipeline = new HidWritePipeline(2, 0, 0);
+        final List<PublishSubject<Object>> writes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            writes.add(PublishSubject.create());
+        }
+        final AtomicInteger submitted = new AtomicInteger();
+        final CountDownLatch thirdSubmitted = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (final PublishSubject<Object> write : writes) {
+                    pipeline.submit(new Func0<Observable<Object>>() {
+                        @Override
+                        public Observable<Object> call() {
+                            return write;
+                        }
+                    });
+                    submitted.incrementAndGet();
+                }
+                thirdSubmitted.countDown();
+            }
+        });
+        producer.start();
+
+        assertFalse(thirdSubmitted.await(200, MILLISECONDS));
+        assertEquals(2, submitted.get());
+
+        writes.get(0).onCompleted();
+        assertTrue(thirdSubmitted.await(5, SECONDS));
+        writes.get(1).onCompleted();
+        writes.get(2).onCompleted();
+
+        HidWritePipeline.Result result = pipeline.awaitCompletion();
+        assertEquals(3, result.getSucceeded());
+        assertEquals(0, result.getFailed());
+    }
+
+    @Test
+    public void shouldRetryTimedOutWrites() throws Exception {
+        HidWritePipeline pipeline = new HidWritePipeline(4, 3, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+        pipeline.submit(new Func0<Observable<Object>>() {
+            @Override
+            public Observable<Object> call() {
+                if (attempts.incrementAndGet() < 3) {
+                    return Observable.error(new WriteTimeoutException(ConsistencyLevel.QUORUM, WriteType.CAS, 1, 2));
+                }
+                return Observable.<Object>just(true);
+            }
+        });
+
+        HidWritePipeline.Result result = pipeline.awaitCompletion();
+        assertEquals(3, attempts.get());
+        assertEquals(1, result.getSucceeded());
+        assertEquals(0, result.getFailed());
+        assertEquals(2, result.getRetried());
+    }
+
+    @Test
+    public void shouldCountWritesThatKeepTimingOutAsFailed() throws Exception {
+        HidWritePipeline pipeline = new HidWritePipeline(4, 2, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+        pipeline.submit(new Func0<Observable<Object>>() {
+            @Override
+            public Observable<Object> call() {
+                attempts.incrementAndGet();
+                return Observable.error(new WriteTimeoutException(ConsistencyLevel.QUORUM, WriteType.SIMPLE, 1, 2));
+            }
+        });
+
+        HidWritePipeline.Result result = pipeline.awaitCompletion();
+        assertEquals(3, attempts.get());
+        assertEquals(0, result.getSucceeded());
+        assertEquals(1, result.getFailed());
+    }
+
+    @Test
+    public void shouldNotRetryOtherFailures() throws Exception {
+        HidWritePipeline pipeline = new HidWritePipeline(4, 3, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit(new Func0<Observable<Object>>() {
+                @Override
+                public Observable<Object> call() {
+                    if (attempts.incrementAndGet() % 2 == 0) {
+                        throw new IllegalStateException("bad statement");
+                    }
+                    return Observable.<Object>just(true);
+                }
+            });
+        }
+
+        HidWritePipeline.Result result = pipeline.awaitCompletion();
+        assertEquals(10, attempts.get());
+        assertEquals(5, result.getSucceeded());
+        assertEquals(5, result.getFailed());
+    }
+}
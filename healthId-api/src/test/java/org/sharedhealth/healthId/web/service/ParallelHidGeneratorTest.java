@@ -0,0 +1,91 @@
+package org.sharedhealth.healthId.web.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelHidGeneratorTest {
+
+    private ParallelHidGenerator generator;
+
+    @After
+    public void tearDown() throws Exception {
+        if (generator != null) {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldVisitEveryCandidateExactlyOnce() throws Exception {
+        generator = new ParallelHidGenerator(4, 7);
+        final AtomicLong visited = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+
+        long count = generator.generate(1000, 1999, new ParallelHidGenerator.RangeHandler() {
+            @Override
+            public long handle(long from, long to) {
+                for (long i = from; i <= to; i++) {
+                    visited.incrementAndGet();
+                    sum.addAndGet(i);
+                }
+                return to - from + 1;
+            }
+        });
+
+        assertEquals(1000, count);
+        assertEquals(1000, visited.get());
+        assertEquals((1000L + 1999L) * 1000 / 2, sum.get());
+    }
+
+    @Test
+    public void shouldMergeCountsFromAllWorkers() throws Exception {
+        generator = new ParallelHidGenerator(4, 10);
+        final Set<String> workers = ConcurrentHashMap.newKeySet();
+
+        long count = generator.generate(0, 9999, new ParallelHidGenerator.RangeHandler() {
+            @Override
+            public long handle(long from, long to) {
+                workers.add(Thread.currentThread().getName());
+                long even = 0;
+                for (long i = from; i <= to; i++) {
+                    if (i % 2 == 0) even++;
+                }
+                return even;
+            }
+        });
+
+        assertEquals(5000, count);
+        for (String worker : workers) {
+            assertTrue(worker.startsWith("hid-generator-"));
+        }
+    }
+
+    @Test
+    public void shouldNotProcessAnythingForAnEmptyRange() throws Exception {
+        generator = new ParallelHidGenerator(2, 10);
+        long count = generator.generate(10, 9, new ParallelHidGenerator.RangeHandler() {
+            @Override
+            public long handle(long from, long to) {
+                throw new AssertionError("should not be called");
+            }
+        });
+        assertEquals(0, count);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldPropagateFailuresFromWorkers() throws Exception {
+        generator = new ParallelHidGenerator(2, 10);
+        generator.generate(0, 100, new ParallelHidGenerator.RangeHandler() {
+            @Override
+            public long handle(long from, long to) {
+                throw new IllegalStateException("write failed");
+            }
+        });
+    }
+}
@@ -0,0 +1,141 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledHidValidatorTest {
+
+    private static final String MCI_PATTERN = "^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+    private static final String ORG_PATTERN = "^[^9]|^.[^1-7]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+
+    @Test
+    public void shouldCompileConfiguredPatterns() {
+        assertTrue(CompiledHidValidator.compile(MCI_PATTERN) instanceof CompiledHidValidator);
+        assertTrue(CompiledHidValidator.compile(ORG_PATTERN) instanceof CompiledHidValidator);
+    }
+
+    @Test
+    public void shouldFallBackToRegexForUnsupportedPatterns() {
+        assertTrue(CompiledHidValidator.compile("^(105|104)\\d*$") instanceof RegexHidValidator);
+        assertTrue(CompiledHidValidator.compile("^[^9]|(\\d)\\2{3}") instanceof RegexHidValidator);
+        assertTrue(CompiledHidValidator.compile("(\\d)\\1+") instanceof RegexHidValidator);
+        assertTrue(CompiledHidValidator.compile("") instanceof RegexHidValidator);
+    }
+
+    @Test
+    public void shouldValidateKnownHids() {
+        HidValidator validator = CompiledHidValidator.compile(MCI_PATTERN);
+        assertTrue(validator.isValid(9801543886L));
+        assertTrue(validator.isValid(9901548886L));
+        assertFalse(validator.isValid(8801543886L));
+        assertFalse(validator.isValid(9101543886L));
+        assertFalse(validator.isValid(98000034730L));
+        assertFalse(validator.isValid(9991548886L));
+        assertFalse(validator.isValid(9811115255L));
+        assertFalse(validator.isValid(9926L));
+        assertFalse(validator.isValid(-9801543886L));
+    }
+
+    @Test
+    public void shouldMatchRegexOverEveryNumberOfAScaledDownSeries() {
+        String scaledMciPattern = "^[^9]|^.[^89]|(^\\d{0,5}$)|(^\\d{7,}$)|((\\d)\\4{1})\\d*((\\d)\\6{1})|(\\d)\\7{2}";
+        String scaledOrgPattern = "^[^9]|^.[^1-7]|(^\\d{0,5}$)|(^\\d{8,}$)|((\\d)\\4{2})\\d*((\\d)\\6{1})|(\\d)\\7{3}";
+        assertEquivalent(scaledMciPattern, 0, 9999999);
+        assertEquivalent(scaledOrgPattern, 0, 2999999);
+    }
+
+    @Test
+    public void shouldMatchRegexOverConfiguredSeries() {
+        assertEquivalent(MCI_PATTERN, 9800000000L, 9800499999L);
+        assertEquivalent(MCI_PATTERN, 9899750000L, 9900249999L);
+        assertEquivalent(MCI_PATTERN, 9999750000L, 10000249999L);
+        assertEquivalent(ORG_PATTERN, 9100000000L, 9100499999L);
+        assertEquivalent(ORG_PATTERN, 9777500000L, 9777999999L);
+    }
+
+    @Test
+    public void shouldMatchRegexForRandomCandidates() {
+        Random random = new Random(42);
+        for (String pattern : new String[]{MCI_PATTERN, ORG_PATTERN}) {
+            HidValidator compiled = CompiledHidValidator.compile(pattern);
+            HidValidator regex = new RegexHidValidator(pattern);
+            for (int i = 0; i < 500000; i++) {
+                long candidate = randomCandidate(random);
+                assertEquals(pattern + " " + candidate, regex.isValid(candidate), compiled.isValid(candidate));
+            }
+        }
+    }
+
+    @Test
+    public void shouldMatchRegexForRandomlyComposedPatterns() {
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            String pattern = randomPattern(random);
+            HidValidator compiled = CompiledHidValidator.compile(pattern);
+            assertTrue(pattern, compiled instanceof CompiledHidValidator);
+            HidValidator regex = new RegexHidValidator(pattern);
+            for (int j = 0; j < 20000; j++) {
+                long candidate = random.nextInt(10) == 0 ? random.nextInt(1000) : randomCandidate(random);
+                assertEquals(pattern + " " + candidate, regex.isValid(candidate), compiled.isValid(candidate));
+            }
+        }
+    }
+
+    private void assertEquivalent(String pattern, long from, long to) {
+        HidValidator compiled = CompiledHidValidator.compile(pattern);
+        assertTrue(compiled instanceof CompiledHidValidator);
+        HidValidator regex = new RegexHidValidator(pattern);
+        for (long candidate = from; candidate <= to; candidate++) {
+            if (regex.isValid(candidate) != compiled.isValid(candidate)) {
+                assertEquals(pattern + " " + candidate, regex.isValid(candidate), compiled.isValid(candidate));
+            }
+        }
+    }
+
+    private long randomCandidate(Random random) {
+        int length = 1 + random.nextInt(18);
+        long candidate = 1 + random.nextInt(9);
+        int repeat = random.nextInt(10);
+        for (int i = 1; i < length; i++) {
+            candidate = candidate * 10 + (random.nextInt(3) == 0 ? repeat : random.nextInt(10));
+        }
+        return candidate;
+    }
+
+    private String randomPattern(Random random) {
+        StringBuilder pattern = new StringBuilder();
+        int groups = 0;
+        int branches = 1 + random.nextInt(5);
+        for (int i = 0; i < branches; i++) {
+            if (i > 0) pattern.append('|');
+            switch (random.nextInt(4)) {
+                case 0:
+                    pattern.append('^');
+                    for (int p = random.nextInt(3); p > 0; p--) pattern.append(random.nextBoolean() ? "." : "\\d");
+                    int from = random.nextInt(10);
+                    int to = from + random.nextInt(10 - from);
+                    pattern.append(random.nextBoolean() ? "[^" : "[").append(from).append('-').append(to).append(']');
+                    break;
+                case 1:
+                    int min = random.nextInt(12);
+                    pattern.append("(^\\d{").append(min).append(random.nextBoolean() ? "," : "," + (min + random.nextInt(5))).append("}$)");
+                    groups++;
+                    break;
+                case 2:
+                    pattern.append("(\\d)\\").append(groups + 1).append('{').append(2 + random.nextInt(4)).append('}');
+                    groups++;
+                    break;
+                default:
+                    pattern.append("((\\d)\\").append(groups + 2).append('{').append(1 + random.nextInt(3)).append("})\\d*")
+                            .append("((\\d)\\").append(groups + 4).append('{').append(1 + random.nextInt(3)).append("})");
+                    groups += 4;
+            }
+        }
+        return pattern.toString();
+    }
+}
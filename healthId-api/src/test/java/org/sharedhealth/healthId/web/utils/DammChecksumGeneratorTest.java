@@ -0,0 +1,46 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+
+import static org.junit.Assert.assertEquals;
+
+public class DammChecksumGeneratorTest {
+
+    private ChecksumGenerator checksumGenerator;
+
+    @Before
+    public void setUp() throws Exception {
+        checksumGenerator = new DammChecksumGenerator();
+    }
+
+    @Test
+    public void shouldGenerateChecksumUsingDammAlgorithm() {
+        assertEquals(4, checksumGenerator.generate("572"));
+        assertEquals(4, checksumGenerator.generate("0572"));
+        assertEquals(4, checksumGenerator.generate(572L, 9));
+    }
+
+    @Test
+    public void shouldFillCheckDigitsForARange() {
+        int[] checkDigits = new int[1000];
+        checksumGenerator.generate(800000950L, 9, 1000, checkDigits);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(checksumGenerator.generate(String.valueOf(800000950L + i)), checkDigits[i]);
+        }
+    }
+
+    @Test
+    public void shouldProduceCodesThatValidateToZero() {
+        for (long code = 800000000L; code < 800050000L; code++) {
+            String codeWithCheckDigit = String.valueOf(code) + checksumGenerator.generate(code, 9);
+            assertEquals(0, checksumGenerator.generate(codeWithCheckDigit));
+        }
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldThrowExceptionIfRangeDoesNotFitInLength() {
+        checksumGenerator.generate(999L, 3, 2, new int[2]);
+    }
+}
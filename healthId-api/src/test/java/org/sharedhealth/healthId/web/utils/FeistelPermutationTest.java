@@ -0,0 +1,53 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FeistelPermutationTest {
+
+    @Test
+    public void shouldMapEveryIndexToADistinctIndexWithinSize() {
+        for (long size : new long[]{1, 2, 3, 1000, 12345, 65536, 100003}) {
+            FeistelPermutation permutation = new FeistelPermutation(size, "secret");
+            BitSet seen = new BitSet((int) size);
+            for (long index = 0; index < size; index++) {
+                long permuted = permutation.apply(index);
+                assertTrue(size + " " + permuted, permuted >= 0 && permuted < size);
+                assertFalse(size + " " + permuted, seen.get((int) permuted));
+                seen.set((int) permuted);
+            }
+            assertEquals(size, seen.cardinality());
+        }
+    }
+
+    @Test
+    public void shouldShuffleConsecutiveIndexesDependingOnKey() {
+        FeistelPermutation permutation = new FeistelPermutation(100000000L, "secret");
+        FeistelPermutation samePermutation = new FeistelPermutation(100000000L, "secret");
+        FeistelPermutation otherPermutation = new FeistelPermutation(100000000L, "another secret");
+
+        int consecutive = 0;
+        int sameAsOtherKey = 0;
+        for (long index = 0; index < 1000; index++) {
+            assertEquals(permutation.apply(index), samePermutation.apply(index));
+            if (Math.abs(permutation.apply(index + 1) - permutation.apply(index)) == 1) {
+                consecutive++;
+            }
+            if (permutation.apply(index) == otherPermutation.apply(index)) {
+                sameAsOtherKey++;
+            }
+        }
+        assertTrue(consecutive < 5);
+        assertTrue(sameAsOtherKey < 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotMapIndexOutsideSize() {
+        new FeistelPermutation(1000, "secret").apply(1000);
+    }
+}
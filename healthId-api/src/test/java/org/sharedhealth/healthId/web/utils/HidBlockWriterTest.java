@@ -0,0 +1,46 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+import org.sharedhealth.healthId.web.Model.MciHealthId;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class HidBlockWriterTest {
+
+    @Test
+    public void shouldWriteEachHidAsAJsonStringLine() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        HidBlockWriter.writeNdjson(asList(new MciHealthId("98000000011"), new MciHealthId("98000000021")), out);
+
+        assertEquals("\"98000000011\"\n\"98000000021\"\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void shouldPackEachHidIntoEightBytesAcrossBufferFlushes() throws Exception {
+        List<MciHealthId> block = new ArrayList<>();
+        for (long hid = 98000000000L; hid < 98000020000L; hid++) {
+            block.add(new MciHealthId(String.valueOf(hid)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        HidBlockWriter.writeBinary(block, out);
+
+        ByteBuffer packed = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(block.size() * HidBlockWriter.BINARY_HID_BYTES, packed.remaining());
+        for (MciHealthId mciHealthId : block) {
+            assertEquals(Long.parseLong(mciHealthId.getHid()), packed.getLong());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectHidThatWouldBreakTheJsonLine() throws Exception {
+        HidBlockWriter.writeNdjson(asList(new MciHealthId("980\"00")), new ByteArrayOutputStream());
+    }
+}
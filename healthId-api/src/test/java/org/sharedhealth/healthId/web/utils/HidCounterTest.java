@@ -0,0 +1,97 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HidCounterTest {
+
+    private static final String MCI_PATTERN = "^[^9]|^.[^89]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+    private static final String ORG_PATTERN = "^[^9]|^.[^1-7]|(^\\d{0,9}$)|(^\\d{11,}$)|((\\d)\\4{2})\\d*((\\d)\\6{2})|(\\d)\\7{3}";
+    private static final String SCALED_MCI_PATTERN = "^[^9]|^.[^89]|(^\\d{0,5}$)|(^\\d{7,}$)|((\\d)\\4{1})\\d*((\\d)\\6{1})|(\\d)\\7{2}";
+    private static final String SCALED_ORG_PATTERN = "^[^9]|^.[^1-7]|(^\\d{0,5}$)|(^\\d{8,}$)|((\\d)\\4{2})\\d*((\\d)\\6{1})|(\\d)\\7{3}";
+
+    @Test
+    public void shouldNotCountPatternsThatAreNotCompiled() {
+        assertNull(HidCounter.of(CompiledHidValidator.compile("^(105|104)\\d*$")));
+    }
+
+    @Test
+    public void shouldCountRankAndUnrankEveryNumberOfAScaledDownSeries() {
+        for (String pattern : new String[]{SCALED_MCI_PATTERN, SCALED_ORG_PATTERN, "(\\d)\\1{2}", "^[^1-3]|^\\d{4}$"}) {
+            HidValidator validator = CompiledHidValidator.compile(pattern);
+            HidCounter counter = HidCounter.of(validator);
+            long valid = 0;
+            for (long candidate = 0; candidate < 10000000; candidate++) {
+                if (candidate % 7919 == 0) {
+                    assertEquals(pattern + " " + candidate, valid, counter.rank(candidate));
+                }
+                if (validator.isValid(candidate)) {
+                    if (valid % 997 == 0) {
+                        assertEquals(pattern + " " + valid, candidate, counter.unrank(valid));
+                    }
+                    valid++;
+                }
+            }
+            assertEquals(pattern, valid, counter.count(0, 9999999));
+        }
+    }
+
+    @Test
+    public void shouldCountConfiguredSeriesLikeTheValidator() {
+        assertCounts(MCI_PATTERN, 9800000000L, 9800499999L);
+        assertCounts(MCI_PATTERN, 9899750000L, 9900249999L);
+        assertCounts(ORG_PATTERN, 9100000000L, 9100499999L);
+        assertCounts(ORG_PATTERN, 9777500000L, 9777999999L);
+    }
+
+    @Test
+    public void shouldFindNthValidHidFromAnyCandidate() {
+        HidValidator validator = CompiledHidValidator.compile(MCI_PATTERN);
+        HidCounter counter = HidCounter.of(validator);
+        Random random = new Random(11);
+        for (int i = 0; i < 200; i++) {
+            long from = 9800000000L + (long) (random.nextDouble() * 99999000L);
+            long n = random.nextInt(500);
+            long expected = from;
+            for (long skipped = -1; ; expected++) {
+                if (validator.isValid(expected) && ++skipped == n) {
+                    break;
+                }
+            }
+            assertEquals(from + " " + n, expected, counter.nthValidFrom(from, n));
+            assertEquals(n + 1, counter.count(from, expected));
+        }
+    }
+
+    @Test
+    public void shouldCountWholeConfiguredSeriesWithoutEnumerating() {
+        HidCounter counter = HidCounter.of(CompiledHidValidator.compile(MCI_PATTERN));
+        long mciHIDs = counter.count(9800000000L, 9999999999L);
+
+        assertEquals(mciHIDs, counter.count(9800000000L, 9899999999L) + counter.count(9900000000L, 9999999999L));
+        assertEquals(mciHIDs, counter.count(0, HidCounter.MAX_CANDIDATE));
+        assertEquals(-1, counter.unrank(mciHIDs));
+        assertTrue(counter.unrank(mciHIDs - 1) <= 9999999999L);
+    }
+
+    private void assertCounts(String pattern, long from, long to) {
+        HidValidator validator = CompiledHidValidator.compile(pattern);
+        HidCounter counter = HidCounter.of(validator);
+        long valid = 0;
+        for (long candidate = from; candidate <= to; candidate++) {
+            if (validator.isValid(candidate)) {
+                valid++;
+            }
+            if ((candidate - from) % 10007 == 0) {
+                assertEquals(pattern + " " + candidate, valid, counter.count(from, candidate));
+            }
+        }
+        assertEquals(pattern, valid, counter.count(from, to));
+        assertEquals(pattern, counter.rank(from) + valid, counter.rank(to + 1));
+    }
+}
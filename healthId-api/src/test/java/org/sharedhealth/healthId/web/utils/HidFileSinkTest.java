@@ -0,0 +1,107 @@
+package org.sharedhealth.healthId.web.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HidFileSinkTest {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldWriteHIDsAndManifestOnlyOnCommit() throws Exception {
+        File file = new File(folder.getRoot(), "ORG-1");
+        HidFileSink sink = HidFileSink.open(file, false);
+        sink.write("98000001");
+        sink.write("98000002");
+        sink.sync();
+
+        assertFalse(file.exists());
+        assertFalse(manifestOf(file).exists());
+        assertEquals(hids("98000001", "98000002"), Files.toString(partOf(file), Charsets.UTF_8));
+
+        sink.commit();
+        sink.close();
+
+        assertFalse(partOf(file).exists());
+        assertEquals(hids("98000001", "98000002"), Files.toString(file, Charsets.UTF_8));
+        assertEquals(asList("file=ORG-1", "count=2", "sha256=" + Files.hash(file, Hashing.sha256())),
+                Files.readLines(manifestOf(file), Charsets.UTF_8));
+    }
+
+    @Test
+    public void shouldGzipHIDsWhenAsked() throws Exception {
+        File file = new File(folder.getRoot(), "ORG-1");
+        HidFileSink sink = HidFileSink.open(file, true);
+        for (int hid = 0; hid < 20000; hid++) {
+            sink.write(String.valueOf(98000000 + hid));
+        }
+        sink.sync();
+        sink.commit();
+
+        File gzipFile = new File(folder.getRoot(), "ORG-1" + HidFileSink.GZIP_SUFFIX);
+        assertEquals(gzipFile, sink.getFile());
+        String content = unzip(gzipFile);
+        assertEquals(20000, content.split(LINE_SEPARATOR).length);
+        assertTrue(content.startsWith(hids("98000000", "98000001")));
+        assertEquals(asList("file=ORG-1.gz", "count=20000", "sha256=" + Files.hash(gzipFile, Hashing.sha256())),
+                Files.readLines(manifestOf(gzipFile), Charsets.UTF_8));
+    }
+
+    @Test
+    public void shouldLeavePartFileWithoutManifestWhenNotCommitted() throws Exception {
+        File file = new File(folder.getRoot(), "ORG-1");
+        HidFileSink sink = HidFileSink.open(file, false);
+        sink.write("98000001");
+        sink.close();
+
+        assertFalse(file.exists());
+        assertFalse(manifestOf(file).exists());
+        assertTrue(partOf(file).exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotWriteAfterCommit() throws Exception {
+        HidFileSink sink = HidFileSink.open(new File(folder.getRoot(), "ORG-1"), false);
+        sink.commit();
+        sink.write("98000001");
+    }
+
+    private String hids(String... hids) {
+        StringBuilder content = new StringBuilder();
+        for (String hid : hids) {
+            content.append(hid).append(LINE_SEPARATOR);
+        }
+        return content.toString();
+    }
+
+    private String unzip(File file) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        }
+    }
+
+    private File partOf(File file) {
+        return new File(file.getPath() + HidFileSink.PART_SUFFIX);
+    }
+
+    private File manifestOf(File file) {
+        return new File(file.getPath() + HidFileSink.MANIFEST_SUFFIX);
+    }
+}
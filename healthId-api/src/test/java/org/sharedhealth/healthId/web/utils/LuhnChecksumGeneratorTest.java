@@ -4,7 +4,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.sharedhealth.healthId.web.exception.HidGenerationException;
 
+import static java.lang.Integer.parseInt;
 import static java.lang.String.valueOf;
+import static org.apache.commons.validator.routines.checkdigit.LuhnCheckDigit.LUHN_CHECK_DIGIT;
 import static org.junit.Assert.assertEquals;
 
 public class LuhnChecksumGeneratorTest {
@@ -27,4 +29,29 @@ public class LuhnChecksumGeneratorTest {
     public void shouldThrowExceptionIfChecksumGenerationFails() {
         checksumGenerator.generate(valueOf(-1));
     }
-}
\ No newline at end of file
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldThrowExceptionIfCodeDoesNotFitInLength() {
+        checksumGenerator.generate(12345L, 4);
+    }
+
+    @Test
+    public void shouldMatchCommonsValidatorForPaddedCodes() throws Exception {
+        for (long code = 1; code < 200000; code += 7) {
+            String paddedCode = String.format("%09d", code);
+            assertEquals(paddedCode, parseInt(LUHN_CHECK_DIGIT.calculate(paddedCode)), checksumGenerator.generate(code, 9));
+        }
+        for (long code = 800000000L; code < 800200000L; code += 3) {
+            assertEquals(valueOf(code), parseInt(LUHN_CHECK_DIGIT.calculate(valueOf(code))), checksumGenerator.generate(code, 9));
+        }
+    }
+
+    @Test
+    public void shouldFillCheckDigitsForARange() {
+        int[] checkDigits = new int[1000];
+        checksumGenerator.generate(800000950L, 9, 1000, checkDigits);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(checksumGenerator.generate(valueOf(800000950L + i)), checkDigits[i]);
+        }
+    }
+}
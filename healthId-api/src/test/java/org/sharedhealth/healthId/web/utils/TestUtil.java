@@ -20,7 +20,17 @@ public class TestUtil {
         return asList(
                 CF_MCI_HEALTH_ID,
                 CF_GENERATED_HID_BLOCKS,
-                CF_ORG_HEALTH_ID
+                CF_ORG_HEALTH_ID,
+                CF_HID_GENERATION_CHECKPOINTS,
+                CF_GENERATED_HID_SERIES,
+                CF_HID_ALLOCATION_COUNTERS,
+                CF_HID_POOL_LEASES,
+                CF_HID_POOL_CURSORS,
+                CF_MCI_HID_BUCKETS,
+                CF_MCI_HID_BUCKET_CURSORS,
+                CF_HID_ALLOCATION_INTENTS,
+                CF_MCI_HID_ALLOCATIONS,
+                CF_MCI_HID_ALLOCATION_HISTORY
         );
     }
 
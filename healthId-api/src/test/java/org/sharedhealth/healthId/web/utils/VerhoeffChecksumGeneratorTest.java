@@ -0,0 +1,66 @@
+package org.sharedhealth.healthId.web.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sharedhealth.healthId.web.exception.HidGenerationException;
+
+import static org.junit.Assert.assertEquals;
+
+public class VerhoeffChecksumGeneratorTest {
+
+    private static final int[][] D = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, {1, 2, 3, 4, 0, 6, 7, 8, 9, 5}, {2, 3, 4, 0, 1, 7, 8, 9, 5, 6},
+            {3, 4, 0, 1, 2, 8, 9, 5, 6, 7}, {4, 0, 1, 2, 3, 9, 5, 6, 7, 8}, {5, 9, 8, 7, 6, 0, 4, 3, 2, 1},
+            {6, 5, 9, 8, 7, 1, 0, 4, 3, 2}, {7, 6, 5, 9, 8, 2, 1, 0, 4, 3}, {8, 7, 6, 5, 9, 3, 2, 1, 0, 4},
+            {9, 8, 7, 6, 5, 4, 3, 2, 1, 0}};
+    private static final int[][] P = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, {1, 5, 7, 6, 2, 8, 3, 0, 9, 4}, {5, 8, 0, 3, 7, 9, 6, 1, 4, 2},
+            {8, 9, 1, 6, 0, 4, 3, 5, 2, 7}, {9, 4, 5, 3, 1, 2, 6, 8, 7, 0}, {4, 2, 8, 6, 5, 7, 3, 9, 0, 1},
+            {2, 7, 9, 3, 8, 0, 6, 4, 1, 5}, {7, 0, 4, 6, 9, 1, 3, 2, 5, 8}};
+    private static final int[] INV = {0, 4, 3, 2, 1, 5, 6, 7, 8, 9};
+
+    private ChecksumGenerator checksumGenerator;
+
+    @Before
+    public void setUp() throws Exception {
+        checksumGenerator = new VerhoeffChecksumGenerator();
+    }
+
+    @Test
+    public void shouldGenerateChecksumUsingVerhoeffAlgorithm() {
+        assertEquals(3, checksumGenerator.generate("236"));
+        assertEquals(1, checksumGenerator.generate("12345"));
+    }
+
+    @Test
+    public void shouldTreatLeadingZerosAsSignificant() {
+        for (long code = 0; code < 100000; code += 11) {
+            String paddedCode = String.format("%09d", code);
+            assertEquals(paddedCode, reference(paddedCode), checksumGenerator.generate(code, 9));
+            assertEquals(paddedCode, reference(paddedCode), checksumGenerator.generate(paddedCode));
+        }
+    }
+
+    @Test
+    public void shouldFillCheckDigitsForARange() {
+        int[] checkDigits = new int[1000];
+        checksumGenerator.generate(800000950L, 9, 1000, checkDigits);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(reference(String.valueOf(800000950L + i)), checkDigits[i]);
+        }
+    }
+
+    @Test(expected = HidGenerationException.class)
+    public void shouldThrowExceptionForNonNumericCode() {
+        checksumGenerator.generate("98A1");
+    }
+
+    private int reference(String code) {
+        int c = 0;
+        for (int i = 0; i < code.length(); i++) {
+            int digit = code.charAt(code.length() - i - 1) - '0';
+            c = D[c][P[(i + 1) % 8][digit]];
+        }
+        return INV[c];
+    }
+}